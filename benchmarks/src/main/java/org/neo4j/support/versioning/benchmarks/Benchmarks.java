@@ -0,0 +1,55 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks once for every thread count in the {@code threads} system property, a comma separated list that
+ * defaults to {@value #DEFAULT_THREADS}, and writes the results of each run as JSON to
+ * {@code jmh-result-<threads>-threads.json}, for tracking between releases. Any other JMH command line options, e.g. a
+ * benchmark name pattern or {@code -p historyDepth=10000}, are passed on:
+ *
+ * <pre>
+ * java -Dthreads=1,8 -jar target/benchmarks.jar PropertyReadBenchmark
+ * </pre>
+ */
+public class Benchmarks
+{
+    static final String DEFAULT_THREADS = "1,2,4";
+
+    public static void main( String[] args ) throws Exception
+    {
+        CommandLineOptions commandLineOptions = new CommandLineOptions( args );
+        for ( String threads : System.getProperty( "threads", DEFAULT_THREADS ).split( "," ) )
+        {
+            int threadCount = Integer.parseInt( threads.trim() );
+            new Runner( new OptionsBuilder()
+                .parent( commandLineOptions )
+                .threads( threadCount )
+                .resultFormat( ResultFormatType.JSON )
+                .result( "jmh-result-" + threadCount + "-threads.json" )
+                .build() ).run();
+        }
+    }
+}
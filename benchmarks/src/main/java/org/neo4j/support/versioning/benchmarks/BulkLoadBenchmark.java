@@ -0,0 +1,134 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.benchmarks;
+
+import org.neo4j.graphdb.DynamicRelationshipType;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.support.versioning.date.BulkLoader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading a chain of {@code nodes} nodes into an empty graph, then updating every node once, with one transaction per
+ * operation through the event handler vs. with a {@link BulkLoader}. Every invocation gets a graph of its own.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.SingleShotTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+public class BulkLoadBenchmark
+{
+    private static final RelationshipType LINKED = DynamicRelationshipType.withName( "LINKED" );
+
+    @Param( { "1000", "20000" } )
+    public int nodes;
+
+    private VersionedGraph graph;
+
+    @Setup( Level.Invocation )
+    public void setUp() throws Exception
+    {
+        graph = new VersionedGraph( VersionedGraph.LOCKING );
+    }
+
+    @TearDown( Level.Invocation )
+    public void tearDown()
+    {
+        graph.shutdown();
+    }
+
+    @Benchmark
+    public Node transactions()
+    {
+        Node[] nodeArray = new Node[nodes];
+        for ( int i = 0; i < nodes; i++ )
+        {
+            Transaction tx = graph.graphDb.beginTx();
+            try
+            {
+                nodeArray[i] = graph.graphDb.createNode();
+                nodeArray[i].setProperty( "value", i );
+                if ( i > 0 )
+                {
+                    nodeArray[i - 1].createRelationshipTo( nodeArray[i], LINKED ).setProperty( "value", i );
+                }
+                tx.success();
+            }
+            finally
+            {
+                tx.finish();
+            }
+        }
+        for ( Node node : nodeArray )
+        {
+            Transaction tx = graph.graphDb.beginTx();
+            try
+            {
+                node.setProperty( "value", -1 );
+                tx.success();
+            }
+            finally
+            {
+                tx.finish();
+            }
+        }
+        return nodeArray[nodes - 1];
+    }
+
+    @Benchmark
+    public Node bulkLoader()
+    {
+        Node[] nodeArray = new Node[nodes];
+        BulkLoader loader = new BulkLoader( graph.graphDb, graph.handler );
+        for ( int i = 0; i < nodes; i++ )
+        {
+            nodeArray[i] = loader.createNode( properties( i ) );
+            if ( i > 0 )
+            {
+                loader.createRelationship( nodeArray[i - 1], nodeArray[i], LINKED, properties( i ) );
+            }
+        }
+        loader.nextVersion();
+        for ( Node node : nodeArray )
+        {
+            loader.setProperty( node, "value", -1 );
+        }
+        loader.finish();
+        return nodeArray[nodes - 1];
+    }
+
+    private static Map<String, Object> properties( int value )
+    {
+        return Collections.<String, Object>singletonMap( "value", value );
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.benchmarks;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.support.versioning.date.BulkLoader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Commits through the {@link org.neo4j.support.versioning.date.VersioningTransactionEventHandler}, each changing a
+ * property of a random node, with either version allocator. Every commit bumps the version and writes history, so
+ * with more threads this mostly shows how well commits get past the version allocation.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+public class CommitBenchmark
+{
+    @Param( { "1000", "100000" } )
+    public int nodes;
+
+    @Param( { VersionedGraph.LOCKING, VersionedGraph.BLOCK } )
+    public String allocator;
+
+    private VersionedGraph graph;
+    private long[] nodeIds;
+
+    @State( Scope.Thread )
+    public static class Picker
+    {
+        final Random random = new Random();
+    }
+
+    @Setup( Level.Trial )
+    public void setUp() throws Exception
+    {
+        graph = new VersionedGraph( allocator );
+        nodeIds = new long[nodes];
+        BulkLoader loader = new BulkLoader( graph.graphDb, graph.handler );
+        for ( int i = 0; i < nodes; i++ )
+        {
+            nodeIds[i] = loader.createNode( Collections.<String, Object>singletonMap( "counter", 0 ) ).getId();
+        }
+        loader.finish();
+    }
+
+    @TearDown( Level.Trial )
+    public void tearDown()
+    {
+        graph.shutdown();
+    }
+
+    @Benchmark
+    public long commit( Picker picker )
+    {
+        Transaction tx = graph.graphDb.beginTx();
+        try
+        {
+            Node node = graph.graphDb.getNodeById( nodeIds[picker.random.nextInt( nodes )] );
+            node.setProperty( "counter", picker.random.nextInt() );
+            tx.success();
+            return node.getId();
+        }
+        finally
+        {
+            tx.finish();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.benchmarks;
+
+import org.neo4j.support.versioning.Range;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Range#compactRanges} of short random ranges, about as many overlapping as not.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+public class CompactRangesBenchmark
+{
+    @Param( { "100", "10000", "1000000" } )
+    public int ranges;
+
+    private List<Range> input;
+
+    @Setup( Level.Trial )
+    public void setUp()
+    {
+        Random random = new Random( ranges );
+        input = new ArrayList<Range>();
+        for ( int i = 0; i < ranges; i++ )
+        {
+            long from = random.nextInt( ranges * 10 );
+            input.add( Range.range( from, from + random.nextInt( 8 ) ) );
+        }
+    }
+
+    @Benchmark
+    public List<Range> compactRanges()
+    {
+        return Range.compactRanges( input );
+    }
+}
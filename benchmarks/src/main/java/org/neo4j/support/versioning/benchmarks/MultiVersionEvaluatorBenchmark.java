@@ -0,0 +1,157 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.benchmarks;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.support.versioning.date.MultiVersionEvaluator;
+import org.neo4j.support.versioning.date.PropertyHolderCache;
+import org.neo4j.support.versioning.date.VersionContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.neo4j.support.versioning.date.VersionContext.vc;
+
+/**
+ * Reading a property of each of {@code nodes} nodes at every one of the {@code versions} they changed at, one
+ * {@code vc( version )} at a time vs. with a {@link MultiVersionEvaluator} splitting the versions into {@code tasks}
+ * run by as many threads. With {@code cold} the property holder cache is cleared before every invocation, so the tasks
+ * walk the history chains and fill the cache, otherwise they read from the cache filled by the previous invocations.
+ * Comparing the {@code evaluator} scores between thread counts shows how much the tasks still wait for each other.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+public class MultiVersionEvaluatorBenchmark
+{
+    @Param( { "1000" } )
+    public int versions;
+
+    @Param( { "1", "100" } )
+    public int nodes;
+
+    @Param( { "1", "2", "4", "8" } )
+    public int tasks;
+
+    @Param( { "true", "false" } )
+    public boolean cold;
+
+    private VersionedGraph graph;
+    private ExecutorService executor;
+    private long[] versionArray;
+    private MultiVersionEvaluator.Function<Object> read;
+
+    @Setup( Level.Trial )
+    public void setUp() throws Exception
+    {
+        graph = new VersionedGraph( VersionedGraph.LOCKING );
+        executor = Executors.newFixedThreadPool( tasks );
+        final Node[] nodeArray = new Node[nodes];
+        Transaction tx = graph.graphDb.beginTx();
+        try
+        {
+            for ( int i = 0; i < nodes; i++ )
+            {
+                nodeArray[i] = graph.graphDb.createNode();
+            }
+            tx.success();
+        }
+        finally
+        {
+            tx.finish();
+        }
+        versionArray = new long[versions];
+        for ( int i = 0; i < versions; i++ )
+        {
+            tx = graph.graphDb.beginTx();
+            try
+            {
+                for ( Node node : nodeArray )
+                {
+                    node.setProperty( "value", i );
+                }
+                tx.success();
+            }
+            finally
+            {
+                tx.finish();
+            }
+            versionArray[i] = graph.handler.getLatestVersion();
+        }
+        read = new MultiVersionEvaluator.Function<Object>()
+        {
+            public Object apply( VersionContext versionContext )
+            {
+                Object value = null;
+                for ( Node node : nodeArray )
+                {
+                    value = versionContext.node( node ).getProperty( "value" );
+                }
+                return value;
+            }
+        };
+    }
+
+    @Setup( Level.Invocation )
+    public void clearCache()
+    {
+        if ( cold )
+        {
+            PropertyHolderCache.forGraph( graph.graphDb ).clear();
+        }
+    }
+
+    @TearDown( Level.Trial )
+    public void tearDown()
+    {
+        executor.shutdown();
+        graph.shutdown();
+    }
+
+    @Benchmark
+    public Object oneByOne()
+    {
+        Object last = null;
+        for ( long version : versionArray )
+        {
+            last = read.apply( vc( version ) );
+        }
+        return last;
+    }
+
+    @Benchmark
+    public Map<Long, Object> evaluator() throws InterruptedException
+    {
+        return new MultiVersionEvaluator( executor, tasks ).evaluate( read, versionArray );
+    }
+}
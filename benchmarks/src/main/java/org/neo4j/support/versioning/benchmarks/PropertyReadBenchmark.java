@@ -0,0 +1,132 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.benchmarks;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.support.versioning.date.BulkLoader;
+import org.neo4j.support.versioning.date.VersionContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.neo4j.support.versioning.date.VersionContext.vc;
+
+/**
+ * Reads of a property of a random node, whose value changed at every one of {@code historyDepth} versions, directly
+ * on Neo4j as the baseline, at the head, through the live context, at a random version and at the oldest version.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+public class PropertyReadBenchmark
+{
+    @Param( { "1000" } )
+    public int nodes;
+
+    @Param( { "1", "100", "1000" } )
+    public int historyDepth;
+
+    private VersionedGraph graph;
+    private Node[] nodeArray;
+    private long firstVersion;
+    private long latestVersion;
+
+    @State( Scope.Thread )
+    public static class Picker
+    {
+        final Random random = new Random();
+    }
+
+    @Setup( Level.Trial )
+    public void setUp() throws Exception
+    {
+        graph = new VersionedGraph( VersionedGraph.LOCKING );
+        nodeArray = new Node[nodes];
+        BulkLoader loader = new BulkLoader( graph.graphDb, graph.handler );
+        for ( int i = 0; i < nodes; i++ )
+        {
+            nodeArray[i] = loader.createNode( Collections.<String, Object>singletonMap( "counter", 0 ) );
+        }
+        firstVersion = loader.getVersion();
+        for ( int change = 1; change <= historyDepth; change++ )
+        {
+            loader.nextVersion();
+            for ( Node node : nodeArray )
+            {
+                loader.setProperty( node, "counter", change );
+            }
+        }
+        loader.finish();
+        latestVersion = graph.handler.getLatestVersion();
+    }
+
+    @TearDown( Level.Trial )
+    public void tearDown()
+    {
+        graph.shutdown();
+    }
+
+    @Benchmark
+    public Object raw( Picker picker )
+    {
+        return pick( picker ).getProperty( "counter" );
+    }
+
+    @Benchmark
+    public Object head( Picker picker )
+    {
+        return vc( latestVersion ).node( pick( picker ) ).getProperty( "counter" );
+    }
+
+    @Benchmark
+    public Object live( Picker picker )
+    {
+        return VersionContext.live().node( pick( picker ) ).getProperty( "counter" );
+    }
+
+    @Benchmark
+    public Object randomVersion( Picker picker )
+    {
+        long version = firstVersion + picker.random.nextInt( (int) ( latestVersion - firstVersion + 1 ) );
+        return vc( version ).node( pick( picker ) ).getProperty( "counter" );
+    }
+
+    @Benchmark
+    public Object oldestVersion( Picker picker )
+    {
+        return vc( firstVersion ).node( pick( picker ) ).getProperty( "counter" );
+    }
+
+    private Node pick( Picker picker )
+    {
+        return nodeArray[picker.random.nextInt( nodes )];
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.benchmarks;
+
+import org.neo4j.support.versioning.Range;
+import org.neo4j.support.versioning.RangeSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compacting short random ranges with {@link RangeSet} vs. the recursive merge {@link Range#compactRanges} used to do,
+ * and unions of sorted ranges with {@link RangeSet#union} vs. folding them with {@link Range#union}. Sizes stay small
+ * enough for the recursive merge not to run out of stack.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+public class RangeSetBenchmark
+{
+    @Param( { "100", "1000", "4000" } )
+    public int ranges;
+
+    private List<Range> input;
+    private List<Range> sorted;
+    private RangeSet evenRanges;
+    private RangeSet oddRanges;
+
+    @Setup( Level.Trial )
+    public void setUp()
+    {
+        Random random = new Random( ranges );
+        input = new ArrayList<Range>();
+        evenRanges = new RangeSet();
+        oddRanges = new RangeSet();
+        for ( int i = 0; i < ranges; i++ )
+        {
+            long from = random.nextInt( ranges * 10 );
+            Range range = Range.range( from, from + random.nextInt( 8 ) );
+            input.add( range );
+            ( i % 2 == 0 ? evenRanges : oddRanges ).add( range );
+        }
+        sorted = new ArrayList<Range>( input );
+        Collections.sort( sorted );
+    }
+
+    @Benchmark
+    public List<Range> compactRecursive()
+    {
+        List<Range> result = new ArrayList<Range>();
+        takeNextRangeAndMergeOverlappingRanges( new ArrayList<Range>( input ), result );
+        Collections.sort( result );
+        return result;
+    }
+
+    @Benchmark
+    public RangeSet compactRangeSet()
+    {
+        return RangeSet.of( input );
+    }
+
+    @Benchmark
+    public int unionRange()
+    {
+        int merged = 0;
+        Range current = sorted.get( 0 );
+        for ( Range range : sorted )
+        {
+            if ( current.overlaps( range ) )
+            {
+                current = current.union( range ).iterator().next();
+            }
+            else
+            {
+                current = range;
+                merged++;
+            }
+        }
+        return merged;
+    }
+
+    @Benchmark
+    public RangeSet unionRangeSet()
+    {
+        return new RangeSet( ranges ).union( evenRanges ).union( oddRanges );
+    }
+
+    // The recursive merge Range.compactRanges used before RangeSet, kept as the baseline.
+
+    private static void takeNextRangeAndMergeOverlappingRanges( List<Range> rangeList, List<Range> result )
+    {
+        if ( rangeList.isEmpty() ) return;
+        result.add( consumeAndMergeOverlappingRanges( rangeList.remove( 0 ), rangeList ) );
+        takeNextRangeAndMergeOverlappingRanges( rangeList, result );
+    }
+
+    private static Range consumeAndMergeOverlappingRanges( Range first, List<Range> rangeList )
+    {
+        for ( int i = 0; i < rangeList.size(); i++ )
+        {
+            Range rangeInList = rangeList.get( i );
+            if ( first.overlaps( rangeInList ) )
+            {
+                first = first.union( rangeInList ).iterator().next();
+                rangeList.remove( i );
+                return consumeAndMergeOverlappingRanges( first, rangeList );
+            }
+        }
+        return first;
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.benchmarks;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.DynamicRelationshipType;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.support.versioning.date.BulkLoader;
+import org.neo4j.support.versioning.date.RelationshipCursor;
+import org.neo4j.support.versioning.date.VersionContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.neo4j.support.versioning.date.VersionContext.vc;
+
+/**
+ * Iterating the relationships of a node with {@code degree} relationships at any version, of which
+ * {@code churn * degree} have been replaced, one per version, by relationships to other nodes. Reads directly on
+ * Neo4j as the baseline, which also sees the replaced relationships since versioning only marks them deleted, at the
+ * head, in the middle of the churn, through the live context and into a {@link RelationshipCursor}.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+public class RelationshipReadBenchmark
+{
+    private static final RelationshipType LINKED = DynamicRelationshipType.withName( "LINKED" );
+
+    @Param( { "100", "10000" } )
+    public int degree;
+
+    @Param( { "0", "1", "10" } )
+    public double churn;
+
+    private VersionedGraph graph;
+    private Node hub;
+    private long middleVersion;
+    private long latestVersion;
+
+    @State( Scope.Thread )
+    public static class Cursor
+    {
+        final RelationshipCursor cursor = new RelationshipCursor();
+    }
+
+    @Setup( Level.Trial )
+    public void setUp() throws Exception
+    {
+        graph = new VersionedGraph( VersionedGraph.LOCKING );
+        Map<String, Object> noProperties = Collections.emptyMap();
+        Random random = new Random( degree );
+        BulkLoader loader = new BulkLoader( graph.graphDb, graph.handler );
+        hub = loader.createNode( noProperties );
+        List<Node> others = new ArrayList<Node>();
+        List<Relationship> relationships = new ArrayList<Relationship>();
+        for ( int i = 0; i < degree; i++ )
+        {
+            Node other = loader.createNode( noProperties );
+            others.add( other );
+            relationships.add( loader.createRelationship( hub, other, LINKED, noProperties ) );
+        }
+        long firstVersion = loader.getVersion();
+        int replaced = (int) ( churn * degree );
+        for ( int i = 0; i < replaced; i++ )
+        {
+            loader.nextVersion();
+            int index = random.nextInt( degree );
+            loader.deleteRelationship( relationships.get( index ) );
+            relationships.set( index, loader.createRelationship( hub, others.get( random.nextInt( degree ) ), LINKED,
+                noProperties ) );
+        }
+        loader.finish();
+        latestVersion = graph.handler.getLatestVersion();
+        middleVersion = ( firstVersion + latestVersion ) / 2;
+    }
+
+    @TearDown( Level.Trial )
+    public void tearDown()
+    {
+        graph.shutdown();
+    }
+
+    @Benchmark
+    public long raw()
+    {
+        return visit( hub );
+    }
+
+    @Benchmark
+    public long head()
+    {
+        return visit( vc( latestVersion ).node( hub ) );
+    }
+
+    @Benchmark
+    public long middle()
+    {
+        return visit( vc( middleVersion ).node( hub ) );
+    }
+
+    @Benchmark
+    public long live()
+    {
+        return visit( VersionContext.live().node( hub ) );
+    }
+
+    @Benchmark
+    public long headCursor( Cursor state )
+    {
+        RelationshipCursor cursor = state.cursor;
+        vc( latestVersion ).expand( hub, Direction.OUTGOING, cursor, LINKED );
+        long sum = 0;
+        while ( cursor.next() )
+        {
+            sum += cursor.otherNodeId();
+        }
+        return sum;
+    }
+
+    private static long visit( Node node )
+    {
+        long sum = 0;
+        for ( Relationship relationship : node.getRelationships( LINKED, Direction.OUTGOING ) )
+        {
+            sum += relationship.getId();
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,204 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.benchmarks;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.DynamicRelationshipType;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.ReturnableEvaluator;
+import org.neo4j.graphdb.StopEvaluator;
+import org.neo4j.graphdb.Traverser;
+import org.neo4j.support.versioning.date.BulkLoader;
+import org.neo4j.support.versioning.date.RelationshipCursor;
+import org.neo4j.support.versioning.date.RelationshipIntervalIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.neo4j.support.versioning.date.VersionContext.vc;
+
+/**
+ * Breadth and depth first traversals of a random graph of {@code nodes} nodes and four times as many relationships,
+ * at the head and at the version before half of the relationships were replaced, one per version, and the same breadth
+ * first walk over ids with a {@link RelationshipCursor}.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+public class TraversalBenchmark
+{
+    private static final RelationshipType LINKED = DynamicRelationshipType.withName( "LINKED" );
+
+    @Param( { "2000", "20000" } )
+    public int nodes;
+
+    private VersionedGraph graph;
+    private Node start;
+    private int maxNodeId;
+    private long historicVersion;
+    private long headVersion;
+
+    @State( Scope.Thread )
+    public static class Walk
+    {
+        final RelationshipCursor cursor = new RelationshipCursor();
+        long[] queue = new long[0];
+        boolean[] seen = new boolean[0];
+    }
+
+    @Setup( Level.Trial )
+    public void setUp() throws Exception
+    {
+        graph = new VersionedGraph( VersionedGraph.LOCKING );
+        Map<String, Object> noProperties = Collections.emptyMap();
+        Random random = new Random( 42 );
+        BulkLoader loader = new BulkLoader( graph.graphDb, graph.handler );
+        List<Node> nodeList = new ArrayList<Node>();
+        for ( int i = 0; i < nodes; i++ )
+        {
+            Node node = loader.createNode( noProperties );
+            nodeList.add( node );
+            maxNodeId = Math.max( maxNodeId, (int) node.getId() );
+        }
+        List<Relationship> relationships = new ArrayList<Relationship>();
+        for ( int i = 0; i < nodes * 4; i++ )
+        {
+            relationships.add( loader.createRelationship( randomNode( nodeList, random ), randomNode( nodeList, random ),
+                LINKED, noProperties ) );
+        }
+        historicVersion = loader.getVersion();
+        for ( int i = 0; i < nodes * 2; i++ )
+        {
+            loader.nextVersion();
+            loader.deleteRelationship( relationships.remove( random.nextInt( relationships.size() ) ) );
+            relationships.add( loader.createRelationship( randomNode( nodeList, random ), randomNode( nodeList, random ),
+                LINKED, noProperties ) );
+        }
+        loader.finish();
+        headVersion = graph.handler.getLatestVersion();
+        start = nodeList.get( 0 );
+    }
+
+    @TearDown( Level.Trial )
+    public void tearDown()
+    {
+        graph.shutdown();
+    }
+
+    @Benchmark
+    public int breadthFirstHead()
+    {
+        return traverse( headVersion, Traverser.Order.BREADTH_FIRST );
+    }
+
+    @Benchmark
+    public int breadthFirstHistory()
+    {
+        return traverse( historicVersion, Traverser.Order.BREADTH_FIRST );
+    }
+
+    @Benchmark
+    public int depthFirstHead()
+    {
+        return traverse( headVersion, Traverser.Order.DEPTH_FIRST );
+    }
+
+    @Benchmark
+    public int depthFirstHistory()
+    {
+        return traverse( historicVersion, Traverser.Order.DEPTH_FIRST );
+    }
+
+    @Benchmark
+    public int cursorHead( Walk walk )
+    {
+        return walk( headVersion, walk );
+    }
+
+    @Benchmark
+    public int cursorHistory( Walk walk )
+    {
+        return walk( historicVersion, walk );
+    }
+
+    private int traverse( long version, Traverser.Order order )
+    {
+        int visited = 0;
+        for ( Node ignored : vc( version ).node( start ).traverse( order, StopEvaluator.END_OF_GRAPH,
+            ReturnableEvaluator.ALL, LINKED, Direction.BOTH ) )
+        {
+            visited++;
+        }
+        return visited;
+    }
+
+    private int walk( long version, Walk walk )
+    {
+        if ( walk.seen.length <= maxNodeId )
+        {
+            walk.queue = new long[maxNodeId + 1];
+            walk.seen = new boolean[maxNodeId + 1];
+        }
+        RelationshipIntervalIndex index = RelationshipIntervalIndex.forGraph( graph.graphDb );
+        long[] queue = walk.queue;
+        boolean[] seen = walk.seen;
+        Arrays.fill( seen, false );
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = start.getId();
+        seen[(int) start.getId()] = true;
+        while ( head < tail )
+        {
+            index.expand( graph.graphDb, queue[head++], Direction.BOTH, version, walk.cursor, LINKED );
+            while ( walk.cursor.next() )
+            {
+                int other = (int) walk.cursor.otherNodeId();
+                if ( !seen[other] )
+                {
+                    seen[other] = true;
+                    queue[tail++] = other;
+                }
+            }
+        }
+        return tail;
+    }
+
+    private static Node randomNode( List<Node> nodes, Random random )
+    {
+        return nodes.get( random.nextInt( nodes.size() ) );
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.benchmarks;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.EmbeddedGraphDatabase;
+import org.neo4j.support.versioning.date.BlockVersionAllocator;
+import org.neo4j.support.versioning.date.LockingVersionAllocator;
+import org.neo4j.support.versioning.date.VersionAllocator;
+import org.neo4j.support.versioning.date.VersioningTransactionEventHandler;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A versioned graph in a store of its own in a temporary directory, for the benchmarks to set up and throw away.
+ */
+class VersionedGraph
+{
+    static final String LOCKING = "locking";
+    static final String BLOCK = "block";
+    private static final int BLOCK_SIZE = 1000;
+
+    final GraphDatabaseService graphDb;
+    final VersioningTransactionEventHandler handler;
+    private final File storeDir;
+
+    /**
+     * @param allocator {@link #LOCKING} or {@link #BLOCK}, for the version allocator to use.
+     */
+    VersionedGraph( String allocator ) throws IOException
+    {
+        storeDir = File.createTempFile( "versioning-benchmark", "" );
+        if ( !storeDir.delete() || !storeDir.mkdir() )
+            throw new IOException( "Couldn't create store directory [" + storeDir + "]." );
+        graphDb = new EmbeddedGraphDatabase( storeDir.getAbsolutePath() );
+        Transaction tx = graphDb.beginTx();
+        Node versionDataNode;
+        try
+        {
+            versionDataNode = graphDb.createNode();
+            tx.success();
+        }
+        finally
+        {
+            tx.finish();
+        }
+        VersionAllocator versionAllocator;
+        if ( LOCKING.equals( allocator ) )
+        {
+            versionAllocator = new LockingVersionAllocator( versionDataNode );
+        }
+        else if ( BLOCK.equals( allocator ) )
+        {
+            versionAllocator = new BlockVersionAllocator( versionDataNode, BLOCK_SIZE );
+        }
+        else
+        {
+            throw new IllegalArgumentException( "Unknown version allocator [" + allocator + "]." );
+        }
+        handler = new VersioningTransactionEventHandler( versionAllocator );
+        graphDb.registerTransactionEventHandler( handler );
+    }
+
+    void shutdown()
+    {
+        graphDb.shutdown();
+        delete( storeDir );
+    }
+
+    private static void delete( File file )
+    {
+        File[] children = file.listFiles();
+        if ( children != null )
+        {
+            for ( File child : children )
+            {
+                delete( child );
+            }
+        }
+        file.delete();
+    }
+}
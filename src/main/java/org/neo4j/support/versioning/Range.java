@@ -19,10 +19,8 @@
  */
 package org.neo4j.support.versioning;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -64,7 +62,7 @@ public class Range implements Comparable<Range>
 
     public Set<Range> union( Range other )
     {
-        if ( intersect( other ) == NIL ) return asSet( this, other );
+        if ( !overlaps( other ) ) return asSet( this, other );
         if ( equals( other ) ) return asSet( this );
         return asSet( realUnion( other ) );
     }
@@ -83,7 +81,7 @@ public class Range implements Comparable<Range>
 
     public boolean overlaps( Range other )
     {
-        return !intersect( other ).equals( NIL );
+        return to >= other.from && from <= other.to;
     }
 
     public boolean contains(long point) {
@@ -125,32 +123,7 @@ public class Range implements Comparable<Range>
 
     public static List<Range> compactRanges( Collection<Range> ranges )
     {
-        List<Range> result = new ArrayList<Range>();
-        takeNextRangeAndMergeOverlappingRanges( new ArrayList<Range>( ranges ), result );
-        Collections.sort( result );
-        return result;
-    }
-
-    private static void takeNextRangeAndMergeOverlappingRanges( List<Range> rangeList, List<Range> result )
-    {
-        if ( rangeList.isEmpty() ) return;
-        result.add( consumeAndMergeOverlappingRanges( rangeList.remove( 0 ), rangeList ) );
-        takeNextRangeAndMergeOverlappingRanges( rangeList, result );
-    }
-
-    private static Range consumeAndMergeOverlappingRanges( Range first, List<Range> rangeList )
-    {
-        for ( int i = 0; i < rangeList.size(); i++ )
-        {
-            Range rangeInList = rangeList.get( i );
-            if ( first.overlaps( rangeInList ) )
-            {
-                first = first.union( rangeInList ).iterator().next();
-                rangeList.remove( i );
-                return consumeAndMergeOverlappingRanges( first, rangeList );
-            }
-        }
-        return first;
+        return RangeSet.of( ranges ).toRanges();
     }
 
     public static Range range( long from, long to )
@@ -0,0 +1,409 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A mutable set of closed {@code long} ranges, kept as sorted, disjoint {@code [from, to]} pairs in a single
+ * {@code long[]}. Ranges that overlap or touch are merged, the same way {@link Range#union(Range)} does it.
+ * <p>
+ * Ranges appended in ascending order are merged as they come in. Out of order ranges are buffered and the set is
+ * sorted and compacted in place the next time it's read, so building a set from millions of ranges costs one sort.
+ * {@link #union(RangeSet)} and {@link #intersect(RangeSet)} work in place as well, the only allocation is growing the
+ * backing array. Iterate with {@link #size()}, {@link #from(int)} and {@link #to(int)}.
+ * <p>
+ * Not thread safe.
+ */
+public final class RangeSet
+{
+    private static final int INITIAL_CAPACITY = 8;
+
+    private long[] bounds;
+    private int size;
+    private boolean compacted = true;
+
+    public RangeSet()
+    {
+        this( INITIAL_CAPACITY );
+    }
+
+    public RangeSet( int expectedRanges )
+    {
+        this.bounds = new long[2 * Math.max( 1, expectedRanges )];
+    }
+
+    public static RangeSet of( Iterable<Range> ranges )
+    {
+        RangeSet rangeSet = new RangeSet();
+        for ( Range range : ranges )
+        {
+            rangeSet.add( range.from(), range.to() );
+        }
+        return rangeSet;
+    }
+
+    public RangeSet add( long from, long to )
+    {
+        if ( from > to )
+            throw new IllegalArgumentException( String.format( "From [%d] was after To [%d].", from, to ) );
+        if ( compacted && size > 0 )
+        {
+            int last = 2 * ( size - 1 );
+            if ( from >= bounds[last] && from <= bounds[last + 1] )
+            {
+                bounds[last + 1] = Math.max( to, bounds[last + 1] );
+                return this;
+            }
+            compacted = from > bounds[last + 1];
+        }
+        ensureCapacity( size + 1 );
+        bounds[2 * size] = from;
+        bounds[2 * size + 1] = to;
+        size++;
+        return this;
+    }
+
+    public RangeSet add( Range range )
+    {
+        return add( range.from(), range.to() );
+    }
+
+    public int size()
+    {
+        compact();
+        return size;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    public long from( int index )
+    {
+        compact();
+        checkIndex( index );
+        return bounds[2 * index];
+    }
+
+    public long to( int index )
+    {
+        compact();
+        checkIndex( index );
+        return bounds[2 * index + 1];
+    }
+
+    public Range get( int index )
+    {
+        return new Range( from( index ), to( index ) );
+    }
+
+    public boolean contains( long point )
+    {
+        compact();
+        int index = floor( point );
+        return index >= 0 && bounds[2 * index + 1] >= point;
+    }
+
+    public boolean overlaps( long from, long to )
+    {
+        compact();
+        int index = floor( to );
+        return index >= 0 && bounds[2 * index + 1] >= from;
+    }
+
+    /**
+     * Adds all ranges of {@code other} to this set.
+     */
+    public RangeSet union( RangeSet other )
+    {
+        compact();
+        other.compact();
+        if ( other == this || other.size == 0 )
+        {
+            return this;
+        }
+        ensureCapacity( size + other.size );
+        // Move our own ranges out of the way to the end of the array and merge both lists into its front. Every
+        // range written consumes at least one input range, so writing never overtakes reading.
+        int offset = other.size;
+        System.arraycopy( bounds, 0, bounds, 2 * offset, 2 * size );
+        int mine = 0;
+        int theirs = 0;
+        int written = 0;
+        while ( mine < size || theirs < other.size )
+        {
+            long from;
+            long to;
+            if ( theirs == other.size || ( mine < size && bounds[2 * ( offset + mine )] <= other.bounds[2 * theirs] ) )
+            {
+                from = bounds[2 * ( offset + mine )];
+                to = bounds[2 * ( offset + mine ) + 1];
+                mine++;
+            }
+            else
+            {
+                from = other.bounds[2 * theirs];
+                to = other.bounds[2 * theirs + 1];
+                theirs++;
+            }
+            if ( written > 0 && from <= bounds[2 * written - 1] )
+            {
+                bounds[2 * written - 1] = Math.max( to, bounds[2 * written - 1] );
+            }
+            else
+            {
+                bounds[2 * written] = from;
+                bounds[2 * written + 1] = to;
+                written++;
+            }
+        }
+        size = written;
+        return this;
+    }
+
+    /**
+     * Retains only the parts of this set that are also covered by {@code other}. Like
+     * {@link Range#intersect(Range)}, ranges that only touch intersect in a single point.
+     */
+    public RangeSet intersect( RangeSet other )
+    {
+        compact();
+        other.compact();
+        if ( other == this )
+        {
+            return this;
+        }
+        if ( size == 0 || other.size == 0 )
+        {
+            size = 0;
+            return this;
+        }
+        ensureCapacity( size + other.size );
+        // Same trick as in union, an intersection has fewer ranges than both inputs together.
+        int offset = other.size;
+        System.arraycopy( bounds, 0, bounds, 2 * offset, 2 * size );
+        int mine = 0;
+        int theirs = 0;
+        int written = 0;
+        while ( mine < size && theirs < other.size )
+        {
+            long myTo = bounds[2 * ( offset + mine ) + 1];
+            long theirTo = other.bounds[2 * theirs + 1];
+            long from = Math.max( bounds[2 * ( offset + mine )], other.bounds[2 * theirs] );
+            long to = Math.min( myTo, theirTo );
+            if ( from <= to )
+            {
+                bounds[2 * written] = from;
+                bounds[2 * written + 1] = to;
+                written++;
+            }
+            if ( myTo < theirTo )
+            {
+                mine++;
+            }
+            else
+            {
+                theirs++;
+            }
+        }
+        size = written;
+        return this;
+    }
+
+    public void clear()
+    {
+        size = 0;
+        compacted = true;
+    }
+
+    public List<Range> toRanges()
+    {
+        compact();
+        List<Range> ranges = new ArrayList<Range>( size );
+        for ( int i = 0; i < size; i++ )
+        {
+            ranges.add( new Range( bounds[2 * i], bounds[2 * i + 1] ) );
+        }
+        return ranges;
+    }
+
+    /**
+     * Returns the index of the last range starting at or before {@code point}, or -1 if there is none.
+     */
+    private int floor( long point )
+    {
+        int low = 0;
+        int high = size - 1;
+        while ( low <= high )
+        {
+            int middle = ( low + high ) >>> 1;
+            if ( bounds[2 * middle] <= point )
+            {
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle - 1;
+            }
+        }
+        return high;
+    }
+
+    private void compact()
+    {
+        if ( compacted )
+        {
+            return;
+        }
+        sort( 0, size - 1 );
+        int written = 0;
+        for ( int i = 0; i < size; i++ )
+        {
+            long from = bounds[2 * i];
+            long to = bounds[2 * i + 1];
+            if ( written > 0 && from <= bounds[2 * written - 1] )
+            {
+                bounds[2 * written - 1] = Math.max( to, bounds[2 * written - 1] );
+            }
+            else
+            {
+                bounds[2 * written] = from;
+                bounds[2 * written + 1] = to;
+                written++;
+            }
+        }
+        size = written;
+        compacted = true;
+    }
+
+    /**
+     * Sorts pairs by start, in place. Iterates over the larger partition and recurses into the smaller one, which keeps
+     * the stack at O(log n) no matter the input.
+     */
+    private void sort( int low, int high )
+    {
+        while ( high - low > 16 )
+        {
+            long pivot = median( bounds[2 * low], bounds[2 * ( ( low + high ) >>> 1 )], bounds[2 * high] );
+            int left = low;
+            int right = high;
+            while ( left <= right )
+            {
+                while ( bounds[2 * left] < pivot )
+                {
+                    left++;
+                }
+                while ( bounds[2 * right] > pivot )
+                {
+                    right--;
+                }
+                if ( left <= right )
+                {
+                    swap( left++, right-- );
+                }
+            }
+            if ( right - low < high - left )
+            {
+                sort( low, right );
+                low = left;
+            }
+            else
+            {
+                sort( left, high );
+                high = right;
+            }
+        }
+        for ( int i = low + 1; i <= high; i++ )
+        {
+            for ( int j = i; j > low && bounds[2 * ( j - 1 )] > bounds[2 * j]; j-- )
+            {
+                swap( j - 1, j );
+            }
+        }
+    }
+
+    private static long median( long a, long b, long c )
+    {
+        return Math.max( Math.min( a, b ), Math.min( Math.max( a, b ), c ) );
+    }
+
+    private void swap( int first, int second )
+    {
+        long from = bounds[2 * first];
+        long to = bounds[2 * first + 1];
+        bounds[2 * first] = bounds[2 * second];
+        bounds[2 * first + 1] = bounds[2 * second + 1];
+        bounds[2 * second] = from;
+        bounds[2 * second + 1] = to;
+    }
+
+    private void ensureCapacity( int ranges )
+    {
+        if ( 2 * ranges > bounds.length )
+        {
+            bounds = Arrays.copyOf( bounds, Math.max( 2 * ranges, 2 * bounds.length ) );
+        }
+    }
+
+    private void checkIndex( int index )
+    {
+        if ( index < 0 || index >= size )
+            throw new IndexOutOfBoundsException( "Index: " + index + ", size: " + size );
+    }
+
+    @Override
+    public boolean equals( Object o )
+    {
+        if ( this == o ) return true;
+        if ( o == null || getClass() != o.getClass() ) return false;
+
+        RangeSet other = (RangeSet) o;
+        compact();
+        other.compact();
+        if ( size != other.size ) return false;
+        for ( int i = 0; i < 2 * size; i++ )
+        {
+            if ( bounds[i] != other.bounds[i] ) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        compact();
+        int result = 1;
+        for ( int i = 0; i < 2 * size; i++ )
+        {
+            result = 31 * result + (int) ( bounds[i] ^ ( bounds[i] >>> 32 ) );
+        }
+        return result;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "RangeSet" + toRanges();
+    }
+}
@@ -0,0 +1,626 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.graphdb.index.IndexHits;
+import org.neo4j.support.versioning.Range;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static org.neo4j.support.versioning.date.VersionContext.PENDING_HISTORY_PROPERTY;
+import static org.neo4j.support.versioning.date.VersionContext.getStartVersion;
+import static org.neo4j.support.versioning.date.VersionContext.setStartVersion;
+
+/**
+ * Takes writing property history off the commit path. With a writer {@link
+ * VersioningTransactionEventHandler#setAsyncHistoryWriter(AsyncHistoryWriter) set}, a commit moves the head range of
+ * the entities it changed as usual, but instead of creating historic nodes it adds a record of the previous values to
+ * the node the history hangs off, the entity itself or the history node of a relationship. Each record is a property of
+ * its own, numbered after {@link VersionContext#PENDING_HISTORY_PROPERTY}, which holds the count, so a commit writes the
+ * same small amount however many records are pending. The record is part of the committing transaction, so it's exactly
+ * as durable as the change. The writer turns the records into historic nodes later, in batches, either when
+ * {@link #flush()} is called or periodically in the background after {@link #start(long, TimeUnit)}. An entity with
+ * {@link #setMaxPending(int) too many} records pending has them written by its next commit, along with its change.
+ * <p>
+ * Until a record is written, {@link VersionContext} answers reads at the versions it covers by applying the pending
+ * records from there on to the head. {@link VersionedIndex}es get the new head document at commit, only the document
+ * of the historic node waits for the record to be written. The writer keeps the nodes with pending records in memory,
+ * and adds them to the {@link #PENDING_INDEX_NAME pending index} as long as they have any. While a writer is set, the
+ * graph is marked in that index too until it's unset again, and a writer created for a graph that is still marked,
+ * after a crash or a shutdown with the writer set, finds what's left pending by querying it. Its first flush writes
+ * it, which {@link #start(long, TimeUnit)} runs straight away. Changing an entity while no writer is set writes its
+ * pending records first.
+ */
+public class AsyncHistoryWriter implements Runnable
+{
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+    public static final int DEFAULT_MAX_PENDING = 64;
+    static final String PENDING_INDEX_NAME = "__pending_history__";
+    private static final String SET_KEY = "writer";
+    private static final String SET_VALUE = "set";
+    private static final String ANCHOR_KEY = "anchor";
+    private static final String ANCHOR_VALUE = "pending";
+    // The id of the relationship whose history node holds the records.
+    private static final String RELATIONSHIP_PROPERTY = PENDING_HISTORY_PROPERTY + ".relationship";
+
+    private final GraphDatabaseService graphDb;
+    private final VersioningTransactionEventHandler versioningTransactionEventHandler;
+    // Nodes that got records since they were last written, and maybe some that have none anymore.
+    private final Set<Long> pendingAnchors = Collections.newSetFromMap( new ConcurrentHashMap<Long, Boolean>() );
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private volatile int maxPending = DEFAULT_MAX_PENDING;
+    private ScheduledExecutorService scheduler;
+    private volatile RuntimeException lastFailure;
+
+    public AsyncHistoryWriter( GraphDatabaseService graphDb,
+        VersioningTransactionEventHandler versioningTransactionEventHandler )
+    {
+        this.graphDb = graphDb;
+        this.versioningTransactionEventHandler = versioningTransactionEventHandler;
+        if ( isMarked() )
+        {
+            IndexHits<Node> hits = pendingIndex( graphDb ).get( ANCHOR_KEY, ANCHOR_VALUE );
+            try
+            {
+                for ( Node anchor : hits )
+                {
+                    pendingAnchors.add( anchor.getId() );
+                }
+            }
+            finally
+            {
+                hits.close();
+            }
+        }
+    }
+
+    public void setBatchSize( int batchSize )
+    {
+        if ( batchSize < 1 )
+            throw new IllegalArgumentException( "Batch size must be positive, was [" + batchSize + "]." );
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Lets an entity have up to {@code maxPending} records waiting to be written. A commit to an entity that has that
+     * many writes them itself.
+     */
+    public void setMaxPending( int maxPending )
+    {
+        if ( maxPending < 1 )
+            throw new IllegalArgumentException( "Max pending must be positive, was [" + maxPending + "]." );
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * Writes pending records every {@code period}, starting right away with those left from before.
+     */
+    public synchronized void start( long period, TimeUnit unit )
+    {
+        if ( scheduler != null )
+        {
+            throw new IllegalStateException( "Already started." );
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor( new ThreadFactory()
+        {
+            public Thread newThread( Runnable runnable )
+            {
+                Thread thread = new Thread( runnable, "Async history writer" );
+                thread.setDaemon( true );
+                return thread;
+            }
+        } );
+        scheduler.scheduleWithFixedDelay( this, 0, period, unit );
+    }
+
+    /**
+     * Stops writing in the background. What's pending stays pending until the next {@link #flush()}.
+     */
+    public void stop()
+    {
+        ScheduledExecutorService stopped;
+        synchronized ( this )
+        {
+            stopped = scheduler;
+            scheduler = null;
+        }
+        if ( stopped != null )
+        {
+            stopped.shutdown();
+        }
+    }
+
+    /**
+     * Runs {@link #flush()}, remembering rather than throwing failures so a background run doesn't cancel the ones
+     * after it.
+     */
+    public void run()
+    {
+        try
+        {
+            flush();
+            lastFailure = null;
+        }
+        catch ( RuntimeException e )
+        {
+            lastFailure = e;
+        }
+    }
+
+    /**
+     * @return what made the last background run fail, or {@code null} if it succeeded.
+     */
+    public RuntimeException getLastFailure()
+    {
+        return lastFailure;
+    }
+
+    /**
+     * @return the number of changes whose history hasn't been written yet.
+     */
+    public int getPendingCount()
+    {
+        int count = 0;
+        for ( long anchorId : pendingAnchors )
+        {
+            try
+            {
+                count += pendingCount( graphDb.getNodeById( anchorId ) );
+            }
+            catch ( NotFoundException e )
+            {
+                // Removed by compaction, along with its records.
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Writes the history of every change committed so far, including what earlier runs of the database left pending.
+     *
+     * @return the number of changes written.
+     */
+    public synchronized int flush()
+    {
+        VersioningTransactionEventHandler.suspendVersioning();
+        try
+        {
+            List<Long> anchorIds = new ArrayList<Long>( pendingAnchors );
+            int written = 0;
+            for ( int start = 0; start < anchorIds.size(); start += batchSize )
+            {
+                List<Long> batch = anchorIds.subList( start, Math.min( start + batchSize, anchorIds.size() ) );
+                // Taken out before reading the records, so commits adding more from here on put them back.
+                pendingAnchors.removeAll( batch );
+                boolean committed = false;
+                Transaction tx = graphDb.beginTx();
+                try
+                {
+                    for ( long anchorId : batch )
+                    {
+                        Node anchor;
+                        try
+                        {
+                            anchor = graphDb.getNodeById( anchorId );
+                        }
+                        catch ( NotFoundException e )
+                        {
+                            // Removed by compaction, there's no history to write anymore.
+                            continue;
+                        }
+                        // Writing to the entity keeps transactions changing it from committing until this one is
+                        // done, so the head and the records read from here on match.
+                        anchor.setProperty( VersioningTransactionEventHandler.LOCK_PROP_KEY, 0 );
+                        anchor.removeProperty( VersioningTransactionEventHandler.LOCK_PROP_KEY );
+                        written += write( versioningTransactionEventHandler, anchor,
+                            Collections.<String, Object>emptyMap() );
+                    }
+                    HistoryBackend.force( graphDb );
+                    tx.success();
+                    committed = true;
+                }
+                finally
+                {
+                    try
+                    {
+                        tx.finish();
+                    }
+                    catch ( RuntimeException e )
+                    {
+                        committed = false;
+                        throw e;
+                    }
+                    finally
+                    {
+                        if ( !committed )
+                        {
+                            pendingAnchors.addAll( batch );
+                        }
+                    }
+                }
+            }
+            return written;
+        }
+        finally
+        {
+            VersioningTransactionEventHandler.resumeVersioning();
+        }
+    }
+
+    private boolean isMarked()
+    {
+        IndexHits<Node> hits = pendingIndex( graphDb ).get( SET_KEY, SET_VALUE );
+        try
+        {
+            return hits.hasNext();
+        }
+        finally
+        {
+            hits.close();
+        }
+    }
+
+    /**
+     * Marks the graph as having a writer set, before any commit records history for it.
+     */
+    void markSet()
+    {
+        mark( true );
+    }
+
+    /**
+     * Takes the mark off again, unless something is still pending.
+     */
+    void markUnset()
+    {
+        if ( getPendingCount() == 0 )
+        {
+            mark( false );
+        }
+    }
+
+    private void mark( boolean set )
+    {
+        if ( isMarked() == set )
+        {
+            return;
+        }
+        VersioningTransactionEventHandler.suspendVersioning();
+        Transaction tx = graphDb.beginTx();
+        try
+        {
+            if ( set )
+            {
+                pendingIndex( graphDb ).add( graphDb.getReferenceNode(), SET_KEY, SET_VALUE );
+            }
+            else
+            {
+                pendingIndex( graphDb ).remove( graphDb.getReferenceNode(), SET_KEY, SET_VALUE );
+            }
+            tx.success();
+        }
+        finally
+        {
+            tx.finish();
+            VersioningTransactionEventHandler.resumeVersioning();
+        }
+    }
+
+    private static Index<Node> pendingIndex( GraphDatabaseService graphDb )
+    {
+        return graphDb.index().forNodes( PENDING_INDEX_NAME );
+    }
+
+    /**
+     * Records the previous values of the properties changed at {@code version}, in the committing transaction, and
+     * moves the head ranges of the entities changed to start at {@code version}, updating the head documents of the
+     * {@link VersionedIndex}es. Takes the entities it's done with out of the maps, leaving those that have too many
+     * records pending for the commit to write their history itself.
+     *
+     * @return the number of history nodes created.
+     */
+    int record( long version, Map<Node, Map<String, Object>> modifiedPropsByNode,
+        Map<Relationship, Map<String, Object>> modifiedPropsByRelationship )
+    {
+        int created = 0;
+        Iterator<Map.Entry<Node, Map<String, Object>>> nodeEntries = modifiedPropsByNode.entrySet().iterator();
+        while ( nodeEntries.hasNext() )
+        {
+            Map.Entry<Node, Map<String, Object>> entry = nodeEntries.next();
+            Node node = entry.getKey();
+            long previousFrom = getStartVersion( node );
+            // Created in this transaction there's no history yet.
+            if ( previousFrom == version || append( node, null, version, entry.getValue() ) )
+            {
+                for ( VersionedIndex index : versioningTransactionEventHandler.getIndexes() )
+                {
+                    index.propertiesRotated( node, null, previousFrom, version, entry.getValue() );
+                }
+                nodeEntries.remove();
+            }
+        }
+        Iterator<Map.Entry<Relationship, Map<String, Object>>> relationshipEntries =
+            modifiedPropsByRelationship.entrySet().iterator();
+        while ( relationshipEntries.hasNext() )
+        {
+            Map.Entry<Relationship, Map<String, Object>> entry = relationshipEntries.next();
+            Relationship relationship = entry.getKey();
+            Node historyNode = VersionContext.getHistoryNode( relationship );
+            if ( historyNode == null )
+            {
+                historyNode = VersioningTransactionEventHandler.createHistoryNode( relationship );
+                created++;
+            }
+            if ( append( historyNode, relationship, version, entry.getValue() ) )
+            {
+                relationshipEntries.remove();
+            }
+        }
+        return created;
+    }
+
+    /**
+     * @return whether the record was added, which it isn't if {@code anchor} has too many pending already.
+     */
+    private boolean append( Node anchor, Relationship relationship, long version, Map<String, Object> oldValues )
+    {
+        int count = pendingCount( anchor );
+        if ( count >= maxPending )
+        {
+            return false;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream( bytes );
+        try
+        {
+            out.writeLong( version );
+            out.writeLong( getStartVersion( anchor ) );
+            PropertyCodec.writeProperties( out, oldValues );
+            out.flush();
+        }
+        catch ( IOException e )
+        {
+            throw new RuntimeException( "Couldn't record history of [" + anchor + "] at [" + version + "].", e );
+        }
+        anchor.setProperty( recordKey( count ), bytes.toByteArray() );
+        anchor.setProperty( PENDING_HISTORY_PROPERTY, count + 1 );
+        if ( count == 0 )
+        {
+            pendingIndex( graphDb ).add( anchor, ANCHOR_KEY, ANCHOR_VALUE );
+            if ( relationship != null )
+            {
+                anchor.setProperty( RELATIONSHIP_PROPERTY, relationship.getId() );
+            }
+        }
+        setStartVersion( anchor, version );
+        pendingAnchors.add( anchor.getId() );
+        return true;
+    }
+
+    private static String recordKey( int index )
+    {
+        return PENDING_HISTORY_PROPERTY + "." + index;
+    }
+
+    private static int pendingCount( Node anchor )
+    {
+        return (Integer) anchor.getProperty( PENDING_HISTORY_PROPERTY, 0 );
+    }
+
+    /**
+     * Turns the pending records of {@code anchor} into historic nodes, oldest first, the way the commits they come
+     * from would have. Each historic node gets the properties as they were before its change, i.e. the head with the
+     * previous values of that change and all later ones applied, so deltas written from here can hold more keys than
+     * the commit would have written, but resolve to the same properties. The head documents of the
+     * {@link VersionedIndex}es were updated at commit, so only the historic nodes are indexed.
+     *
+     * @param laterOldValues the previous values of a change to the head that isn't in the records, i.e. the one
+     *            committing if called at commit.
+     * @return the number of records written.
+     */
+    static int write( VersioningTransactionEventHandler handler, Node anchor, Map<String, Object> laterOldValues )
+    {
+        int count = pendingCount( anchor );
+        if ( count == 0 )
+        {
+            return 0;
+        }
+        List<Record> records = records( anchor, 0, count );
+        Object relationshipId = anchor.removeProperty( RELATIONSHIP_PROPERTY );
+        for ( int i = 0; i < count; i++ )
+        {
+            anchor.removeProperty( recordKey( i ) );
+        }
+        anchor.removeProperty( PENDING_HISTORY_PROPERTY );
+        pendingIndex( anchor.getGraphDatabase() ).remove( anchor, ANCHOR_KEY, ANCHOR_VALUE );
+        PropertyContainer entity = relationshipId == null ? anchor :
+            anchor.getGraphDatabase().getRelationshipById( (Long) relationshipId );
+        long headStart = getStartVersion( anchor );
+        for ( int i = 0; i < records.size(); i++ )
+        {
+            Record record = records.get( i );
+            Map<String, Object> oldValues = combine( records, i );
+            for ( Map.Entry<String, Object> later : laterOldValues.entrySet() )
+            {
+                if ( !oldValues.containsKey( later.getKey() ) )
+                {
+                    oldValues.put( later.getKey(), later.getValue() );
+                }
+            }
+            // Back to the head range the change ended, so rotating is just what committing it would have done.
+            setStartVersion( anchor, record.from );
+            if ( relationshipId == null )
+            {
+                handler.rotateProperties( record.version, Collections.singletonMap( anchor, oldValues ), true );
+            }
+            else
+            {
+                handler.rotateRelationshipProperties( record.version,
+                    Collections.singletonMap( (Relationship) entity, oldValues ) );
+            }
+        }
+        setStartVersion( anchor, headStart );
+        return records.size();
+    }
+
+    /**
+     * Called before {@code anchor} is deleted by compaction, along with any records it has.
+     */
+    static void removed( Node anchor )
+    {
+        if ( pendingCount( anchor ) > 0 )
+        {
+            pendingIndex( anchor.getGraphDatabase() ).remove( anchor, ANCHOR_KEY, ANCHOR_VALUE );
+        }
+    }
+
+    /**
+     * @param anchor the node the history of {@code entity} hangs off.
+     * @return the properties {@code entity} had at {@code version} if that's covered by records not written yet,
+     *         otherwise {@code null}. Only the records from {@code version} on are decoded.
+     */
+    static Map<String, Object> getProperties( PropertyContainer entity, Node anchor, long version )
+    {
+        int count = pendingCount( anchor );
+        if ( count == 0 || recordFrom( anchor, 0 ) > version || recordVersion( anchor, count - 1 ) <= version )
+        {
+            return null;
+        }
+        // The first record of a change after version, which undoes it and all later ones.
+        int low = 0;
+        int high = count - 1;
+        while ( low < high )
+        {
+            int middle = ( low + high ) >>> 1;
+            if ( recordVersion( anchor, middle ) <= version )
+            {
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle;
+            }
+        }
+        List<Record> records = records( anchor, low, count );
+        return Collections.unmodifiableMap( VersioningTransactionEventHandler.oldProperties( entity,
+            combine( records, 0 ) ) );
+    }
+
+    /**
+     * @param anchor the node the history of {@code entity} hangs off.
+     * @return the states of {@code entity} that are covered by records not written yet, newest first, or an empty list
+     *         if there are none.
+     */
+    static List<VersionedValue<Map<String, Object>>> getHistory( PropertyContainer entity, Node anchor )
+    {
+        int count = pendingCount( anchor );
+        if ( count == 0 )
+        {
+            return Collections.emptyList();
+        }
+        List<Record> records = records( anchor, 0, count );
+        List<VersionedValue<Map<String, Object>>> history = new ArrayList<VersionedValue<Map<String, Object>>>(
+            records.size() );
+        for ( int i = records.size() - 1; i >= 0; i-- )
+        {
+            Record record = records.get( i );
+            history.add( new VersionedValue<Map<String, Object>>( new Range( record.from, record.version - 1 ),
+                Collections.unmodifiableMap( VersioningTransactionEventHandler.oldProperties( entity,
+                    combine( records, i ) ) ) ) );
+        }
+        return history;
+    }
+
+    private static long recordVersion( Node anchor, int index )
+    {
+        return ByteBuffer.wrap( (byte[]) anchor.getProperty( recordKey( index ) ) ).getLong( 0 );
+    }
+
+    private static long recordFrom( Node anchor, int index )
+    {
+        return ByteBuffer.wrap( (byte[]) anchor.getProperty( recordKey( index ) ) ).getLong( 8 );
+    }
+
+    /**
+     * @return the pending records of {@code anchor} from {@code first} up to {@code end}, oldest first.
+     */
+    private static List<Record> records( Node anchor, int first, int end )
+    {
+        List<Record> records = new ArrayList<Record>( end - first );
+        for ( int i = first; i < end; i++ )
+        {
+            ByteBuffer buffer = ByteBuffer.wrap( (byte[]) anchor.getProperty( recordKey( i ) ) );
+            long version = buffer.getLong();
+            long from = buffer.getLong();
+            records.add( new Record( version, from, PropertyCodec.readProperties( buffer ) ) );
+        }
+        return records;
+    }
+
+    /**
+     * @return the previous values of the changes from {@code records[first]} on, the oldest winning, which turn the
+     *         head into the properties before {@code records[first]}.
+     */
+    private static Map<String, Object> combine( List<Record> records, int first )
+    {
+        Map<String, Object> oldValues = new HashMap<String, Object>();
+        for ( int i = records.size() - 1; i >= first; i-- )
+        {
+            oldValues.putAll( records.get( i ).oldValues );
+        }
+        return oldValues;
+    }
+
+    private static class Record
+    {
+        final long version;
+        final long from;
+        final Map<String, Object> oldValues;
+
+        Record( long version, long from, Map<String, Object> oldValues )
+        {
+            this.version = version;
+            this.from = from;
+            this.oldValues = oldValues;
+        }
+    }
+}
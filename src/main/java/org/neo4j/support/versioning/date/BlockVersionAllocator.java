@@ -0,0 +1,161 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.TransactionFailureException;
+
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands out versions from an in-memory sequence, so committing transactions don't have to write to a shared node.
+ * <p>
+ * Versions are reserved durably in blocks: whenever the sequence passes the reserved ceiling, a new ceiling
+ * {@code blockSize} versions further up is written to the version data node in a transaction of its own. After a
+ * restart allocation continues above the last reserved ceiling, so versions keep increasing across restarts at the
+ * cost of a gap.
+ * <p>
+ * {@link #getLatestVersion()} only reports versions below the oldest transaction still in flight, which makes it safe
+ * to read at even though transactions may commit out of order.
+ * <p>
+ * Since the reservation runs in a separate transaction, user transactions must not write to the version data node
+ * themselves; use a dedicated node for it rather than the reference node.
+ */
+public class BlockVersionAllocator implements VersionAllocator
+{
+    static final String RESERVED_VERSION_PROP_KEY = "__RESERVED_VERSION__";
+    private final Node versionDataNode;
+    private final int blockSize;
+    private final ThreadPoolExecutor reserver;
+    private final SortedSet<Long> inFlight = new TreeSet<Long>();
+    private long lastAllocated;
+    private long reserved;
+
+    public BlockVersionAllocator( Node versionDataNode, int blockSize )
+    {
+        if ( blockSize < 1 )
+            throw new IllegalArgumentException( "Block size must be positive, was [" + blockSize + "]." );
+        this.versionDataNode = versionDataNode;
+        this.blockSize = blockSize;
+        this.reserved = Math.max( (Long) versionDataNode.getProperty( RESERVED_VERSION_PROP_KEY, 0L ),
+            (Long) versionDataNode.getProperty( LockingVersionAllocator.LATEST_VERSION_PROP_KEY, 0L ) );
+        this.lastAllocated = reserved;
+        this.reserver = new ThreadPoolExecutor( 0, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory()
+            {
+                public Thread newThread( Runnable runnable )
+                {
+                    Thread thread = new Thread( runnable, "Version block reserver" );
+                    thread.setDaemon( true );
+                    return thread;
+                }
+            } );
+    }
+
+    public synchronized long allocate()
+    {
+        long version = lastAllocated + 1;
+        if ( version > reserved )
+        {
+            reserve( version + blockSize - 1 );
+        }
+        lastAllocated = version;
+        inFlight.add( version );
+        return version;
+    }
+
+    public synchronized void complete( long version )
+    {
+        inFlight.remove( version );
+    }
+
+    public synchronized long getLatestVersion()
+    {
+        return inFlight.isEmpty() ? lastAllocated : inFlight.first() - 1;
+    }
+
+    public synchronized void setLatestVersion( long version )
+    {
+        if ( version < lastAllocated )
+            throw new IllegalArgumentException( "Version [" + version + "] is below the last allocated one [" +
+                lastAllocated + "]." );
+        if ( version > reserved )
+        {
+            reserve( version );
+        }
+        lastAllocated = version;
+    }
+
+    private void reserve( final long ceiling )
+    {
+        try
+        {
+            reserver.submit( new Callable<Void>()
+            {
+                public Void call()
+                {
+                    writeCeiling( versionDataNode.getGraphDatabase(), ceiling );
+                    return null;
+                }
+            } ).get();
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new TransactionFailureException( "Interrupted while reserving versions up to [" + ceiling + "].", e );
+        }
+        catch ( ExecutionException e )
+        {
+            throw new TransactionFailureException( "Unable to reserve versions up to [" + ceiling + "].", e.getCause() );
+        }
+        reserved = ceiling;
+    }
+
+    private void writeCeiling( GraphDatabaseService graphDb, long ceiling )
+    {
+        VersioningTransactionEventHandler.suspendVersioning();
+        try
+        {
+            Transaction tx = graphDb.beginTx();
+            try
+            {
+                versionDataNode.setProperty( RESERVED_VERSION_PROP_KEY, ceiling );
+                tx.success();
+            }
+            finally
+            {
+                tx.finish();
+            }
+        }
+        finally
+        {
+            VersioningTransactionEventHandler.resumeVersioning();
+        }
+    }
+}
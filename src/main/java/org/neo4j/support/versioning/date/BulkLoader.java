@@ -0,0 +1,412 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Transaction;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.neo4j.support.versioning.Range.range;
+import static org.neo4j.support.versioning.date.VersionContext.getEndVersion;
+import static org.neo4j.support.versioning.date.VersionContext.getStartVersion;
+import static org.neo4j.support.versioning.date.VersionContext.setEndVersion;
+
+/**
+ * Loads large amounts of data into a versioned graph without going through the {@link VersioningTransactionEventHandler}
+ * for every transaction. Validity ranges and history are written directly, in transactions of {@code batchSize}
+ * operations, and versioning is only suspended while those commit, so the thread's other transactions are versioned as
+ * usual.
+ * <p>
+ * Everything loaded gets the version allocated when the loader is created, unless the caller moves on to a newly
+ * allocated one with {@link #nextVersion()}, e.g. to replay an external history. Every version the loader writes at is
+ * allocated from the handler like the version of a commit, so none is shared with a transaction committing meanwhile,
+ * and each one becomes readable once the loader has committed its last batch and moved on from it, never partly
+ * loaded. Until then the versions of transactions committed meanwhile aren't readable either, since they come after it,
+ * so long loads should move on regularly. An entity changed more than once at the same version gets a single history
+ * entry. Call {@link #finish()} at the end, which commits the last batch and publishes the version it belongs to. The
+ * loaded data is only consistent if nothing else writes to the entities loaded during the load.
+ * <p>
+ * If a batch fails to commit, the current version is published with the batches committed before it, and the loader
+ * refuses to go on with {@link IllegalStateException}s.
+ * <p>
+ * A loader is bound to the thread using it.
+ */
+public class BulkLoader
+{
+    public static final int DEFAULT_BATCH_SIZE = 10000;
+    private final GraphDatabaseService graphDb;
+    private final VersioningTransactionEventHandler versioningTransactionEventHandler;
+    private final int batchSize;
+    private long version;
+    private Transaction tx;
+    private int operations;
+    private boolean failed;
+    private final Map<Node, Map<String, Object>> rotatedNodes = new HashMap<Node, Map<String, Object>>();
+    private final Map<Relationship, Map<String, Object>> rotatedRelationships =
+        new HashMap<Relationship, Map<String, Object>>();
+    private final Map<Node, Map<String, Object>> changedHeads = new HashMap<Node, Map<String, Object>>();
+    private final Map<Relationship, Map<String, Object>> changedRelationshipHeads =
+        new HashMap<Relationship, Map<String, Object>>();
+    private final List<Relationship> createdRelationships = new ArrayList<Relationship>();
+    private final List<Relationship> endedRelationships = new ArrayList<Relationship>();
+    private final ChangeLog.ChangeSet changes = new ChangeLog.ChangeSet();
+    private final List<VersionJournal.Record> journaled = new ArrayList<VersionJournal.Record>();
+
+    public BulkLoader( GraphDatabaseService graphDb, VersioningTransactionEventHandler versioningTransactionEventHandler )
+    {
+        this( graphDb, versioningTransactionEventHandler, DEFAULT_BATCH_SIZE );
+    }
+
+    public BulkLoader( GraphDatabaseService graphDb, VersioningTransactionEventHandler versioningTransactionEventHandler,
+        int batchSize )
+    {
+        if ( batchSize < 1 )
+            throw new IllegalArgumentException( "Batch size must be positive, was [" + batchSize + "]." );
+        this.graphDb = graphDb;
+        this.versioningTransactionEventHandler = versioningTransactionEventHandler;
+        this.batchSize = batchSize;
+        this.version = allocateVersion();
+    }
+
+    public long getVersion()
+    {
+        return version;
+    }
+
+    /**
+     * Commits what was loaded at the current version, publishes it and loads what follows at a newly allocated version.
+     *
+     * @return the new version.
+     */
+    public long nextVersion()
+    {
+        checkNotFailed();
+        flush();
+        versioningTransactionEventHandler.completeVersion( version );
+        version = allocateVersion();
+        return version;
+    }
+
+    public Node createNode( Map<String, Object> properties )
+    {
+        begin();
+        Node node = graphDb.createNode();
+        journal( VersionJournal.Record.created( version, node ) );
+        Map<String, Object> oldValues = new HashMap<String, Object>();
+        for ( Map.Entry<String, Object> property : properties.entrySet() )
+        {
+            node.setProperty( property.getKey(), property.getValue() );
+            oldValues.put( property.getKey(), null );
+            journal( VersionJournal.Record.propertyChanged( version, node, property.getKey(), null,
+                property.getValue() ) );
+        }
+        VersionContext.setVersion( node, range( version ) );
+        changedHeads.put( node, oldValues );
+        changes.nodeCreated( node );
+        operationDone();
+        return node;
+    }
+
+    public Relationship createRelationship( Node from, Node to, RelationshipType type, Map<String, Object> properties )
+    {
+        begin();
+        Relationship relationship = from.createRelationshipTo( to, type );
+        journal( VersionJournal.Record.created( version, relationship ) );
+        for ( Map.Entry<String, Object> property : properties.entrySet() )
+        {
+            relationship.setProperty( property.getKey(), property.getValue() );
+            journal( VersionJournal.Record.propertyChanged( version, relationship, property.getKey(), null,
+                property.getValue() ) );
+        }
+        VersionContext.setVersion( relationship, range( version ) );
+        createdRelationships.add( relationship );
+        changes.relationshipCreated( relationship );
+        operationDone();
+        return relationship;
+    }
+
+    public void setProperty( PropertyContainer entity, String key, Object value )
+    {
+        begin();
+        changing( entity, key );
+        journal( VersionJournal.Record.propertyChanged( version, entity, key, entity.getProperty( key, null ), value ) );
+        entity.setProperty( key, value );
+        operationDone();
+    }
+
+    public void removeProperty( PropertyContainer entity, String key )
+    {
+        begin();
+        changing( entity, key );
+        journal( VersionJournal.Record.propertyChanged( version, entity, key, entity.getProperty( key, null ), null ) );
+        entity.removeProperty( key );
+        operationDone();
+    }
+
+    public void deleteNode( Node node )
+    {
+        begin();
+        node.setProperty( VersionContext.DELETED_PROP_KEY, version );
+        setEndVersion( node, version - 1 );
+        for ( VersionedIndex index : versioningTransactionEventHandler.getIndexes() )
+        {
+            index.nodeEnded( node, version - 1 );
+        }
+        changes.nodeDeleted( node );
+        journal( VersionJournal.Record.deleted( version, node ) );
+        operationDone();
+    }
+
+    public void deleteRelationship( Relationship relationship )
+    {
+        begin();
+        relationship.setProperty( VersionContext.DELETED_PROP_KEY, version );
+        setEndVersion( relationship, version - 1 );
+        endedRelationships.add( relationship );
+        changes.relationshipDeleted( relationship );
+        journal( VersionJournal.Record.deleted( version, relationship ) );
+        operationDone();
+    }
+
+    /**
+     * Commits what's left and publishes the current version.
+     */
+    public void finish()
+    {
+        if ( failed )
+        {
+            // Published when the batch failed.
+            return;
+        }
+        flush();
+        versioningTransactionEventHandler.completeVersion( version );
+    }
+
+    /**
+     * Allocates a version in a transaction of its own, since an allocator may write to the graph, as
+     * {@link LockingVersionAllocator} does.
+     */
+    private long allocateVersion()
+    {
+        long allocated = -1;
+        VersioningTransactionEventHandler.suspendVersioning();
+        try
+        {
+            Transaction allocationTx = graphDb.beginTx();
+            try
+            {
+                allocated = versioningTransactionEventHandler.allocateVersion();
+                allocationTx.success();
+            }
+            finally
+            {
+                allocationTx.finish();
+            }
+            return allocated;
+        }
+        catch ( RuntimeException e )
+        {
+            if ( allocated >= 0 )
+            {
+                versioningTransactionEventHandler.completeVersion( allocated );
+            }
+            throw e;
+        }
+        finally
+        {
+            VersioningTransactionEventHandler.resumeVersioning();
+        }
+    }
+
+    /**
+     * Remembers the value {@code key} had before this version, unless the change was already recorded.
+     */
+    private void changing( PropertyContainer entity, String key )
+    {
+        changes.propertyChanged( entity, key );
+        Map<String, Object> oldValues;
+        if ( entity instanceof Relationship )
+        {
+            Relationship relationship = (Relationship) entity;
+            Node historyNode = VersionContext.getHistoryNode( relationship );
+            long from = historyNode == null ? getStartVersion( relationship ) : getStartVersion( historyNode );
+            oldValues = oldValues( from == version ? changedRelationshipHeads : rotatedRelationships, relationship );
+        }
+        else
+        {
+            Node node = (Node) entity;
+            oldValues = oldValues( getStartVersion( node ) == version ? changedHeads : rotatedNodes, node );
+        }
+        if ( !oldValues.containsKey( key ) )
+        {
+            oldValues.put( key, entity.getProperty( key, null ) );
+        }
+    }
+
+    private static <T> Map<String, Object> oldValues( Map<T, Map<String, Object>> changes, T entity )
+    {
+        Map<String, Object> oldValues = changes.get( entity );
+        if ( oldValues == null )
+        {
+            oldValues = new HashMap<String, Object>();
+            changes.put( entity, oldValues );
+        }
+        return oldValues;
+    }
+
+    private void journal( VersionJournal.Record record )
+    {
+        if ( versioningTransactionEventHandler.getJournal() != null )
+        {
+            journaled.add( record );
+        }
+    }
+
+    private void begin()
+    {
+        checkNotFailed();
+        if ( tx == null )
+        {
+            tx = graphDb.beginTx();
+        }
+    }
+
+    private void checkNotFailed()
+    {
+        if ( failed )
+            throw new IllegalStateException( "A batch at version [" + version + "] failed to commit." );
+    }
+
+    private void operationDone()
+    {
+        if ( ++operations >= batchSize )
+        {
+            flush();
+        }
+    }
+
+    /**
+     * Writes the history for the changes of this batch and commits it.
+     */
+    private void flush()
+    {
+        if ( tx == null )
+        {
+            return;
+        }
+        VersionJournal journal = versioningTransactionEventHandler.getJournal();
+        long batch = VersionJournal.NO_BATCH;
+        boolean committed = false;
+        try
+        {
+            versioningTransactionEventHandler.recordKeyHistory( version, rotatedNodes, rotatedRelationships );
+            // Heads already at this version were rotated by an earlier batch, which only recorded what they had then.
+            versioningTransactionEventHandler.rewriteKeyHistory( version, changedHeads );
+            versioningTransactionEventHandler.rewriteKeyHistory( version, changedRelationshipHeads );
+            versioningTransactionEventHandler.rotateProperties( version, rotatedNodes );
+            versioningTransactionEventHandler.rotateRelationshipProperties( version, rotatedRelationships );
+            HistoryBackend.force( graphDb );
+            for ( VersionedIndex index : versioningTransactionEventHandler.getIndexes() )
+            {
+                for ( Map.Entry<Node, Map<String, Object>> changedHead : changedHeads.entrySet() )
+                {
+                    index.headChanged( changedHead.getKey(), changedHead.getValue() );
+                }
+            }
+            ChangeLog changeLog = versioningTransactionEventHandler.getChangeLog();
+            if ( changeLog != null )
+            {
+                changeLog.write( version, changes );
+            }
+            if ( journal != null )
+            {
+                batch = journal.prepare( journaled );
+                journal.force();
+            }
+            tx.success();
+            committed = true;
+        }
+        finally
+        {
+            // The batch writes its history itself, so the handler has to leave its commit alone.
+            VersioningTransactionEventHandler.suspendVersioning();
+            try
+            {
+                tx.finish();
+            }
+            catch ( RuntimeException e )
+            {
+                committed = false;
+                throw e;
+            }
+            finally
+            {
+                VersioningTransactionEventHandler.resumeVersioning();
+                if ( journal != null )
+                {
+                    if ( committed )
+                    {
+                        journal.committed( batch );
+                    }
+                    else
+                    {
+                        journal.rolledBack( batch );
+                    }
+                }
+                tx = null;
+                journaled.clear();
+                operations = 0;
+                rotatedNodes.clear();
+                rotatedRelationships.clear();
+                changedHeads.clear();
+                changedRelationshipHeads.clear();
+                changes.clear();
+                if ( !committed )
+                {
+                    // Rolled back, so there's nothing to index, and the version would otherwise never be readable.
+                    createdRelationships.clear();
+                    endedRelationships.clear();
+                    failed = true;
+                    versioningTransactionEventHandler.completeVersion( version );
+                }
+            }
+        }
+        RelationshipIntervalIndex relationshipIndex = RelationshipIntervalIndex.forGraph( graphDb );
+        for ( Relationship relationship : createdRelationships )
+        {
+            relationshipIndex.relationshipCreated( relationship, getStartVersion( relationship ) );
+        }
+        for ( Relationship relationship : endedRelationships )
+        {
+            relationshipIndex.relationshipEnded( relationship, getStartVersion( relationship ),
+                getEndVersion( relationship ) );
+        }
+        createdRelationships.clear();
+        endedRelationships.clear();
+    }
+}
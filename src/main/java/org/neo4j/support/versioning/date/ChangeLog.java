@@ -0,0 +1,519 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import org.apache.lucene.search.NumericRangeQuery;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.graphdb.index.IndexHits;
+import org.neo4j.index.lucene.ValueContext;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A log of what every version changed, so the differences between two versions can be read without comparing the
+ * whole graph at both of them.
+ * <p>
+ * Each version gets a record node holding the ids of the nodes and relationships it created and deleted, and the ids
+ * and keys of the properties it changed on the ones that already existed. Record nodes aren't versioned themselves,
+ * they're found through a numeric index on their version, and {@link #diff(long, long)} reads them a segment of
+ * {@link #SEGMENT_SIZE} versions at a time. The log is written by the {@link VersioningTransactionEventHandler} it's
+ * {@link VersioningTransactionEventHandler#setChangeLog(ChangeLog) set on} and by {@link BulkLoader}s, so it only
+ * covers versions committed after that. The {@link HistoryCompactor} {@link #removeBefore(long, int) removes} the
+ * records of versions before its horizon, so diffs from before the horizon leave out what those versions changed.
+ */
+public class ChangeLog
+{
+    public static final String INDEX_NAME = "__change_log__";
+    public static final int SEGMENT_SIZE = 1024;
+    private static final String VERSION_PROPERTY = "__change_version__";
+    private static final String CREATED_NODES_PROPERTY = "__created_nodes__";
+    private static final String DELETED_NODES_PROPERTY = "__deleted_nodes__";
+    private static final String CREATED_RELATIONSHIPS_PROPERTY = "__created_relationships__";
+    private static final String DELETED_RELATIONSHIPS_PROPERTY = "__deleted_relationships__";
+    private static final String CHANGED_NODES_PROPERTY = "__changed_nodes__";
+    private static final String CHANGED_NODE_KEYS_PROPERTY = "__changed_node_keys__";
+    private static final String CHANGED_RELATIONSHIPS_PROPERTY = "__changed_relationships__";
+    private static final String CHANGED_RELATIONSHIP_KEYS_PROPERTY = "__changed_relationship_keys__";
+    private static final Comparator<Node> BY_VERSION = new Comparator<Node>()
+    {
+        public int compare( Node first, Node second )
+        {
+            long firstVersion = (Long) first.getProperty( VERSION_PROPERTY );
+            long secondVersion = (Long) second.getProperty( VERSION_PROPERTY );
+            return firstVersion < secondVersion ? -1 : firstVersion == secondVersion ? 0 : 1;
+        }
+    };
+
+    private final GraphDatabaseService graphDb;
+    private final Index<Node> index;
+
+    public ChangeLog( GraphDatabaseService graphDb )
+    {
+        this.graphDb = graphDb;
+        this.index = graphDb.index().forNodes( INDEX_NAME );
+    }
+
+    GraphDatabaseService getGraphDatabase()
+    {
+        return graphDb;
+    }
+
+    public enum ChangeType
+    {
+        NODE_CREATED, RELATIONSHIP_CREATED, NODE_PROPERTY_CHANGED, RELATIONSHIP_PROPERTY_CHANGED,
+        RELATIONSHIP_DELETED, NODE_DELETED
+    }
+
+    public static class Change
+    {
+        private final long version;
+        private final ChangeType type;
+        private final long entityId;
+        private final String key;
+
+        Change( long version, ChangeType type, long entityId, String key )
+        {
+            this.version = version;
+            this.type = type;
+            this.entityId = entityId;
+            this.key = key;
+        }
+
+        public long getVersion()
+        {
+            return version;
+        }
+
+        public ChangeType getType()
+        {
+            return type;
+        }
+
+        /**
+         * @return the id of the node or relationship that changed.
+         */
+        public long getEntityId()
+        {
+            return entityId;
+        }
+
+        /**
+         * @return the key of the property that changed, {@code null} unless this is a property change.
+         */
+        public String getKey()
+        {
+            return key;
+        }
+
+        @Override
+        public String toString()
+        {
+            return version + ": " + type + " " + entityId + ( key == null ? "" : "." + key );
+        }
+    }
+
+    /**
+     * The changes of one version, or part of one, collected before they're written as a record.
+     */
+    static class ChangeSet
+    {
+        private final Set<Long> createdNodes = new LinkedHashSet<Long>();
+        private final Set<Long> deletedNodes = new LinkedHashSet<Long>();
+        private final Set<Long> createdRelationships = new LinkedHashSet<Long>();
+        private final Set<Long> deletedRelationships = new LinkedHashSet<Long>();
+        private final Map<Long, Set<String>> changedNodeKeys = new LinkedHashMap<Long, Set<String>>();
+        private final Map<Long, Set<String>> changedRelationshipKeys = new LinkedHashMap<Long, Set<String>>();
+
+        void nodeCreated( Node node )
+        {
+            createdNodes.add( node.getId() );
+        }
+
+        void nodeDeleted( Node node )
+        {
+            deletedNodes.add( node.getId() );
+        }
+
+        void relationshipCreated( Relationship relationship )
+        {
+            createdRelationships.add( relationship.getId() );
+        }
+
+        void relationshipDeleted( Relationship relationship )
+        {
+            deletedRelationships.add( relationship.getId() );
+        }
+
+        /**
+         * Records a change of property {@code key}, unless the entity was created in the same change set.
+         */
+        void propertyChanged( PropertyContainer entity, String key )
+        {
+            if ( VersionContext.isInternalProperty( key ) || key.equals( VersionContext.DELETED_PROP_KEY ) )
+            {
+                return;
+            }
+            Map<Long, Set<String>> changedKeys;
+            long id;
+            if ( entity instanceof Relationship )
+            {
+                id = ( (Relationship) entity ).getId();
+                if ( createdRelationships.contains( id ) )
+                {
+                    return;
+                }
+                changedKeys = changedRelationshipKeys;
+            }
+            else
+            {
+                id = ( (Node) entity ).getId();
+                if ( createdNodes.contains( id ) )
+                {
+                    return;
+                }
+                changedKeys = changedNodeKeys;
+            }
+            Set<String> keys = changedKeys.get( id );
+            if ( keys == null )
+            {
+                keys = new LinkedHashSet<String>();
+                changedKeys.put( id, keys );
+            }
+            keys.add( key );
+        }
+
+        boolean isEmpty()
+        {
+            return createdNodes.isEmpty() && deletedNodes.isEmpty() && createdRelationships.isEmpty()
+                && deletedRelationships.isEmpty() && changedNodeKeys.isEmpty() && changedRelationshipKeys.isEmpty();
+        }
+
+        void clear()
+        {
+            createdNodes.clear();
+            deletedNodes.clear();
+            createdRelationships.clear();
+            deletedRelationships.clear();
+            changedNodeKeys.clear();
+            changedRelationshipKeys.clear();
+        }
+    }
+
+    /**
+     * Records the changes {@code data} makes, as version {@code version}.
+     */
+    void record( long version, TransactionData data )
+    {
+        ChangeSet changes = new ChangeSet();
+        for ( Node node : data.createdNodes() )
+        {
+            changes.nodeCreated( node );
+        }
+        for ( Relationship relationship : data.createdRelationships() )
+        {
+            changes.relationshipCreated( relationship );
+        }
+        for ( PropertyEntry<Node> entry : data.assignedNodeProperties() )
+        {
+            if ( entry.key().equals( VersionContext.DELETED_PROP_KEY ) )
+            {
+                changes.nodeDeleted( entry.entity() );
+            }
+            changes.propertyChanged( entry.entity(), entry.key() );
+        }
+        for ( PropertyEntry<Node> entry : data.removedNodeProperties() )
+        {
+            changes.propertyChanged( entry.entity(), entry.key() );
+        }
+        for ( PropertyEntry<Relationship> entry : data.assignedRelationshipProperties() )
+        {
+            if ( entry.key().equals( VersionContext.DELETED_PROP_KEY ) )
+            {
+                changes.relationshipDeleted( entry.entity() );
+            }
+            changes.propertyChanged( entry.entity(), entry.key() );
+        }
+        for ( PropertyEntry<Relationship> entry : data.removedRelationshipProperties() )
+        {
+            changes.propertyChanged( entry.entity(), entry.key() );
+        }
+        write( version, changes );
+    }
+
+    /**
+     * Writes {@code changes} as a record of version {@code version}, in the current transaction. A version can have
+     * more than one record.
+     */
+    void write( long version, ChangeSet changes )
+    {
+        if ( changes.isEmpty() )
+        {
+            return;
+        }
+        Node record = graphDb.createNode();
+        record.setProperty( VERSION_PROPERTY, version );
+        setIds( record, CREATED_NODES_PROPERTY, changes.createdNodes );
+        setIds( record, DELETED_NODES_PROPERTY, changes.deletedNodes );
+        setIds( record, CREATED_RELATIONSHIPS_PROPERTY, changes.createdRelationships );
+        setIds( record, DELETED_RELATIONSHIPS_PROPERTY, changes.deletedRelationships );
+        setKeys( record, CHANGED_NODES_PROPERTY, CHANGED_NODE_KEYS_PROPERTY, changes.changedNodeKeys );
+        setKeys( record, CHANGED_RELATIONSHIPS_PROPERTY, CHANGED_RELATIONSHIP_KEYS_PROPERTY,
+            changes.changedRelationshipKeys );
+        index.add( record, VERSION_PROPERTY, ValueContext.numeric( version ) );
+    }
+
+    private static void setIds( Node record, String key, Set<Long> ids )
+    {
+        if ( ids.isEmpty() )
+        {
+            return;
+        }
+        long[] array = new long[ids.size()];
+        int i = 0;
+        for ( long id : ids )
+        {
+            array[i++] = id;
+        }
+        record.setProperty( key, array );
+    }
+
+    /**
+     * Writes the changed properties as two parallel arrays, one with an entity id and the other with a key per
+     * changed property.
+     */
+    private static void setKeys( Node record, String idsKey, String keysKey, Map<Long, Set<String>> changedKeys )
+    {
+        if ( changedKeys.isEmpty() )
+        {
+            return;
+        }
+        int count = 0;
+        for ( Set<String> keys : changedKeys.values() )
+        {
+            count += keys.size();
+        }
+        long[] ids = new long[count];
+        String[] keys = new String[count];
+        int i = 0;
+        for ( Map.Entry<Long, Set<String>> entry : changedKeys.entrySet() )
+        {
+            for ( String key : entry.getValue() )
+            {
+                ids[i] = entry.getKey();
+                keys[i++] = key;
+            }
+        }
+        record.setProperty( idsKey, ids );
+        record.setProperty( keysKey, keys );
+    }
+
+    /**
+     * Deletes the records of the versions before {@code horizon}, {@code batchSize} records per transaction.
+     *
+     * @return the number of records deleted.
+     */
+    int removeBefore( long horizon, int batchSize )
+    {
+        int removed = 0;
+        while ( true )
+        {
+            List<Node> records = new ArrayList<Node>();
+            Transaction tx = graphDb.beginTx();
+            try
+            {
+                IndexHits<Node> hits = index.query( NumericRangeQuery.newLongRange( VERSION_PROPERTY, null, horizon,
+                    true, false ) );
+                try
+                {
+                    while ( records.size() < batchSize && hits.hasNext() )
+                    {
+                        records.add( hits.next() );
+                    }
+                }
+                finally
+                {
+                    hits.close();
+                }
+                for ( Node record : records )
+                {
+                    index.remove( record );
+                    record.delete();
+                }
+                tx.success();
+            }
+            finally
+            {
+                tx.finish();
+            }
+            removed += records.size();
+            if ( records.size() < batchSize )
+            {
+                return removed;
+            }
+        }
+    }
+
+    /**
+     * @return the changes made after version {@code from} up to and including version {@code to}, oldest first.
+     *         Records are read lazily, a segment at a time, as the result is iterated.
+     */
+    public Iterable<Change> diff( final long from, final long to )
+    {
+        if ( to < from )
+            throw new IllegalArgumentException( "Version [" + to + "] is older than [" + from + "]." );
+        return new Iterable<Change>()
+        {
+            public Iterator<Change> iterator()
+            {
+                return new DiffIterator( from, to );
+            }
+        };
+    }
+
+    private class DiffIterator implements Iterator<Change>
+    {
+        private final long to;
+        private long nextSegment;
+        private boolean segmentsLeft;
+        private Iterator<Node> records = Collections.<Node>emptyList().iterator();
+        private Iterator<Change> changes = Collections.<Change>emptyList().iterator();
+
+        DiffIterator( long from, long to )
+        {
+            this.to = to;
+            this.nextSegment = from + 1;
+            this.segmentsLeft = from < to;
+        }
+
+        public boolean hasNext()
+        {
+            while ( !changes.hasNext() )
+            {
+                if ( records.hasNext() )
+                {
+                    changes = changes( records.next() ).iterator();
+                }
+                else if ( segmentsLeft )
+                {
+                    records = readSegment().iterator();
+                }
+                else
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public Change next()
+        {
+            if ( !hasNext() )
+            {
+                throw new NoSuchElementException();
+            }
+            return changes.next();
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        private List<Node> readSegment()
+        {
+            long segmentEnd = to - nextSegment < SEGMENT_SIZE ? to : nextSegment + SEGMENT_SIZE - 1;
+            List<Node> segment = new ArrayList<Node>();
+            IndexHits<Node> hits = index.query( NumericRangeQuery.newLongRange( VERSION_PROPERTY, nextSegment,
+                segmentEnd, true, true ) );
+            try
+            {
+                for ( Node record : hits )
+                {
+                    segment.add( record );
+                }
+            }
+            finally
+            {
+                hits.close();
+            }
+            Collections.sort( segment, BY_VERSION );
+            segmentsLeft = segmentEnd < to;
+            nextSegment = segmentEnd + 1;
+            return segment;
+        }
+    }
+
+    private static List<Change> changes( Node record )
+    {
+        long version = (Long) record.getProperty( VERSION_PROPERTY );
+        List<Change> changes = new ArrayList<Change>();
+        addIds( changes, version, ChangeType.NODE_CREATED, record, CREATED_NODES_PROPERTY );
+        addIds( changes, version, ChangeType.RELATIONSHIP_CREATED, record, CREATED_RELATIONSHIPS_PROPERTY );
+        addKeys( changes, version, ChangeType.NODE_PROPERTY_CHANGED, record, CHANGED_NODES_PROPERTY,
+            CHANGED_NODE_KEYS_PROPERTY );
+        addKeys( changes, version, ChangeType.RELATIONSHIP_PROPERTY_CHANGED, record, CHANGED_RELATIONSHIPS_PROPERTY,
+            CHANGED_RELATIONSHIP_KEYS_PROPERTY );
+        addIds( changes, version, ChangeType.RELATIONSHIP_DELETED, record, DELETED_RELATIONSHIPS_PROPERTY );
+        addIds( changes, version, ChangeType.NODE_DELETED, record, DELETED_NODES_PROPERTY );
+        return changes;
+    }
+
+    private static void addIds( List<Change> changes, long version, ChangeType type, Node record, String key )
+    {
+        long[] ids = (long[]) record.getProperty( key, null );
+        if ( ids != null )
+        {
+            for ( long id : ids )
+            {
+                changes.add( new Change( version, type, id, null ) );
+            }
+        }
+    }
+
+    private static void addKeys( List<Change> changes, long version, ChangeType type, Node record, String idsKey,
+        String keysKey )
+    {
+        long[] ids = (long[]) record.getProperty( idsKey, null );
+        if ( ids != null )
+        {
+            String[] keys = (String[]) record.getProperty( keysKey );
+            for ( int i = 0; i < ids.length; i++ )
+            {
+                changes.add( new Change( version, type, ids[i], keys[i] ) );
+            }
+        }
+    }
+}
@@ -0,0 +1,611 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.support.versioning.Range;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static org.neo4j.support.versioning.date.VersionContext.PREV_VERSION_REL_TYPE;
+import static org.neo4j.support.versioning.date.VersionContext.getStartVersion;
+import static org.neo4j.support.versioning.date.VersionContext.getVersion;
+
+/**
+ * Materialized snapshots of which property holder every node used at a given version, so reads at or shortly before
+ * that version start their chain walk right there instead of at the head.
+ * <p>
+ * A checkpoint is three parallel {@code long} arrays sorted by node id: the node, the property holder valid at the
+ * checkpoint version and the start of that holder's range. Nodes that were at their head at the time are recorded with
+ * their own id and resolved to the historic node that took over their properties the first time they're needed.
+ * The history node of a relationship is recorded like any other node, so reads of relationship properties start from
+ * checkpoints as well. Which relationships were valid at a version is the {@link RelationshipIntervalIndex}'s to
+ * answer. A {@link VersionContext} reading at version {@code v} uses the oldest checkpoint at or after {@code v}.
+ * <p>
+ * Checkpoints are taken on demand with {@link #create(long)} or every so many versions, see
+ * {@link VersioningTransactionEventHandler#setCheckpointInterval}. The version checkpointed must be fully committed,
+ * like the one {@link VersioningTransactionEventHandler#getLatestVersion()} returns. While the handler has a
+ * {@link ChangeLog} {@link VersioningTransactionEventHandler#setChangeLog(ChangeLog) set}, a checkpoint is built from
+ * the newest one before it by redoing only the nodes the change log says changed in between. Otherwise, and for the
+ * first checkpoint after the change log was set, the whole graph is scanned.
+ * <p>
+ * Checkpoints live in memory, one set per graph database. With a {@link #setDirectory(File) directory} set, each is
+ * also written to a file of its own there and loaded again after a restart. Property holders compacted away since a
+ * checkpoint was taken, or whose ids were reused after that, are recognized by their start and skipped, and reads
+ * walk from the head for those nodes, with the same results.
+ */
+public class Checkpoints
+{
+    public static final int DEFAULT_MAX_CHECKPOINTS = 16;
+    private static final String FILE_PREFIX = "checkpoint.";
+    private static final GraphRegistry<Checkpoints> checkpoints = new GraphRegistry<Checkpoints>(
+        new GraphRegistry.Factory<Checkpoints>()
+        {
+            public Checkpoints create( GraphDatabaseService graphDb )
+            {
+                return new Checkpoints( graphDb );
+            }
+        } );
+
+    private final GraphDatabaseService graphDb;
+    // Changed under the lock of this, read without it.
+    private final ConcurrentSkipListMap<Long, Checkpoint> checkpointsByVersion =
+        new ConcurrentSkipListMap<Long, Checkpoint>();
+    private final ThreadPoolExecutor builder;
+    private int maxCheckpoints = DEFAULT_MAX_CHECKPOINTS;
+    // Guarded by this.
+    private File directory;
+    // The change log checkpoints are built from and the version after which it has every version, guarded by this.
+    private ChangeLog changeLog;
+    private long changeLogCoveredAfter;
+
+    public static Checkpoints forGraph( GraphDatabaseService graphDb )
+    {
+        return checkpoints.getOrCreate( graphDb );
+    }
+
+    private Checkpoints( GraphDatabaseService graphDb )
+    {
+        this.graphDb = graphDb;
+        this.builder = new ThreadPoolExecutor( 0, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory()
+            {
+                public Thread newThread( Runnable runnable )
+                {
+                    Thread thread = new Thread( runnable, "Checkpoint builder" );
+                    thread.setDaemon( true );
+                    return thread;
+                }
+            } );
+    }
+
+    /**
+     * Keeps checkpoints in {@code directory} from now on, creating it if it's not there. Checkpoints already in it are
+     * loaded, and those only in memory are written to it. {@code null} goes back to keeping them in memory only.
+     */
+    public synchronized void setDirectory( File directory ) throws IOException
+    {
+        if ( directory != null )
+        {
+            if ( !directory.isDirectory() && !directory.mkdirs() )
+                throw new IOException( "Couldn't create checkpoint directory [" + directory + "]." );
+            for ( File file : directory.listFiles() )
+            {
+                if ( file.getName().startsWith( FILE_PREFIX ) )
+                {
+                    load( file );
+                }
+            }
+            for ( Map.Entry<Long, Checkpoint> entry : checkpointsByVersion.entrySet() )
+            {
+                File file = fileOf( directory, entry.getKey() );
+                if ( !file.exists() )
+                {
+                    entry.getValue().write( file );
+                }
+            }
+        }
+        this.directory = directory;
+        trim();
+    }
+
+    private void load( File file ) throws IOException
+    {
+        long version;
+        try
+        {
+            version = Long.parseLong( file.getName().substring( FILE_PREFIX.length() ) );
+        }
+        catch ( NumberFormatException e )
+        {
+            // Left behind by a crash while writing.
+            file.delete();
+            return;
+        }
+        if ( !checkpointsByVersion.containsKey( version ) )
+        {
+            checkpointsByVersion.put( version, read( file ) );
+        }
+    }
+
+    private static File fileOf( File directory, long version )
+    {
+        return new File( directory, FILE_PREFIX + version );
+    }
+
+    /**
+     * Builds checkpoints from {@code changeLog}, which has every version after {@code coveredAfter}, {@code null}
+     * builds them by scanning the graph.
+     */
+    synchronized void setChangeLog( ChangeLog changeLog, long coveredAfter )
+    {
+        this.changeLog = changeLog;
+        this.changeLogCoveredAfter = coveredAfter;
+    }
+
+    /**
+     * Checkpoints {@code version}, which must be committed, from the checkpoint before it and the change log if it
+     * can, scanning the whole graph otherwise.
+     *
+     * @return the number of nodes in the checkpoint.
+     */
+    public int create( long version )
+    {
+        Checkpoint checkpoint = build( version );
+        File file;
+        synchronized ( this )
+        {
+            file = directory == null ? null : fileOf( directory, version );
+        }
+        if ( file != null )
+        {
+            try
+            {
+                checkpoint.write( file );
+            }
+            catch ( IOException e )
+            {
+                throw new RuntimeException( "Couldn't write checkpoint [" + version + "] to [" + file + "].", e );
+            }
+        }
+        synchronized ( this )
+        {
+            checkpointsByVersion.put( version, checkpoint );
+            trim();
+        }
+        return checkpoint.size;
+    }
+
+    /**
+     * Like {@link #create(long)}, but in the background.
+     */
+    public void createInBackground( final long version )
+    {
+        builder.execute( new Runnable()
+        {
+            public void run()
+            {
+                create( version );
+            }
+        } );
+    }
+
+    public SortedSet<Long> getVersions()
+    {
+        return new TreeSet<Long>( checkpointsByVersion.keySet() );
+    }
+
+    public synchronized void drop( long version )
+    {
+        remove( version );
+    }
+
+    /**
+     * Drops the checkpoints before {@code version}, for when the history they point into is removed.
+     */
+    public synchronized void dropBefore( long version )
+    {
+        for ( long checkpointed : checkpointsByVersion.headMap( version ).keySet() )
+        {
+            remove( checkpointed );
+        }
+    }
+
+    public synchronized void clear()
+    {
+        for ( long checkpointed : checkpointsByVersion.keySet() )
+        {
+            remove( checkpointed );
+        }
+    }
+
+    public synchronized void setMaxCheckpoints( int maxCheckpoints )
+    {
+        if ( maxCheckpoints < 0 )
+            throw new IllegalArgumentException( "Max checkpoints can't be negative, was [" + maxCheckpoints + "]." );
+        this.maxCheckpoints = maxCheckpoints;
+        trim();
+    }
+
+    private void trim()
+    {
+        while ( checkpointsByVersion.size() > maxCheckpoints )
+        {
+            remove( checkpointsByVersion.firstKey() );
+        }
+    }
+
+    private void remove( long version )
+    {
+        checkpointsByVersion.remove( version );
+        if ( directory != null )
+        {
+            fileOf( directory, version ).delete();
+        }
+    }
+
+    /**
+     * @return the historic node to start looking for the properties of {@code node} at {@code version} from, or
+     *         {@code null} if no checkpoint helps and the search should start at the head.
+     */
+    Node startingPoint( Node node, long version )
+    {
+        Map.Entry<Long, Checkpoint> entry = checkpointsByVersion.ceilingEntry( version );
+        return entry == null ? null : entry.getValue().propHolder( node );
+    }
+
+    private Checkpoint build( long version )
+    {
+        ChangeLog log;
+        Map.Entry<Long, Checkpoint> base;
+        synchronized ( this )
+        {
+            log = changeLog;
+            base = checkpointsByVersion.floorEntry( version );
+            if ( base != null && base.getKey() < changeLogCoveredAfter )
+            {
+                base = null;
+            }
+        }
+        if ( log != null && base != null )
+        {
+            if ( base.getKey() == version )
+            {
+                return base.getValue();
+            }
+            Checkpoint checkpoint = update( base.getValue(), base.getKey(), version, log );
+            synchronized ( this )
+            {
+                // The change log only loses records before checkpoints that are dropped first.
+                if ( checkpointsByVersion.get( base.getKey() ) == base.getValue() )
+                {
+                    return checkpoint;
+                }
+            }
+        }
+        return scan( version );
+    }
+
+    private Checkpoint scan( long version )
+    {
+        Checkpoint checkpoint = new Checkpoint();
+        for ( Node node : graphDb.getAllNodes() )
+        {
+            add( checkpoint, node, version );
+        }
+        checkpoint.sort();
+        checkpoint.seal();
+        return checkpoint;
+    }
+
+    /**
+     * Copies {@code base} but for the nodes that {@code log} says changed after {@code baseVersion}, which are
+     * looked at again, and the history nodes of relationships whose properties changed.
+     */
+    private Checkpoint update( Checkpoint base, long baseVersion, long version, ChangeLog log )
+    {
+        SortedSet<Long> changed = new TreeSet<Long>();
+        for ( ChangeLog.Change change : log.diff( baseVersion, version ) )
+        {
+            switch ( change.getType() )
+            {
+            case NODE_CREATED:
+            case NODE_PROPERTY_CHANGED:
+            case NODE_DELETED:
+                changed.add( change.getEntityId() );
+                break;
+            case RELATIONSHIP_PROPERTY_CHANGED:
+                try
+                {
+                    Node historyNode = VersionContext.getHistoryNode(
+                        graphDb.getRelationshipById( change.getEntityId() ) );
+                    if ( historyNode != null )
+                    {
+                        changed.add( historyNode.getId() );
+                    }
+                }
+                catch ( NotFoundException e )
+                {
+                    // Compacted away along with its history.
+                }
+                break;
+            default:
+                break;
+            }
+        }
+        Checkpoint checkpoint = new Checkpoint();
+        Iterator<Long> changedIds = changed.iterator();
+        long nextChanged = changedIds.hasNext() ? changedIds.next() : Long.MAX_VALUE;
+        for ( int i = 0; i < base.size; i++ )
+        {
+            long nodeId = base.nodeIds[i];
+            while ( nextChanged < nodeId )
+            {
+                add( checkpoint, nextChanged, version );
+                nextChanged = changedIds.hasNext() ? changedIds.next() : Long.MAX_VALUE;
+            }
+            if ( nextChanged == nodeId )
+            {
+                add( checkpoint, nextChanged, version );
+                nextChanged = changedIds.hasNext() ? changedIds.next() : Long.MAX_VALUE;
+            }
+            else
+            {
+                checkpoint.add( nodeId, base.resolvedPropHolderIds.get( i ), base.fromVersions[i] );
+            }
+        }
+        while ( nextChanged != Long.MAX_VALUE )
+        {
+            add( checkpoint, nextChanged, version );
+            nextChanged = changedIds.hasNext() ? changedIds.next() : Long.MAX_VALUE;
+        }
+        checkpoint.seal();
+        return checkpoint;
+    }
+
+    private void add( Checkpoint checkpoint, long nodeId, long version )
+    {
+        try
+        {
+            add( checkpoint, graphDb.getNodeById( nodeId ), version );
+        }
+        catch ( NotFoundException e )
+        {
+            // Compacted away.
+        }
+    }
+
+    /**
+     * Adds the property holder of {@code node} at {@code version} to {@code checkpoint}, unless it's a historic node,
+     * isn't versioned or wasn't there at {@code version}.
+     */
+    private static void add( Checkpoint checkpoint, Node node, long version )
+    {
+        Range range;
+        try
+        {
+            if ( node.hasRelationship( PREV_VERSION_REL_TYPE, Direction.INCOMING ) )
+            {
+                return;
+            }
+            range = getVersion( node );
+        }
+        catch ( NotFoundException e )
+        {
+            // Deleted since the scan started.
+            return;
+        }
+        if ( range == null || range.to() < version )
+        {
+            return;
+        }
+        if ( range.from() <= version )
+        {
+            checkpoint.add( node.getId(), node.getId(), range.from() );
+        }
+        else
+        {
+            Node propHolder = VersionChain.find( node, version );
+            if ( propHolder != null )
+            {
+                checkpoint.add( node.getId(), propHolder.getId(), getStartVersion( propHolder ) );
+            }
+        }
+    }
+
+    private Checkpoint read( File file ) throws IOException
+    {
+        DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) );
+        try
+        {
+            Checkpoint checkpoint = new Checkpoint();
+            int size = in.readInt();
+            for ( int i = 0; i < size; i++ )
+            {
+                checkpoint.add( in.readLong(), in.readLong(), in.readLong() );
+            }
+            checkpoint.seal();
+            return checkpoint;
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    private class Checkpoint
+    {
+        private long[] nodeIds = new long[16];
+        private long[] propHolderIds = new long[16];
+        private long[] fromVersions = new long[16];
+        private int size;
+        // The property holders once built, with nodes at their head resolved as they are needed.
+        private AtomicLongArray resolvedPropHolderIds;
+
+        void add( long nodeId, long propHolderId, long fromVersion )
+        {
+            if ( size == nodeIds.length )
+            {
+                nodeIds = Arrays.copyOf( nodeIds, size * 2 );
+                propHolderIds = Arrays.copyOf( propHolderIds, size * 2 );
+                fromVersions = Arrays.copyOf( fromVersions, size * 2 );
+            }
+            nodeIds[size] = nodeId;
+            propHolderIds[size] = propHolderId;
+            fromVersions[size] = fromVersion;
+            size++;
+        }
+
+        /**
+         * Nodes usually come out of the store in id order already, in which case this is a single pass.
+         */
+        void sort()
+        {
+            for ( int i = 1; i < size; i++ )
+            {
+                if ( nodeIds[i - 1] > nodeIds[i] )
+                {
+                    sortUnordered();
+                    return;
+                }
+            }
+        }
+
+        private void sortUnordered()
+        {
+            Integer[] order = new Integer[size];
+            for ( int i = 0; i < size; i++ )
+            {
+                order[i] = i;
+            }
+            Arrays.sort( order, new Comparator<Integer>()
+            {
+                public int compare( Integer first, Integer second )
+                {
+                    return Long.valueOf( nodeIds[first] ).compareTo( nodeIds[second] );
+                }
+            } );
+            long[] sortedNodeIds = new long[size];
+            long[] sortedPropHolderIds = new long[size];
+            long[] sortedFromVersions = new long[size];
+            for ( int i = 0; i < size; i++ )
+            {
+                sortedNodeIds[i] = nodeIds[order[i]];
+                sortedPropHolderIds[i] = propHolderIds[order[i]];
+                sortedFromVersions[i] = fromVersions[order[i]];
+            }
+            nodeIds = sortedNodeIds;
+            propHolderIds = sortedPropHolderIds;
+            fromVersions = sortedFromVersions;
+        }
+
+        void seal()
+        {
+            resolvedPropHolderIds = new AtomicLongArray( Arrays.copyOf( propHolderIds, size ) );
+            propHolderIds = null;
+        }
+
+        /**
+         * Writes the checkpoint to a file next to {@code file} and renames it to {@code file} once it's forced, so a
+         * crash never leaves a partial checkpoint behind under the name of a complete one.
+         */
+        void write( File file ) throws IOException
+        {
+            File writing = new File( file.getPath() + ".writing" );
+            FileOutputStream stream = new FileOutputStream( writing );
+            try
+            {
+                DataOutputStream out = new DataOutputStream( new BufferedOutputStream( stream ) );
+                out.writeInt( size );
+                for ( int i = 0; i < size; i++ )
+                {
+                    out.writeLong( nodeIds[i] );
+                    out.writeLong( resolvedPropHolderIds.get( i ) );
+                    out.writeLong( fromVersions[i] );
+                }
+                out.flush();
+                stream.getFD().sync();
+            }
+            finally
+            {
+                stream.close();
+            }
+            if ( !writing.renameTo( file ) )
+                throw new IOException( "Couldn't rename [" + writing + "] to [" + file + "]." );
+        }
+
+        Node propHolder( Node node )
+        {
+            int index = Arrays.binarySearch( nodeIds, 0, size, node.getId() );
+            if ( index < 0 )
+            {
+                return null;
+            }
+            try
+            {
+                long propHolderId = resolvedPropHolderIds.get( index );
+                if ( propHolderId != node.getId() )
+                {
+                    Node propHolder = graphDb.getNodeById( propHolderId );
+                    // A holder starting elsewhere was compacted away, and its id reused after a restart.
+                    return getStartVersion( propHolder ) == fromVersions[index] ? propHolder : null;
+                }
+                if ( getStartVersion( node ) == fromVersions[index] )
+                {
+                    // Still at the head, there's nothing to skip.
+                    return null;
+                }
+                Node propHolder = VersionChain.find( node, fromVersions[index] );
+                if ( propHolder != null && getStartVersion( propHolder ) == fromVersions[index] )
+                {
+                    resolvedPropHolderIds.set( index, propHolder.getId() );
+                }
+                return propHolder;
+            }
+            catch ( NotFoundException e )
+            {
+                // Compacted away since.
+                return null;
+            }
+        }
+    }
+}
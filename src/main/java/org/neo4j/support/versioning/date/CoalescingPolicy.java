@@ -0,0 +1,96 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import org.neo4j.graphdb.NotFoundException;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when the {@link VersioningTransactionEventHandler} folds a change of a node or relationship into the newest
+ * historic node below it instead of writing a new one. The range of that historic node is extended up to the change,
+ * so reads at the versions in between see the state it holds, the one at the start of the window, and the states in
+ * between are gone. The chain of an entity that changes all the time then grows by at most one historic node per
+ * window.
+ */
+public abstract class CoalescingPolicy
+{
+    /**
+     * @return whether a change at {@code version} can be folded into the newest historic node, whose range starts at
+     *         {@code holderStart}.
+     */
+    public abstract boolean coalesce( long holderStart, long version );
+
+    /**
+     * Lets one historic node stand for up to {@code versions} versions.
+     */
+    public static CoalescingPolicy withinVersions( final long versions )
+    {
+        if ( versions < 1 )
+            throw new IllegalArgumentException( "Window must be at least one version, was [" + versions + "]." );
+        return new CoalescingPolicy()
+        {
+            @Override
+            public boolean coalesce( long holderStart, long version )
+            {
+                return version - holderStart <= versions;
+            }
+
+            @Override
+            public String toString()
+            {
+                return "CoalescingPolicy[within " + versions + " versions]";
+            }
+        };
+    }
+
+    /**
+     * Lets one historic node stand for the versions allocated up to {@code window} after the first of them, going by
+     * the times recorded in {@code timeline}, which should be the one set on the handler. Versions older than the
+     * timeline aren't coalesced.
+     */
+    public static CoalescingPolicy withinTime( final VersionTimeline timeline, final long window, final TimeUnit unit )
+    {
+        if ( window < 0 )
+            throw new IllegalArgumentException( "Window can't be negative, was [" + window + "]." );
+        final long windowMillis = unit.toMillis( window );
+        return new CoalescingPolicy()
+        {
+            @Override
+            public boolean coalesce( long holderStart, long version )
+            {
+                try
+                {
+                    return timeline.getTimestamp( version ) - timeline.getTimestamp( holderStart ) <= windowMillis;
+                }
+                catch ( NotFoundException e )
+                {
+                    return false;
+                }
+            }
+
+            @Override
+            public String toString()
+            {
+                return "CoalescingPolicy[within " + window + " " + unit.name().toLowerCase() + "]";
+            }
+        };
+    }
+}
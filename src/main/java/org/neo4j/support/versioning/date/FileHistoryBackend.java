@@ -0,0 +1,477 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import org.neo4j.support.versioning.Range;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A {@link HistoryBackend} that appends historic property sets to a single file.
+ * <p>
+ * Every record is its length, the anchor id, the range and the encoded properties. The start, end and file offset of
+ * the records of each anchor are kept in memory, in one growing array of longs per anchor, so a read is a binary
+ * search followed by one positional read of the record. The offsets are rebuilt by scanning the file when it's opened,
+ * dropping a record cut off at the end.
+ * <p>
+ * Forcing is shared between commits: a commit that finds its records already forced by another one forcing while it
+ * waited returns straight away, so concurrent commits pay for one force between them.
+ * <p>
+ * {@link #removeBefore(long) Removing} history copies the records that are kept to a new file, which then replaces the
+ * old one. Reads, writes and forces wait for that to finish.
+ */
+public class FileHistoryBackend extends HistoryBackend
+{
+    private static final int HEADER_SIZE = 4 + 8 + 8 + 8;
+
+    private final File file;
+    // Replaced when history is removed, which holds the write lock of fileLock. Everything else using the file holds
+    // the read lock.
+    private FileChannel channel;
+    private final ReadWriteLock fileLock = new ReentrantReadWriteLock();
+    private long end;
+    private final Object forceLock = new Object();
+    // Guarded by forceLock.
+    private long forced;
+    private final Map<Long, Entries> entriesByAnchor = new HashMap<Long, Entries>();
+
+    /**
+     * The start, end and offset of every record of an anchor, oldest first.
+     */
+    private static class Entries
+    {
+        private long[] values = new long[12];
+        private int size;
+
+        void add( long from, long to, long offset )
+        {
+            if ( size > 0 && values[( size - 1 ) * 3] == from )
+            {
+                size--;
+            }
+            if ( ( size + 1 ) * 3 > values.length )
+            {
+                long[] grown = new long[values.length * 2];
+                System.arraycopy( values, 0, grown, 0, size * 3 );
+                values = grown;
+            }
+            values[size * 3] = from;
+            values[size * 3 + 1] = to;
+            values[size * 3 + 2] = offset;
+            size++;
+        }
+
+        /**
+         * @return the index of the newest record starting at or before {@code version}, or -1.
+         */
+        int floor( long version )
+        {
+            int low = 0;
+            int high = size - 1;
+            while ( low <= high )
+            {
+                int middle = ( low + high ) >>> 1;
+                if ( values[middle * 3] <= version )
+                {
+                    low = middle + 1;
+                }
+                else
+                {
+                    high = middle - 1;
+                }
+            }
+            return high;
+        }
+
+        /**
+         * Drops the records that ended before {@code horizon}, putting their offsets in {@code removed}.
+         */
+        void removeBefore( long horizon, List<Long> removed )
+        {
+            int kept = 0;
+            for ( int i = 0; i < size; i++ )
+            {
+                if ( values[i * 3 + 1] < horizon )
+                {
+                    removed.add( values[i * 3 + 2] );
+                }
+                else
+                {
+                    System.arraycopy( values, i * 3, values, kept * 3, 3 );
+                    kept++;
+                }
+            }
+            size = kept;
+        }
+    }
+
+    public FileHistoryBackend( File file ) throws IOException
+    {
+        this.file = file;
+        this.channel = new RandomAccessFile( file, "rw" ).getChannel();
+        scan();
+        forced = end;
+    }
+
+    /**
+     * Rebuilds the offsets of the records in the file, dropping a record cut off at the end.
+     */
+    private void scan() throws IOException
+    {
+        entriesByAnchor.clear();
+        end = 0;
+        ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE );
+        long size = channel.size();
+        while ( end + HEADER_SIZE <= size )
+        {
+            header.clear();
+            readFully( header, end );
+            int length = header.getInt( 0 );
+            if ( length < HEADER_SIZE || end + length > size )
+            {
+                break;
+            }
+            entries( header.getLong( 4 ) ).add( header.getLong( 12 ), header.getLong( 20 ), end );
+            end += length;
+        }
+        channel.truncate( end );
+    }
+
+    private Entries entries( long anchorId )
+    {
+        Entries entries = entriesByAnchor.get( anchorId );
+        if ( entries == null )
+        {
+            entries = new Entries();
+            entriesByAnchor.put( anchorId, entries );
+        }
+        return entries;
+    }
+
+    @Override
+    public void write( long anchorId, Range range, Map<String, Object> properties )
+    {
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream( 128 );
+            DataOutputStream out = new DataOutputStream( bytes );
+            out.writeInt( 0 );
+            out.writeLong( anchorId );
+            out.writeLong( range.from() );
+            out.writeLong( range.to() );
+            PropertyCodec.writeProperties( out, properties );
+            out.flush();
+            ByteBuffer record = ByteBuffer.wrap( bytes.toByteArray() );
+            record.putInt( 0, record.capacity() );
+            fileLock.readLock().lock();
+            try
+            {
+                synchronized ( this )
+                {
+                    long offset = end;
+                    while ( record.hasRemaining() )
+                    {
+                        channel.write( record, offset + record.position() );
+                    }
+                    end += record.capacity();
+                    entries( anchorId ).add( range.from(), range.to(), offset );
+                }
+            }
+            finally
+            {
+                fileLock.readLock().unlock();
+            }
+        }
+        catch ( IOException e )
+        {
+            throw new RuntimeException( "Couldn't write history of [" + anchorId + "] to [" + file + "].", e );
+        }
+    }
+
+    @Override
+    public VersionedValue<Map<String, Object>> read( long anchorId, long version )
+    {
+        fileLock.readLock().lock();
+        try
+        {
+            VersionedValue<Map<String, Object>> state = readFloor( anchorId, version );
+            return state == null || state.getRange().to() < version ? null : state;
+        }
+        finally
+        {
+            fileLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Walks back from {@code version} by reading the record before the start of the last one returned, so that it
+     * carries on where it was when history is removed in between.
+     */
+    @Override
+    public Iterator<VersionedValue<Map<String, Object>>> history( final long anchorId, final long version )
+    {
+        return new Iterator<VersionedValue<Map<String, Object>>>()
+        {
+            private long next = version;
+            private VersionedValue<Map<String, Object>> state;
+
+            public boolean hasNext()
+            {
+                if ( state == null && next != Long.MIN_VALUE )
+                {
+                    fileLock.readLock().lock();
+                    try
+                    {
+                        state = readFloor( anchorId, next );
+                    }
+                    finally
+                    {
+                        fileLock.readLock().unlock();
+                    }
+                    next = state == null ? Long.MIN_VALUE : state.getRange().from() - 1;
+                }
+                return state != null;
+            }
+
+            public VersionedValue<Map<String, Object>> next()
+            {
+                if ( !hasNext() )
+                {
+                    throw new NoSuchElementException();
+                }
+                VersionedValue<Map<String, Object>> current = state;
+                state = null;
+                return current;
+            }
+
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * @return the newest record of {@code anchorId} starting at or before {@code version}, or {@code null}. Called
+     *         with the read lock of {@link #fileLock} held.
+     */
+    private VersionedValue<Map<String, Object>> readFloor( long anchorId, long version )
+    {
+        long from;
+        long to;
+        long offset;
+        synchronized ( this )
+        {
+            Entries entries = entriesByAnchor.get( anchorId );
+            int index = entries == null ? -1 : entries.floor( version );
+            if ( index < 0 )
+            {
+                return null;
+            }
+            from = entries.values[index * 3];
+            to = entries.values[index * 3 + 1];
+            offset = entries.values[index * 3 + 2];
+        }
+        return new VersionedValue<Map<String, Object>>( new Range( from, to ), readProperties( offset ) );
+    }
+
+    private Map<String, Object> readProperties( long offset )
+    {
+        try
+        {
+            ByteBuffer length = ByteBuffer.allocate( 4 );
+            readFully( length, offset );
+            ByteBuffer record = ByteBuffer.allocate( length.getInt( 0 ) );
+            readFully( record, offset );
+            record.position( HEADER_SIZE );
+            return PropertyCodec.readProperties( record );
+        }
+        catch ( IOException e )
+        {
+            throw new RuntimeException( "Couldn't read history at [" + offset + "] from [" + file + "].", e );
+        }
+    }
+
+    private void readFully( ByteBuffer buffer, long position ) throws IOException
+    {
+        while ( buffer.hasRemaining() )
+        {
+            if ( channel.read( buffer, position + buffer.position() ) < 0 )
+            {
+                throw new IOException( "Unexpected end of [" + file + "]." );
+            }
+        }
+    }
+
+    /**
+     * Flushes what's been written to disk.
+     */
+    @Override
+    public void force()
+    {
+        long written;
+        synchronized ( this )
+        {
+            written = end;
+        }
+        synchronized ( forceLock )
+        {
+            if ( forced >= written )
+            {
+                return;
+            }
+            long forcing;
+            synchronized ( this )
+            {
+                forcing = end;
+            }
+            fileLock.readLock().lock();
+            try
+            {
+                channel.force( false );
+            }
+            catch ( IOException e )
+            {
+                throw new RuntimeException( "Couldn't force [" + file + "].", e );
+            }
+            finally
+            {
+                fileLock.readLock().unlock();
+            }
+            forced = forcing;
+        }
+    }
+
+    /**
+     * Copies the records that ended at or after {@code horizon} to a new file, forces it and puts it in place of the
+     * old one. Does nothing if no record ended before.
+     */
+    @Override
+    public void removeBefore( long horizon )
+    {
+        synchronized ( forceLock )
+        {
+            fileLock.writeLock().lock();
+            try
+            {
+                List<Long> removed = new ArrayList<Long>();
+                for ( Entries entries : entriesByAnchor.values() )
+                {
+                    entries.removeBefore( horizon, removed );
+                }
+                if ( removed.isEmpty() )
+                {
+                    return;
+                }
+                rewrite( removed );
+                forced = end;
+            }
+            catch ( IOException e )
+            {
+                throw new RuntimeException( "Couldn't remove history before [" + horizon + "] from [" + file + "].",
+                    e );
+            }
+            finally
+            {
+                fileLock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Replaces the file with a copy leaving out the records at {@code removed}, keeping the others in order so that
+     * a record still replaces the one before it with the same start when the copy is scanned.
+     */
+    private void rewrite( List<Long> removed ) throws IOException
+    {
+        Collections.sort( removed );
+        File copy = new File( file.getPath() + ".compacting" );
+        FileChannel copyChannel = new RandomAccessFile( copy, "rw" ).getChannel();
+        try
+        {
+            copyChannel.truncate( 0 );
+            ByteBuffer length = ByteBuffer.allocate( 4 );
+            long position = 0;
+            long written = 0;
+            int nextRemoved = 0;
+            while ( position < end )
+            {
+                length.clear();
+                readFully( length, position );
+                int recordLength = length.getInt( 0 );
+                if ( nextRemoved < removed.size() && removed.get( nextRemoved ) == position )
+                {
+                    nextRemoved++;
+                }
+                else
+                {
+                    ByteBuffer record = ByteBuffer.allocate( recordLength );
+                    readFully( record, position );
+                    record.flip();
+                    while ( record.hasRemaining() )
+                    {
+                        written += copyChannel.write( record, written );
+                    }
+                }
+                position += recordLength;
+            }
+            copyChannel.force( false );
+        }
+        finally
+        {
+            copyChannel.close();
+        }
+        channel.close();
+        boolean replaced = copy.renameTo( file );
+        // Reopened either way, the offsets are rebuilt from whichever file is in place.
+        channel = new RandomAccessFile( file, "rw" ).getChannel();
+        scan();
+        if ( !replaced )
+            throw new IOException( "Couldn't replace [" + file + "] with [" + copy + "]." );
+    }
+
+    public void close() throws IOException
+    {
+        fileLock.writeLock().lock();
+        try
+        {
+            channel.close();
+        }
+        finally
+        {
+            fileLock.writeLock().unlock();
+        }
+    }
+}
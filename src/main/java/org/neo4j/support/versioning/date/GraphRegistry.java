@@ -0,0 +1,182 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.event.ErrorState;
+import org.neo4j.graphdb.event.KernelEventHandler;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The one place versioning keeps state per graph database, for the caches, indexes and settings that readers reach
+ * through nothing but the graph of the entity they read.
+ * <p>
+ * Graphs are held weakly, and what is registered for a graph is dropped when it shuts down, so a registry never keeps
+ * a graph or its state reachable after that. Lookups take no lock: they scan a copy-on-write list of registrations,
+ * which holds one entry per graph in use.
+ */
+class GraphRegistry<T>
+{
+    private final CopyOnWriteArrayList<Registration<T>> registrations = new CopyOnWriteArrayList<Registration<T>>();
+    private final Factory<T> factory;
+
+    /**
+     * A registry that only holds what is {@link #put(GraphDatabaseService, Object) put} in it.
+     */
+    GraphRegistry()
+    {
+        this( null );
+    }
+
+    /**
+     * A registry that creates the state of a graph with {@code factory} the first time it's asked for.
+     */
+    GraphRegistry( Factory<T> factory )
+    {
+        this.factory = factory;
+    }
+
+    /**
+     * @return what is registered for {@code graphDb}, or {@code null} if there is nothing.
+     */
+    T get( GraphDatabaseService graphDb )
+    {
+        for ( Registration<T> registration : registrations )
+        {
+            if ( registration.graphDb.get() == graphDb )
+            {
+                return registration.value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return what is registered for {@code graphDb}, created with the factory of this registry if there is nothing.
+     */
+    T getOrCreate( GraphDatabaseService graphDb )
+    {
+        T value = get( graphDb );
+        if ( value != null )
+        {
+            return value;
+        }
+        synchronized ( this )
+        {
+            value = get( graphDb );
+            if ( value == null )
+            {
+                value = factory.create( graphDb );
+                add( graphDb, value );
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Registers {@code value} for {@code graphDb} in place of what was there, {@code null} removes it.
+     *
+     * @return what was registered before, or {@code null}.
+     */
+    synchronized T put( GraphDatabaseService graphDb, T value )
+    {
+        T previous = null;
+        for ( Registration<T> registration : registrations )
+        {
+            if ( registration.graphDb.get() == graphDb )
+            {
+                previous = registration.value;
+                remove( registration );
+            }
+        }
+        if ( value != null )
+        {
+            add( graphDb, value );
+        }
+        return previous;
+    }
+
+    private void add( GraphDatabaseService graphDb, T value )
+    {
+        for ( Registration<T> registration : registrations )
+        {
+            if ( registration.graphDb.get() == null )
+            {
+                registrations.remove( registration );
+            }
+        }
+        Registration<T> registration = new Registration<T>( this, graphDb, value );
+        registrations.add( registration );
+        graphDb.registerKernelEventHandler( registration );
+    }
+
+    private void remove( Registration<T> registration )
+    {
+        registrations.remove( registration );
+        GraphDatabaseService graphDb = registration.graphDb.get();
+        if ( graphDb != null )
+        {
+            graphDb.unregisterKernelEventHandler( registration );
+        }
+    }
+
+    interface Factory<T>
+    {
+        T create( GraphDatabaseService graphDb );
+    }
+
+    /**
+     * What is registered for one graph, which also takes it out of the registry when the graph shuts down.
+     */
+    private static class Registration<T> implements KernelEventHandler
+    {
+        private final GraphRegistry<T> registry;
+        final WeakReference<GraphDatabaseService> graphDb;
+        final T value;
+
+        Registration( GraphRegistry<T> registry, GraphDatabaseService graphDb, T value )
+        {
+            this.registry = registry;
+            this.graphDb = new WeakReference<GraphDatabaseService>( graphDb );
+            this.value = value;
+        }
+
+        public void beforeShutdown()
+        {
+            registry.registrations.remove( this );
+        }
+
+        public void kernelPanic( ErrorState error )
+        {
+        }
+
+        public Object getResource()
+        {
+            return null;
+        }
+
+        public ExecutionOrder orderComparedTo( KernelEventHandler other )
+        {
+            return ExecutionOrder.DOESNT_MATTER;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.support.versioning.Range;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A store for historic property sets outside the graph, so that the graph only keeps the heads.
+ * <p>
+ * Once a backend is {@link VersioningTransactionEventHandler#setHistoryBackend(GraphDatabaseService, HistoryBackend)
+ * set} for a graph, the properties a node or relationship had before a change are written to it, keyed by the id of
+ * the node, or of the relationship's history node, and the range they were valid for, instead of to a new historic
+ * node. Reads look in the backend before the chain, so history written to chains before the backend was set stays
+ * readable.
+ * <p>
+ * Writes happen while the transaction making the change commits, before the graph does, and the backend is
+ * {@link #force() forced} once per commit before the graph commits, so history is never lost for a committed change. A
+ * transaction that fails to commit after writing leaves its property sets behind. Those always end at or after the
+ * start of the anchor's head, which committed ones never do, so reads skip them, and the next write for the anchor,
+ * which starts where they start, replaces them.
+ * <p>
+ * Historic property sets written to a backend aren't covered by {@link VersionedIndex}es, which can then only be
+ * queried at the head, or {@link Checkpoints}. The {@link HistoryCompactor} has the backend {@link #removeBefore(long)
+ * remove} those that ended before its horizon.
+ */
+public abstract class HistoryBackend
+{
+    private static final GraphRegistry<HistoryBackend> backends = new GraphRegistry<HistoryBackend>();
+
+    static HistoryBackend forGraph( GraphDatabaseService graphDb )
+    {
+        return backends.get( graphDb );
+    }
+
+    static void register( GraphDatabaseService graphDb, HistoryBackend backend )
+    {
+        backends.put( graphDb, backend );
+    }
+
+    /**
+     * Forces the backend of {@code graphDb}, if it has one.
+     */
+    static void force( GraphDatabaseService graphDb )
+    {
+        HistoryBackend backend = forGraph( graphDb );
+        if ( backend != null )
+        {
+            backend.force();
+        }
+    }
+
+    /**
+     * Stores the properties {@code anchorId} had in {@code range}. Writes for the same anchor come in version order,
+     * a write with the same start as the previous one replaces it.
+     */
+    public abstract void write( long anchorId, Range range, Map<String, Object> properties );
+
+    /**
+     * @return the properties {@code anchorId} had at {@code version} along with their range, or {@code null} if the
+     *         backend doesn't know.
+     */
+    public abstract VersionedValue<Map<String, Object>> read( long anchorId, long version );
+
+    /**
+     * @return the property sets of {@code anchorId} starting at or before {@code version}, newest first.
+     */
+    public abstract Iterator<VersionedValue<Map<String, Object>>> history( long anchorId, long version );
+
+    /**
+     * Makes everything written so far durable. Called once for every commit that wrote to the backend, before the graph
+     * commits. Does nothing by default, for backends that are durable as soon as a write returns.
+     */
+    public void force()
+    {
+    }
+
+    /**
+     * Removes the property sets that ended before {@code horizon}, which no reader can ask for any more. Called by the
+     * {@link HistoryCompactor} after it advanced the horizon. Does nothing by default, for backends that leave it to
+     * their own retention.
+     */
+    public void removeBefore( long horizon )
+    {
+    }
+}
@@ -0,0 +1,406 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.support.versioning.Range;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static org.neo4j.support.versioning.date.VersionContext.PREV_VERSION_REL_TYPE;
+import static org.neo4j.support.versioning.date.VersionContext.SKIP_VERSION_REL_TYPE;
+import static org.neo4j.support.versioning.date.VersionContext.getVersion;
+
+/**
+ * Removes history that a {@link RetentionPolicy} no longer needs: historic property nodes whose range ended before the
+ * horizon, relationships that were deleted before it and nodes that were deleted before it and have nothing left
+ * pointing at them. Versions pinned through {@link SnapshotLeases} hold the horizon back.
+ * <p>
+ * Compaction scans the whole graph with versioning suspended and commits after every {@code batchSize} nodes visited or
+ * entities removed, also in between the relationships of a node that has many, so it never holds locks for long. Chains
+ * are locked the same way writers lock them, by writing to the head node, which keeps a chain from being compacted and
+ * appended to at the same time. After the scan, the {@link ChangeLog}, {@link VersionJournal} and
+ * {@link HistoryBackend} in use remove what they have from before the horizon. Either call {@link #compact()}
+ * directly, or have it run periodically in the background with {@link #start(long, TimeUnit)}.
+ */
+public class HistoryCompactor implements Runnable
+{
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+    private final GraphDatabaseService graphDb;
+    private final VersioningTransactionEventHandler versioningTransactionEventHandler;
+    private final RetentionPolicy retentionPolicy;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private ScheduledExecutorService scheduler;
+    private volatile RuntimeException lastFailure;
+
+    public HistoryCompactor( GraphDatabaseService graphDb,
+        VersioningTransactionEventHandler versioningTransactionEventHandler, RetentionPolicy retentionPolicy )
+    {
+        this.graphDb = graphDb;
+        this.versioningTransactionEventHandler = versioningTransactionEventHandler;
+        this.retentionPolicy = retentionPolicy;
+    }
+
+    public void setBatchSize( int batchSize )
+    {
+        if ( batchSize < 1 )
+            throw new IllegalArgumentException( "Batch size must be positive, was [" + batchSize + "]." );
+        this.batchSize = batchSize;
+    }
+
+    public synchronized void start( long period, TimeUnit unit )
+    {
+        if ( scheduler != null )
+        {
+            throw new IllegalStateException( "Already started." );
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor( new ThreadFactory()
+        {
+            public Thread newThread( Runnable runnable )
+            {
+                Thread thread = new Thread( runnable, "History compactor" );
+                thread.setDaemon( true );
+                return thread;
+            }
+        } );
+        scheduler.scheduleWithFixedDelay( this, period, period, unit );
+    }
+
+    public synchronized void stop()
+    {
+        if ( scheduler != null )
+        {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Runs {@link #compact()}, remembering rather than throwing failures so a background run doesn't cancel the ones
+     * after it.
+     */
+    public void run()
+    {
+        try
+        {
+            compact();
+            lastFailure = null;
+        }
+        catch ( RuntimeException e )
+        {
+            lastFailure = e;
+        }
+    }
+
+    /**
+     * @return what made the last background run fail, or {@code null} if it succeeded.
+     */
+    public RuntimeException getLastFailure()
+    {
+        return lastFailure;
+    }
+
+    /**
+     * Removes everything the retention policy and the current leases allow.
+     *
+     * @return the number of historic nodes, relationships and nodes removed.
+     */
+    public synchronized int compact()
+    {
+        long horizon = SnapshotLeases.forGraph( graphDb ).advanceHorizon(
+            retentionPolicy.getHorizon( versioningTransactionEventHandler.getLatestVersion() ) );
+        Checkpoints.forGraph( graphDb ).dropBefore( horizon );
+        VersioningTransactionEventHandler.suspendVersioning();
+        try
+        {
+            int removed = compact( horizon );
+            removeFromStores( horizon );
+            return removed;
+        }
+        finally
+        {
+            VersioningTransactionEventHandler.resumeVersioning();
+        }
+    }
+
+    /**
+     * Removes what the stores kept outside the version chains have from before {@code horizon}.
+     */
+    private void removeFromStores( long horizon )
+    {
+        ChangeLog changeLog = versioningTransactionEventHandler.getChangeLog();
+        if ( changeLog != null )
+        {
+            changeLog.removeBefore( horizon, batchSize );
+        }
+        VersionJournal journal = versioningTransactionEventHandler.getJournal();
+        if ( journal != null )
+        {
+            journal.removeBefore( horizon );
+        }
+        HistoryBackend backend = HistoryBackend.forGraph( graphDb );
+        if ( backend != null )
+        {
+            backend.removeBefore( horizon );
+        }
+    }
+
+    private int compact( long horizon )
+    {
+        List<VersionedIndex> indexes = versioningTransactionEventHandler.getIndexes();
+        Batch batch = new Batch();
+        try
+        {
+            for ( Node node : graphDb.getAllNodes() )
+            {
+                compactNode( node, horizon, batch, indexes );
+                batch.visited();
+            }
+            batch.commit();
+        }
+        finally
+        {
+            batch.finish();
+        }
+        return batch.removed;
+    }
+
+    /**
+     * Removes the ended relationships of {@code node} with their history, and either the node itself if it ended and
+     * has nothing left, or its history from before the horizon. The node stays locked throughout, across the commits
+     * of {@code batch} in between relationships.
+     */
+    private static void compactNode( Node node, long horizon, Batch batch, List<VersionedIndex> indexes )
+    {
+        Range range;
+        try
+        {
+            if ( node.hasRelationship( PREV_VERSION_REL_TYPE, Direction.INCOMING ) )
+            {
+                // A historic node, it's compacted along with its chain.
+                return;
+            }
+            range = getVersion( node );
+        }
+        catch ( NotFoundException e )
+        {
+            // Deleted since the scan started, e.g. as part of a chain pruned earlier on.
+            return;
+        }
+        if ( range == null )
+        {
+            return;
+        }
+        Map<Long, Relationship> endedRelationships = new LinkedHashMap<Long, Relationship>();
+        boolean hasLiveRelationships = findEndedRelationships( node, horizon, endedRelationships );
+        boolean removeNode = range.to() < horizon && !hasLiveRelationships;
+        if ( endedRelationships.isEmpty() && !removeNode && !VersionChain.hasHistoryBefore( node, horizon ) )
+        {
+            return;
+        }
+
+        batch.lock( node );
+        int commits = batch.commits;
+        for ( Relationship relationship : endedRelationships.values() )
+        {
+            int removed = 1;
+            batch.compacted( relationship.getStartNode().getId() );
+            batch.compacted( relationship.getEndNode().getId() );
+            Node historyNode = VersionContext.getHistoryNode( relationship );
+            if ( historyNode != null )
+            {
+                removed += VersionChain.prune( historyNode, Long.MAX_VALUE, indexes ) + 1;
+                AsyncHistoryWriter.removed( historyNode );
+                historyNode.delete();
+                batch.compacted( historyNode.getId() );
+            }
+            PropertyKeyHistory.delete( relationship );
+            relationship.delete();
+            batch.removed( removed );
+        }
+        if ( removeNode && batch.commits != commits )
+        {
+            // Relationships may have been added while the node wasn't locked in between commits.
+            removeNode = !findEndedRelationships( node, horizon, new LinkedHashMap<Long, Relationship>() );
+        }
+        batch.compacted( node.getId() );
+        if ( removeNode )
+        {
+            int removed = VersionChain.prune( node, Long.MAX_VALUE, indexes ) + 1;
+            PropertyKeyHistory.delete( node );
+            AsyncHistoryWriter.removed( node );
+            for ( VersionedIndex index : indexes )
+            {
+                index.holderRemoved( node );
+            }
+            batch.unlock();
+            node.delete();
+            batch.removed( removed );
+        }
+        else
+        {
+            int removed = VersionChain.prune( node, horizon, indexes );
+            PropertyKeyHistory.pruned( node, horizon );
+            batch.unlock();
+            batch.removed( removed );
+        }
+    }
+
+    /**
+     * Puts the relationships of {@code node} that ended before {@code horizon} in {@code endedRelationships}.
+     *
+     * @return whether the node has relationships that didn't.
+     */
+    private static boolean findEndedRelationships( Node node, long horizon,
+        Map<Long, Relationship> endedRelationships )
+    {
+        boolean hasLiveRelationships = false;
+        for ( Relationship relationship : node.getRelationships() )
+        {
+            if ( isChainRelationship( relationship ) )
+            {
+                continue;
+            }
+            Range relationshipRange = getVersion( relationship );
+            if ( relationshipRange != null && relationshipRange.to() < horizon )
+            {
+                endedRelationships.put( relationship.getId(), relationship );
+            }
+            else
+            {
+                hasLiveRelationships = true;
+            }
+        }
+        return hasLiveRelationships;
+    }
+
+    private static boolean isChainRelationship( Relationship relationship )
+    {
+        return relationship.isType( PREV_VERSION_REL_TYPE ) || relationship.isType( SKIP_VERSION_REL_TYPE );
+    }
+
+    /**
+     * The transaction compaction currently runs in, committed and replaced by a new one every {@code batchSize} nodes
+     * visited or entities removed. The node being compacted is unlocked for the commit and locked again after it.
+     */
+    private class Batch
+    {
+        private final Set<Long> compactedNodes = new HashSet<Long>();
+        private Transaction tx = graphDb.beginTx();
+        private Node locked;
+        private int work;
+        int removed;
+        int commits;
+
+        void visited()
+        {
+            work++;
+            commitIfFull();
+        }
+
+        void removed( int count )
+        {
+            removed += count;
+            work += count;
+            commitIfFull();
+        }
+
+        /**
+         * Has the caches of node {@code nodeId} invalidated once the batch commits.
+         */
+        void compacted( long nodeId )
+        {
+            compactedNodes.add( nodeId );
+        }
+
+        void lock( Node node )
+        {
+            node.setProperty( VersioningTransactionEventHandler.LOCK_PROP_KEY, 0 );
+            locked = node;
+        }
+
+        void unlock()
+        {
+            locked.removeProperty( VersioningTransactionEventHandler.LOCK_PROP_KEY );
+            locked = null;
+        }
+
+        private void commitIfFull()
+        {
+            if ( work < batchSize )
+            {
+                return;
+            }
+            Node node = locked;
+            if ( node != null )
+            {
+                unlock();
+            }
+            commit();
+            finish();
+            tx = graphDb.beginTx();
+            work = 0;
+            commits++;
+            if ( node != null )
+            {
+                lock( node );
+            }
+        }
+
+        void commit()
+        {
+            tx.success();
+        }
+
+        /**
+         * Finishes the transaction, committing it if {@link #commit()} was called, and invalidates the caches of the
+         * nodes it compacted.
+         */
+        void finish()
+        {
+            if ( tx == null )
+            {
+                return;
+            }
+            Transaction finishing = tx;
+            tx = null;
+            finishing.finish();
+            for ( long nodeId : compactedNodes )
+            {
+                PropertyHolderCache.forGraph( graphDb ).invalidate( nodeId );
+                RelationshipIntervalIndex.forGraph( graphDb ).invalidate( nodeId );
+            }
+            compactedNodes.clear();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import org.neo4j.graphdb.Node;
+
+/**
+ * Keeps the latest version as a property on a node and takes a write lock on that node to bump it. Simple and fully
+ * durable, but every committing transaction in the database queues up on that one lock.
+ */
+public class LockingVersionAllocator implements VersionAllocator
+{
+    static final String LATEST_VERSION_PROP_KEY = "__LATEST_VERSION__";
+    public static final String LOCK_PROP_KEY = "__DUMMY_LOCK__";
+    private final Node versionDataNode;
+
+    public LockingVersionAllocator( Node versionDataNode )
+    {
+        this.versionDataNode = versionDataNode;
+    }
+
+    public long allocate()
+    {
+        versionDataNode.setProperty( LOCK_PROP_KEY, 0 );
+        long latestVersion = getLatestVersion();
+        long nextVersion = latestVersion + 1;
+        setLatestVersion( nextVersion );
+        return nextVersion;
+    }
+
+    public void complete( long version )
+    {
+    }
+
+    public void setLatestVersion( long version )
+    {
+        if ( version < getLatestVersion() )
+            throw new IllegalArgumentException( "Version [" + version + "] is below the latest one [" +
+                getLatestVersion() + "]." );
+        versionDataNode.setProperty( LATEST_VERSION_PROP_KEY, version );
+    }
+
+    public long getLatestVersion()
+    {
+        return (Long) versionDataNode.getProperty( LATEST_VERSION_PROP_KEY, 0L );
+    }
+}
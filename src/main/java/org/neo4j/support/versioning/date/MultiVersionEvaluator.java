@@ -0,0 +1,146 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import org.neo4j.graphdb.Node;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the same read at many versions, in parallel.
+ * <p>
+ * The versions are sorted and split into {@code parallelism} runs of neighbouring versions, each evaluated by one task
+ * on the executor from the newest version to the oldest. A task keeps the property holders it resolved for one version
+ * as hints for the next, so reading a chain at a run of versions continues the walk where the previous version left it
+ * instead of starting over at the head: the work per task grows with the part of the history its versions span, not
+ * with versions times history.
+ */
+public class MultiVersionEvaluator
+{
+    private final ExecutorService executor;
+    private final int parallelism;
+
+    /**
+     * A read to run at a version.
+     */
+    public interface Function<T>
+    {
+        T apply( VersionContext versionContext );
+    }
+
+    public MultiVersionEvaluator( ExecutorService executor, int parallelism )
+    {
+        if ( parallelism < 1 )
+            throw new IllegalArgumentException( "Parallelism must be positive, was [" + parallelism + "]." );
+        this.executor = executor;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * @return the result of {@code function} at each of {@code versions}, by version.
+     * @throws RuntimeException the first failure of {@code function}, as thrown.
+     */
+    public <T> SortedMap<Long, T> evaluate( final Function<T> function, long... versions ) throws InterruptedException
+    {
+        final long[] sorted = distinct( versions );
+        int tasks = Math.min( parallelism, sorted.length );
+        List<Future<Map<Long, T>>> futures = new ArrayList<Future<Map<Long, T>>>( tasks );
+        for ( int task = 0; task < tasks; task++ )
+        {
+            final int from = (int) ( (long) sorted.length * task / tasks );
+            final int to = (int) ( (long) sorted.length * ( task + 1 ) / tasks );
+            futures.add( executor.submit( new Callable<Map<Long, T>>()
+            {
+                public Map<Long, T> call()
+                {
+                    return evaluate( function, sorted, from, to );
+                }
+            } ) );
+        }
+        SortedMap<Long, T> results = new TreeMap<Long, T>();
+        try
+        {
+            for ( Future<Map<Long, T>> future : futures )
+            {
+                results.putAll( future.get() );
+            }
+        }
+        catch ( ExecutionException e )
+        {
+            Throwable cause = e.getCause();
+            if ( cause instanceof RuntimeException )
+            {
+                throw (RuntimeException) cause;
+            }
+            if ( cause instanceof Error )
+            {
+                throw (Error) cause;
+            }
+            throw new RuntimeException( cause );
+        }
+        finally
+        {
+            for ( Future<Map<Long, T>> future : futures )
+            {
+                future.cancel( true );
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Evaluates {@code function} at {@code versions[from]} up to but excluding {@code versions[to]}, newest first.
+     */
+    private static <T> Map<Long, T> evaluate( Function<T> function, long[] versions, int from, int to )
+    {
+        Map<Long, Node> chainHints = new HashMap<Long, Node>();
+        Map<Long, T> results = new HashMap<Long, T>();
+        for ( int i = to - 1; i >= from; i-- )
+        {
+            results.put( versions[i], function.apply( VersionContext.withChainHints( versions[i], chainHints ) ) );
+        }
+        return results;
+    }
+
+    private static long[] distinct( long[] versions )
+    {
+        long[] sorted = versions.clone();
+        Arrays.sort( sorted );
+        int count = 0;
+        for ( int i = 0; i < sorted.length; i++ )
+        {
+            if ( i == 0 || sorted[i] != sorted[i - 1] )
+            {
+                sorted[count++] = sorted[i];
+            }
+        }
+        return Arrays.copyOf( sorted, count );
+    }
+}
@@ -0,0 +1,188 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Binary encoding of property values, and maps of them, for the stores that keep history outside the graph. Every
+ * value is a type byte followed by its payload; arrays set the {@link #ARRAY} bit of the type and are prefixed with
+ * their length; strings are UTF-8, prefixed with their length in bytes.
+ */
+final class PropertyCodec
+{
+    static final Charset UTF8 = Charset.forName( "UTF-8" );
+    private static final byte NULL = 0, BOOLEAN = 1, BYTE = 2, SHORT = 3, CHAR = 4, INT = 5, LONG = 6, FLOAT = 7,
+        DOUBLE = 8, STRING = 9, ARRAY = 0x40;
+
+    private PropertyCodec()
+    {
+    }
+
+    static void writeProperties( DataOutputStream out, Map<String, Object> properties ) throws IOException
+    {
+        out.writeInt( properties.size() );
+        for ( Map.Entry<String, Object> property : properties.entrySet() )
+        {
+            writeString( out, property.getKey() );
+            writeValue( out, property.getValue() );
+        }
+    }
+
+    static Map<String, Object> readProperties( ByteBuffer buffer )
+    {
+        int count = buffer.getInt();
+        Map<String, Object> properties = new HashMap<String, Object>( count * 2 );
+        for ( int i = 0; i < count; i++ )
+        {
+            String key = readString( buffer );
+            properties.put( key, readValue( buffer ) );
+        }
+        return properties;
+    }
+
+    private static void writeString( DataOutputStream out, String value ) throws IOException
+    {
+        byte[] bytes = value.getBytes( UTF8 );
+        out.writeInt( bytes.length );
+        out.write( bytes );
+    }
+
+    private static String readString( ByteBuffer buffer )
+    {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get( bytes );
+        return new String( bytes, UTF8 );
+    }
+
+    static void writeValue( DataOutputStream out, Object value ) throws IOException
+    {
+        if ( value == null )
+        {
+            out.writeByte( NULL );
+        }
+        else if ( value.getClass().isArray() )
+        {
+            byte type = typeOf( value.getClass().getComponentType() );
+            out.writeByte( type | ARRAY );
+            int length = Array.getLength( value );
+            out.writeInt( length );
+            for ( int i = 0; i < length; i++ )
+            {
+                writeElement( out, type, Array.get( value, i ) );
+            }
+        }
+        else
+        {
+            byte type = typeOf( value.getClass() );
+            out.writeByte( type );
+            writeElement( out, type, value );
+        }
+    }
+
+    private static byte typeOf( Class<?> type )
+    {
+        if ( type == Boolean.class || type == boolean.class ) return BOOLEAN;
+        if ( type == Byte.class || type == byte.class ) return BYTE;
+        if ( type == Short.class || type == short.class ) return SHORT;
+        if ( type == Character.class || type == char.class ) return CHAR;
+        if ( type == Integer.class || type == int.class ) return INT;
+        if ( type == Long.class || type == long.class ) return LONG;
+        if ( type == Float.class || type == float.class ) return FLOAT;
+        if ( type == Double.class || type == double.class ) return DOUBLE;
+        if ( type == String.class ) return STRING;
+        throw new IllegalArgumentException( "Can't encode values of " + type + "." );
+    }
+
+    private static void writeElement( DataOutputStream out, byte type, Object value ) throws IOException
+    {
+        switch ( type )
+        {
+        case BOOLEAN: out.writeBoolean( (Boolean) value ); break;
+        case BYTE: out.writeByte( (Byte) value ); break;
+        case SHORT: out.writeShort( (Short) value ); break;
+        case CHAR: out.writeChar( (Character) value ); break;
+        case INT: out.writeInt( (Integer) value ); break;
+        case LONG: out.writeLong( (Long) value ); break;
+        case FLOAT: out.writeFloat( (Float) value ); break;
+        case DOUBLE: out.writeDouble( (Double) value ); break;
+        default: writeString( out, (String) value );
+        }
+    }
+
+    static Object readValue( ByteBuffer buffer )
+    {
+        byte type = buffer.get();
+        if ( type == NULL )
+        {
+            return null;
+        }
+        if ( ( type & ARRAY ) == 0 )
+        {
+            return readElement( buffer, type );
+        }
+        type &= ~ARRAY;
+        int length = buffer.getInt();
+        Object array = Array.newInstance( componentType( type ), length );
+        for ( int i = 0; i < length; i++ )
+        {
+            Array.set( array, i, readElement( buffer, type ) );
+        }
+        return array;
+    }
+
+    private static Class<?> componentType( byte type )
+    {
+        switch ( type )
+        {
+        case BOOLEAN: return boolean.class;
+        case BYTE: return byte.class;
+        case SHORT: return short.class;
+        case CHAR: return char.class;
+        case INT: return int.class;
+        case LONG: return long.class;
+        case FLOAT: return float.class;
+        case DOUBLE: return double.class;
+        default: return String.class;
+        }
+    }
+
+    private static Object readElement( ByteBuffer buffer, byte type )
+    {
+        switch ( type )
+        {
+        case BOOLEAN: return buffer.get() != 0;
+        case BYTE: return buffer.get();
+        case SHORT: return buffer.getShort();
+        case CHAR: return buffer.getChar();
+        case INT: return buffer.getInt();
+        case LONG: return buffer.getLong();
+        case FLOAT: return buffer.getFloat();
+        case DOUBLE: return buffer.getDouble();
+        default: return readString( buffer );
+        }
+    }
+}
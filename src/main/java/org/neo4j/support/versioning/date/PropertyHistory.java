@@ -0,0 +1,358 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.support.versioning.Range;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import static org.neo4j.support.versioning.date.VersionContext.DELTA_REMOVED_PROPERTY;
+import static org.neo4j.support.versioning.date.VersionContext.getEndVersion;
+import static org.neo4j.support.versioning.date.VersionContext.getStartVersion;
+
+/**
+ * Streams the history of an entity's properties, newest first, walking its chain once as the result is consumed.
+ * <p>
+ * The walk starts at the head, or at the holder valid at the version asked for if that's older, found with
+ * {@link VersionChain#find(Node, long)}. Deltas are applied to the state of the newer holder that was just read, so
+ * only the first holder can need rebuilding from a keyframe. Consecutive holders with the same value are reported as
+ * one range. History kept in a {@link HistoryBackend} is newer than any in the chain and is read before it, and the
+ * records an {@link AsyncHistoryWriter} hasn't written yet are newer than both.
+ */
+abstract class PropertyHistory<T> implements Iterator<VersionedValue<T>>
+{
+    private final PropertyContainer entity;
+    private final Node anchor;
+    private final long version;
+    private final long headStart;
+    private Node holder;
+    private Iterator<VersionedValue<Map<String, Object>>> unwritten;
+    private Iterator<VersionedValue<Map<String, Object>>> stored;
+    private boolean atHead;
+    private boolean stateKnown;
+    private T state;
+    private VersionedValue<T> pending;
+    private VersionedValue<T> next;
+
+    /**
+     * @return the history of property {@code key} of {@code entity} up to {@code version}, leaving out the ranges it
+     *         wasn't set in.
+     */
+    static Iterable<VersionedValue<Object>> of( final PropertyContainer entity, final String key, final long version )
+    {
+        return new Iterable<VersionedValue<Object>>()
+        {
+            public Iterator<VersionedValue<Object>> iterator()
+            {
+                return new PropertyHistory<Object>( entity, version )
+                {
+                    @Override
+                    Object head( PropertyContainer entity )
+                    {
+                        return entity.getProperty( key, null );
+                    }
+
+                    @Override
+                    Object keyframe( Node propHolder )
+                    {
+                        return propHolder.getProperty( key, null );
+                    }
+
+                    @Override
+                    Object delta( Node propHolder, Object newer )
+                    {
+                        Object value = propHolder.getProperty( key, null );
+                        if ( value != null )
+                        {
+                            return value;
+                        }
+                        for ( String removedKey : (String[]) propHolder.getProperty( DELTA_REMOVED_PROPERTY,
+                            new String[0] ) )
+                        {
+                            if ( removedKey.equals( key ) )
+                            {
+                                return null;
+                            }
+                        }
+                        return newer;
+                    }
+
+                    @Override
+                    Object rebuilt( Node propHolder )
+                    {
+                        return VersionChain.properties( propHolder ).get( key );
+                    }
+
+                    @Override
+                    Object stored( Map<String, Object> properties )
+                    {
+                        return properties.get( key );
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * @return the history of all properties of {@code entity} up to {@code version}.
+     */
+    static Iterable<VersionedValue<Map<String, Object>>> of( final PropertyContainer entity, final long version )
+    {
+        return new Iterable<VersionedValue<Map<String, Object>>>()
+        {
+            public Iterator<VersionedValue<Map<String, Object>>> iterator()
+            {
+                return new PropertyHistory<Map<String, Object>>( entity, version )
+                {
+                    @Override
+                    Map<String, Object> head( PropertyContainer entity )
+                    {
+                        Map<String, Object> properties = new HashMap<String, Object>();
+                        for ( String key : entity.getPropertyKeys() )
+                        {
+                            if ( !VersionContext.isInternalProperty( key )
+                                && !key.equals( VersionContext.DELETED_PROP_KEY ) )
+                            {
+                                properties.put( key, entity.getProperty( key ) );
+                            }
+                        }
+                        return Collections.unmodifiableMap( properties );
+                    }
+
+                    @Override
+                    Map<String, Object> keyframe( Node propHolder )
+                    {
+                        return rebuilt( propHolder );
+                    }
+
+                    @Override
+                    Map<String, Object> delta( Node propHolder, Map<String, Object> newer )
+                    {
+                        Map<String, Object> properties = new HashMap<String, Object>( newer );
+                        for ( String key : propHolder.getPropertyKeys() )
+                        {
+                            if ( !VersionContext.isInternalProperty( key ) )
+                            {
+                                properties.put( key, propHolder.getProperty( key ) );
+                            }
+                        }
+                        for ( String removedKey : (String[]) propHolder.getProperty( DELTA_REMOVED_PROPERTY,
+                            new String[0] ) )
+                        {
+                            properties.remove( removedKey );
+                        }
+                        return Collections.unmodifiableMap( properties );
+                    }
+
+                    @Override
+                    Map<String, Object> rebuilt( Node propHolder )
+                    {
+                        return Collections.unmodifiableMap( VersionChain.properties( propHolder ) );
+                    }
+
+                    @Override
+                    Map<String, Object> stored( Map<String, Object> properties )
+                    {
+                        return properties;
+                    }
+                };
+            }
+        };
+    }
+
+    private PropertyHistory( PropertyContainer entity, long version )
+    {
+        this.entity = entity;
+        this.version = version;
+        Node historyNode = entity instanceof Relationship ? VersionContext.getHistoryNode( (Relationship) entity ) :
+            null;
+        this.anchor = entity instanceof Relationship ? historyNode : (Node) entity;
+        Range range = VersionContext.getVersion( entity );
+        if ( range == null )
+        {
+            headStart = -1;
+            return;
+        }
+        headStart = anchor == null ? range.from() : getStartVersion( anchor );
+        if ( anchor != null )
+        {
+            unwritten = startingAt( AsyncHistoryWriter.getHistory( entity, anchor ), version );
+            HistoryBackend backend = HistoryBackend.forGraph( anchor.getGraphDatabase() );
+            // What the backend holds from the head start on was left by a transaction that didn't commit.
+            stored = backend == null ? null : backend.history( anchor.getId(), Math.min( version, headStart - 1 ) );
+        }
+        if ( headStart <= version )
+        {
+            atHead = true;
+        }
+        else if ( ( unwritten != null && unwritten.hasNext() ) || ( stored != null && stored.hasNext() ) )
+        {
+            holder = anchor == null ? null : VersionChain.first( anchor );
+        }
+        else if ( anchor != null )
+        {
+            holder = VersionChain.find( anchor, version );
+        }
+    }
+
+    /**
+     * @return the state of the head, i.e. what's on the entity itself.
+     */
+    abstract T head( PropertyContainer entity );
+
+    abstract T keyframe( Node propHolder );
+
+    /**
+     * @return the state of a delta, given the state of the next newer holder.
+     */
+    abstract T delta( Node propHolder, T newer );
+
+    /**
+     * @return the state of a holder without knowing that of the next newer one.
+     */
+    abstract T rebuilt( Node propHolder );
+
+    /**
+     * @return the state of a property set read from a {@link HistoryBackend}.
+     */
+    abstract T stored( Map<String, Object> properties );
+
+    public boolean hasNext()
+    {
+        while ( next == null )
+        {
+            VersionedValue<T> current = read();
+            if ( current == null )
+            {
+                next = pending;
+                pending = null;
+                return next != null;
+            }
+            if ( current.getValue() == null )
+            {
+                next = pending;
+                pending = null;
+            }
+            else if ( pending != null && sameValue( pending.getValue(), current.getValue() )
+                && current.getRange().to() + 1 == pending.getRange().from() )
+            {
+                pending = new VersionedValue<T>( new Range( current.getRange().from(), pending.getRange().to() ),
+                    current.getValue() );
+            }
+            else
+            {
+                next = pending;
+                pending = current;
+            }
+        }
+        return true;
+    }
+
+    public VersionedValue<T> next()
+    {
+        if ( !hasNext() )
+        {
+            throw new NoSuchElementException();
+        }
+        VersionedValue<T> result = next;
+        next = null;
+        return result;
+    }
+
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @return the state of the next holder in the walk along with its range, or {@code null} at the end of the chain.
+     */
+    private VersionedValue<T> read()
+    {
+        long from;
+        long to;
+        if ( atHead )
+        {
+            atHead = false;
+            state = head( entity );
+            stateKnown = true;
+            from = headStart;
+            to = getEndVersion( entity );
+            holder = anchor == null ? null : VersionChain.first( anchor );
+        }
+        else if ( ( unwritten != null && unwritten.hasNext() ) || ( stored != null && stored.hasNext() ) )
+        {
+            VersionedValue<Map<String, Object>> entry = unwritten != null && unwritten.hasNext() ? unwritten.next() :
+                stored.next();
+            state = stored( entry.getValue() );
+            stateKnown = true;
+            from = entry.getRange().from();
+            to = entry.getRange().to();
+        }
+        else if ( holder != null )
+        {
+            if ( !VersionChain.isDelta( holder ) )
+            {
+                state = keyframe( holder );
+            }
+            else
+            {
+                state = stateKnown ? delta( holder, state ) : rebuilt( holder );
+            }
+            stateKnown = true;
+            from = getStartVersion( holder );
+            to = getEndVersion( holder );
+            holder = VersionChain.previous( holder );
+        }
+        else
+        {
+            return null;
+        }
+        return new VersionedValue<T>( new Range( from, Math.min( to, version ) ), state );
+    }
+
+    /**
+     * @return the states in {@code states}, newest first, skipping those starting after {@code version}.
+     */
+    private static Iterator<VersionedValue<Map<String, Object>>> startingAt(
+        List<VersionedValue<Map<String, Object>>> states, long version )
+    {
+        int first = 0;
+        while ( first < states.size() && states.get( first ).getRange().from() > version )
+        {
+            first++;
+        }
+        return states.subList( first, states.size() ).iterator();
+    }
+
+    private static boolean sameValue( Object first, Object second )
+    {
+        return Arrays.deepEquals( new Object[] { first }, new Object[] { second } );
+    }
+}
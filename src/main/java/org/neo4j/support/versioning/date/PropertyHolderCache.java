@@ -0,0 +1,258 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Remembers which historic node holds the properties of a node at a given version, along with the decoded
+ * properties themselves, so repeated reads of old versions don't walk the chain again.
+ * <p>
+ * Only closed ranges are cached. Historic nodes never change once their range is closed, except for coalescing
+ * extending the range of the newest one, which leaves what's cached of it true. Commits don't invalidate anything; the
+ * head is resolved without any hops and is always read directly from the node. There is one cache per graph database,
+ * dropped when it shuts down, shared by all {@link VersionContext}s reading from it, including the parallel tasks of a
+ * {@link MultiVersionEvaluator}.
+ * <p>
+ * Reads take no lock. Nodes are split over {@value #SEGMENTS} segments by id, each with a lock of its own for adding
+ * and evicting, and an even share of the total weight, where an entry weighs one plus its number of properties. A
+ * segment evicts the nodes it cached first, except that nodes read since the last time eviction got to them get a
+ * second chance, which comes close to least recently used without reads having to reorder anything.
+ */
+public class PropertyHolderCache
+{
+    public static final long DEFAULT_MAX_WEIGHT = 1000000;
+    private static final int SEGMENTS = 16;
+    private static final int HITS = 0, MISSES = 1, EVICTIONS = 2;
+    private static final GraphRegistry<PropertyHolderCache> caches = new GraphRegistry<PropertyHolderCache>(
+        new GraphRegistry.Factory<PropertyHolderCache>()
+        {
+            public PropertyHolderCache create( GraphDatabaseService graphDb )
+            {
+                return new PropertyHolderCache();
+            }
+        } );
+
+    private final ConcurrentHashMap<Long, Holders> holdersByNode = new ConcurrentHashMap<Long, Holders>();
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final StripedCounters counters = new StripedCounters( 3 );
+    private volatile long maxWeight = DEFAULT_MAX_WEIGHT;
+
+    private PropertyHolderCache()
+    {
+        for ( int i = 0; i < SEGMENTS; i++ )
+        {
+            segments[i] = new Segment();
+        }
+    }
+
+    public static PropertyHolderCache forGraph( GraphDatabaseService graphDb )
+    {
+        return caches.getOrCreate( graphDb );
+    }
+
+    static class Entry
+    {
+        final long from;
+        final long to;
+        final long holderId;
+        final Map<String, Object> properties;
+
+        Entry( long from, long to, long holderId, Map<String, Object> properties )
+        {
+            this.from = from;
+            this.to = to;
+            this.holderId = holderId;
+            this.properties = Collections.unmodifiableMap( properties );
+        }
+
+        int weight()
+        {
+            return 1 + properties.size();
+        }
+    }
+
+    Entry get( long nodeId, long version )
+    {
+        Holders holders = holdersByNode.get( nodeId );
+        Map.Entry<Long, Entry> candidate = holders == null ? null : holders.entries.floorEntry( version );
+        if ( candidate == null || candidate.getValue().to < version )
+        {
+            counters.add( MISSES, 1 );
+            return null;
+        }
+        holders.referenced = true;
+        counters.add( HITS, 1 );
+        return candidate.getValue();
+    }
+
+    void put( long nodeId, Entry entry )
+    {
+        segmentFor( nodeId ).put( nodeId, entry );
+    }
+
+    /**
+     * Drops everything cached for a node, for when its history is rewritten rather than appended to.
+     */
+    public void invalidate( long nodeId )
+    {
+        segmentFor( nodeId ).invalidate( nodeId );
+    }
+
+    public void clear()
+    {
+        for ( Segment segment : segments )
+        {
+            segment.clear();
+        }
+    }
+
+    public void setMaxWeight( long maxWeight )
+    {
+        this.maxWeight = maxWeight;
+        for ( Segment segment : segments )
+        {
+            segment.evictIfNeeded();
+        }
+    }
+
+    private Segment segmentFor( long nodeId )
+    {
+        return segments[(int) ( nodeId ^ ( nodeId >>> 32 ) ) & ( SEGMENTS - 1 )];
+    }
+
+    public long getHits()
+    {
+        return counters.get( HITS );
+    }
+
+    public long getMisses()
+    {
+        return counters.get( MISSES );
+    }
+
+    public long getEvictions()
+    {
+        return counters.get( EVICTIONS );
+    }
+
+    public long getWeight()
+    {
+        long weight = 0;
+        for ( Segment segment : segments )
+        {
+            weight += segment.weight();
+        }
+        return weight;
+    }
+
+    public long getMaxWeight()
+    {
+        return maxWeight;
+    }
+
+    /**
+     * The holders cached for one node. The entries can be read without locking, everything else belongs to the
+     * segment of the node.
+     */
+    private static class Holders
+    {
+        final ConcurrentSkipListMap<Long, Entry> entries = new ConcurrentSkipListMap<Long, Entry>();
+        long weight;
+        volatile boolean referenced;
+    }
+
+    private class Segment
+    {
+        // In the order eviction gets to them.
+        private final LinkedHashMap<Long, Holders> nodes = new LinkedHashMap<Long, Holders>();
+        private long weight;
+
+        synchronized void put( long nodeId, Entry entry )
+        {
+            Holders holders = nodes.get( nodeId );
+            if ( holders == null )
+            {
+                holders = new Holders();
+                nodes.put( nodeId, holders );
+                holdersByNode.put( nodeId, holders );
+            }
+            Entry replaced = holders.entries.put( entry.from, entry );
+            int added = entry.weight() - ( replaced == null ? 0 : replaced.weight() );
+            holders.weight += added;
+            weight += added;
+            evictIfNeeded();
+        }
+
+        synchronized void invalidate( long nodeId )
+        {
+            Holders holders = nodes.remove( nodeId );
+            if ( holders != null )
+            {
+                holdersByNode.remove( nodeId );
+                weight -= holders.weight;
+            }
+        }
+
+        synchronized void clear()
+        {
+            for ( Long nodeId : nodes.keySet() )
+            {
+                holdersByNode.remove( nodeId );
+            }
+            nodes.clear();
+            weight = 0;
+        }
+
+        synchronized void evictIfNeeded()
+        {
+            long segmentMaxWeight = maxWeight / SEGMENTS;
+            int secondChances = nodes.size();
+            while ( weight > segmentMaxWeight && !nodes.isEmpty() )
+            {
+                Iterator<Map.Entry<Long, Holders>> eldest = nodes.entrySet().iterator();
+                Map.Entry<Long, Holders> candidate = eldest.next();
+                Holders holders = candidate.getValue();
+                eldest.remove();
+                if ( holders.referenced && secondChances-- > 0 )
+                {
+                    holders.referenced = false;
+                    nodes.put( candidate.getKey(), holders );
+                    continue;
+                }
+                holdersByNode.remove( candidate.getKey() );
+                weight -= holders.weight;
+                counters.add( EVICTIONS, holders.entries.size() );
+            }
+        }
+
+        synchronized long weight()
+        {
+            return weight;
+        }
+    }
+}
@@ -0,0 +1,403 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.Relationship;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.neo4j.support.versioning.date.VersionContext.KEY_HISTORY_PROPERTY;
+import static org.neo4j.support.versioning.date.VersionContext.getStartVersion;
+
+/**
+ * The history of every property key of a node or relationship on its own, stored in the graph next to the history of
+ * whole property sets, so that reading one key at an old version is a binary search over the changes of that key
+ * instead of a walk down the chain, however often the other keys changed. Keys that rarely change on nodes that change
+ * a lot are the case this is for.
+ * <p>
+ * {@link VersioningTransactionEventHandler#setPropertyKeyHistory(boolean) Once enabled}, the changes of every commit are
+ * written in the committing transaction. An entity gets a node per key the first time it changes, starting with the
+ * values it had up to then, so versions older than its head at that point are still read from the chain. The entity
+ * holds the version its key histories start at under {@link VersionContext#KEY_HISTORY_PROPERTY}, and the id of the
+ * node of each key under that name followed by a dot and the key.
+ * <p>
+ * The changes of a key are kept in block nodes of {@link #BLOCK_SIZE} changes each: the versions in one array, and
+ * each value under its position in the block, missing where the key was removed. The key node only holds the ids of
+ * its blocks and the version each starts at, so finding a change reads the key node and one block, adding one rewrites
+ * no more than that, and the property names used stay the same however long the history grows. Blocks that end before
+ * the horizon are deleted when the history before it is {@link #pruned(PropertyContainer, long) removed}.
+ * <p>
+ * Coalescing a change moves the changes it hides up to its version, so both histories read the same.
+ */
+class PropertyKeyHistory
+{
+    static final int BLOCK_SIZE = 64;
+    private static final String KEY_PREFIX = KEY_HISTORY_PROPERTY + ".";
+    private static final String COUNT_PROPERTY = "count";
+    private static final String BLOCKS_PROPERTY = "blocks";
+    private static final String STARTS_PROPERTY = "starts";
+    private static final String VERSIONS_PROPERTY = "versions";
+    private static final long[] NONE = new long[0];
+
+    private PropertyKeyHistory()
+    {
+    }
+
+    /**
+     * Adds the changes committed at {@code version} to the key histories of {@code entities}, starting the key histories
+     * of those that have none yet.
+     *
+     * @param entities the previous values of the properties changed, by entity.
+     */
+    static <T extends PropertyContainer> void record( long version, Map<T, Map<String, Object>> entities )
+    {
+        for ( Map.Entry<T, Map<String, Object>> entry : entities.entrySet() )
+        {
+            PropertyContainer entity = entry.getKey();
+            Map<String, Object> oldValues = entry.getValue();
+            long headFrom = headFrom( entity );
+            if ( headFrom == version )
+            {
+                // Created in this transaction, there's no history yet.
+                continue;
+            }
+            if ( !entity.hasProperty( KEY_HISTORY_PROPERTY ) )
+            {
+                entity.setProperty( KEY_HISTORY_PROPERTY, headFrom );
+                for ( Map.Entry<String, Object> property :
+                    VersioningTransactionEventHandler.oldProperties( entity, oldValues ).entrySet() )
+                {
+                    append( keyNode( entity, property.getKey() ), headFrom, property.getValue() );
+                }
+            }
+            for ( String key : oldValues.keySet() )
+            {
+                append( keyNode( entity, key ), version, entity.getProperty( key, null ) );
+            }
+        }
+    }
+
+    /**
+     * Sets the values of {@code keys} at {@code version} to the ones {@code entity} has now, for changes made at a
+     * version the key histories already have changes of.
+     */
+    static void rewrite( PropertyContainer entity, long version, Iterable<String> keys )
+    {
+        if ( !entity.hasProperty( KEY_HISTORY_PROPERTY ) )
+        {
+            return;
+        }
+        for ( String key : keys )
+        {
+            append( keyNode( entity, key ), version, entity.getProperty( key, null ) );
+        }
+    }
+
+    /**
+     * Removes the key histories of {@code entity}, if it has any.
+     */
+    static void delete( PropertyContainer entity )
+    {
+        if ( !entity.hasProperty( KEY_HISTORY_PROPERTY ) )
+        {
+            return;
+        }
+        for ( String property : entity.getPropertyKeys() )
+        {
+            if ( property.startsWith( KEY_PREFIX ) )
+            {
+                Long keyNodeId = (Long) entity.removeProperty( property );
+                Node keyNode = entity.getGraphDatabase().getNodeById( keyNodeId );
+                for ( long blockId : (long[]) keyNode.getProperty( BLOCKS_PROPERTY, NONE ) )
+                {
+                    entity.getGraphDatabase().getNodeById( blockId ).delete();
+                }
+                keyNode.delete();
+            }
+        }
+        entity.removeProperty( KEY_HISTORY_PROPERTY );
+    }
+
+    /**
+     * Makes the key histories of {@code entity} match a change at {@code version} that was coalesced into a historic
+     * range starting at {@code from}: the changes from after {@code from} up to {@code version} only show from
+     * {@code version} on.
+     */
+    static void coalesced( PropertyContainer entity, long from, long version )
+    {
+        if ( !entity.hasProperty( KEY_HISTORY_PROPERTY ) )
+        {
+            return;
+        }
+        for ( String property : entity.getPropertyKeys() )
+        {
+            if ( !property.startsWith( KEY_PREFIX ) )
+            {
+                continue;
+            }
+            Node keyNode = entity.getGraphDatabase().getNodeById( (Long) entity.getProperty( property ) );
+            long[] starts = (long[]) keyNode.getProperty( STARTS_PROPERTY, NONE );
+            int change = floor( keyNode, version - 1 );
+            int block = -1;
+            Node blockNode = null;
+            long[] versions = null;
+            while ( change >= 0 )
+            {
+                if ( change / BLOCK_SIZE != block )
+                {
+                    if ( versions != null )
+                    {
+                        blockNode.setProperty( VERSIONS_PROPERTY, versions );
+                    }
+                    block = change / BLOCK_SIZE;
+                    blockNode = blockNode( keyNode, block );
+                    versions = (long[]) blockNode.getProperty( VERSIONS_PROPERTY );
+                }
+                if ( versions[change % BLOCK_SIZE] <= from )
+                {
+                    break;
+                }
+                versions[change % BLOCK_SIZE] = version;
+                if ( change % BLOCK_SIZE == 0 )
+                {
+                    starts[block] = version;
+                }
+                change--;
+            }
+            if ( versions != null )
+            {
+                blockNode.setProperty( VERSIONS_PROPERTY, versions );
+                keyNode.setProperty( STARTS_PROPERTY, starts );
+            }
+        }
+    }
+
+    /**
+     * Moves the start of the key histories of {@code entity} up to {@code horizon}, the history before which was
+     * removed, and deletes the blocks whose changes all ended at or before it.
+     */
+    static void pruned( PropertyContainer entity, long horizon )
+    {
+        Long from = (Long) entity.getProperty( KEY_HISTORY_PROPERTY, null );
+        if ( from == null || from >= horizon )
+        {
+            return;
+        }
+        entity.setProperty( KEY_HISTORY_PROPERTY, horizon );
+        for ( String property : entity.getPropertyKeys() )
+        {
+            if ( !property.startsWith( KEY_PREFIX ) )
+            {
+                continue;
+            }
+            Node keyNode = entity.getGraphDatabase().getNodeById( (Long) entity.getProperty( property ) );
+            long[] starts = (long[]) keyNode.getProperty( STARTS_PROPERTY, NONE );
+            int dropped = 0;
+            // A block can go once the next one starts at or before the horizon, which then answers for it.
+            while ( dropped + 1 < starts.length && starts[dropped + 1] <= horizon )
+            {
+                dropped++;
+            }
+            if ( dropped == 0 )
+            {
+                continue;
+            }
+            long[] blocks = (long[]) keyNode.getProperty( BLOCKS_PROPERTY );
+            for ( int i = 0; i < dropped; i++ )
+            {
+                entity.getGraphDatabase().getNodeById( blocks[i] ).delete();
+            }
+            keyNode.setProperty( BLOCKS_PROPERTY, Arrays.copyOfRange( blocks, dropped, blocks.length ) );
+            keyNode.setProperty( STARTS_PROPERTY, Arrays.copyOfRange( starts, dropped, starts.length ) );
+            int count = (Integer) keyNode.getProperty( COUNT_PROPERTY );
+            keyNode.setProperty( COUNT_PROPERTY, count - dropped * BLOCK_SIZE );
+        }
+    }
+
+    /**
+     * @return whether the key histories of {@code entity} go back as far as {@code version}.
+     */
+    static boolean covers( PropertyContainer entity, long version )
+    {
+        Long from = (Long) entity.getProperty( KEY_HISTORY_PROPERTY, null );
+        return from != null && from <= version;
+    }
+
+    /**
+     * @return the value property {@code key} of {@code entity} had at {@code version}, which its key histories
+     *         {@link #covers(PropertyContainer, long) cover}, or {@code null} if it wasn't set.
+     */
+    static Object getProperty( PropertyContainer entity, String key, long version )
+    {
+        Long keyNodeId = (Long) entity.getProperty( KEY_PREFIX + key, null );
+        return keyNodeId == null ? null : valueAt( entity.getGraphDatabase().getNodeById( keyNodeId ), version );
+    }
+
+    /**
+     * @return the properties {@code entity} had at {@code version}, which its key histories
+     *         {@link #covers(PropertyContainer, long) cover}.
+     */
+    static Map<String, Object> getProperties( PropertyContainer entity, long version )
+    {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        for ( String property : entity.getPropertyKeys() )
+        {
+            if ( !property.startsWith( KEY_PREFIX ) )
+            {
+                continue;
+            }
+            Object value = valueAt( entity.getGraphDatabase().getNodeById( (Long) entity.getProperty( property ) ),
+                version );
+            if ( value != null )
+            {
+                properties.put( property.substring( KEY_PREFIX.length() ), value );
+            }
+        }
+        return Collections.unmodifiableMap( properties );
+    }
+
+    /**
+     * @return the start of the head range of {@code entity}, before this commit moves it on.
+     */
+    private static long headFrom( PropertyContainer entity )
+    {
+        if ( entity instanceof Relationship )
+        {
+            Node historyNode = VersionContext.getHistoryNode( (Relationship) entity );
+            return getStartVersion( historyNode == null ? entity : historyNode );
+        }
+        return getStartVersion( entity );
+    }
+
+    private static Node keyNode( PropertyContainer entity, String key )
+    {
+        Long keyNodeId = (Long) entity.getProperty( KEY_PREFIX + key, null );
+        if ( keyNodeId != null )
+        {
+            return entity.getGraphDatabase().getNodeById( keyNodeId );
+        }
+        Node keyNode = entity.getGraphDatabase().createNode();
+        entity.setProperty( KEY_PREFIX + key, keyNode.getId() );
+        return keyNode;
+    }
+
+    private static Node blockNode( Node keyNode, int block )
+    {
+        return keyNode.getGraphDatabase().getNodeById( ( (long[]) keyNode.getProperty( BLOCKS_PROPERTY ) )[block] );
+    }
+
+    /**
+     * Adds the change of the key of {@code keyNode} to {@code value} at {@code version}, or replaces the value of the
+     * last change if that was at {@code version} too.
+     */
+    private static void append( Node keyNode, long version, Object value )
+    {
+        int count = (Integer) keyNode.getProperty( COUNT_PROPERTY, 0 );
+        Node blockNode = count == 0 ? null : blockNode( keyNode, ( count - 1 ) / BLOCK_SIZE );
+        long[] versions = blockNode == null ? NONE : (long[]) blockNode.getProperty( VERSIONS_PROPERTY );
+        if ( count > 0 && versions[versions.length - 1] == version )
+        {
+            setValue( blockNode, versions.length - 1, value );
+            return;
+        }
+        if ( count % BLOCK_SIZE == 0 )
+        {
+            blockNode = keyNode.getGraphDatabase().createNode();
+            versions = NONE;
+            keyNode.setProperty( BLOCKS_PROPERTY, appended( (long[]) keyNode.getProperty( BLOCKS_PROPERTY, NONE ),
+                blockNode.getId() ) );
+            keyNode.setProperty( STARTS_PROPERTY, appended( (long[]) keyNode.getProperty( STARTS_PROPERTY, NONE ),
+                version ) );
+        }
+        blockNode.setProperty( VERSIONS_PROPERTY, appended( versions, version ) );
+        setValue( blockNode, versions.length, value );
+        keyNode.setProperty( COUNT_PROPERTY, count + 1 );
+    }
+
+    private static long[] appended( long[] values, long value )
+    {
+        long[] grown = Arrays.copyOf( values, values.length + 1 );
+        grown[values.length] = value;
+        return grown;
+    }
+
+    private static void setValue( Node blockNode, int index, Object value )
+    {
+        if ( value == null )
+        {
+            blockNode.removeProperty( String.valueOf( index ) );
+        }
+        else
+        {
+            blockNode.setProperty( String.valueOf( index ), value );
+        }
+    }
+
+    private static Object valueAt( Node keyNode, long version )
+    {
+        int change = floor( keyNode, version );
+        return change < 0 ? null :
+            blockNode( keyNode, change / BLOCK_SIZE ).getProperty( String.valueOf( change % BLOCK_SIZE ), null );
+    }
+
+    /**
+     * @return the number of the last change of the key of {@code keyNode} at or before {@code version}, or -1 if
+     *         there is none.
+     */
+    private static int floor( Node keyNode, long version )
+    {
+        int block = floor( (long[]) keyNode.getProperty( STARTS_PROPERTY, NONE ), version );
+        if ( block < 0 )
+        {
+            return -1;
+        }
+        return block * BLOCK_SIZE + floor( (long[]) blockNode( keyNode, block ).getProperty( VERSIONS_PROPERTY ),
+            version );
+    }
+
+    /**
+     * @return the index of the last of the sorted {@code versions} at or before {@code version}, or -1.
+     */
+    private static int floor( long[] versions, long version )
+    {
+        int low = 0;
+        int high = versions.length - 1;
+        int found = -1;
+        while ( low <= high )
+        {
+            int middle = ( low + high ) >>> 1;
+            if ( versions[middle] <= version )
+            {
+                found = middle;
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle - 1;
+            }
+        }
+        return found;
+    }
+}
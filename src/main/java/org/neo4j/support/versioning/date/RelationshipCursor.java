@@ -0,0 +1,124 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import org.neo4j.graphdb.RelationshipType;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * The relationships around a node at a version, as plain ids, for walks that don't need {@link VersionedRelationship}s
+ * and {@link VersionedNode}s for every edge. Fill it with {@link VersionContext#expand(org.neo4j.graphdb.Node,
+ * org.neo4j.graphdb.Direction, RelationshipCursor, RelationshipType...)} and step through it with {@link #next()}:
+ * <pre>
+ * RelationshipCursor cursor = new RelationshipCursor();
+ * versionContext.expand( node, Direction.OUTGOING, cursor );
+ * while ( cursor.next() )
+ * {
+ *     visit( cursor.relationshipId(), cursor.type(), cursor.otherNodeId() );
+ * }
+ * </pre>
+ * A cursor keeps its buffers between expansions, so reusing one for a whole walk only allocates while it grows to
+ * the highest degree seen. It's not thread safe.
+ */
+public class RelationshipCursor
+{
+    private static final int INITIAL_CAPACITY = 16;
+    private long[] relationshipIds = new long[INITIAL_CAPACITY];
+    private long[] otherNodeIds = new long[INITIAL_CAPACITY];
+    private RelationshipType[] types = new RelationshipType[INITIAL_CAPACITY];
+    private int size;
+    private int position = -1;
+
+    /**
+     * Moves on to the next relationship.
+     *
+     * @return {@code false} if there are no more.
+     */
+    public boolean next()
+    {
+        if ( position < size )
+        {
+            position++;
+        }
+        return position < size;
+    }
+
+    /**
+     * @return the number of relationships found by the last expansion.
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    public long relationshipId()
+    {
+        return relationshipIds[current()];
+    }
+
+    public RelationshipType type()
+    {
+        return types[current()];
+    }
+
+    /**
+     * @return the id of the node at the other end of the relationship, which is the expanded node itself for loops.
+     */
+    public long otherNodeId()
+    {
+        return otherNodeIds[current()];
+    }
+
+    private int current()
+    {
+        if ( position < 0 || position >= size )
+        {
+            throw new NoSuchElementException( "Cursor isn't positioned on a relationship, call next() first." );
+        }
+        return position;
+    }
+
+    void clear()
+    {
+        size = 0;
+        position = -1;
+    }
+
+    void add( long relationshipId, RelationshipType type, long otherNodeId )
+    {
+        if ( size == relationshipIds.length )
+        {
+            relationshipIds = Arrays.copyOf( relationshipIds, size * 2 );
+            otherNodeIds = Arrays.copyOf( otherNodeIds, size * 2 );
+            types = Arrays.copyOf( types, size * 2 );
+        }
+        relationshipIds[size] = relationshipId;
+        types[size] = type;
+        otherNodeIds[size] = otherNodeId;
+        size++;
+    }
+
+    long[] relationshipIds()
+    {
+        return Arrays.copyOf( relationshipIds, size );
+    }
+}
@@ -0,0 +1,922 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.support.versioning.Range;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Validity ranges of the relationships around a node, grouped by relationship type and sorted by start version, so
+ * that finding the relationships valid at a version doesn't have to read the range of every relationship the node
+ * ever had.
+ * <p>
+ * Relationships that are still valid are kept apart from those that ended, so a lookup finds the live ones by start
+ * version alone. The ended ones are grouped by how long they lived, in powers of two: group {@code k} holds those that
+ * were valid for at least 2<sup>k</sup> and less than 2<sup>k+1</sup> versions. A relationship in group {@code k}
+ * that started 2<sup>k+1</sup> or more versions before the one looked for had ended before it, and one that started
+ * less than 2<sup>k</sup> versions before hadn't ended yet. So a lookup only examines the relationships of each group
+ * that started in a window of 2<sup>k+1</sup> versions, and all of those in the later half of the window are valid,
+ * however many ended relationships the node has and however long lived some of them were. Within a group, entries are
+ * sorted by start version in blocks that also know the highest end version in them, and blocks whose relationships had
+ * all ended before the version looked for are skipped.
+ * <p>
+ * The index lives in memory, one per graph database. A node is loaded from its relationships the first time it is
+ * asked for, and kept up to date by {@link VersioningTransactionEventHandler} after every commit from then on, before
+ * the version committed is {@link VersioningTransactionEventHandler#getLatestVersion() published}. What is known about
+ * a node is never changed in place; an update publishes a new version of it that shares all but the changed block with
+ * the old one, so lookups take no lock and see either the old or the new state as a whole. Nodes are split over
+ * {@value #STRIPES} stripes by id, each with a lock for loading and updating its nodes and an even share of the
+ * configured maximum number of entries. When a stripe holds more than its share it drops the nodes it loaded first,
+ * except that nodes looked up since eviction last got to them get a second chance.
+ */
+public class RelationshipIntervalIndex
+{
+    public static final int DEFAULT_MAX_ENTRIES = 1000000;
+    private static final int STRIPES = 16;
+    private static final int BLOCK_SIZE = 64;
+    private static final byte OUTGOING = 0;
+    private static final byte INCOMING = 1;
+    private static final byte LOOP = 2;
+    private static final GraphRegistry<RelationshipIntervalIndex> indexes =
+        new GraphRegistry<RelationshipIntervalIndex>( new GraphRegistry.Factory<RelationshipIntervalIndex>()
+        {
+            public RelationshipIntervalIndex create( GraphDatabaseService graphDb )
+            {
+                return new RelationshipIntervalIndex();
+            }
+        } );
+
+    private final ConcurrentHashMap<Long, NodeIntervals> nodes = new ConcurrentHashMap<Long, NodeIntervals>();
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private volatile int maxEntries = DEFAULT_MAX_ENTRIES;
+
+    private RelationshipIntervalIndex()
+    {
+        for ( int i = 0; i < STRIPES; i++ )
+        {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    public static RelationshipIntervalIndex forGraph( GraphDatabaseService graphDb )
+    {
+        return indexes.getOrCreate( graphDb );
+    }
+
+    /**
+     * @return ids of the relationships of {@code node} that are valid at {@code version}, in the given direction and
+     *         of any of the given types, or of all types if none are given.
+     */
+    public long[] getRelationships( Node node, Direction direction, long version, RelationshipType... types )
+    {
+        RelationshipCursor cursor = new RelationshipCursor();
+        int examined = collect( intervalsOf( node.getId(), node, null ), direction, version, cursor, types );
+        expanded( node.getGraphDatabase(), examined, cursor );
+        return cursor.relationshipIds();
+    }
+
+    /**
+     * Fills {@code cursor} with the relationships of node {@code nodeId} that are valid at {@code version}, in the
+     * given direction and of any of the given types, or of all types if none are given. Nothing is allocated for a
+     * node that is already loaded once the cursor has grown to its degree, so one cursor can be reused for a whole
+     * walk.
+     */
+    public void expand( GraphDatabaseService graphDb, long nodeId, Direction direction, long version,
+        RelationshipCursor cursor, RelationshipType... types )
+    {
+        cursor.clear();
+        int examined = collect( intervalsOf( nodeId, null, graphDb ), direction, version, cursor, types );
+        expanded( graphDb, examined, cursor );
+    }
+
+    /**
+     * @param node the node, or null to look it up in {@code graphDb} if it has to be loaded.
+     */
+    private Map<String, Intervals> intervalsOf( long nodeId, Node node, GraphDatabaseService graphDb )
+    {
+        NodeIntervals loaded = nodes.get( nodeId );
+        if ( loaded == null )
+        {
+            loaded = stripeFor( nodeId ).load( node != null ? node : graphDb.getNodeById( nodeId ) );
+        }
+        loaded.referenced = true;
+        return loaded.intervalsByType;
+    }
+
+    /**
+     * @return the number of relationships looked at.
+     */
+    private static int collect( Map<String, Intervals> intervalsByType, Direction direction, long version,
+        RelationshipCursor cursor, RelationshipType[] types )
+    {
+        int examined = 0;
+        if ( types.length == 0 )
+        {
+            for ( Intervals intervals : intervalsByType.values() )
+            {
+                examined += intervals.collect( direction, version, cursor );
+            }
+        }
+        for ( RelationshipType type : types )
+        {
+            Intervals intervals = intervalsByType.get( type.name() );
+            if ( intervals != null )
+            {
+                examined += intervals.collect( direction, version, cursor );
+            }
+        }
+        return examined;
+    }
+
+    private static void expanded( GraphDatabaseService graphDb, int examined, RelationshipCursor cursor )
+    {
+        VersioningMetrics metrics = VersioningMetrics.forGraph( graphDb );
+        if ( metrics != null )
+        {
+            metrics.relationshipsExpanded( examined, cursor.size() );
+        }
+    }
+
+    void relationshipCreated( Relationship relationship, long version )
+    {
+        Node startNode = relationship.getStartNode();
+        Node endNode = relationship.getEndNode();
+        if ( startNode.equals( endNode ) )
+        {
+            add( startNode.getId(), relationship, LOOP, startNode.getId(), version, Long.MAX_VALUE );
+        }
+        else
+        {
+            add( startNode.getId(), relationship, OUTGOING, endNode.getId(), version, Long.MAX_VALUE );
+            add( endNode.getId(), relationship, INCOMING, startNode.getId(), version, Long.MAX_VALUE );
+        }
+    }
+
+    void relationshipEnded( Relationship relationship, long startVersion, long endVersion )
+    {
+        String type = relationship.getType().name();
+        for ( Node node : relationship.getNodes() )
+        {
+            Stripe stripe = stripeFor( node.getId() );
+            synchronized ( stripe )
+            {
+                NodeIntervals loaded = nodes.get( node.getId() );
+                Intervals intervals = loaded == null ? null : loaded.intervalsByType.get( type );
+                if ( intervals != null )
+                {
+                    loaded.publish( type, intervals.end( relationship.getId(), startVersion, endVersion ) );
+                }
+            }
+        }
+    }
+
+    /**
+     * Forgets what is known about a node, for when relationships are changed behind the event handler's back.
+     */
+    public void invalidate( long nodeId )
+    {
+        Stripe stripe = stripeFor( nodeId );
+        synchronized ( stripe )
+        {
+            NodeIntervals loaded = stripe.loadedNodes.remove( nodeId );
+            if ( loaded != null )
+            {
+                nodes.remove( nodeId );
+                stripe.entries -= count( loaded.intervalsByType );
+            }
+        }
+    }
+
+    public void clear()
+    {
+        for ( Stripe stripe : stripes )
+        {
+            synchronized ( stripe )
+            {
+                for ( Long nodeId : stripe.loadedNodes.keySet() )
+                {
+                    nodes.remove( nodeId );
+                }
+                stripe.loadedNodes.clear();
+                stripe.entries = 0;
+            }
+        }
+    }
+
+    public void setMaxEntries( int maxEntries )
+    {
+        this.maxEntries = maxEntries;
+        for ( Stripe stripe : stripes )
+        {
+            synchronized ( stripe )
+            {
+                stripe.evictIfNeeded( -1 );
+            }
+        }
+    }
+
+    private Stripe stripeFor( long nodeId )
+    {
+        return stripes[(int) ( nodeId ^ ( nodeId >>> 32 ) ) & ( STRIPES - 1 )];
+    }
+
+    private void add( long nodeId, Relationship relationship, byte direction, long otherNodeId, long from, long to )
+    {
+        Stripe stripe = stripeFor( nodeId );
+        synchronized ( stripe )
+        {
+            NodeIntervals loaded = nodes.get( nodeId );
+            if ( loaded == null )
+            {
+                return;
+            }
+            RelationshipType type = relationship.getType();
+            Intervals intervals = loaded.intervalsByType.get( type.name() );
+            if ( intervals == null )
+            {
+                intervals = new Intervals( type, new Blocks[0], Blocks.EMPTY );
+            }
+            Intervals added = intervals.add( relationship.getId(), direction, otherNodeId, from, to );
+            if ( added != null )
+            {
+                loaded.publish( type.name(), added );
+                stripe.entries++;
+                stripe.evictIfNeeded( nodeId );
+            }
+        }
+    }
+
+    private static int count( Map<String, Intervals> intervalsByType )
+    {
+        int count = 0;
+        for ( Intervals intervals : intervalsByType.values() )
+        {
+            count += intervals.size();
+        }
+        return count;
+    }
+
+    private static boolean matches( byte entryDirection, Direction direction )
+    {
+        switch ( direction )
+        {
+            case OUTGOING:
+                return entryDirection != INCOMING;
+            case INCOMING:
+                return entryDirection != OUTGOING;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * The nodes whose id falls in one stripe. Loading, updating and evicting them is guarded by the stripe itself.
+     */
+    private class Stripe
+    {
+        // In the order eviction gets to them.
+        final LinkedHashMap<Long, NodeIntervals> loadedNodes = new LinkedHashMap<Long, NodeIntervals>();
+        int entries;
+
+        synchronized NodeIntervals load( Node node )
+        {
+            NodeIntervals loaded = nodes.get( node.getId() );
+            if ( loaded != null )
+            {
+                return loaded;
+            }
+            Map<String, Builder> builders = new HashMap<String, Builder>();
+            Set<Long> seen = new HashSet<Long>();
+            for ( Relationship relationship : node.getRelationships() )
+            {
+                Range range = VersionContext.getVersion( relationship );
+                if ( range == null || !seen.add( relationship.getId() ) )
+                {
+                    continue;
+                }
+                byte direction = relationship.getStartNode().equals( node ) ?
+                    ( relationship.getEndNode().equals( node ) ? LOOP : OUTGOING ) : INCOMING;
+                long otherNodeId = relationship.getOtherNode( node ).getId();
+                RelationshipType type = relationship.getType();
+                Builder builder = builders.get( type.name() );
+                if ( builder == null )
+                {
+                    builder = new Builder( type );
+                    builders.put( type.name(), builder );
+                }
+                builder.add( relationship.getId(), direction, otherNodeId, range.from(), range.to() );
+            }
+            Map<String, Intervals> intervalsByType = new HashMap<String, Intervals>();
+            for ( Map.Entry<String, Builder> builder : builders.entrySet() )
+            {
+                intervalsByType.put( builder.getKey(), builder.getValue().build() );
+            }
+            loaded = new NodeIntervals( intervalsByType );
+            loadedNodes.put( node.getId(), loaded );
+            nodes.put( node.getId(), loaded );
+            entries += count( intervalsByType );
+            evictIfNeeded( node.getId() );
+            return loaded;
+        }
+
+        /**
+         * @param keep a node that must stay, because it was just loaded or updated, or -1.
+         */
+        void evictIfNeeded( long keep )
+        {
+            int stripeMaxEntries = maxEntries / STRIPES;
+            int secondChances = loadedNodes.size();
+            while ( entries > stripeMaxEntries && loadedNodes.size() > 1 )
+            {
+                Iterator<Map.Entry<Long, NodeIntervals>> eldest = loadedNodes.entrySet().iterator();
+                Map.Entry<Long, NodeIntervals> candidate = eldest.next();
+                NodeIntervals loaded = candidate.getValue();
+                eldest.remove();
+                if ( candidate.getKey() == keep || ( loaded.referenced && secondChances-- > 0 ) )
+                {
+                    loaded.referenced = false;
+                    loadedNodes.put( candidate.getKey(), loaded );
+                    continue;
+                }
+                nodes.remove( candidate.getKey() );
+                entries -= count( loaded.intervalsByType );
+            }
+        }
+    }
+
+    /**
+     * What is known about one loaded node. The map of intervals by type is replaced, never changed, so a lookup reads
+     * it once and works on a consistent state.
+     */
+    private static class NodeIntervals
+    {
+        volatile Map<String, Intervals> intervalsByType;
+        volatile boolean referenced;
+
+        NodeIntervals( Map<String, Intervals> intervalsByType )
+        {
+            this.intervalsByType = intervalsByType;
+        }
+
+        void publish( String type, Intervals intervals )
+        {
+            Map<String, Intervals> updated = new HashMap<String, Intervals>( intervalsByType );
+            updated.put( type, intervals );
+            intervalsByType = updated;
+        }
+    }
+
+    /**
+     * All relationships of one type around one node, the live ones apart from the ended ones, which are grouped by how
+     * long they lived.
+     */
+    private static class Intervals
+    {
+        private final RelationshipType type;
+        // By group, see levelOf.
+        private final Blocks[] ended;
+        private final Blocks live;
+
+        Intervals( RelationshipType type, Blocks[] ended, Blocks live )
+        {
+            this.type = type;
+            this.ended = ended;
+            this.live = live;
+        }
+
+        int size()
+        {
+            int size = live.size;
+            for ( Blocks level : ended )
+            {
+                size += level.size;
+            }
+            return size;
+        }
+
+        /**
+         * @return these intervals with the relationship added, or null if it is in here already.
+         */
+        Intervals add( long id, byte direction, long otherNodeId, long from, long to )
+        {
+            if ( live.blockOf( id, from ) >= 0 || endedLevelOf( id, from ) >= 0 )
+            {
+                return null;
+            }
+            if ( to == Long.MAX_VALUE )
+            {
+                return new Intervals( type, ended, live.insert( id, direction, otherNodeId, from, to ) );
+            }
+            return new Intervals( type, insertEnded( ended, id, direction, otherNodeId, from, to ), live );
+        }
+
+        Intervals end( long id, long from, long to )
+        {
+            int blockIndex = live.blockOf( id, from );
+            if ( blockIndex >= 0 )
+            {
+                Block block = live.blocks[blockIndex];
+                int index = block.indexOf( id, from );
+                return new Intervals( type, insertEnded( ended, id, block.direction[index], block.otherNodeId[index],
+                    from, to ), live.remove( blockIndex, index ) );
+            }
+            int level = endedLevelOf( id, from );
+            if ( level >= 0 )
+            {
+                blockIndex = ended[level].blockOf( id, from );
+                Block block = ended[level].blocks[blockIndex];
+                int index = block.indexOf( id, from );
+                Blocks[] updated = ended.clone();
+                updated[level] = ended[level].remove( blockIndex, index );
+                return new Intervals( type, insertEnded( updated, id, block.direction[index],
+                    block.otherNodeId[index], from, to ), live );
+            }
+            return this;
+        }
+
+        /**
+         * @return the number of relationships looked at, which doesn't include those skipped without looking.
+         */
+        int collect( Direction direction, long version, RelationshipCursor cursor )
+        {
+            int examined = live.collect( type, direction, version, cursor, Long.MIN_VALUE );
+            for ( int level = 0; level < ended.length; level++ )
+            {
+                examined += ended[level].collect( type, direction, version, cursor, lowestStart( version, level ) );
+            }
+            return examined;
+        }
+
+        private int endedLevelOf( long id, long from )
+        {
+            for ( int level = 0; level < ended.length; level++ )
+            {
+                if ( ended[level].blockOf( id, from ) >= 0 )
+                {
+                    return level;
+                }
+            }
+            return -1;
+        }
+
+        private static Blocks[] insertEnded( Blocks[] ended, long id, byte direction, long otherNodeId, long from,
+            long to )
+        {
+            int level = levelOf( from, to );
+            Blocks[] updated = Arrays.copyOf( ended, Math.max( ended.length, level + 1 ) );
+            for ( int i = ended.length; i < updated.length; i++ )
+            {
+                updated[i] = Blocks.EMPTY;
+            }
+            updated[level] = updated[level].insert( id, direction, otherNodeId, from, to );
+            return updated;
+        }
+    }
+
+    /**
+     * @return the group of an ended relationship valid from {@code from} to {@code to}, {@code k} if it was valid for
+     *         at least 2<sup>k</sup> and less than 2<sup>k+1</sup> versions.
+     */
+    private static int levelOf( long from, long to )
+    {
+        long length = Math.max( 1, to - from + 1 );
+        return 63 - Long.numberOfLeadingZeros( length );
+    }
+
+    /**
+     * @return the earliest start version a relationship in group {@code level} can have to still be valid at
+     *         {@code version}.
+     */
+    private static long lowestStart( long version, int level )
+    {
+        long longestEnd = level >= 62 ? Long.MAX_VALUE : ( 1L << ( level + 1 ) ) - 2;
+        return version < Long.MIN_VALUE + longestEnd ? Long.MIN_VALUE : version - longestEnd;
+    }
+
+    /**
+     * Entries sorted by start version, in blocks of {@value #BLOCK_SIZE} to twice as many. Changes return a copy that
+     * shares the unchanged blocks.
+     */
+    private static class Blocks
+    {
+        static final Blocks EMPTY = new Blocks( new Block[0], 0 );
+
+        final Block[] blocks;
+        final int size;
+
+        Blocks( Block[] blocks, int size )
+        {
+            this.blocks = blocks;
+            this.size = size;
+        }
+
+        /**
+         * Collects the entries valid at {@code version}, looking only at those starting at or after
+         * {@code lowestStart}.
+         */
+        int collect( RelationshipType type, Direction direction, long version, RelationshipCursor cursor,
+            long lowestStart )
+        {
+            int examined = 0;
+            for ( int b = blockBefore( lowestStart ); b < blocks.length; b++ )
+            {
+                Block block = blocks[b];
+                if ( block.from[0] > version )
+                {
+                    break;
+                }
+                if ( block.maxTo < version )
+                {
+                    continue;
+                }
+                for ( int i = block.firstFrom( lowestStart ); i < block.from.length && block.from[i] <= version; i++ )
+                {
+                    examined++;
+                    if ( block.to[i] >= version && matches( block.direction[i], direction ) )
+                    {
+                        cursor.add( block.id[i], type, block.otherNodeId[i] );
+                    }
+                }
+            }
+            return examined;
+        }
+
+        Blocks insert( long id, byte direction, long otherNodeId, long from, long to )
+        {
+            if ( blocks.length == 0 )
+            {
+                return new Blocks( new Block[] { new Block( new long[] { id }, new long[] { from }, new long[] { to },
+                    new byte[] { direction }, new long[] { otherNodeId } ) }, 1 );
+            }
+            int blockIndex = blockFor( from );
+            Block block = blocks[blockIndex].insert( id, direction, otherNodeId, from, to );
+            Block[] updated;
+            if ( block.from.length == 2 * BLOCK_SIZE )
+            {
+                updated = new Block[blocks.length + 1];
+                System.arraycopy( blocks, 0, updated, 0, blockIndex );
+                updated[blockIndex] = block.range( 0, BLOCK_SIZE );
+                updated[blockIndex + 1] = block.range( BLOCK_SIZE, block.from.length );
+                System.arraycopy( blocks, blockIndex + 1, updated, blockIndex + 2, blocks.length - blockIndex - 1 );
+            }
+            else
+            {
+                updated = blocks.clone();
+                updated[blockIndex] = block;
+            }
+            return new Blocks( updated, size + 1 );
+        }
+
+        Blocks remove( int blockIndex, int index )
+        {
+            Block block = blocks[blockIndex];
+            Block[] updated;
+            if ( block.from.length == 1 )
+            {
+                updated = new Block[blocks.length - 1];
+                System.arraycopy( blocks, 0, updated, 0, blockIndex );
+                System.arraycopy( blocks, blockIndex + 1, updated, blockIndex, updated.length - blockIndex );
+            }
+            else
+            {
+                updated = blocks.clone();
+                updated[blockIndex] = block.remove( index );
+            }
+            return new Blocks( updated, size - 1 );
+        }
+
+        /**
+         * @return the index of the block holding the entry, or -1 if there is none.
+         */
+        int blockOf( long id, long from )
+        {
+            // Entries with the same start version may spill over into the blocks before.
+            for ( int i = blockFor( from ); i >= 0; i-- )
+            {
+                Block block = blocks[i];
+                if ( block.indexOf( id, from ) >= 0 )
+                {
+                    return i;
+                }
+                if ( block.from[0] < from )
+                {
+                    return -1;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * @return the last block whose first entry starts before {@code from}, which is where entries starting at or
+         *         after it begin, or 0 if there is none.
+         */
+        private int blockBefore( long from )
+        {
+            int low = 0;
+            int high = blocks.length - 1;
+            int found = 0;
+            while ( low <= high )
+            {
+                int middle = ( low + high ) >>> 1;
+                if ( blocks[middle].from[0] < from )
+                {
+                    found = middle;
+                    low = middle + 1;
+                }
+                else
+                {
+                    high = middle - 1;
+                }
+            }
+            return found;
+        }
+
+        /**
+         * @return the last block whose first entry starts at or before {@code from}, or 0 if there is no such block
+         *         but there are blocks at all, -1 if there are none.
+         */
+        private int blockFor( long from )
+        {
+            int low = 0;
+            int high = blocks.length - 1;
+            int found = blocks.length == 0 ? -1 : 0;
+            while ( low <= high )
+            {
+                int middle = ( low + high ) >>> 1;
+                if ( blocks[middle].from[0] <= from )
+                {
+                    found = middle;
+                    low = middle + 1;
+                }
+                else
+                {
+                    high = middle - 1;
+                }
+            }
+            return found;
+        }
+    }
+
+    /**
+     * Entries sorted by start version, as parallel arrays that are never changed once the block is created.
+     */
+    private static class Block
+    {
+        final long[] id;
+        final long[] from;
+        final long[] to;
+        final byte[] direction;
+        final long[] otherNodeId;
+        final long maxTo;
+
+        Block( long[] id, long[] from, long[] to, byte[] direction, long[] otherNodeId )
+        {
+            this.id = id;
+            this.from = from;
+            this.to = to;
+            this.direction = direction;
+            this.otherNodeId = otherNodeId;
+            long max = Long.MIN_VALUE;
+            for ( long end : to )
+            {
+                max = Math.max( max, end );
+            }
+            this.maxTo = max;
+        }
+
+        /**
+         * @return the index of the first entry starting at or after {@code from}.
+         */
+        int firstFrom( long from )
+        {
+            int low = 0;
+            int high = this.from.length;
+            while ( low < high )
+            {
+                int middle = ( low + high ) >>> 1;
+                if ( this.from[middle] < from )
+                {
+                    low = middle + 1;
+                }
+                else
+                {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        int indexOf( long id, long from )
+        {
+            for ( int i = 0; i < this.from.length; i++ )
+            {
+                if ( this.from[i] == from && this.id[i] == id )
+                {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        Block insert( long id, byte direction, long otherNodeId, long from, long to )
+        {
+            int index = this.from.length;
+            while ( index > 0 && this.from[index - 1] > from )
+            {
+                index--;
+            }
+            return new Block( inserted( this.id, index, id ), inserted( this.from, index, from ),
+                inserted( this.to, index, to ), inserted( this.direction, index, direction ),
+                inserted( this.otherNodeId, index, otherNodeId ) );
+        }
+
+        Block remove( int index )
+        {
+            return new Block( removed( id, index ), removed( from, index ), removed( to, index ),
+                removed( direction, index ), removed( otherNodeId, index ) );
+        }
+
+        Block range( int start, int end )
+        {
+            return new Block( Arrays.copyOfRange( id, start, end ), Arrays.copyOfRange( from, start, end ),
+                Arrays.copyOfRange( to, start, end ), Arrays.copyOfRange( direction, start, end ),
+                Arrays.copyOfRange( otherNodeId, start, end ) );
+        }
+
+        private static long[] inserted( long[] values, int index, long value )
+        {
+            long[] result = new long[values.length + 1];
+            System.arraycopy( values, 0, result, 0, index );
+            result[index] = value;
+            System.arraycopy( values, index, result, index + 1, values.length - index );
+            return result;
+        }
+
+        private static byte[] inserted( byte[] values, int index, byte value )
+        {
+            byte[] result = new byte[values.length + 1];
+            System.arraycopy( values, 0, result, 0, index );
+            result[index] = value;
+            System.arraycopy( values, index, result, index + 1, values.length - index );
+            return result;
+        }
+
+        private static long[] removed( long[] values, int index )
+        {
+            long[] result = new long[values.length - 1];
+            System.arraycopy( values, 0, result, 0, index );
+            System.arraycopy( values, index + 1, result, index, result.length - index );
+            return result;
+        }
+
+        private static byte[] removed( byte[] values, int index )
+        {
+            byte[] result = new byte[values.length - 1];
+            System.arraycopy( values, 0, result, 0, index );
+            System.arraycopy( values, index + 1, result, index, result.length - index );
+            return result;
+        }
+    }
+
+    /**
+     * Collects the relationships of one type while a node is loaded, and sorts them into blocks in one go.
+     */
+    private static class Builder
+    {
+        private final RelationshipType type;
+        private Entries[] ended = new Entries[0];
+        private final Entries live = new Entries();
+
+        Builder( RelationshipType type )
+        {
+            this.type = type;
+        }
+
+        void add( long id, byte direction, long otherNodeId, long from, long to )
+        {
+            if ( to == Long.MAX_VALUE )
+            {
+                live.add( id, direction, otherNodeId, from, to );
+                return;
+            }
+            int level = levelOf( from, to );
+            if ( level >= ended.length )
+            {
+                ended = Arrays.copyOf( ended, level + 1 );
+            }
+            if ( ended[level] == null )
+            {
+                ended[level] = new Entries();
+            }
+            ended[level].add( id, direction, otherNodeId, from, to );
+        }
+
+        Intervals build()
+        {
+            Blocks[] endedBlocks = new Blocks[ended.length];
+            for ( int level = 0; level < ended.length; level++ )
+            {
+                endedBlocks[level] = ended[level] == null ? Blocks.EMPTY : ended[level].build();
+            }
+            return new Intervals( type, endedBlocks, live.build() );
+        }
+    }
+
+    private static class Entries
+    {
+        private long[] id = new long[BLOCK_SIZE];
+        private long[] from = new long[BLOCK_SIZE];
+        private long[] to = new long[BLOCK_SIZE];
+        private byte[] direction = new byte[BLOCK_SIZE];
+        private long[] otherNodeId = new long[BLOCK_SIZE];
+        private int size;
+
+        void add( long id, byte direction, long otherNodeId, long from, long to )
+        {
+            if ( size == this.id.length )
+            {
+                this.id = Arrays.copyOf( this.id, 2 * size );
+                this.from = Arrays.copyOf( this.from, 2 * size );
+                this.to = Arrays.copyOf( this.to, 2 * size );
+                this.direction = Arrays.copyOf( this.direction, 2 * size );
+                this.otherNodeId = Arrays.copyOf( this.otherNodeId, 2 * size );
+            }
+            this.id[size] = id;
+            this.from[size] = from;
+            this.to[size] = to;
+            this.direction[size] = direction;
+            this.otherNodeId[size] = otherNodeId;
+            size++;
+        }
+
+        Blocks build()
+        {
+            Integer[] order = new Integer[size];
+            for ( int i = 0; i < size; i++ )
+            {
+                order[i] = i;
+            }
+            Arrays.sort( order, new Comparator<Integer>()
+            {
+                public int compare( Integer first, Integer second )
+                {
+                    long difference = from[first] - from[second];
+                    return difference < 0 ? -1 : difference > 0 ? 1 : 0;
+                }
+            } );
+            Block[] blocks = new Block[( size + BLOCK_SIZE - 1 ) / BLOCK_SIZE];
+            for ( int b = 0; b < blocks.length; b++ )
+            {
+                int start = b * BLOCK_SIZE;
+                int length = Math.min( BLOCK_SIZE, size - start );
+                long[] blockId = new long[length];
+                long[] blockFrom = new long[length];
+                long[] blockTo = new long[length];
+                byte[] blockDirection = new byte[length];
+                long[] blockOtherNodeId = new long[length];
+                for ( int i = 0; i < length; i++ )
+                {
+                    int entry = order[start + i];
+                    blockId[i] = id[entry];
+                    blockFrom[i] = from[entry];
+                    blockTo[i] = to[entry];
+                    blockDirection[i] = direction[entry];
+                    blockOtherNodeId[i] = otherNodeId[entry];
+                }
+                blocks[b] = new Block( blockId, blockFrom, blockTo, blockDirection, blockOtherNodeId );
+            }
+            return new Blocks( blocks, size );
+        }
+    }
+}
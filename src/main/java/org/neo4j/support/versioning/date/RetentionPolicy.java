@@ -0,0 +1,76 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+/**
+ * Decides how much history a {@link HistoryCompactor} keeps, in terms of the oldest version that must stay readable.
+ */
+public abstract class RetentionPolicy
+{
+    /**
+     * @return the oldest version that must stay readable, given the latest committed version. History that's only
+     *         visible to versions before it may be removed.
+     */
+    public abstract long getHorizon( long latestVersion );
+
+    /**
+     * Keeps the latest {@code versions} versions readable.
+     */
+    public static RetentionPolicy keepVersions( final long versions )
+    {
+        if ( versions < 1 )
+            throw new IllegalArgumentException( "Must keep at least one version, was [" + versions + "]." );
+        return new RetentionPolicy()
+        {
+            @Override
+            public long getHorizon( long latestVersion )
+            {
+                return latestVersion - versions + 1;
+            }
+
+            @Override
+            public String toString()
+            {
+                return "RetentionPolicy[keep " + versions + " versions]";
+            }
+        };
+    }
+
+    /**
+     * Keeps every version after {@code version} readable.
+     */
+    public static RetentionPolicy keepNewerThan( final long version )
+    {
+        return new RetentionPolicy()
+        {
+            @Override
+            public long getHorizon( long latestVersion )
+            {
+                return Math.min( version + 1, latestVersion );
+            }
+
+            @Override
+            public String toString()
+            {
+                return "RetentionPolicy[keep newer than " + version + "]";
+            }
+        };
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.NotFoundException;
+
+import java.util.TreeMap;
+
+/**
+ * Lets long running readers pin the version they read at, so that a {@link HistoryCompactor} leaves the history
+ * visible at that version alone until the lease is released. There is one set of leases per graph database.
+ *
+ * <pre>
+ * SnapshotLeases.Lease lease = SnapshotLeases.forGraph( graphDb ).acquire( version );
+ * try {
+ *     ... read at vc( lease.version() ) ...
+ * } finally {
+ *     lease.release();
+ * }
+ * </pre>
+ */
+public class SnapshotLeases
+{
+    private static final GraphRegistry<SnapshotLeases> leases = new GraphRegistry<SnapshotLeases>(
+        new GraphRegistry.Factory<SnapshotLeases>()
+        {
+            public SnapshotLeases create( GraphDatabaseService graphDb )
+            {
+                return new SnapshotLeases();
+            }
+        } );
+
+    private final TreeMap<Long, Integer> leasedVersions = new TreeMap<Long, Integer>();
+    private long horizon = Long.MIN_VALUE;
+
+    public static SnapshotLeases forGraph( GraphDatabaseService graphDb )
+    {
+        return leases.getOrCreate( graphDb );
+    }
+
+    /**
+     * Pins {@code version}.
+     *
+     * @throws NotFoundException if history before {@code version} may already have been compacted away.
+     */
+    public synchronized Lease acquire( long version )
+    {
+        if ( version < horizon )
+        {
+            throw new NotFoundException( "Version [" + version + "] is older than the compaction horizon [" +
+                horizon + "]." );
+        }
+        Integer count = leasedVersions.get( version );
+        leasedVersions.put( version, count == null ? 1 : count + 1 );
+        return new Lease( version );
+    }
+
+    private synchronized void release( long version )
+    {
+        int count = leasedVersions.get( version );
+        if ( count == 1 )
+        {
+            leasedVersions.remove( version );
+        }
+        else
+        {
+            leasedVersions.put( version, count - 1 );
+        }
+    }
+
+    /**
+     * @return the oldest leased version, or {@code null} if there are no leases.
+     */
+    public synchronized Long getOldestLeasedVersion()
+    {
+        return leasedVersions.isEmpty() ? null : leasedVersions.firstKey();
+    }
+
+    /**
+     * @return the oldest version that's guaranteed to be readable, as far as compaction is concerned.
+     */
+    public synchronized long getHorizon()
+    {
+        return horizon;
+    }
+
+    /**
+     * Moves the horizon up to {@code wantedHorizon}, or to the oldest leased version if that's older. From then on no
+     * leases can be taken below it.
+     *
+     * @return the new horizon, below which history may be removed.
+     */
+    synchronized long advanceHorizon( long wantedHorizon )
+    {
+        long newHorizon = leasedVersions.isEmpty() ? wantedHorizon : Math.min( wantedHorizon, leasedVersions.firstKey() );
+        horizon = Math.max( horizon, newHorizon );
+        return horizon;
+    }
+
+    public class Lease
+    {
+        private final long version;
+        private boolean released;
+
+        private Lease( long version )
+        {
+            this.version = version;
+        }
+
+        public long version()
+        {
+            return version;
+        }
+
+        public void release()
+        {
+            synchronized ( SnapshotLeases.this )
+            {
+                if ( !released )
+                {
+                    released = true;
+                    SnapshotLeases.this.release( version );
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed number of counters that many threads add to at once. Every counter is split into stripes, and a thread
+ * only adds to the stripe its id maps to, so threads on different cores rarely contend for the same cache line. The
+ * counters of a stripe sit next to each other, padded to a whole number of cache lines, since they're mostly updated
+ * together by the same thread. Reading a counter sums its stripes, which is slower, but reads are rare.
+ */
+class StripedCounters
+{
+    private static final int LONGS_PER_CACHE_LINE = 8;
+    private static final int STRIPES = stripes();
+
+    private final int counters;
+    private final int stride;
+    private final AtomicLongArray cells;
+
+    StripedCounters( int counters )
+    {
+        this.counters = counters;
+        this.stride = ( counters + LONGS_PER_CACHE_LINE - 1 ) / LONGS_PER_CACHE_LINE * LONGS_PER_CACHE_LINE;
+        this.cells = new AtomicLongArray( STRIPES * stride );
+    }
+
+    void add( int counter, long delta )
+    {
+        cells.getAndAdd( stripe() * stride + counter, delta );
+    }
+
+    long get( int counter )
+    {
+        long sum = 0;
+        for ( int stripe = 0; stripe < STRIPES; stripe++ )
+        {
+            sum += cells.get( stripe * stride + counter );
+        }
+        return sum;
+    }
+
+    long[] getAll()
+    {
+        long[] sums = new long[counters];
+        for ( int counter = 0; counter < counters; counter++ )
+        {
+            sums[counter] = get( counter );
+        }
+        return sums;
+    }
+
+    /**
+     * Sets all counters to zero. Additions that happen at the same time may or may not survive.
+     */
+    void reset()
+    {
+        for ( int cell = 0; cell < cells.length(); cell++ )
+        {
+            cells.set( cell, 0 );
+        }
+    }
+
+    private static int stripe()
+    {
+        // Thread ids are handed out in sequence, so the low bits spread threads over the stripes well enough.
+        return (int) Thread.currentThread().getId() & ( STRIPES - 1 );
+    }
+
+    /**
+     * @return the smallest power of two that's at least twice the number of processors, so that threads seldom
+     *         share a stripe, but no more than 64.
+     */
+    private static int stripes()
+    {
+        int wanted = Math.min( 64, 2 * Runtime.getRuntime().availableProcessors() );
+        int stripes = 1;
+        while ( stripes < wanted )
+        {
+            stripes <<= 1;
+        }
+        return stripes;
+    }
+}
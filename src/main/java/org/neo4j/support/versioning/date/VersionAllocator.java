@@ -0,0 +1,47 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+/**
+ * Hands out version numbers to committing transactions.
+ * <p>
+ * {@link #allocate()} is called from {@link VersioningTransactionEventHandler#beforeCommit} and every allocated version
+ * is later passed to {@link #complete(long)}, whether the transaction committed or not. Versions must be strictly
+ * increasing, but may have gaps.
+ */
+public interface VersionAllocator
+{
+    long allocate();
+
+    void complete( long version );
+
+    /**
+     * @return the highest version that is safe to read at, i.e. no transaction that could still commit with this
+     *         version or an earlier one is in flight.
+     */
+    long getLatestVersion();
+
+    /**
+     * Moves the versions allocated from here on past {@code version}.
+     *
+     * @throws IllegalArgumentException if {@code version} is below a version allocated already.
+     */
+    void setLatestVersion( long version );
+}
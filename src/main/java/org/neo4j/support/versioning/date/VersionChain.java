@@ -0,0 +1,426 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static org.neo4j.support.versioning.date.VersionContext.CHAIN_DEPTH_PROPERTY;
+import static org.neo4j.support.versioning.date.VersionContext.DELTA_PROPERTY;
+import static org.neo4j.support.versioning.date.VersionContext.DELTA_REMOVED_PROPERTY;
+import static org.neo4j.support.versioning.date.VersionContext.PREV_VERSION_REL_TYPE;
+import static org.neo4j.support.versioning.date.VersionContext.SKIP_VERSION_REL_TYPE;
+import static org.neo4j.support.versioning.date.VersionContext.getEndVersion;
+import static org.neo4j.support.versioning.date.VersionContext.getStartVersion;
+
+/**
+ * The chain of historic property holders hanging off a versioned entity, newest first.
+ * <p>
+ * Besides the {@link VersionContext#PREV_VERSION_REL_TYPE} link to its predecessor, every historic node stores its
+ * depth in the chain (the oldest node has depth 0) and, where it differs from the predecessor, a
+ * {@link VersionContext#SKIP_VERSION_REL_TYPE} jump pointer further back. Jump targets are chosen the way skew-binary
+ * random access lists do it, which bounds a lookup to O(log n) hops. Both are fixed when the node is created, since
+ * historic nodes are only ever added at the young end of the chain.
+ * <p>
+ * A historic node is either a keyframe holding the complete property set of its range, or a delta holding only the
+ * keys that changed when the range was closed, i.e. the values they had before the next newer holder took over. The
+ * state of a delta is rebuilt from the closest newer keyframe, or from the head, see {@link #properties(Node)}.
+ * <p>
+ * Chains written before jump pointers existed are still readable, one hop at a time, and can be upgraded in place
+ * with {@link #index(Node)} or {@link #indexAll(GraphDatabaseService, int)}.
+ */
+public class VersionChain
+{
+    private VersionChain()
+    {
+    }
+
+    static void insertFirst( Node anchor, Node newHistoricNode )
+    {
+        Relationship prevVersionRel = anchor.getSingleRelationship( PREV_VERSION_REL_TYPE, Direction.OUTGOING );
+        if ( prevVersionRel == null )
+        {
+            newHistoricNode.setProperty( CHAIN_DEPTH_PROPERTY, 0L );
+        }
+        else
+        {
+            Node parent = prevVersionRel.getOtherNode( anchor );
+            newHistoricNode.createRelationshipTo( parent, PREV_VERSION_REL_TYPE );
+            prevVersionRel.delete();
+            link( newHistoricNode, parent );
+        }
+        anchor.createRelationshipTo( newHistoricNode, PREV_VERSION_REL_TYPE );
+    }
+
+    static Node first( Node anchor )
+    {
+        Relationship prevVersionRel = anchor.getSingleRelationship( PREV_VERSION_REL_TYPE, Direction.OUTGOING );
+        return prevVersionRel == null ? null : prevVersionRel.getOtherNode( anchor );
+    }
+
+    static Node previous( Node historicNode )
+    {
+        return first( historicNode );
+    }
+
+    static Node next( Node historicNode )
+    {
+        Relationship nextVersionRel = historicNode.getSingleRelationship( PREV_VERSION_REL_TYPE, Direction.INCOMING );
+        return nextVersionRel == null ? null : nextVersionRel.getOtherNode( historicNode );
+    }
+
+    static boolean isKeyframe( Node historicNode, int keyframeInterval )
+    {
+        Long depth = depth( historicNode );
+        return depth == null || depth % keyframeInterval == 0;
+    }
+
+    static boolean isDelta( Node propHolder )
+    {
+        return propHolder.hasProperty( DELTA_PROPERTY );
+    }
+
+    /**
+     * Turns the newest historic node below {@code anchor} into a keyframe if it's a delta, for when the head changes
+     * without a new historic node to base the delta on, as when history goes to a {@link HistoryBackend} or the change
+     * is coalesced. The delta is applied to {@code headProperties}, the properties of the head before the change.
+     */
+    static void makeFirstKeyframe( Node anchor, Map<String, Object> headProperties )
+    {
+        Node first = first( anchor );
+        if ( first == null || !isDelta( first ) )
+        {
+            return;
+        }
+        Map<String, Object> properties = new HashMap<String, Object>( headProperties );
+        readInto( first, properties );
+        for ( String removedKey : (String[]) first.getProperty( DELTA_REMOVED_PROPERTY, new String[0] ) )
+        {
+            properties.remove( removedKey );
+        }
+        for ( Map.Entry<String, Object> property : properties.entrySet() )
+        {
+            first.setProperty( property.getKey(), property.getValue() );
+        }
+        first.removeProperty( DELTA_PROPERTY );
+        first.removeProperty( DELTA_REMOVED_PROPERTY );
+    }
+
+    static void writeDelta( Node historicNode, Map<String, Object> oldValues )
+    {
+        List<String> removedKeys = new ArrayList<String>();
+        for ( Map.Entry<String, Object> propEntry : oldValues.entrySet() )
+        {
+            if ( propEntry.getValue() == null )
+            {
+                removedKeys.add( propEntry.getKey() );
+            }
+            else
+            {
+                historicNode.setProperty( propEntry.getKey(), propEntry.getValue() );
+            }
+        }
+        historicNode.setProperty( DELTA_PROPERTY, true );
+        if ( !removedKeys.isEmpty() )
+        {
+            historicNode.setProperty( DELTA_REMOVED_PROPERTY, removedKeys.toArray( new String[removedKeys.size()] ) );
+        }
+    }
+
+    /**
+     * Returns the visible properties of a property holder. For keyframes and the head this is just what's stored on
+     * the node, deltas are applied on top of the closest newer keyframe, newest first.
+     */
+    static Map<String, Object> properties( Node propHolder )
+    {
+        List<Node> deltas = new ArrayList<Node>();
+        Node keyframe = propHolder;
+        while ( isDelta( keyframe ) )
+        {
+            deltas.add( keyframe );
+            keyframe = next( keyframe );
+        }
+        Map<String, Object> properties = new HashMap<String, Object>();
+        readInto( keyframe, properties );
+        for ( int i = deltas.size() - 1; i >= 0; i-- )
+        {
+            Node delta = deltas.get( i );
+            readInto( delta, properties );
+            for ( String removedKey : (String[]) delta.getProperty( DELTA_REMOVED_PROPERTY, new String[0] ) )
+            {
+                properties.remove( removedKey );
+            }
+        }
+        return properties;
+    }
+
+    private static void readInto( Node propHolder, Map<String, Object> properties )
+    {
+        for ( String key : propHolder.getPropertyKeys() )
+        {
+            if ( !VersionContext.isInternalProperty( key ) )
+            {
+                properties.put( key, propHolder.getProperty( key ) );
+            }
+        }
+    }
+
+    /**
+     * Finds the historic node below {@code anchor} whose range contains {@code version}, or {@code null} if the
+     * chain doesn't reach back that far.
+     */
+    static Node find( Node anchor, long version )
+    {
+        return findFrom( first( anchor ), version );
+    }
+
+    /**
+     * Like {@link #find(Node, long)}, but starts at {@code historicNode} rather than at the young end of the chain.
+     */
+    static Node findFrom( Node historicNode, long version )
+    {
+        if ( historicNode == null )
+        {
+            return null;
+        }
+        VersioningMetrics metrics = VersioningMetrics.forGraph( historicNode.getGraphDatabase() );
+        Node current = historicNode;
+        Node found = null;
+        int hops = 0;
+        while ( current != null )
+        {
+            if ( getStartVersion( current ) <= version )
+            {
+                found = getEndVersion( current ) >= version ? current : null;
+                break;
+            }
+            Node jump = skipTarget( current );
+            if ( jump != null && getStartVersion( jump ) > version )
+            {
+                current = jump;
+            }
+            else
+            {
+                current = previous( current );
+            }
+            hops++;
+        }
+        if ( metrics != null )
+        {
+            metrics.chainLookup( hops );
+        }
+        return found;
+    }
+
+    /**
+     * Deletes the historic nodes below {@code anchor} whose range ends before {@code horizon}, i.e. the ones no reader
+     * at {@code horizon} or later can get to, along with their documents in {@code indexes}, and rebuilds the jump
+     * pointers of what's left.
+     *
+     * @return the number of historic nodes deleted.
+     */
+    static int prune( Node anchor, long horizon, List<VersionedIndex> indexes )
+    {
+        Node oldest = newestEndedBefore( anchor, horizon );
+        if ( oldest == null )
+        {
+            return 0;
+        }
+        int deleted = delete( oldest, indexes );
+        index( anchor );
+        return deleted;
+    }
+
+    static boolean hasHistoryBefore( Node anchor, long horizon )
+    {
+        return newestEndedBefore( anchor, horizon ) != null;
+    }
+
+    private static Node newestEndedBefore( Node anchor, long horizon )
+    {
+        Node first = first( anchor );
+        if ( first == null || getEndVersion( first ) < horizon )
+        {
+            return first;
+        }
+        Node keep = find( anchor, horizon );
+        return keep == null ? null : previous( keep );
+    }
+
+    /**
+     * Deletes {@code historicNode} and everything older than it.
+     */
+    private static int delete( Node historicNode, List<VersionedIndex> indexes )
+    {
+        List<Node> nodes = new ArrayList<Node>();
+        for ( Node node = historicNode; node != null; node = previous( node ) )
+        {
+            nodes.add( node );
+        }
+        for ( Node node : nodes )
+        {
+            for ( VersionedIndex index : indexes )
+            {
+                index.holderRemoved( node );
+            }
+            for ( Relationship relationship : node.getRelationships( PREV_VERSION_REL_TYPE, SKIP_VERSION_REL_TYPE ) )
+            {
+                relationship.delete();
+            }
+            node.delete();
+        }
+        return nodes.size();
+    }
+
+    /**
+     * Rebuilds depths and jump pointers for the chain below {@code anchor}.
+     *
+     * @return the number of historic nodes in the chain.
+     */
+    public static int index( Node anchor )
+    {
+        List<Node> chain = new ArrayList<Node>();
+        for ( Node node = first( anchor ); node != null; node = previous( node ) )
+        {
+            chain.add( node );
+        }
+        for ( int i = chain.size() - 1; i >= 0; i-- )
+        {
+            Node node = chain.get( i );
+            Relationship skipRel = node.getSingleRelationship( SKIP_VERSION_REL_TYPE, Direction.OUTGOING );
+            if ( skipRel != null )
+            {
+                skipRel.delete();
+            }
+            if ( i == chain.size() - 1 )
+            {
+                node.setProperty( CHAIN_DEPTH_PROPERTY, 0L );
+            }
+            else
+            {
+                link( node, chain.get( i + 1 ) );
+            }
+        }
+        return chain.size();
+    }
+
+    /**
+     * Runs {@link #index(Node)} on every chain in the graph, committing after every {@code batchSize} chains. This is
+     * the migration path for stores written by earlier versions of this library. The batches don't get versions of
+     * their own.
+     *
+     * @return the number of chains indexed.
+     */
+    public static int indexAll( GraphDatabaseService graphDb, int batchSize )
+    {
+        VersioningTransactionEventHandler.suspendVersioning();
+        try
+        {
+            return indexAllUnversioned( graphDb, batchSize );
+        }
+        finally
+        {
+            VersioningTransactionEventHandler.resumeVersioning();
+        }
+    }
+
+    private static int indexAllUnversioned( GraphDatabaseService graphDb, int batchSize )
+    {
+        int indexed = 0;
+        Iterator<Node> nodes = graphDb.getAllNodes().iterator();
+        while ( nodes.hasNext() )
+        {
+            Transaction tx = graphDb.beginTx();
+            try
+            {
+                for ( int inBatch = 0; inBatch < batchSize && nodes.hasNext(); )
+                {
+                    Node node = nodes.next();
+                    if ( isAnchor( node ) )
+                    {
+                        index( node );
+                        inBatch++;
+                        indexed++;
+                    }
+                }
+                tx.success();
+            }
+            finally
+            {
+                tx.finish();
+            }
+        }
+        return indexed;
+    }
+
+    private static boolean isAnchor( Node node )
+    {
+        return node.hasRelationship( PREV_VERSION_REL_TYPE, Direction.OUTGOING )
+            && !node.hasRelationship( PREV_VERSION_REL_TYPE, Direction.INCOMING );
+    }
+
+    private static void link( Node node, Node parent )
+    {
+        Long parentDepth = depth( parent );
+        if ( parentDepth == null )
+        {
+            // Parent predates jump pointers, leave this one unindexed too until the chain is migrated.
+            return;
+        }
+        node.setProperty( CHAIN_DEPTH_PROPERTY, parentDepth + 1 );
+        Node jump = jumpTarget( parent );
+        Node jumpOfJump = jumpTarget( jump );
+        if ( parentDepth - depth( jump ) == depth( jump ) - depth( jumpOfJump ) && !jumpOfJump.equals( parent ) )
+        {
+            node.createRelationshipTo( jumpOfJump, SKIP_VERSION_REL_TYPE );
+        }
+    }
+
+    private static Node skipTarget( Node node )
+    {
+        Relationship skipRel = node.getSingleRelationship( SKIP_VERSION_REL_TYPE, Direction.OUTGOING );
+        return skipRel == null ? null : skipRel.getOtherNode( node );
+    }
+
+    private static Node jumpTarget( Node node )
+    {
+        Node skip = skipTarget( node );
+        if ( skip != null )
+        {
+            return skip;
+        }
+        Node previous = previous( node );
+        return previous == null ? node : previous;
+    }
+
+    private static Long depth( Node node )
+    {
+        return (Long) node.getProperty( CHAIN_DEPTH_PROPERTY, null );
+    }
+}
@@ -21,6 +21,7 @@ package org.neo4j.support.versioning.date;
 
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.DynamicRelationshipType;
+import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.NotFoundException;
 import org.neo4j.graphdb.PropertyContainer;
@@ -31,6 +32,10 @@ import org.neo4j.helpers.collection.FilteringIterable;
 import org.neo4j.helpers.collection.IterableWrapper;
 import org.neo4j.support.versioning.Range;
 
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
 public class VersionContext
 {
 
@@ -38,132 +43,349 @@ public class VersionContext
     public static final String VALID_TO_PROPERTY = "__valid_to__";
     public static final RelationshipType PREV_VERSION_REL_TYPE = DynamicRelationshipType.withName( "__PREV_VERSION__" );
     public static final String DELETED_PROP_KEY = "__deleted__";
+    public static final RelationshipType SKIP_VERSION_REL_TYPE = DynamicRelationshipType.withName( "__SKIP_VERSION__" );
+    public static final String CHAIN_DEPTH_PROPERTY = "__chain_depth__";
+    public static final String DELTA_PROPERTY = "__delta__";
+    public static final String DELTA_REMOVED_PROPERTY = "__delta_removed__";
+    public static final String HEAD_NODE_PROPERTY = "__head_node__";
+    public static final String HISTORY_NODE_PROPERTY = "__history_node__";
+    public static final String PENDING_HISTORY_PROPERTY = "__pending_history__";
+    public static final String KEY_HISTORY_PROPERTY = "__key_history__";
     private long version;
+    private final Map<Long, PropertyHolderCache.Entry> localPropHolders;
+    private final Map<Long, Node> chainHints;
+    private final boolean live;
 
     public static VersionContext vc( long version )
     {
         return new VersionContext( version );
     }
 
+    /**
+     * @return a context that always sees the graph as it is now. Properties are read on the entities themselves
+     *         without looking at versions or history, and relationships are the ones still valid in the
+     *         {@link RelationshipIntervalIndex}. It's the cheapest way to read the current state through the
+     *         versioning layer, but, unlike a context at {@link VersioningTransactionEventHandler#getLatestVersion() the
+     *         latest version}, it isn't a snapshot: what it sees moves on with every commit.
+     */
+    public static VersionContext live()
+    {
+        return new VersionContext( Long.MAX_VALUE, null, null, true );
+    }
+
+    /**
+     * @return a context at the newest version allocated at or before {@code timestamp}, in milliseconds since the
+     *         epoch, according to {@code timeline}.
+     */
+    public static VersionContext vcAt( VersionTimeline timeline, long timestamp )
+    {
+        return new VersionContext( timeline.getVersionAt( timestamp ) );
+    }
+
+    public static VersionContext vcAt( VersionTimeline timeline, Date date )
+    {
+        return vcAt( timeline, date.getTime() );
+    }
+
     public VersionContext( long version )
     {
-        this.version = version;
+        this( version, null, null, false );
     }
 
-    public VersionedNode node( Node node )
+    private VersionContext( long version, Map<Long, PropertyHolderCache.Entry> localPropHolders,
+        Map<Long, Node> chainHints, boolean live )
     {
-        getPropHolderNode( node );
-        return new VersionedNode( node, this );
+        this.version = version;
+        this.localPropHolders = localPropHolders;
+        this.chainHints = chainHints;
+        this.live = live;
     }
 
-    public boolean hasValidVersion( PropertyContainer propertyContainer )
+    /**
+     * Returns a context at {@code version} that starts looking for property holders at the ones in {@code chainHints},
+     * by anchor node id, when they're newer than {@code version}, and puts the ones it finds there. Running the same
+     * read at a descending sequence of versions with the same hints walks every chain only once. Hints aren't thread
+     * safe.
+     */
+    static VersionContext withChainHints( long version, Map<Long, Node> chainHints )
     {
-        Range range = VersionContext.getVersion( propertyContainer );
-        System.out.println("range: " + range);
-        return range != null && range.contains( version );
+        return new VersionContext( version, null, chainHints, false );
     }
 
-    private Node getPropHolderNode( Node node )
+    /**
+     * Returns a context at the same version that also remembers every property holder it resolves, without going
+     * through the shared cache. Meant for one traversal or similar short, single threaded unit of work.
+     */
+    VersionContext forTraversal()
     {
-        return getPropHolderNodeForVersion( node, version );
+        return live ? this :
+            new VersionContext( version, new HashMap<Long, PropertyHolderCache.Entry>(), chainHints, false );
     }
 
-    public Object getProperty( Node node, String key )
+    public long version()
     {
-        return getPropHolderNode( node ).getProperty( key );
+        return version;
     }
 
-    public boolean hasProperty( Node node, String key )
+    /**
+     * @see #live()
+     */
+    public boolean isLive()
     {
-        return getProperty( node, key, null ) != null;
+        return live;
     }
 
-    public Object getProperty( Node node, String key, Object defaultValue )
+    public VersionedNode node( Node node )
     {
-        try
+        if ( !live )
         {
-            return getProperty( node, key );
+            getHistoricProperties( node );
         }
-        catch ( NotFoundException e )
+        return new VersionedNode( node, this );
+    }
+
+    public boolean hasValidVersion( PropertyContainer propertyContainer )
+    {
+        if ( live )
         {
-            return defaultValue;
+            Object to = propertyContainer.getProperty( VALID_TO_PROPERTY, null );
+            return to != null && (Long) to == Long.MAX_VALUE;
         }
+        Object from = propertyContainer.getProperty( VALID_FROM_PROPERTY, null );
+        Object to = propertyContainer.getProperty( VALID_TO_PROPERTY, null );
+        return from != null && to != null && (Long) from <= version && version <= (Long) to;
     }
 
-    public Iterable<String> getPropertyKeys( Node node )
+    /**
+     * Fills {@code cursor} with the relationships of {@code node} that are valid at this version, in the given direction
+     * and of any of the given types, or of all types if none are given.
+     *
+     * @see RelationshipIntervalIndex#expand(GraphDatabaseService, long, Direction, long, RelationshipCursor,
+     *      RelationshipType...)
+     */
+    public void expand( Node node, Direction direction, RelationshipCursor cursor, RelationshipType... types )
     {
-        Node propHolderNode = getPropHolderNode( node );
-        return rawGetPropertyKeys( propHolderNode );
+        RelationshipIntervalIndex.forGraph( node.getGraphDatabase() ).expand( node.getGraphDatabase(), node.getId(),
+            direction, version, cursor, types );
     }
 
-    public Iterable<Object> getPropertyValues( Node node )
+    /**
+     * @return the properties of {@code entity} as of this version, or {@code null} if that's the head, i.e. the
+     *         properties on the entity itself.
+     */
+    private Map<String, Object> getHistoricProperties( PropertyContainer entity )
     {
-        final Node propHolderNode = getPropHolderNode( node );
-        return new IterableWrapper<Object, String>( rawGetPropertyKeys( propHolderNode ) )
+        if ( live )
         {
-            @Override
-            protected Object underlyingObjectToObject( String object )
+            return null;
+        }
+        Node anchor;
+        if ( entity instanceof Relationship )
+        {
+            anchor = getHistoryNode( (Relationship) entity );
+            if ( anchor == null || getStartVersion( anchor ) <= version )
             {
-                return propHolderNode.getProperty( object );
+                return null;
             }
-        };
+        }
+        else
+        {
+            if ( hasValidVersion( entity ) )
+            {
+                return null;
+            }
+            anchor = (Node) entity;
+        }
+        Map<String, Object> pendingProperties = AsyncHistoryWriter.getProperties( entity, anchor, version );
+        if ( pendingProperties != null )
+        {
+            return pendingProperties;
+        }
+        if ( isBelowHead( entity ) && PropertyKeyHistory.covers( entity, version ) )
+        {
+            return PropertyKeyHistory.getProperties( entity, version );
+        }
+        return getChainProperties( anchor );
     }
 
-    private Iterable<String> rawGetPropertyKeys( Node propHolderNode )
+    private Map<String, Object> getChainProperties( Node anchor )
     {
-        return new FilteringIterable<String>( propHolderNode.getPropertyKeys(), new Predicate<String>()
+        long anchorId = anchor.getId();
+        PropertyHolderCache.Entry entry = localPropHolders == null ? null : localPropHolders.get( anchorId );
+        if ( entry != null )
         {
-            public boolean accept( String item )
+            return entry.properties;
+        }
+        PropertyHolderCache cache = PropertyHolderCache.forGraph( anchor.getGraphDatabase() );
+        entry = cache.get( anchorId, version );
+        HistoryBackend backend = entry == null ? HistoryBackend.forGraph( anchor.getGraphDatabase() ) : null;
+        VersionedValue<Map<String, Object>> stored = backend == null ? null : backend.read( anchorId, version );
+        if ( stored != null )
+        {
+            entry = new PropertyHolderCache.Entry( stored.getRange().from(), stored.getRange().to(), -1,
+                stored.getValue() );
+            cache.put( anchorId, entry );
+        }
+        else if ( entry == null )
+        {
+            Node propHolder = getPropHolderNodeForVersion( anchor, version );
+            entry = new PropertyHolderCache.Entry( getStartVersion( propHolder ), getEndVersion( propHolder ),
+                propHolder.getId(), VersionChain.properties( propHolder ) );
+            cache.put( anchorId, entry );
+        }
+        else if ( chainHints != null && entry.holderId >= 0 )
+        {
+            chainHints.put( anchorId, anchor.getGraphDatabase().getNodeById( entry.holderId ) );
+        }
+        if ( localPropHolders != null )
+        {
+            localPropHolders.put( anchorId, entry );
+        }
+        return entry.properties;
+    }
+
+    /**
+     * @return the node the property history of {@code relationship} hangs off, or {@code null} if its properties
+     *         never changed after it was created.
+     */
+    static Node getHistoryNode( Relationship relationship )
+    {
+        Long historyNodeId = (Long) relationship.getProperty( HISTORY_NODE_PROPERTY, null );
+        return historyNodeId == null ? null : relationship.getGraphDatabase().getNodeById( historyNodeId );
+    }
+
+    /**
+     * @return whether this version is older than the head range of {@code entity}, without looking at history.
+     */
+    private boolean isBelowHead( PropertyContainer entity )
+    {
+        if ( entity instanceof Relationship )
+        {
+            Node historyNode = getHistoryNode( (Relationship) entity );
+            return historyNode != null && version < getStartVersion( historyNode );
+        }
+        Object from = entity.getProperty( VALID_FROM_PROPERTY, null );
+        return from != null && version < (Long) from;
+    }
+
+    public Object getProperty( PropertyContainer entity, String key )
+    {
+        if ( live )
+        {
+            return entity.getProperty( key );
+        }
+        if ( isBelowHead( entity ) && PropertyKeyHistory.covers( entity, version ) )
+        {
+            Object value = PropertyKeyHistory.getProperty( entity, key, version );
+            if ( value == null )
             {
-                return !item.equals( VALID_FROM_PROPERTY ) && !item.equals( VALID_TO_PROPERTY );
+                throw new NotFoundException( "Property [" + key + "] not found for " + entity + " at version [" +
+                    version + "]." );
             }
-        } );
+            return value;
+        }
+        Map<String, Object> historicProperties = getHistoricProperties( entity );
+        if ( historicProperties == null )
+        {
+            return entity.getProperty( key );
+        }
+        Object value = historicProperties.get( key );
+        if ( value == null )
+        {
+            throw new NotFoundException( "Property [" + key + "] not found for " + entity + " at version [" + version + "]." );
+        }
+        return value;
     }
 
-    public void deleteRelationship( Relationship relationship )
+    public boolean hasProperty( PropertyContainer entity, String key )
     {
-        relationship.setProperty( DELETED_PROP_KEY, version );
+        return getProperty( entity, key, null ) != null;
     }
 
-    public void deleteNode( Node node )
+    public Object getProperty( PropertyContainer entity, String key, Object defaultValue )
     {
-        node.setProperty( DELETED_PROP_KEY, version );
+        try
+        {
+            return getProperty( entity, key );
+        }
+        catch ( NotFoundException e )
+        {
+            return defaultValue;
+        }
     }
 
-    private static Node copyPropsToNewNode( Node node )
+    /**
+     * @return the values property {@code key} of {@code entity} had up to this version, newest first, along with the
+     *         ranges they were valid for. The history is read lazily, walking it once.
+     */
+    public Iterable<VersionedValue<Object>> getPropertyHistory( PropertyContainer entity, String key )
     {
-        Node newNode = node.getGraphDatabase().createNode();
-        for ( String propKey : node.getPropertyKeys() )
+        return PropertyHistory.of( entity, key, version );
+    }
+
+    /**
+     * @return the properties {@code entity} had up to this version, newest first, along with the ranges they were
+     *         valid for. The history is read lazily, walking it once.
+     */
+    public Iterable<VersionedValue<Map<String, Object>>> getPropertyHistory( PropertyContainer entity )
+    {
+        return PropertyHistory.of( entity, version );
+    }
+
+    public Iterable<String> getPropertyKeys( PropertyContainer entity )
+    {
+        Map<String, Object> historicProperties = getHistoricProperties( entity );
+        if ( historicProperties == null )
         {
-            newNode.setProperty( propKey, node.getProperty( propKey, null ) );
+            return rawGetPropertyKeys( entity );
         }
-        return newNode;
+        return historicProperties.keySet();
     }
 
-    private static void rotatePropertiesRelationships( Node node, Node newNode )
+    public Iterable<Object> getPropertyValues( final PropertyContainer entity )
     {
-        Relationship olderPropsRel = node.getSingleRelationship( PREV_VERSION_REL_TYPE, Direction.OUTGOING );
-        if ( olderPropsRel != null )
+        Map<String, Object> historicProperties = getHistoricProperties( entity );
+        if ( historicProperties != null )
         {
-            newNode.createRelationshipTo( olderPropsRel.getOtherNode( node ), PREV_VERSION_REL_TYPE );
-            olderPropsRel.delete();
+            return historicProperties.values();
         }
-        node.createRelationshipTo( newNode, PREV_VERSION_REL_TYPE );
+        return new IterableWrapper<Object, String>( rawGetPropertyKeys( entity ) )
+        {
+            @Override
+            protected Object underlyingObjectToObject( String object )
+            {
+                return entity.getProperty( object );
+            }
+        };
+    }
+
+    private Iterable<String> rawGetPropertyKeys( PropertyContainer propHolder )
+    {
+        return new FilteringIterable<String>( propHolder.getPropertyKeys(), new Predicate<String>()
+        {
+            public boolean accept( String item )
+            {
+                return !isInternalProperty( item );
+            }
+        } );
+    }
+
+    static boolean isInternalProperty( String key )
+    {
+        return key.equals( VALID_FROM_PROPERTY ) || key.equals( VALID_TO_PROPERTY ) || key.equals( CHAIN_DEPTH_PROPERTY )
+            || key.equals( DELTA_PROPERTY ) || key.equals( DELTA_REMOVED_PROPERTY ) || key.equals( HEAD_NODE_PROPERTY )
+            || key.equals( HISTORY_NODE_PROPERTY ) || key.startsWith( PENDING_HISTORY_PROPERTY )
+            || key.startsWith( KEY_HISTORY_PROPERTY );
     }
 
-    public static void addVersionedProperty( Node node, String key, Object value )
+    public void deleteRelationship( Relationship relationship )
     {
-        Node newNode = copyPropsToNewNode( node );
-        newNode.setProperty( key, value );
-        rotatePropertiesRelationships( node, newNode );
+        relationship.setProperty( DELETED_PROP_KEY, version );
     }
 
-    public static Object removeVersionedProperty( Node node, String key )
+    public void deleteNode( Node node )
     {
-        Node newNode = copyPropsToNewNode( node );
-        Object result = newNode.removeProperty( key );
-        rotatePropertiesRelationships( node, newNode );
-        return result;
+        node.setProperty( DELETED_PROP_KEY, version );
     }
 
     public static void setVersion( PropertyContainer propertyContainer, Range range )
@@ -203,19 +425,40 @@ public class VersionContext
         return new Range( (Long) from, (Long) to );
     }
 
-    private static Node getPropHolderNodeForVersion( Node node, long version )
+    private Node getPropHolderNodeForVersion( Node node, long version )
     {
-        Range range = getVersion( node );
-        System.out.println("Seeking prop holder for: " + node);
-        if ( !range.contains( version ) )
+        Node start = Checkpoints.forGraph( node.getGraphDatabase() ).startingPoint( node, version );
+        Node hint = chainHints == null ? null : chainHints.get( node.getId() );
+        if ( hint != null && isStartingPoint( hint, version )
+            && ( start == null || getStartVersion( hint ) < getStartVersion( start ) ) )
         {
-            Relationship prevVersionRel = node.getSingleRelationship( PREV_VERSION_REL_TYPE, Direction.OUTGOING );
-            if ( prevVersionRel == null )
-            {
-                throw new NotFoundException( "Version [" + version + "] not found." );
-            }
-            return getPropHolderNodeForVersion( prevVersionRel.getOtherNode( node ), version );
+            start = hint;
+        }
+        Node propHolder = start == null ? VersionChain.find( node, version ) : VersionChain.findFrom( start, version );
+        if ( propHolder == null )
+        {
+            throw new NotFoundException( "Version [" + version + "] not found." );
+        }
+        if ( chainHints != null )
+        {
+            chainHints.put( node.getId(), propHolder );
+        }
+        return propHolder;
+    }
+
+    /**
+     * @return whether the search for {@code version} can start at {@code hint}, which is the case if it hasn't been
+     *         compacted away and isn't older than {@code version}.
+     */
+    private static boolean isStartingPoint( Node hint, long version )
+    {
+        try
+        {
+            return getEndVersion( hint ) >= version;
+        }
+        catch ( NotFoundException e )
+        {
+            return false;
         }
-        return node;
     }
 }
@@ -0,0 +1,1110 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.support.versioning.Range;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * An append-only journal of every change made to the versioned graph, kept outside the graph store so that history
+ * queries don't compete with live reads for the store's caches.
+ * <p>
+ * Each {@link Record} holds the version, the entity, the property key and the old and new value of a property change,
+ * or the creation or deletion of an entity. Records are written by the {@link VersioningTransactionEventHandler} the
+ * journal is {@link VersioningTransactionEventHandler#setJournal set on} and by {@link BulkLoader}s, to segment files
+ * of a fixed size that are memory mapped. Queries read the mapped segments sequentially, comparing ids and keys in
+ * place and only decoding the records they return, and skip segments whose versions or entity ids are all outside of
+ * what they ask for.
+ * <p>
+ * The records of a transaction are {@link #prepare(long, TransactionData) prepared} and {@link #force() forced} before
+ * the graph commits, and marked {@link #committed(long) committed} or {@link #rolledBack(long) rolled back} after. They
+ * are only visible once committed, and the records of a transaction that rolled back are never read again. When a
+ * journal is opened after a crash, the transactions that hadn't been marked either way stay hidden until
+ * {@link #recover(GraphDatabaseService)} has checked the graph for whether they committed.
+ * <p>
+ * Records of concurrent commits can end up slightly out of version order within a segment. The journal only covers
+ * changes made while it was set. The {@link HistoryCompactor} {@link #removeBefore(long) removes} the oldest segments
+ * once all of their records are from before its horizon.
+ */
+public class VersionJournal
+{
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    /**
+     * What {@link #prepare(List)} returns when there was nothing to journal.
+     */
+    static final long NO_BATCH = -1;
+    private static final String SEGMENT_PREFIX = "journal.";
+    private static final int HEADER_SIZE = 4 + 8 + 1 + 1 + 8 + 4;
+    // Types of the records marking transactions, which readers skip. Markers name the batch they close in the id.
+    // Discarded records were left without their transaction by removeBefore, and are skipped as well.
+    private static final byte BEGIN = 16, COMMITTED = 17, ROLLED_BACK = 18, DISCARDED = 19;
+
+    private final File directory;
+    private final int segmentSize;
+    private final List<Segment> segments = new CopyOnWriteArrayList<Segment>();
+    // Batches prepared but not marked yet, by id, guarded by this.
+    private final Map<Long, Batch> open = new HashMap<Long, Batch>();
+    // Batches found unmarked when opening the journal, guarded by this.
+    private final List<Batch> unresolved = new ArrayList<Batch>();
+    private final Object forceLock = new Object();
+    // Segments before this one were forced after their last write, guarded by forceLock.
+    private int firstUnforced;
+
+    public enum EntityType
+    {
+        NODE, RELATIONSHIP
+    }
+
+    public enum RecordType
+    {
+        CREATED, DELETED, PROPERTY_CHANGED
+    }
+
+    public static class Record
+    {
+        private final long version;
+        private final RecordType type;
+        private final EntityType entityType;
+        private final long entityId;
+        private final String key;
+        private final Object oldValue;
+        private final Object newValue;
+
+        Record( long version, RecordType type, EntityType entityType, long entityId, String key, Object oldValue,
+            Object newValue )
+        {
+            this.version = version;
+            this.type = type;
+            this.entityType = entityType;
+            this.entityId = entityId;
+            this.key = key;
+            this.oldValue = oldValue;
+            this.newValue = newValue;
+        }
+
+        static Record created( long version, PropertyContainer entity )
+        {
+            return new Record( version, RecordType.CREATED, entityType( entity ), id( entity ), null, null, null );
+        }
+
+        static Record deleted( long version, PropertyContainer entity )
+        {
+            return new Record( version, RecordType.DELETED, entityType( entity ), id( entity ), null, null, null );
+        }
+
+        static Record propertyChanged( long version, PropertyContainer entity, String key, Object oldValue,
+            Object newValue )
+        {
+            return new Record( version, RecordType.PROPERTY_CHANGED, entityType( entity ), id( entity ), key,
+                oldValue, newValue );
+        }
+
+        private static EntityType entityType( PropertyContainer entity )
+        {
+            return entity instanceof Relationship ? EntityType.RELATIONSHIP : EntityType.NODE;
+        }
+
+        private static long id( PropertyContainer entity )
+        {
+            return entity instanceof Relationship ? ( (Relationship) entity ).getId() : ( (Node) entity ).getId();
+        }
+
+        public long getVersion()
+        {
+            return version;
+        }
+
+        public RecordType getType()
+        {
+            return type;
+        }
+
+        public EntityType getEntityType()
+        {
+            return entityType;
+        }
+
+        public long getEntityId()
+        {
+            return entityId;
+        }
+
+        /**
+         * @return the key of the property that changed, {@code null} unless this is a property change.
+         */
+        public String getKey()
+        {
+            return key;
+        }
+
+        /**
+         * @return the value before the change, {@code null} if the property wasn't there.
+         */
+        public Object getOldValue()
+        {
+            return oldValue;
+        }
+
+        /**
+         * @return the value after the change, {@code null} if the property was removed.
+         */
+        public Object getNewValue()
+        {
+            return newValue;
+        }
+
+        @Override
+        public String toString()
+        {
+            return version + ": " + type + " " + entityType + " " + entityId + ( key == null ? "" :
+                "." + key + " " + valueToString( oldValue ) + " -> " + valueToString( newValue ) );
+        }
+
+        private static String valueToString( Object value )
+        {
+            if ( value != null && value.getClass().isArray() )
+            {
+                List<Object> elements = new ArrayList<Object>();
+                for ( int i = 0; i < Array.getLength( value ); i++ )
+                {
+                    elements.add( Array.get( value, i ) );
+                }
+                return elements.toString();
+            }
+            return String.valueOf( value );
+        }
+    }
+
+    /**
+     * A mapped segment file. Only the journal appends to it, readers see everything up to {@link #end} except for the
+     * {@link #hidden} ranges.
+     */
+    private static class Segment
+    {
+        private final long number;
+        private final MappedByteBuffer buffer;
+        private volatile int end;
+        // Start and end offsets of the records of transactions that aren't committed, sorted. Hidden before the end
+        // moves past them, so read after the end.
+        private volatile int[] hidden = new int[0];
+        private volatile long minVersion = Long.MAX_VALUE;
+        private volatile long maxVersion = Long.MIN_VALUE;
+        private volatile long minNodeId = Long.MAX_VALUE;
+        private volatile long maxNodeId = Long.MIN_VALUE;
+        private volatile long minRelationshipId = Long.MAX_VALUE;
+        private volatile long maxRelationshipId = Long.MIN_VALUE;
+
+        Segment( long number, MappedByteBuffer buffer )
+        {
+            this.number = number;
+            this.buffer = buffer;
+        }
+
+        /**
+         * Finds the end of the records already in the segment, which is where the first zero length is, or a record
+         * that was cut off.
+         */
+        void recover()
+        {
+            int position = 0;
+            while ( position + HEADER_SIZE <= buffer.capacity() )
+            {
+                int length = buffer.getInt( position );
+                if ( length < HEADER_SIZE || position + length > buffer.capacity() )
+                {
+                    break;
+                }
+                include( buffer, position );
+                position += length;
+            }
+            end = position;
+        }
+
+        /**
+         * Makes the records up to {@code end} visible, after marking the end in the file, so that a cut off record
+         * left behind by a crash isn't mistaken for the continuation when recovering.
+         */
+        void publish( int end )
+        {
+            if ( end + 4 <= buffer.capacity() )
+            {
+                buffer.putInt( end, 0 );
+            }
+            this.end = end;
+        }
+
+        /**
+         * Widens the versions and entity ids the segment is known to hold by those of the record at {@code position}.
+         * Only the journal calls this, while appending or opening.
+         */
+        void include( ByteBuffer records, int position )
+        {
+            long version = records.getLong( position + 4 );
+            minVersion = Math.min( minVersion, version );
+            maxVersion = Math.max( maxVersion, version );
+            byte type = records.get( position + 12 );
+            if ( type >= BEGIN )
+            {
+                return;
+            }
+            long entityId = records.getLong( position + 14 );
+            if ( records.get( position + 13 ) == EntityType.NODE.ordinal() )
+            {
+                minNodeId = Math.min( minNodeId, entityId );
+                maxNodeId = Math.max( maxNodeId, entityId );
+            }
+            else
+            {
+                minRelationshipId = Math.min( minRelationshipId, entityId );
+                maxRelationshipId = Math.max( maxRelationshipId, entityId );
+            }
+        }
+
+        boolean overlaps( long from, long to )
+        {
+            return end > 0 && minVersion <= to && maxVersion >= from;
+        }
+
+        boolean mayHold( EntityType entityType, long entityId )
+        {
+            return entityType == EntityType.NODE ? minNodeId <= entityId && maxNodeId >= entityId :
+                minRelationshipId <= entityId && maxRelationshipId >= entityId;
+        }
+
+        void hide( int start, int end )
+        {
+            int[] current = hidden;
+            int index = 0;
+            while ( index < current.length && current[index] < start )
+            {
+                index += 2;
+            }
+            int[] changed = new int[current.length + 2];
+            System.arraycopy( current, 0, changed, 0, index );
+            changed[index] = start;
+            changed[index + 1] = end;
+            System.arraycopy( current, index, changed, index + 2, current.length - index );
+            hidden = changed;
+        }
+
+        void show( int start )
+        {
+            int[] current = hidden;
+            for ( int index = 0; index < current.length; index += 2 )
+            {
+                if ( current[index] == start )
+                {
+                    int[] changed = new int[current.length - 2];
+                    System.arraycopy( current, 0, changed, 0, index );
+                    System.arraycopy( current, index + 2, changed, index, current.length - index - 2 );
+                    hidden = changed;
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Walks the records of a segment that readers see: those not hidden, leaving out the markers.
+     */
+    private static class Cursor
+    {
+        final ByteBuffer records;
+        private final int[] hidden;
+        private int nextHidden;
+        private int position;
+
+        Cursor( Segment segment )
+        {
+            ByteBuffer records = segment.buffer.duplicate();
+            records.limit( segment.end );
+            this.records = records;
+            this.hidden = segment.hidden;
+        }
+
+        /**
+         * @return the position of the next record, or {@code -1} past the last one.
+         */
+        int next()
+        {
+            while ( position < records.limit() )
+            {
+                int current = position;
+                if ( nextHidden < hidden.length && hidden[nextHidden] == current )
+                {
+                    position = hidden[nextHidden + 1];
+                    nextHidden += 2;
+                    continue;
+                }
+                position += records.getInt( current );
+                if ( records.get( current + 12 ) < BEGIN )
+                {
+                    return current;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * The records of one transaction, which can span segments: the start and end offset of the part in each.
+     */
+    private static class Batch
+    {
+        final long version;
+        final List<Segment> segments = new ArrayList<Segment>();
+        final List<int[]> parts = new ArrayList<int[]>();
+
+        Batch( long version )
+        {
+            this.version = version;
+        }
+
+        void add( Segment segment, int start, int end )
+        {
+            if ( end > start )
+            {
+                segments.add( segment );
+                parts.add( new int[] { start, end } );
+            }
+        }
+
+        /**
+         * Batches are named after where their first record is.
+         */
+        long id()
+        {
+            return segments.get( 0 ).number << 32 | parts.get( 0 )[0];
+        }
+
+        void hide()
+        {
+            for ( int i = 0; i < segments.size(); i++ )
+            {
+                segments.get( i ).hide( parts.get( i )[0], parts.get( i )[1] );
+            }
+        }
+
+        void show()
+        {
+            for ( int i = 0; i < segments.size(); i++ )
+            {
+                segments.get( i ).show( parts.get( i )[0] );
+            }
+        }
+
+        List<Record> records()
+        {
+            List<Record> records = new ArrayList<Record>();
+            for ( int i = 0; i < segments.size(); i++ )
+            {
+                ByteBuffer buffer = segments.get( i ).buffer.duplicate();
+                buffer.position( parts.get( i )[0] );
+                while ( buffer.position() < parts.get( i )[1] )
+                {
+                    if ( buffer.get( buffer.position() + 12 ) < BEGIN )
+                    {
+                        records.add( decode( buffer ) );
+                    }
+                    else
+                    {
+                        buffer.position( buffer.position() + buffer.getInt( buffer.position() ) );
+                    }
+                }
+            }
+            return records;
+        }
+    }
+
+    public VersionJournal( File directory ) throws IOException
+    {
+        this( directory, DEFAULT_SEGMENT_SIZE );
+    }
+
+    /**
+     * Opens the journal in {@code directory}, creating it if it's not there, with segment files of
+     * {@code segmentSize} bytes. A record can't be larger than a segment.
+     */
+    public VersionJournal( File directory, int segmentSize ) throws IOException
+    {
+        if ( segmentSize <= HEADER_SIZE )
+            throw new IllegalArgumentException( "Segment size [" + segmentSize + "] is too small." );
+        if ( !directory.isDirectory() && !directory.mkdirs() )
+            throw new IOException( "Couldn't create journal directory [" + directory + "]." );
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        File[] files = directory.listFiles( new FilenameFilter()
+        {
+            public boolean accept( File dir, String name )
+            {
+                return name.startsWith( SEGMENT_PREFIX );
+            }
+        } );
+        Arrays.sort( files, new Comparator<File>()
+        {
+            public int compare( File first, File second )
+            {
+                long firstNumber = segmentNumber( first );
+                long secondNumber = segmentNumber( second );
+                return firstNumber < secondNumber ? -1 : firstNumber == secondNumber ? 0 : 1;
+            }
+        } );
+        for ( File file : files )
+        {
+            Segment segment = map( segmentNumber( file ), (int) file.length() );
+            segment.recover();
+            segments.add( segment );
+        }
+        findBatches();
+    }
+
+    private static long segmentNumber( File file )
+    {
+        return Long.parseLong( file.getName().substring( SEGMENT_PREFIX.length() ) );
+    }
+
+    private Segment map( long number, int size ) throws IOException
+    {
+        RandomAccessFile file = new RandomAccessFile( new File( directory, SEGMENT_PREFIX + number ), "rw" );
+        try
+        {
+            // The mapping stays valid after the file is closed.
+            return new Segment( number, file.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, size ) );
+        }
+        finally
+        {
+            file.close();
+        }
+    }
+
+    /**
+     * Hides the records of the transactions that rolled back, and of those that hadn't been marked when the journal
+     * was closed, which wait for {@link #recover(GraphDatabaseService)}. Records written before there were markers
+     * belong to no batch and stay visible.
+     */
+    private void findBatches()
+    {
+        Map<Long, Batch> unmarked = new LinkedHashMap<Long, Batch>();
+        Batch current = null;
+        for ( Segment segment : segments )
+        {
+            int start = 0;
+            int position = 0;
+            while ( position < segment.end )
+            {
+                byte type = segment.buffer.get( position + 12 );
+                if ( type >= BEGIN && current != null )
+                {
+                    current.add( segment, start, position );
+                    current = null;
+                }
+                if ( type == BEGIN )
+                {
+                    current = new Batch( segment.buffer.getLong( position + 4 ) );
+                    unmarked.put( segment.number << 32 | position, current );
+                    start = position;
+                }
+                else if ( type == COMMITTED || type == ROLLED_BACK )
+                {
+                    Batch marked = unmarked.remove( segment.buffer.getLong( position + 14 ) );
+                    if ( marked != null && type == ROLLED_BACK )
+                    {
+                        marked.hide();
+                    }
+                }
+                position += segment.buffer.getInt( position );
+            }
+            if ( current != null )
+            {
+                current.add( segment, start, position );
+            }
+        }
+        for ( Batch batch : unmarked.values() )
+        {
+            batch.hide();
+            unresolved.add( batch );
+        }
+    }
+
+    /**
+     * Marks the transactions that were being committed when the journal was last closed as committed if
+     * {@code graphDb} shows their changes, and as rolled back otherwise, making the records of those that committed
+     * visible. A transaction shows when the first of its records that can be checked holds in the graph: created
+     * entities and changed properties start a range at the version, deleted entities end one right before it. Changes
+     * that were coalesced into a later range can't be told apart from changes that rolled back.
+     */
+    public synchronized void recover( GraphDatabaseService graphDb )
+    {
+        for ( Batch batch : unresolved )
+        {
+            boolean committed = isCommitted( graphDb, batch );
+            if ( committed )
+            {
+                batch.show();
+            }
+            mark( committed ? COMMITTED : ROLLED_BACK, batch.version, batch.id() );
+        }
+        unresolved.clear();
+        force();
+    }
+
+    private static boolean isCommitted( GraphDatabaseService graphDb, Batch batch )
+    {
+        for ( Record record : batch.records() )
+        {
+            PropertyContainer entity;
+            try
+            {
+                entity = record.entityType == EntityType.NODE ? graphDb.getNodeById( record.entityId ) :
+                    graphDb.getRelationshipById( record.entityId );
+            }
+            catch ( NotFoundException e )
+            {
+                if ( record.type == RecordType.CREATED )
+                {
+                    return false;
+                }
+                // Compacted away, another record has to tell.
+                continue;
+            }
+            if ( record.type == RecordType.DELETED )
+            {
+                return VersionContext.getEndVersion( entity ) == record.version - 1;
+            }
+            for ( VersionedValue<Map<String, Object>> state : PropertyHistory.of( entity, Long.MAX_VALUE ) )
+            {
+                if ( state.getRange().from() <= record.version )
+                {
+                    return state.getRange().from() == record.version;
+                }
+            }
+            return false;
+        }
+        return false;
+    }
+
+    /**
+     * Prepares the records of the changes {@code data} made, as version {@code version}.
+     *
+     * @return the batch to mark {@link #committed(long) committed} or {@link #rolledBack(long) rolled back} once the
+     *         transaction is done, {@link #NO_BATCH} if there was nothing to journal.
+     */
+    long prepare( long version, TransactionData data )
+    {
+        List<Record> records = new ArrayList<Record>();
+        for ( Node node : data.createdNodes() )
+        {
+            records.add( Record.created( version, node ) );
+        }
+        for ( Relationship relationship : data.createdRelationships() )
+        {
+            records.add( Record.created( version, relationship ) );
+        }
+        for ( PropertyEntry<Node> entry : data.assignedNodeProperties() )
+        {
+            addProperty( records, version, entry.entity(), entry.key(), entry.previouslyCommitedValue(),
+                entry.value() );
+        }
+        for ( PropertyEntry<Node> entry : data.removedNodeProperties() )
+        {
+            addProperty( records, version, entry.entity(), entry.key(), entry.previouslyCommitedValue(), null );
+        }
+        for ( PropertyEntry<Relationship> entry : data.assignedRelationshipProperties() )
+        {
+            addProperty( records, version, entry.entity(), entry.key(), entry.previouslyCommitedValue(),
+                entry.value() );
+        }
+        for ( PropertyEntry<Relationship> entry : data.removedRelationshipProperties() )
+        {
+            addProperty( records, version, entry.entity(), entry.key(), entry.previouslyCommitedValue(), null );
+        }
+        return prepare( records );
+    }
+
+    private static void addProperty( List<Record> records, long version, PropertyContainer entity, String key,
+        Object oldValue, Object newValue )
+    {
+        if ( key.equals( VersionContext.DELETED_PROP_KEY ) )
+        {
+            records.add( Record.deleted( version, entity ) );
+        }
+        else if ( !VersionContext.isInternalProperty( key ) )
+        {
+            records.add( Record.propertyChanged( version, entity, key, oldValue, newValue ) );
+        }
+    }
+
+    /**
+     * Appends {@code records}, all of the same version, which stay hidden from readers until they are marked
+     * {@link #committed(long) committed}.
+     *
+     * @return the batch to mark once the transaction is done, {@link #NO_BATCH} if {@code records} is empty.
+     */
+    synchronized long prepare( List<Record> records )
+    {
+        if ( records.isEmpty() )
+        {
+            return NO_BATCH;
+        }
+        long version = records.get( 0 ).version;
+        try
+        {
+            List<byte[]> encoded = new ArrayList<byte[]>( records.size() + 1 );
+            encoded.add( encode( version, BEGIN, 0, 0, null, null, null ) );
+            for ( Record record : records )
+            {
+                encoded.add( encode( record.version, (byte) record.type.ordinal(), record.entityType.ordinal(),
+                    record.entityId, record.key, record.oldValue, record.newValue ) );
+            }
+            Batch batch = write( version, encoded, true );
+            open.put( batch.id(), batch );
+            return batch.id();
+        }
+        catch ( IOException e )
+        {
+            throw new RuntimeException( "Couldn't append to journal in [" + directory + "].", e );
+        }
+    }
+
+    /**
+     * Makes the records of a {@link #prepare(List) prepared} batch visible, for when its transaction committed.
+     */
+    synchronized void committed( long batch )
+    {
+        Batch committed = open.remove( batch );
+        if ( committed != null )
+        {
+            committed.show();
+            mark( COMMITTED, committed.version, batch );
+        }
+    }
+
+    /**
+     * Leaves the records of a {@link #prepare(List) prepared} batch hidden for good, for when its transaction rolled
+     * back.
+     */
+    synchronized void rolledBack( long batch )
+    {
+        Batch rolledBack = open.remove( batch );
+        if ( rolledBack != null )
+        {
+            mark( ROLLED_BACK, rolledBack.version, batch );
+        }
+    }
+
+    /**
+     * Appends a marker for {@code batch}. Markers aren't forced on their own, a crash that loses one leaves the
+     * batch to {@link #recover(GraphDatabaseService)}.
+     */
+    private void mark( byte type, long version, long batch )
+    {
+        try
+        {
+            write( version, Arrays.asList( encode( version, type, 0, batch, null, null, null ) ), false );
+        }
+        catch ( IOException e )
+        {
+            throw new RuntimeException( "Couldn't append to journal in [" + directory + "].", e );
+        }
+    }
+
+    /**
+     * Writes {@code records} after the last ones, rolling over to new segments as they fill up, and publishes them,
+     * hiding them first if {@code hide}.
+     */
+    private Batch write( long version, List<byte[]> records, boolean hide ) throws IOException
+    {
+        Batch batch = new Batch( version );
+        Segment segment = segments.isEmpty() ? null : segments.get( segments.size() - 1 );
+        int start = segment == null ? 0 : segment.end;
+        int position = start;
+        for ( byte[] bytes : records )
+        {
+            if ( bytes.length > segmentSize )
+                throw new IllegalArgumentException( "Record of " + bytes.length +
+                    " bytes doesn't fit in a segment of " + segmentSize + " bytes." );
+            if ( segment == null || position + bytes.length > segment.buffer.capacity() )
+            {
+                if ( segment != null )
+                {
+                    finishPart( batch, segment, start, position, hide );
+                }
+                segment = map( segment == null ? 0 : segment.number + 1, segmentSize );
+                segments.add( segment );
+                start = 0;
+                position = 0;
+            }
+            ByteBuffer buffer = segment.buffer.duplicate();
+            buffer.position( position );
+            buffer.put( bytes );
+            segment.include( segment.buffer, position );
+            position += bytes.length;
+        }
+        finishPart( batch, segment, start, position, hide );
+        return batch;
+    }
+
+    private static void finishPart( Batch batch, Segment segment, int start, int end, boolean hide )
+    {
+        if ( hide && end > start )
+        {
+            segment.hide( start, end );
+        }
+        batch.add( segment, start, end );
+        segment.publish( end );
+    }
+
+    private static byte[] encode( long version, byte type, int entityType, long entityId, String key,
+        Object oldValue, Object newValue ) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream( 64 );
+        DataOutputStream out = new DataOutputStream( bytes );
+        byte[] keyBytes = key == null ? new byte[0] : key.getBytes( PropertyCodec.UTF8 );
+        out.writeInt( 0 );
+        out.writeLong( version );
+        out.writeByte( type );
+        out.writeByte( entityType );
+        out.writeLong( entityId );
+        out.writeInt( keyBytes.length );
+        out.write( keyBytes );
+        PropertyCodec.writeValue( out, oldValue );
+        PropertyCodec.writeValue( out, newValue );
+        out.flush();
+        byte[] encoded = bytes.toByteArray();
+        ByteBuffer.wrap( encoded ).putInt( 0, encoded.length );
+        return encoded;
+    }
+
+    /**
+     * Decodes the record starting at the position of {@code buffer}, leaving the position after it.
+     */
+    private static Record decode( ByteBuffer buffer )
+    {
+        int start = buffer.position();
+        int length = buffer.getInt();
+        long version = buffer.getLong();
+        RecordType type = RecordType.values()[buffer.get()];
+        EntityType entityType = EntityType.values()[buffer.get()];
+        long entityId = buffer.getLong();
+        byte[] key = new byte[buffer.getInt()];
+        buffer.get( key );
+        Object oldValue = PropertyCodec.readValue( buffer );
+        Object newValue = PropertyCodec.readValue( buffer );
+        buffer.position( start + length );
+        return new Record( version, type, entityType, entityId,
+            type == RecordType.PROPERTY_CHANGED ? new String( key, PropertyCodec.UTF8 ) : null, oldValue, newValue );
+    }
+
+    /**
+     * @return whether the record at {@code position} is about the given entity and, for a property change, has the
+     *         given key, comparing in place.
+     */
+    private static boolean matches( ByteBuffer buffer, int position, EntityType entityType, long entityId,
+        byte[] key )
+    {
+        if ( buffer.get( position + 13 ) != entityType.ordinal() || buffer.getLong( position + 14 ) != entityId )
+        {
+            return false;
+        }
+        if ( key == null )
+        {
+            return true;
+        }
+        if ( buffer.getInt( position + 22 ) != key.length )
+        {
+            return false;
+        }
+        for ( int i = 0; i < key.length; i++ )
+        {
+            if ( buffer.get( position + HEADER_SIZE + i ) != key[i] )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the value property {@code key} of the entity had at {@code version}, according to the journal,
+     *         {@code null} if it wasn't set.
+     */
+    public Object getProperty( EntityType entityType, long entityId, String key, long version )
+    {
+        byte[] keyBytes = key.getBytes( PropertyCodec.UTF8 );
+        long foundVersion = Long.MIN_VALUE;
+        ByteBuffer found = null;
+        for ( Segment segment : segments )
+        {
+            if ( !segment.overlaps( Long.MIN_VALUE, version ) || !segment.mayHold( entityType, entityId ) )
+            {
+                continue;
+            }
+            Cursor cursor = new Cursor( segment );
+            ByteBuffer records = cursor.records;
+            for ( int position = cursor.next(); position != -1; position = cursor.next() )
+            {
+                long recordVersion = records.getLong( position + 4 );
+                if ( recordVersion <= version && recordVersion >= foundVersion
+                    && records.get( position + 12 ) == RecordType.PROPERTY_CHANGED.ordinal()
+                    && matches( records, position, entityType, entityId, keyBytes ) )
+                {
+                    foundVersion = recordVersion;
+                    found = records;
+                    found.position( position );
+                }
+            }
+        }
+        return found == null ? null : decode( found ).newValue;
+    }
+
+    /**
+     * @return the versions the entity existed at, according to the journal, or {@code null} if its creation isn't
+     *         journaled.
+     */
+    public Range getLifetime( EntityType entityType, long entityId )
+    {
+        long created = -1;
+        long deleted = Long.MAX_VALUE;
+        for ( Segment segment : segments )
+        {
+            if ( !segment.mayHold( entityType, entityId ) )
+            {
+                continue;
+            }
+            Cursor cursor = new Cursor( segment );
+            ByteBuffer records = cursor.records;
+            for ( int position = cursor.next(); position != -1; position = cursor.next() )
+            {
+                byte type = records.get( position + 12 );
+                if ( type != RecordType.PROPERTY_CHANGED.ordinal()
+                    && matches( records, position, entityType, entityId, null ) )
+                {
+                    long recordVersion = records.getLong( position + 4 );
+                    if ( type == RecordType.CREATED.ordinal() )
+                    {
+                        created = recordVersion;
+                    }
+                    else
+                    {
+                        deleted = recordVersion - 1;
+                    }
+                }
+            }
+        }
+        return created == -1 ? null : Range.range( created, deleted );
+    }
+
+    /**
+     * @return the records of the changes made after version {@code from} up to and including version {@code to}, in
+     *         the order they were journaled. Records are decoded lazily as the result is iterated.
+     */
+    public Iterable<Record> diff( final long from, final long to )
+    {
+        if ( to < from )
+            throw new IllegalArgumentException( "Version [" + to + "] is older than [" + from + "]." );
+        return new Iterable<Record>()
+        {
+            public Iterator<Record> iterator()
+            {
+                return new DiffIterator( from + 1, to );
+            }
+        };
+    }
+
+    private class DiffIterator implements Iterator<Record>
+    {
+        private final long from;
+        private final long to;
+        private final Iterator<Segment> remainingSegments = segments.iterator();
+        private Cursor cursor;
+        private Record next;
+
+        DiffIterator( long from, long to )
+        {
+            this.from = from;
+            this.to = to;
+        }
+
+        public boolean hasNext()
+        {
+            while ( next == null )
+            {
+                if ( cursor != null )
+                {
+                    int position = cursor.next();
+                    if ( position == -1 )
+                    {
+                        cursor = null;
+                        continue;
+                    }
+                    long version = cursor.records.getLong( position + 4 );
+                    if ( version >= from && version <= to )
+                    {
+                        cursor.records.position( position );
+                        next = decode( cursor.records );
+                    }
+                }
+                else if ( remainingSegments.hasNext() )
+                {
+                    Segment segment = remainingSegments.next();
+                    cursor = segment.overlaps( from, to ) ? new Cursor( segment ) : null;
+                }
+                else
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public Record next()
+        {
+            if ( !hasNext() )
+            {
+                throw new NoSuchElementException();
+            }
+            Record record = next;
+            next = null;
+            return record;
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Deletes the segments at the start of the journal whose records are all from versions before {@code horizon},
+     * keeping the segment being appended to and any holding records of a transaction that isn't marked yet. Queries
+     * only see the changes in the segments that are left, readers already walking a deleted segment carry on through
+     * its mapping.
+     */
+    synchronized void removeBefore( long horizon )
+    {
+        synchronized ( forceLock )
+        {
+            int count = 0;
+            while ( count < segments.size() - 1 && isRemovable( segments.get( count ), horizon ) )
+            {
+                count++;
+            }
+            if ( count == 0 )
+            {
+                return;
+            }
+            discardOrphans( segments.get( count ) );
+            for ( int i = 0; i < count; i++ )
+            {
+                Segment segment = segments.remove( 0 );
+                File file = new File( directory, SEGMENT_PREFIX + segment.number );
+                if ( !file.delete() )
+                    throw new RuntimeException( "Couldn't delete journal segment [" + file + "]." );
+            }
+            firstUnforced = Math.max( firstUnforced - count, 0 );
+        }
+    }
+
+    private boolean isRemovable( Segment segment, long horizon )
+    {
+        if ( segment.maxVersion >= horizon )
+        {
+            return false;
+        }
+        for ( Batch batch : open.values() )
+        {
+            if ( batch.segments.contains( segment ) )
+            {
+                return false;
+            }
+        }
+        for ( Batch batch : unresolved )
+        {
+            if ( batch.segments.contains( segment ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Marks the records {@code segment} starts with as discarded if they belong to a transaction that rolled back and
+     * began in a segment about to be deleted. Without their beginning, opening the journal again would take them for
+     * records written before there were markers, and show them.
+     */
+    private static void discardOrphans( Segment segment )
+    {
+        int[] hidden = segment.hidden;
+        if ( segment.end == 0 || segment.buffer.get( 12 ) >= BEGIN || hidden.length == 0 || hidden[0] != 0 )
+        {
+            return;
+        }
+        for ( int position = 0; position < hidden[1]; position += segment.buffer.getInt( position ) )
+        {
+            segment.buffer.put( position + 12, DISCARDED );
+        }
+        segment.buffer.force();
+    }
+
+    /**
+     * Flushes what was written to the segments to disk, starting at the last segment the previous call forced.
+     * Concurrent calls take turns.
+     */
+    public void force()
+    {
+        synchronized ( forceLock )
+        {
+            int last = segments.size() - 1;
+            for ( int i = firstUnforced; i <= last; i++ )
+            {
+                segments.get( i ).buffer.force();
+            }
+            firstUnforced = Math.max( last, 0 );
+        }
+    }
+}
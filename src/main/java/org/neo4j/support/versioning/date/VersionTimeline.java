@@ -0,0 +1,223 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import org.neo4j.graphdb.NotFoundException;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Maps wall clock time to versions, for reading the graph as it was at a given instant.
+ * <p>
+ * The {@link VersioningTransactionEventHandler} the timeline is
+ * {@link VersioningTransactionEventHandler#setTimeline(VersionTimeline) set on} records the time every version is
+ * allocated. Versions and timestamps are kept in two parallel, sorted sequences of primitive longs, in chunks of
+ * {@link #CHUNK_SIZE} so that growing never copies more than the chunk references. Lookups are binary searches and
+ * don't touch the graph. Timestamps are forced to never decrease, so a clock going backwards can't unsort them, and a
+ * version allocated before one already recorded is skipped, as the newer version already answers for its time.
+ * <p>
+ * A timeline created with a file appends every entry to it and reads the existing ones back when opened. Readers
+ * don't block the writer, or each other.
+ */
+public class VersionTimeline
+{
+    public static final int CHUNK_SIZE = 1 << 16;
+    private static final int ENTRY_SIZE = 16;
+
+    private volatile long[][] versions = new long[0][];
+    private volatile long[][] timestamps = new long[0][];
+    private volatile long size;
+    private final FileChannel channel;
+    private final ByteBuffer entryBuffer = ByteBuffer.allocate( ENTRY_SIZE );
+
+    /**
+     * A timeline that is only kept in memory.
+     */
+    public VersionTimeline()
+    {
+        this.channel = null;
+    }
+
+    /**
+     * A timeline persisted in {@code file}, with the entries already in it loaded.
+     */
+    public VersionTimeline( File file ) throws IOException
+    {
+        if ( file.exists() )
+        {
+            DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) );
+            try
+            {
+                while ( true )
+                {
+                    long version = in.readLong();
+                    add( version, in.readLong() );
+                }
+            }
+            catch ( EOFException e )
+            {
+                // A cut off entry at the end is dropped below.
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        this.channel = new RandomAccessFile( file, "rw" ).getChannel();
+        channel.truncate( size * ENTRY_SIZE );
+        channel.position( size * ENTRY_SIZE );
+    }
+
+    /**
+     * Records that {@code version} was allocated at {@code timestamp}, in milliseconds since the epoch.
+     */
+    synchronized void record( long version, long timestamp )
+    {
+        if ( size > 0 && version <= get( versions, size - 1 ) )
+        {
+            return;
+        }
+        if ( size > 0 )
+        {
+            timestamp = Math.max( timestamp, get( timestamps, size - 1 ) );
+        }
+        if ( channel != null )
+        {
+            entryBuffer.clear();
+            entryBuffer.putLong( version ).putLong( timestamp ).flip();
+            try
+            {
+                while ( entryBuffer.hasRemaining() )
+                {
+                    channel.write( entryBuffer );
+                }
+            }
+            catch ( IOException e )
+            {
+                throw new RuntimeException( "Couldn't record version [" + version + "] in the timeline.", e );
+            }
+        }
+        add( version, timestamp );
+    }
+
+    private void add( long version, long timestamp )
+    {
+        int chunk = (int) ( size / CHUNK_SIZE );
+        int offset = (int) ( size % CHUNK_SIZE );
+        if ( offset == 0 && chunk == versions.length )
+        {
+            versions = grow( versions );
+            timestamps = grow( timestamps );
+        }
+        versions[chunk][offset] = version;
+        timestamps[chunk][offset] = timestamp;
+        size++;
+    }
+
+    private static long[][] grow( long[][] chunks )
+    {
+        long[][] grown = new long[chunks.length + 1][];
+        System.arraycopy( chunks, 0, grown, 0, chunks.length );
+        grown[chunks.length] = new long[CHUNK_SIZE];
+        return grown;
+    }
+
+    private static long get( long[][] chunks, long index )
+    {
+        return chunks[(int) ( index / CHUNK_SIZE )][(int) ( index % CHUNK_SIZE )];
+    }
+
+    /**
+     * @return the newest version allocated at or before {@code timestamp}, in milliseconds since the epoch.
+     * @throws NotFoundException if {@code timestamp} is before the first version recorded.
+     */
+    public long getVersionAt( long timestamp )
+    {
+        long count = size;
+        long[][] timestampChunks = timestamps;
+        long[][] versionChunks = versions;
+        long index = lastIndexAtOrBefore( timestampChunks, count, timestamp );
+        if ( index < 0 )
+            throw new NotFoundException( "No version recorded at or before [" + timestamp + "]." );
+        return get( versionChunks, index );
+    }
+
+    /**
+     * @return the time, in milliseconds since the epoch, {@code version} was allocated at, or the newest version
+     *         before it if it isn't recorded itself.
+     * @throws NotFoundException if {@code version} is older than the first version recorded.
+     */
+    public long getTimestamp( long version )
+    {
+        long count = size;
+        long[][] timestampChunks = timestamps;
+        long[][] versionChunks = versions;
+        long index = lastIndexAtOrBefore( versionChunks, count, version );
+        if ( index < 0 )
+            throw new NotFoundException( "No version recorded at or before [" + version + "]." );
+        return get( timestampChunks, index );
+    }
+
+    /**
+     * @return the index of the last of the first {@code count} values that is at most {@code value}, or -1.
+     */
+    private static long lastIndexAtOrBefore( long[][] chunks, long count, long value )
+    {
+        long low = 0;
+        long high = count - 1;
+        while ( low <= high )
+        {
+            long middle = ( low + high ) >>> 1;
+            if ( get( chunks, middle ) <= value )
+            {
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle - 1;
+            }
+        }
+        return high;
+    }
+
+    public long size()
+    {
+        return size;
+    }
+
+    /**
+     * Closes the file the timeline is persisted in, if any. Recording after that fails.
+     */
+    public synchronized void close() throws IOException
+    {
+        if ( channel != null )
+        {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipExpander;
+import org.neo4j.graphdb.RelationshipType;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link RelationshipExpander} for the traversal framework that only expands relationships valid at a given version,
+ * and hands out {@link VersionedNode}s and {@link VersionedRelationship}s so the whole traversal sees the graph as of
+ * that version. The expander uses a {@link VersionContext#forTraversal() traversal context} of its own, so create one
+ * per traversal.
+ */
+public class VersionedExpander implements RelationshipExpander
+{
+    private final VersionContext versionContext;
+    private final RelationshipType[] types;
+    private final Direction[] directions;
+
+    private VersionedExpander( VersionContext versionContext, RelationshipType[] types, Direction[] directions )
+    {
+        this.versionContext = versionContext;
+        this.types = types;
+        this.directions = directions;
+    }
+
+    /**
+     * Expands relationships of any type in the given direction.
+     */
+    public static VersionedExpander forDirection( VersionContext versionContext, Direction direction )
+    {
+        return new VersionedExpander( versionContext.forTraversal(), new RelationshipType[] { null },
+            new Direction[] { direction } );
+    }
+
+    public static VersionedExpander forTypes( VersionContext versionContext, RelationshipType type, Direction direction )
+    {
+        return new VersionedExpander( versionContext.forTraversal(), new RelationshipType[] { type },
+            new Direction[] { direction } );
+    }
+
+    public static VersionedExpander forTypes( VersionContext versionContext, RelationshipType firstType,
+        Direction firstDirection, RelationshipType secondType, Direction secondDirection )
+    {
+        return new VersionedExpander( versionContext.forTraversal(), new RelationshipType[] { firstType, secondType },
+            new Direction[] { firstDirection, secondDirection } );
+    }
+
+    public Iterable<Relationship> expand( Node node )
+    {
+        Node rawNode = node instanceof VersionedNode ? ( (VersionedNode) node ).getRawNode() : node;
+        GraphDatabaseService graphDb = rawNode.getGraphDatabase();
+        RelationshipIntervalIndex index = RelationshipIntervalIndex.forGraph( graphDb );
+        List<Relationship> relationships = new ArrayList<Relationship>();
+        for ( int i = 0; i < types.length; i++ )
+        {
+            long[] relationshipIds = types[i] == null ?
+                index.getRelationships( rawNode, directions[i], versionContext.version() ) :
+                index.getRelationships( rawNode, directions[i], versionContext.version(), types[i] );
+            for ( long relationshipId : relationshipIds )
+            {
+                relationships.add( new VersionedRelationship( graphDb.getRelationshipById( relationshipId ),
+                    versionContext ) );
+            }
+        }
+        return relationships;
+    }
+
+    public RelationshipExpander reversed()
+    {
+        Direction[] reversedDirections = new Direction[directions.length];
+        for ( int i = 0; i < directions.length; i++ )
+        {
+            reversedDirections[i] = directions[i].reverse();
+        }
+        return new VersionedExpander( versionContext, types, reversedDirections );
+    }
+}
@@ -0,0 +1,321 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.graphdb.index.IndexHits;
+import org.neo4j.index.lucene.ValueContext;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.neo4j.support.versioning.date.VersionContext.HEAD_NODE_PROPERTY;
+import static org.neo4j.support.versioning.date.VersionContext.VALID_FROM_PROPERTY;
+import static org.neo4j.support.versioning.date.VersionContext.VALID_TO_PROPERTY;
+
+/**
+ * A node index over a fixed set of property keys that can be queried at any version.
+ * <p>
+ * Every property holder gets a document with the values its keys had and its validity range, as the numeric fields
+ * {@link VersionContext#VALID_FROM_PROPERTY} and {@link VersionContext#VALID_TO_PROPERTY}. The head node's document
+ * is open ended and moves forward whenever its properties change, the historic node taking over the old properties
+ * gets a document for the range that was just closed. A query at version {@code v} adds a range filter on both fields,
+ * so Lucene only returns documents valid at {@code v}, and historic nodes are mapped back to their head node through
+ * {@link VersionContext#HEAD_NODE_PROPERTY}.
+ * <p>
+ * The index is kept up to date by the {@link VersioningTransactionEventHandler} it's
+ * {@link VersioningTransactionEventHandler#addIndex(VersionedIndex) added to}, don't add to or remove from the
+ * underlying index directly. Nodes that already have values when the index is set up need to be
+ * {@link #reindex(Node) reindexed}. The {@link HistoryCompactor} removes the documents of the holders it removes.
+ * <p>
+ * History written to a {@link HistoryBackend} has no holder node to index, so while a backend is set for the graph
+ * only the head can be queried, and queries at older versions throw {@link UnsupportedOperationException}. With an
+ * {@link AsyncHistoryWriter} set, head documents are updated at commit, but the historic node of a change only gets
+ * its document once the writer has written it, so queries at older versions {@link AsyncHistoryWriter#flush() flush}
+ * the writer first.
+ */
+public class VersionedIndex
+{
+    private final GraphDatabaseService graphDb;
+    private final Index<Node> index;
+    private final Set<String> keys;
+    private volatile VersioningTransactionEventHandler versioningTransactionEventHandler;
+
+    public VersionedIndex( GraphDatabaseService graphDb, String indexName, String... keys )
+    {
+        this.graphDb = graphDb;
+        this.index = graphDb.index().forNodes( indexName );
+        this.keys = Collections.unmodifiableSet( new LinkedHashSet<String>( Arrays.asList( keys ) ) );
+    }
+
+    public String getName()
+    {
+        return index.getName();
+    }
+
+    public Set<String> getKeys()
+    {
+        return keys;
+    }
+
+    /**
+     * @return the nodes whose property {@code key} had {@code value} at the version of {@code versionContext}.
+     */
+    public List<Node> get( String key, Object value, VersionContext versionContext )
+    {
+        return query( new TermQuery( new Term( key, value.toString() ) ), versionContext );
+    }
+
+    /**
+     * Queries at versions older than the head flush the {@link AsyncHistoryWriter} first if one is set, so run them
+     * outside of a transaction.
+     *
+     * @return the nodes matching {@code query} at the version of {@code versionContext}.
+     * @throws UnsupportedOperationException if that's older than the head and history is written to a
+     *             {@link HistoryBackend}.
+     */
+    public List<Node> query( Query query, VersionContext versionContext )
+    {
+        VersioningTransactionEventHandler handler = versioningTransactionEventHandler;
+        if ( handler != null && HistoryBackend.forGraph( graphDb ) != null &&
+            versionContext.version() < handler.getLatestVersion() )
+        {
+            throw new UnsupportedOperationException( "History written to a backend isn't indexed, [" + getName() +
+                "] can't be queried at version [" + versionContext.version() + "]." );
+        }
+        AsyncHistoryWriter writer = handler == null ? null : handler.getAsyncHistoryWriter();
+        if ( writer != null && versionContext.version() < handler.getLatestVersion() )
+        {
+            // The historic nodes of pending records aren't indexed yet.
+            writer.flush();
+        }
+        BooleanQuery versionedQuery = new BooleanQuery();
+        versionedQuery.add( query, BooleanClause.Occur.MUST );
+        versionedQuery.add( NumericRangeQuery.newLongRange( VALID_FROM_PROPERTY, null, versionContext.version(), true,
+            true ), BooleanClause.Occur.MUST );
+        versionedQuery.add( NumericRangeQuery.newLongRange( VALID_TO_PROPERTY, versionContext.version(), null, true,
+            true ), BooleanClause.Occur.MUST );
+        List<Node> nodes = new ArrayList<Node>();
+        IndexHits<Node> hits = index.query( versionedQuery );
+        try
+        {
+            for ( Node propHolder : hits )
+            {
+                Long headNodeId = (Long) propHolder.getProperty( HEAD_NODE_PROPERTY, null );
+                Node node = headNodeId == null ? propHolder :
+                    propHolder.getGraphDatabase().getNodeById( headNodeId );
+                nodes.add( versionContext.node( node ) );
+            }
+        }
+        finally
+        {
+            hits.close();
+        }
+        return nodes;
+    }
+
+    /**
+     * Indexes the current values of {@code node}, for nodes that had values before the index was set up. Run it in a
+     * transaction with versioning suspended.
+     */
+    public void reindex( Node node )
+    {
+        Map<String, Object> values = values( node, Collections.<String, Object>emptyMap() );
+        if ( !values.isEmpty() )
+        {
+            addDocument( node, values, VersionContext.getStartVersion( node ), VersionContext.getEndVersion( node ) );
+        }
+    }
+
+    /**
+     * Called when the index is added to {@code handler}, whose latest version is the head.
+     */
+    void addedTo( VersioningTransactionEventHandler handler )
+    {
+        this.versioningTransactionEventHandler = handler;
+    }
+
+    /**
+     * The part of {@link #propertiesRotated(Node, Node, long, long, Map)} that is about {@code historicNode}, for when
+     * the head document is up to date already.
+     */
+    void historyAdded( Node node, Node historicNode, long previousFrom, long version, Map<String, Object> oldValues )
+    {
+        Map<String, Object> previousValues = values( node, oldValues );
+        if ( historicNode != null && !previousValues.isEmpty() )
+        {
+            historicNode.setProperty( HEAD_NODE_PROPERTY, node.getId() );
+            addDocument( historicNode, previousValues, previousFrom, version - 1 );
+        }
+    }
+
+    /**
+     * Called when the properties of {@code node} from {@code previousFrom} move to {@code historicNode}, from version
+     * {@code version} on. A {@code null} historic node means the history went to a {@link HistoryBackend}, where it
+     * isn't indexed, or is left for an {@link AsyncHistoryWriter} to write.
+     */
+    void propertiesRotated( Node node, Node historicNode, long previousFrom, long version,
+        Map<String, Object> oldValues )
+    {
+        historyAdded( node, historicNode, previousFrom, version, oldValues );
+        Map<String, Object> previousValues = values( node, oldValues );
+        Map<String, Object> currentValues = values( node, Collections.<String, Object>emptyMap() );
+        if ( !previousValues.isEmpty() )
+        {
+            for ( Map.Entry<String, Object> value : previousValues.entrySet() )
+            {
+                index.remove( node, value.getKey(), value.getValue() );
+            }
+            index.remove( node, VALID_FROM_PROPERTY, ValueContext.numeric( previousFrom ) );
+            if ( currentValues.isEmpty() )
+            {
+                index.remove( node, VALID_TO_PROPERTY, ValueContext.numeric( Long.MAX_VALUE ) );
+            }
+        }
+        if ( !currentValues.isEmpty() )
+        {
+            for ( Map.Entry<String, Object> value : currentValues.entrySet() )
+            {
+                index.add( node, value.getKey(), value.getValue() );
+            }
+            index.add( node, VALID_FROM_PROPERTY, ValueContext.numeric( version ) );
+            if ( previousValues.isEmpty() )
+            {
+                index.add( node, VALID_TO_PROPERTY, ValueContext.numeric( Long.MAX_VALUE ) );
+            }
+        }
+    }
+
+    /**
+     * Called when a change of the properties of {@code node} at {@code version} was coalesced: {@code historicNode},
+     * the newest below it, now ends at {@code version - 1} instead of {@code previousFrom - 1}, and the head starts at
+     * {@code version}.
+     */
+    void propertiesCoalesced( Node node, Node historicNode, long previousFrom, long version,
+        Map<String, Object> oldValues )
+    {
+        historyExtended( historicNode, previousFrom, version );
+        propertiesRotated( node, null, previousFrom, version, oldValues );
+    }
+
+    /**
+     * The part of {@link #propertiesCoalesced(Node, Node, long, long, Map)} that is about {@code historicNode}, for
+     * when the head document is up to date already.
+     */
+    void historyExtended( Node historicNode, long previousFrom, long version )
+    {
+        if ( historicNode.hasProperty( HEAD_NODE_PROPERTY ) )
+        {
+            index.remove( historicNode, VALID_TO_PROPERTY, ValueContext.numeric( previousFrom - 1 ) );
+            index.add( historicNode, VALID_TO_PROPERTY, ValueContext.numeric( version - 1 ) );
+        }
+    }
+
+    /**
+     * Called when properties of {@code node} changed without its range moving, as happens when a bulk load changes a
+     * node more than once at the same version. {@code oldValues} are the values before the change, {@code null} for
+     * properties that weren't there.
+     */
+    void headChanged( Node node, Map<String, Object> oldValues )
+    {
+        Map<String, Object> previousValues = values( node, oldValues );
+        Map<String, Object> currentValues = values( node, Collections.<String, Object>emptyMap() );
+        long from = VersionContext.getStartVersion( node );
+        if ( !previousValues.isEmpty() )
+        {
+            for ( Map.Entry<String, Object> value : previousValues.entrySet() )
+            {
+                index.remove( node, value.getKey(), value.getValue() );
+            }
+            index.remove( node, VALID_FROM_PROPERTY, ValueContext.numeric( from ) );
+            index.remove( node, VALID_TO_PROPERTY, ValueContext.numeric( Long.MAX_VALUE ) );
+        }
+        if ( !currentValues.isEmpty() )
+        {
+            addDocument( node, currentValues, from, Long.MAX_VALUE );
+        }
+    }
+
+    /**
+     * Called when {@code node} is deleted, its last version being {@code endVersion}.
+     */
+    void nodeEnded( Node node, long endVersion )
+    {
+        if ( !values( node, Collections.<String, Object>emptyMap() ).isEmpty() )
+        {
+            index.remove( node, VALID_TO_PROPERTY, ValueContext.numeric( Long.MAX_VALUE ) );
+            index.add( node, VALID_TO_PROPERTY, ValueContext.numeric( endVersion ) );
+        }
+    }
+
+    /**
+     * Called before {@code propHolder}, a node or one of its historic nodes, is deleted by compaction.
+     */
+    void holderRemoved( Node propHolder )
+    {
+        if ( propHolder.hasProperty( HEAD_NODE_PROPERTY ) || !values( propHolder,
+            Collections.<String, Object>emptyMap() ).isEmpty() )
+        {
+            index.remove( propHolder );
+        }
+    }
+
+    private void addDocument( Node propHolder, Map<String, Object> values, long from, long to )
+    {
+        for ( Map.Entry<String, Object> value : values.entrySet() )
+        {
+            index.add( propHolder, value.getKey(), value.getValue() );
+        }
+        index.add( propHolder, VALID_FROM_PROPERTY, ValueContext.numeric( from ) );
+        index.add( propHolder, VALID_TO_PROPERTY, ValueContext.numeric( to ) );
+    }
+
+    /**
+     * @return the indexed values of {@code node}, with {@code overrides} applied, where {@code null} means the
+     *         property wasn't there.
+     */
+    private Map<String, Object> values( Node node, Map<String, Object> overrides )
+    {
+        Map<String, Object> values = new HashMap<String, Object>();
+        for ( String key : keys )
+        {
+            Object value = overrides.containsKey( key ) ? overrides.get( key ) : node.getProperty( key, null );
+            if ( value != null )
+            {
+                values.put( key, value );
+            }
+        }
+        return values;
+    }
+}
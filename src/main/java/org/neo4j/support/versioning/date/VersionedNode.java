@@ -23,16 +23,16 @@ import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.PropertyContainer;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.RelationshipType;
 import org.neo4j.graphdb.ReturnableEvaluator;
 import org.neo4j.graphdb.StopEvaluator;
 import org.neo4j.graphdb.Traverser;
-import org.neo4j.helpers.Predicate;
-import org.neo4j.helpers.collection.FilteringIterable;
-import org.neo4j.helpers.collection.IterableWrapper;
 
 import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
 
 public class VersionedNode implements Node
 {
@@ -50,6 +50,11 @@ public class VersionedNode implements Node
         return node.getId();
     }
 
+    Node getRawNode()
+    {
+        return node;
+    }
+
     public void delete()
     {
         versionContext.deleteNode( node );
@@ -57,48 +62,63 @@ public class VersionedNode implements Node
 
     public Iterable<Relationship> getRelationships()
     {
-        return getValidRelationships( node.getRelationships() );
+        return getValidRelationships( Direction.BOTH );
     }
 
     public Iterable<Relationship> getRelationships( Direction dir )
     {
-        return getValidRelationships( node.getRelationships( dir ) );
+        return getValidRelationships( dir );
     }
 
     public Iterable<Relationship> getRelationships( RelationshipType... types )
     {
-        return getValidRelationships( node.getRelationships( types ) );
+        return getValidRelationships( Direction.BOTH, types );
     }
 
     public Iterable<Relationship> getRelationships( RelationshipType type, Direction dir )
     {
-        return getValidRelationships( node.getRelationships( type, dir ) );
+        return getValidRelationships( dir, type );
     }
 
     @Override
     public Iterable<Relationship> getRelationships( Direction direction, RelationshipType... types )
     {
-        return getValidRelationships( node.getRelationships( direction, types ) );
+        return getValidRelationships( direction, types );
     }
 
-    private Iterable<Relationship> getValidRelationships( Iterable<Relationship> relationships )
+    private Iterable<Relationship> getValidRelationships( Direction direction, RelationshipType... types )
     {
-        return new IterableWrapper<Relationship, Relationship>( new FilteringIterable<Relationship>( relationships,
-            new Predicate<Relationship>()
-            {
-                public boolean accept( Relationship item )
-                {
-                    boolean valid = versionContext.hasValidVersion( item );
-                    System.out.println( "Inspecting rel: " + item + " (valid=" + valid + ")" );
-                    return valid;
-                }
-            } ) )
+        final GraphDatabaseService graphDb = node.getGraphDatabase();
+        final long[] relationshipIds = RelationshipIntervalIndex.forGraph( graphDb ).getRelationships( node, direction,
+            versionContext.version(), types );
+        return new Iterable<Relationship>()
         {
-            @Override
-            protected Relationship underlyingObjectToObject( Relationship object )
+            public Iterator<Relationship> iterator()
             {
-                System.out.println( "wrapping rel: " + object );
-                return new VersionedRelationship( object, versionContext );
+                return new Iterator<Relationship>()
+                {
+                    private int position;
+
+                    public boolean hasNext()
+                    {
+                        return position < relationshipIds.length;
+                    }
+
+                    public Relationship next()
+                    {
+                        if ( !hasNext() )
+                        {
+                            throw new NoSuchElementException();
+                        }
+                        Relationship relationship = graphDb.getRelationshipById( relationshipIds[position++] );
+                        return new VersionedRelationship( relationship, versionContext );
+                    }
+
+                    public void remove()
+                    {
+                        throw new UnsupportedOperationException();
+                    }
+                };
             }
         };
     }
@@ -149,17 +169,20 @@ public class VersionedNode implements Node
 
     public Traverser traverse( Traverser.Order traversalOrder, StopEvaluator stopEvaluator, ReturnableEvaluator returnableEvaluator, RelationshipType relationshipType, Direction direction )
     {
-        throw new UnsupportedOperationException( "Not implemented." );
+        return new VersionedTraverser( node, versionContext, traversalOrder, stopEvaluator, returnableEvaluator,
+            relationshipType, direction );
     }
 
     public Traverser traverse( Traverser.Order traversalOrder, StopEvaluator stopEvaluator, ReturnableEvaluator returnableEvaluator, RelationshipType firstRelationshipType, Direction firstDirection, RelationshipType secondRelationshipType, Direction secondDirection )
     {
-        throw new UnsupportedOperationException( "Not implemented." );
+        return new VersionedTraverser( node, versionContext, traversalOrder, stopEvaluator, returnableEvaluator,
+            firstRelationshipType, firstDirection, secondRelationshipType, secondDirection );
     }
 
     public Traverser traverse( Traverser.Order traversalOrder, StopEvaluator stopEvaluator, ReturnableEvaluator returnableEvaluator, Object... relationshipTypesAndDirections )
     {
-        throw new UnsupportedOperationException( "Not implemented." );
+        return new VersionedTraverser( node, versionContext, traversalOrder, stopEvaluator, returnableEvaluator,
+            relationshipTypesAndDirections );
     }
 
     public GraphDatabaseService getGraphDatabase()
@@ -202,6 +225,22 @@ public class VersionedNode implements Node
         return versionContext.getPropertyValues( node );
     }
 
+    /**
+     * @see VersionContext#getPropertyHistory(PropertyContainer, String)
+     */
+    public Iterable<VersionedValue<Object>> getPropertyHistory( String key )
+    {
+        return versionContext.getPropertyHistory( node, key );
+    }
+
+    /**
+     * @see VersionContext#getPropertyHistory(PropertyContainer)
+     */
+    public Iterable<VersionedValue<Map<String, Object>>> getPropertyHistory()
+    {
+        return versionContext.getPropertyHistory( node );
+    }
+
     @Override
     public int hashCode()
     {
@@ -21,9 +21,12 @@ package org.neo4j.support.versioning.date;
 
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.PropertyContainer;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.RelationshipType;
 
+import java.util.Map;
+
 public class VersionedRelationship implements Relationship
 {
     private Relationship relationship;
@@ -83,17 +86,17 @@ public class VersionedRelationship implements Relationship
 
     public boolean hasProperty( String key )
     {
-        return relationship.hasProperty( key );
+        return versionContext.hasProperty( relationship, key );
     }
 
     public Object getProperty( String key )
     {
-        return relationship.getProperty( key );
+        return versionContext.getProperty( relationship, key );
     }
 
     public Object getProperty( String key, Object defaultValue )
     {
-        return relationship.getProperty( key, defaultValue );
+        return versionContext.getProperty( relationship, key, defaultValue );
     }
 
     public void setProperty( String key, Object value )
@@ -108,12 +111,28 @@ public class VersionedRelationship implements Relationship
 
     public Iterable<String> getPropertyKeys()
     {
-        return relationship.getPropertyKeys();
+        return versionContext.getPropertyKeys( relationship );
     }
 
     public Iterable<Object> getPropertyValues()
     {
-        return relationship.getPropertyValues();
+        return versionContext.getPropertyValues( relationship );
+    }
+
+    /**
+     * @see VersionContext#getPropertyHistory(PropertyContainer, String)
+     */
+    public Iterable<VersionedValue<Object>> getPropertyHistory( String key )
+    {
+        return versionContext.getPropertyHistory( relationship, key );
+    }
+
+    /**
+     * @see VersionContext#getPropertyHistory(PropertyContainer)
+     */
+    public Iterable<VersionedValue<Map<String, Object>>> getPropertyHistory()
+    {
+        return versionContext.getPropertyHistory( relationship );
     }
 
     @Override
@@ -0,0 +1,299 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.ReturnableEvaluator;
+import org.neo4j.graphdb.StopEvaluator;
+import org.neo4j.graphdb.TraversalPosition;
+import org.neo4j.graphdb.Traverser;
+import org.neo4j.helpers.collection.PrefetchingIterator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Set;
+
+/**
+ * The {@link Traverser} behind {@link VersionedNode#traverse}, with the same semantics as the traversers of plain
+ * nodes: every node is visited once, the stop evaluator decides whether to expand beyond a node and the returnable
+ * evaluator whether to return it.
+ * <p>
+ * Relationships are expanded through the {@link RelationshipIntervalIndex} into one {@link RelationshipCursor} reused
+ * for the whole traversal, so only relationships valid at the version are touched, and relationships leading to nodes
+ * visited before are skipped by id, without loading them. All nodes returned share one
+ * {@link VersionContext#forTraversal() traversal context}, which resolves the historic properties of each node at most
+ * once.
+ */
+class VersionedTraverser implements Traverser
+{
+    private final VersionContext versionContext;
+    private final GraphDatabaseService graphDb;
+    private final Traverser.Order order;
+    private final StopEvaluator stopEvaluator;
+    private final ReturnableEvaluator returnableEvaluator;
+    private final RelationshipType[] types;
+    private final Direction[] directions;
+    private final Set<Long> visited = new HashSet<Long>();
+    private final LinkedList<Object> pending = new LinkedList<Object>();
+    private final RelationshipCursor cursor = new RelationshipCursor();
+    // The relationship and other node ids of the neighbours found by the expansions under way, in pairs. An expansion
+    // that started after another one always finishes first, so each owns the top of the stack from where it started.
+    private long[] candidates = new long[32];
+    private int candidateCount;
+    private final Iterator<Node> iterator;
+    private Position current;
+    private int returnedNodes;
+
+    VersionedTraverser( Node startNode, VersionContext versionContext, Traverser.Order order,
+        StopEvaluator stopEvaluator, ReturnableEvaluator returnableEvaluator, Object... relationshipTypesAndDirections )
+    {
+        if ( relationshipTypesAndDirections.length % 2 != 0 || relationshipTypesAndDirections.length == 0 )
+        {
+            throw new IllegalArgumentException( "Expected pairs of relationship types and directions, got " +
+                relationshipTypesAndDirections.length + " arguments." );
+        }
+        this.versionContext = versionContext.forTraversal();
+        this.graphDb = startNode.getGraphDatabase();
+        this.order = order;
+        this.stopEvaluator = stopEvaluator;
+        this.returnableEvaluator = returnableEvaluator;
+        this.types = new RelationshipType[relationshipTypesAndDirections.length / 2];
+        this.directions = new Direction[types.length];
+        for ( int i = 0; i < types.length; i++ )
+        {
+            Object type = relationshipTypesAndDirections[2 * i];
+            Object direction = relationshipTypesAndDirections[2 * i + 1];
+            if ( !( type instanceof RelationshipType ) || !( direction instanceof Direction ) )
+            {
+                throw new IllegalArgumentException( "Expected a relationship type followed by a direction, got " +
+                    type + ", " + direction + "." );
+            }
+            types[i] = (RelationshipType) type;
+            directions[i] = (Direction) direction;
+        }
+        visited.add( startNode.getId() );
+        pending.add( new Position( startNode, null, null, 0 ) );
+        this.iterator = new TraversalIterator();
+    }
+
+    public TraversalPosition currentPosition()
+    {
+        return current;
+    }
+
+    public Collection<Node> getAllNodes()
+    {
+        Collection<Node> nodes = new ArrayList<Node>();
+        while ( iterator.hasNext() )
+        {
+            nodes.add( iterator.next() );
+        }
+        return nodes;
+    }
+
+    public Iterator<Node> iterator()
+    {
+        return iterator;
+    }
+
+    private class TraversalIterator extends PrefetchingIterator<Node>
+    {
+        @Override
+        protected Node fetchNextOrNull()
+        {
+            Position position;
+            while ( ( position = nextPosition() ) != null )
+            {
+                current = position;
+                if ( !stopEvaluator.isStopNode( position ) )
+                {
+                    if ( order == Order.BREADTH_FIRST )
+                    {
+                        pending.addLast( new Expansion( position ) );
+                    }
+                    else
+                    {
+                        pending.addFirst( new Expansion( position ) );
+                    }
+                }
+                if ( returnableEvaluator.isReturnableNode( position ) )
+                {
+                    returnedNodes++;
+                    return position.currentNode();
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Takes the next node to visit off the queue (breadth first) or stack (depth first), expanding lazily so that a
+     * depth first traversal goes deep before it goes wide.
+     */
+    private Position nextPosition()
+    {
+        while ( !pending.isEmpty() )
+        {
+            Object next = pending.getFirst();
+            if ( next instanceof Position )
+            {
+                pending.removeFirst();
+                return (Position) next;
+            }
+            Expansion expansion = (Expansion) next;
+            Position position = expansion.next();
+            if ( position == null )
+            {
+                pending.removeFirst();
+            }
+            else if ( order == Order.BREADTH_FIRST )
+            {
+                pending.addLast( position );
+            }
+            else
+            {
+                return position;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The not yet visited neighbours of one node, in the order of the relationship types and directions. They're
+     * found when the expansion is first asked for one, and checked again before each is visited.
+     */
+    private class Expansion
+    {
+        private final Position from;
+        private int start = -1;
+        private int index;
+
+        Expansion( Position from )
+        {
+            this.from = from;
+        }
+
+        Position next()
+        {
+            if ( start < 0 )
+            {
+                expand();
+            }
+            while ( index < candidateCount )
+            {
+                long relationshipId = candidates[index++];
+                long otherNodeId = candidates[index++];
+                if ( visited.add( otherNodeId ) )
+                {
+                    Relationship relationship = graphDb.getRelationshipById( relationshipId );
+                    return new Position( relationship.getOtherNode( from.node ), from, relationship, from.depth + 1 );
+                }
+            }
+            candidateCount = start;
+            return null;
+        }
+
+        private void expand()
+        {
+            start = candidateCount;
+            index = start;
+            RelationshipIntervalIndex relationshipIndex = RelationshipIntervalIndex.forGraph( graphDb );
+            for ( int i = 0; i < types.length; i++ )
+            {
+                relationshipIndex.expand( graphDb, from.node.getId(), directions[i], versionContext.version(), cursor,
+                    types[i] );
+                while ( cursor.next() )
+                {
+                    if ( visited.contains( cursor.otherNodeId() ) )
+                    {
+                        continue;
+                    }
+                    if ( candidateCount + 2 > candidates.length )
+                    {
+                        candidates = Arrays.copyOf( candidates, candidates.length * 2 );
+                    }
+                    candidates[candidateCount++] = cursor.relationshipId();
+                    candidates[candidateCount++] = cursor.otherNodeId();
+                }
+            }
+        }
+    }
+
+    private class Position implements TraversalPosition
+    {
+        private final Node node;
+        private final VersionedNode versionedNode;
+        private final Position previous;
+        private final Relationship relationship;
+        private final int depth;
+
+        Position( Node node, Position previous, Relationship relationship, int depth )
+        {
+            this.node = node;
+            this.versionedNode = new VersionedNode( node, versionContext );
+            this.previous = previous;
+            this.relationship = relationship;
+            this.depth = depth;
+        }
+
+        public Node currentNode()
+        {
+            return versionedNode;
+        }
+
+        public Node previousNode()
+        {
+            return previous == null ? null : previous.versionedNode;
+        }
+
+        public Relationship lastRelationshipTraversed()
+        {
+            return relationship == null ? null : new VersionedRelationship( relationship, versionContext );
+        }
+
+        public int depth()
+        {
+            return depth;
+        }
+
+        public int returnedNodesCount()
+        {
+            return returnedNodes;
+        }
+
+        public boolean notStartNode()
+        {
+            return previous != null;
+        }
+
+        public boolean isStartNode()
+        {
+            return previous == null;
+        }
+    }
+}
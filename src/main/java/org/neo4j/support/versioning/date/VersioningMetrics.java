@@ -0,0 +1,237 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Counts what versioning costs in a graph: how far reads walk down chains, how many relationships reads at a version
+ * skip, and how much history and time committing transactions take. Set it on the
+ * {@link VersioningTransactionEventHandler} of the graph, and {@link #registerMBean(String) register} it to read it
+ * over JMX.
+ * <p>
+ * Counting goes to {@link StripedCounters}, so that threads on different cores don't all update the same memory. A
+ * graph without metrics pays one volatile read per chain lookup and relationship expansion.
+ */
+public class VersioningMetrics implements VersioningMetricsMBean
+{
+    public static final String DOMAIN = "org.neo4j.support.versioning";
+    static final int HISTOGRAM_BUCKETS = 16;
+    private static final int CHAIN_LOOKUPS = 0;
+    private static final int CHAIN_HOPS = 1;
+    private static final int RELATIONSHIPS_EXAMINED = 2;
+    private static final int RELATIONSHIPS_RETURNED = 3;
+    private static final int COMMITS = 4;
+    private static final int HISTORY_NODES_CREATED = 5;
+    private static final int BEFORE_COMMIT_NANOS = 6;
+    private static final int VERSION_ALLOCATIONS = 7;
+    private static final int VERSION_LOCK_WAIT_NANOS = 8;
+    private static final int COUNTERS = 9;
+
+    private static final GraphRegistry<VersioningMetrics> metricsByGraph = new GraphRegistry<VersioningMetrics>();
+
+    private final GraphDatabaseService graphDb;
+    private final StripedCounters counters = new StripedCounters( COUNTERS );
+    private final StripedCounters chainHops = new StripedCounters( HISTOGRAM_BUCKETS );
+    private final StripedCounters historyNodesPerCommit = new StripedCounters( HISTOGRAM_BUCKETS );
+    private ObjectName objectName;
+
+    public VersioningMetrics( GraphDatabaseService graphDb )
+    {
+        this.graphDb = graphDb;
+    }
+
+    /**
+     * @return the metrics to count the work done in {@code graphDb} in, or {@code null} if there are none.
+     */
+    static VersioningMetrics forGraph( GraphDatabaseService graphDb )
+    {
+        return metricsByGraph.get( graphDb );
+    }
+
+    static void register( GraphDatabaseService graphDb, VersioningMetrics metrics )
+    {
+        metricsByGraph.put( graphDb, metrics );
+    }
+
+    GraphDatabaseService getGraphDatabase()
+    {
+        return graphDb;
+    }
+
+    /**
+     * Makes these metrics readable over JMX in the platform MBean server, as
+     * {@code org.neo4j.support.versioning:type=VersioningMetrics,name=<name>}.
+     */
+    public synchronized ObjectName registerMBean( String name )
+    {
+        unregisterMBean();
+        try
+        {
+            ObjectName newName = new ObjectName( DOMAIN + ":type=VersioningMetrics,name=" + ObjectName.quote( name ) );
+            ManagementFactory.getPlatformMBeanServer().registerMBean( this, newName );
+            objectName = newName;
+            return objectName;
+        }
+        catch ( JMException e )
+        {
+            throw new RuntimeException( "Couldn't register versioning metrics as [" + name + "].", e );
+        }
+    }
+
+    public synchronized void unregisterMBean()
+    {
+        if ( objectName == null )
+        {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try
+        {
+            if ( server.isRegistered( objectName ) )
+            {
+                server.unregisterMBean( objectName );
+            }
+        }
+        catch ( JMException e )
+        {
+            throw new RuntimeException( "Couldn't unregister versioning metrics [" + objectName + "].", e );
+        }
+        finally
+        {
+            objectName = null;
+        }
+    }
+
+    void chainLookup( int hops )
+    {
+        counters.add( CHAIN_LOOKUPS, 1 );
+        counters.add( CHAIN_HOPS, hops );
+        chainHops.add( bucket( hops ), 1 );
+    }
+
+    void relationshipsExpanded( int examined, int returned )
+    {
+        counters.add( RELATIONSHIPS_EXAMINED, examined );
+        counters.add( RELATIONSHIPS_RETURNED, returned );
+    }
+
+    void versionAllocated( long waitNanos )
+    {
+        counters.add( VERSION_ALLOCATIONS, 1 );
+        counters.add( VERSION_LOCK_WAIT_NANOS, waitNanos );
+    }
+
+    void committed( int historyNodesCreated, long beforeCommitNanos )
+    {
+        counters.add( COMMITS, 1 );
+        counters.add( HISTORY_NODES_CREATED, historyNodesCreated );
+        counters.add( BEFORE_COMMIT_NANOS, beforeCommitNanos );
+        historyNodesPerCommit.add( bucket( historyNodesCreated ), 1 );
+    }
+
+    static int bucket( long value )
+    {
+        return value <= 0 ? 0 : Math.min( HISTOGRAM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros( value ) );
+    }
+
+    public long getChainLookups()
+    {
+        return counters.get( CHAIN_LOOKUPS );
+    }
+
+    public long getChainHops()
+    {
+        return counters.get( CHAIN_HOPS );
+    }
+
+    public double getMeanChainHops()
+    {
+        return mean( counters.get( CHAIN_HOPS ), counters.get( CHAIN_LOOKUPS ) );
+    }
+
+    public long[] getChainHopHistogram()
+    {
+        return chainHops.getAll();
+    }
+
+    public long getRelationshipsReturned()
+    {
+        return counters.get( RELATIONSHIPS_RETURNED );
+    }
+
+    public long getRelationshipsFiltered()
+    {
+        // Both are read while other threads may be adding to them, so the difference can briefly be off.
+        return Math.max( 0, counters.get( RELATIONSHIPS_EXAMINED ) - counters.get( RELATIONSHIPS_RETURNED ) );
+    }
+
+    public long getCommits()
+    {
+        return counters.get( COMMITS );
+    }
+
+    public long getHistoryNodesCreated()
+    {
+        return counters.get( HISTORY_NODES_CREATED );
+    }
+
+    public long[] getHistoryNodesPerCommitHistogram()
+    {
+        return historyNodesPerCommit.getAll();
+    }
+
+    public long getBeforeCommitNanos()
+    {
+        return counters.get( BEFORE_COMMIT_NANOS );
+    }
+
+    public double getMeanBeforeCommitMicros()
+    {
+        return mean( counters.get( BEFORE_COMMIT_NANOS ), counters.get( COMMITS ) ) / 1000;
+    }
+
+    public long getVersionLockWaitNanos()
+    {
+        return counters.get( VERSION_LOCK_WAIT_NANOS );
+    }
+
+    public double getMeanVersionLockWaitMicros()
+    {
+        return mean( counters.get( VERSION_LOCK_WAIT_NANOS ), counters.get( VERSION_ALLOCATIONS ) ) / 1000;
+    }
+
+    public void reset()
+    {
+        counters.reset();
+        chainHops.reset();
+        historyNodesPerCommit.reset();
+    }
+
+    private static double mean( long total, long count )
+    {
+        return count == 0 ? 0 : (double) total / count;
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+/**
+ * What {@link VersioningMetrics} exposes over JMX. Histograms are arrays of counts in which element 0 counts zeros
+ * and element {@code i} counts values from {@code 2^(i-1)} up to {@code 2^i - 1}, except for the last element, which
+ * counts everything from {@code 2^(i-1)} up.
+ */
+public interface VersioningMetricsMBean
+{
+    /**
+     * @return the number of searches for the historic node holding the properties at a version.
+     */
+    long getChainLookups();
+
+    /**
+     * @return the number of historic nodes the chain lookups stepped over to get to the one they were after.
+     */
+    long getChainHops();
+
+    double getMeanChainHops();
+
+    long[] getChainHopHistogram();
+
+    /**
+     * @return the number of relationships the relationship interval index handed out as valid at the version asked
+     *         for.
+     */
+    long getRelationshipsReturned();
+
+    /**
+     * @return the number of relationships the relationship interval index looked at but left out, because they
+     *         weren't valid at the version asked for or went the other way.
+     */
+    long getRelationshipsFiltered();
+
+    /**
+     * @return the number of versioned transactions committed.
+     */
+    long getCommits();
+
+    /**
+     * @return the number of historic nodes, and history nodes of relationships, created by committing transactions.
+     */
+    long getHistoryNodesCreated();
+
+    long[] getHistoryNodesPerCommitHistogram();
+
+    /**
+     * @return the total time spent versioning committing transactions, in nanoseconds.
+     */
+    long getBeforeCommitNanos();
+
+    double getMeanBeforeCommitMicros();
+
+    /**
+     * @return the total time spent allocating versions, which is mostly spent waiting for the version lock, in
+     *         nanoseconds.
+     */
+    long getVersionLockWaitNanos();
+
+    double getMeanVersionLockWaitMicros();
+
+    /**
+     * Starts counting from zero again.
+     */
+    void reset();
+}
@@ -19,8 +19,9 @@
  */
 package org.neo4j.support.versioning.date;
 
-import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.PropertyContainer;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.event.PropertyEntry;
 import org.neo4j.graphdb.event.TransactionData;
@@ -28,7 +29,12 @@ import org.neo4j.graphdb.event.TransactionEventHandler;
 import org.neo4j.support.versioning.Range;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import static org.neo4j.support.versioning.Range.range;
 import static org.neo4j.support.versioning.date.VersionContext.getStartVersion;
@@ -38,32 +44,405 @@ import static org.neo4j.support.versioning.date.VersionContext.setVersion;
 
 public class VersioningTransactionEventHandler implements TransactionEventHandler<Object>
 {
-    private static final String LATEST_VERSION_PROP_KEY = "__LATEST_VERSION__";
-    public static final String LOCK_PROP_KEY = "__DUMMY_LOCK__";
-    private final Node versionDataNode;
+    public static final String LOCK_PROP_KEY = LockingVersionAllocator.LOCK_PROP_KEY;
+    private static final ThreadLocal<Boolean> versioningSuspended = new ThreadLocal<Boolean>();
+    private final VersionAllocator versionAllocator;
+    // Allocated versions whose commit hasn't updated the in-memory indexes yet, guarded by itself.
+    private final SortedSet<Long> unpublished = new TreeSet<Long>();
+    // The highest version allocated since this handler was created, guarded by unpublished.
+    private long highestAllocated = -1;
+    private int keyframeInterval = 1;
+    private Checkpoints checkpoints;
+    private volatile long checkpointInterval;
+    private long lastCheckpoint;
+    private final List<VersionedIndex> indexes = new CopyOnWriteArrayList<VersionedIndex>();
+    private volatile ChangeLog changeLog;
+    private volatile VersionJournal journal;
+    private volatile VersionTimeline timeline;
+    private volatile AsyncHistoryWriter asyncHistoryWriter;
+    private volatile VersioningMetrics metrics;
+    private volatile CoalescingPolicy coalescingPolicy;
+    private volatile boolean propertyKeyHistory;
 
     public VersioningTransactionEventHandler( Node versionDataNode )
     {
-        this.versionDataNode = versionDataNode;
+        this( new LockingVersionAllocator( versionDataNode ) );
+    }
+
+    public VersioningTransactionEventHandler( VersionAllocator versionAllocator )
+    {
+        this.versionAllocator = versionAllocator;
+    }
+
+    /**
+     * Transactions committed by the current thread from now on are maintenance work on the versioned graph itself
+     * and pass through unversioned, until {@link #resumeVersioning()} is called.
+     */
+    public static void suspendVersioning()
+    {
+        versioningSuspended.set( Boolean.TRUE );
+    }
+
+    public static void resumeVersioning()
+    {
+        versioningSuspended.remove();
+    }
+
+    private static boolean isVersioningSuspended()
+    {
+        return versioningSuspended.get() != null;
+    }
+
+    /**
+     * Only every {@code keyframeInterval}th historic node gets a complete copy of the properties, the ones in between
+     * just record the keys that changed. The default of 1 copies everything, every time.
+     */
+    public void setKeyframeInterval( int keyframeInterval )
+    {
+        if ( keyframeInterval < 1 )
+            throw new IllegalArgumentException( "Keyframe interval must be positive, was [" + keyframeInterval + "]." );
+        this.keyframeInterval = keyframeInterval;
+    }
+
+    /**
+     * Takes a {@link Checkpoints checkpoint} in the background whenever the latest version has moved
+     * {@code checkpointInterval} versions past the last one. Zero turns it off again.
+     */
+    public synchronized void setCheckpointInterval( GraphDatabaseService graphDb, long checkpointInterval )
+    {
+        if ( checkpointInterval < 0 )
+            throw new IllegalArgumentException( "Checkpoint interval can't be negative, was [" + checkpointInterval + "]." );
+        this.checkpoints = Checkpoints.forGraph( graphDb );
+        this.checkpointInterval = checkpointInterval;
+        this.lastCheckpoint = getLatestVersion();
+    }
+
+    /**
+     * Keeps {@code index} up to date with the changes committed from now on.
+     */
+    public void addIndex( VersionedIndex index )
+    {
+        index.addedTo( this );
+        indexes.add( index );
+    }
+
+    /**
+     * Records what every transaction committed from now on changed in {@code changeLog}, {@code null} stops
+     * recording. {@link Checkpoints} of the change log's graph are built from it from then on.
+     */
+    public synchronized void setChangeLog( ChangeLog changeLog )
+    {
+        ChangeLog previous = this.changeLog;
+        this.changeLog = changeLog;
+        if ( previous != null )
+        {
+            Checkpoints.forGraph( previous.getGraphDatabase() ).setChangeLog( null, 0 );
+        }
+        if ( changeLog != null )
+        {
+            // A transaction that saw no change log had allocated its version before it was set.
+            long coveredAfter;
+            synchronized ( unpublished )
+            {
+                coveredAfter = Math.max( highestAllocated, versionAllocator.getLatestVersion() );
+            }
+            Checkpoints.forGraph( changeLog.getGraphDatabase() ).setChangeLog( changeLog, coveredAfter );
+        }
+    }
+
+    public ChangeLog getChangeLog()
+    {
+        return changeLog;
+    }
+
+    /**
+     * Appends the changes of every transaction committed from now on to {@code journal}, {@code null} stops
+     * journaling. Transactions the journal was left in the middle of are {@link VersionJournal#recover recovered}
+     * against {@code graphDb} first.
+     */
+    public void setJournal( GraphDatabaseService graphDb, VersionJournal journal )
+    {
+        if ( journal != null )
+        {
+            journal.recover( graphDb );
+        }
+        this.journal = journal;
+    }
+
+    public VersionJournal getJournal()
+    {
+        return journal;
+    }
+
+    /**
+     * Records the time every version is allocated at from now on in {@code timeline}, {@code null} stops recording.
+     */
+    public void setTimeline( VersionTimeline timeline )
+    {
+        this.timeline = timeline;
+    }
+
+    public VersionTimeline getTimeline()
+    {
+        return timeline;
+    }
+
+    /**
+     * Writes the history of {@code graphDb} to {@code backend} from now on, instead of to chains of historic nodes.
+     * {@code null} goes back to chains.
+     */
+    public void setHistoryBackend( GraphDatabaseService graphDb, HistoryBackend backend )
+    {
+        HistoryBackend.register( graphDb, backend );
+    }
+
+    /**
+     * Leaves writing the property history of the transactions committed from now on to {@code writer}. {@code null}
+     * goes back to writing it at commit, after writing out what the previous writer still has pending. Switch while
+     * no transactions are committing.
+     */
+    public void setAsyncHistoryWriter( AsyncHistoryWriter writer )
+    {
+        AsyncHistoryWriter previous = asyncHistoryWriter;
+        if ( writer != null )
+        {
+            writer.markSet();
+        }
+        asyncHistoryWriter = writer;
+        if ( previous != null && previous != writer )
+        {
+            previous.flush();
+            if ( writer == null )
+            {
+                previous.markUnset();
+            }
+        }
+    }
+
+    public AsyncHistoryWriter getAsyncHistoryWriter()
+    {
+        return asyncHistoryWriter;
+    }
+
+    /**
+     * Counts the work versioning does in the graph of {@code metrics} from now on, in {@code metrics}. {@code null}
+     * stops counting.
+     */
+    public void setMetrics( VersioningMetrics metrics )
+    {
+        VersioningMetrics previous = this.metrics;
+        if ( previous != null && previous != metrics )
+        {
+            VersioningMetrics.register( previous.getGraphDatabase(), null );
+        }
+        if ( metrics != null )
+        {
+            VersioningMetrics.register( metrics.getGraphDatabase(), metrics );
+        }
+        this.metrics = metrics;
+    }
+
+    public VersioningMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    /**
+     * Folds changes into the newest historic node of the node or relationship changed from now on, instead of writing
+     * a new one, as long as {@code policy} allows. {@code null} writes every change again. Doesn't apply to history
+     * written to a {@link HistoryBackend}.
+     */
+    public void setCoalescingPolicy( CoalescingPolicy policy )
+    {
+        this.coalescingPolicy = policy;
+    }
+
+    public CoalescingPolicy getCoalescingPolicy()
+    {
+        return coalescingPolicy;
+    }
+
+    /**
+     * Keeps the history of every property key on its own from now on, next to the history of whole property sets, see
+     * {@link PropertyKeyHistory}. Turning it off removes the key histories of what changes from then on.
+     */
+    public void setPropertyKeyHistory( boolean enabled )
+    {
+        this.propertyKeyHistory = enabled;
+    }
+
+    public boolean hasPropertyKeyHistory()
+    {
+        return propertyKeyHistory;
     }
 
     public Object beforeCommit( TransactionData data ) throws Exception
     {
+        if ( isVersioningSuspended() )
+        {
+            return null;
+        }
+        VersioningMetrics versioningMetrics = metrics;
+        long startTime = versioningMetrics == null ? 0 : System.nanoTime();
         long version = getNextVersionNumber();
-        processCreatedNodes( version, data.createdNodes() );
-        processCreatedRelationships( version, data.createdRelationships() );
-        processMarkedDeletedRelationships( version, data.assignedRelationshipProperties() );
-        rotateProperties( version, findModifiedProperties( version, data ) );
-        return null;
+        AsyncHistoryWriter writer = asyncHistoryWriter;
+        CommitState state = new CommitState( version );
+        int historyNodesCreated = 0;
+        try
+        {
+            processCreatedNodes( version, data.createdNodes() );
+            processCreatedRelationships( version, data.createdRelationships() );
+            processMarkedDeletedRelationships( version, data.assignedRelationshipProperties() );
+            Map<Node, Map<String, Object>> modifiedPropsByNode = findModifiedProperties( version, data );
+            Map<Relationship, Map<String, Object>> modifiedPropsByRelationship =
+                findModifiedRelationshipProperties( version, data );
+            recordKeyHistory( version, modifiedPropsByNode, modifiedPropsByRelationship );
+            if ( writer != null )
+            {
+                // Leaves what it doesn't record to be written here.
+                historyNodesCreated += writer.record( version, modifiedPropsByNode, modifiedPropsByRelationship );
+            }
+            historyNodesCreated += rotateProperties( version, modifiedPropsByNode );
+            historyNodesCreated += rotateRelationshipProperties( version, modifiedPropsByRelationship );
+            forceHistoryBackend( modifiedPropsByNode.keySet(), modifiedPropsByRelationship.keySet() );
+            ChangeLog log = changeLog;
+            if ( log != null )
+            {
+                log.record( version, data );
+            }
+            VersionJournal versionJournal = journal;
+            if ( versionJournal != null )
+            {
+                state.journal = versionJournal;
+                state.journalBatch = versionJournal.prepare( version, data );
+                versionJournal.force();
+            }
+        }
+        catch ( RuntimeException e )
+        {
+            state.rolledBack();
+            completeVersion( version );
+            throw e;
+        }
+        if ( versioningMetrics != null )
+        {
+            versioningMetrics.committed( historyNodesCreated, System.nanoTime() - startTime );
+        }
+        return state;
+    }
+
+    /**
+     * Adds the changes at {@code version} to the key histories of the entities changed, or removes their key histories
+     * if they aren't kept anymore.
+     */
+    void recordKeyHistory( long version, Map<Node, Map<String, Object>> modifiedPropsByNode,
+        Map<Relationship, Map<String, Object>> modifiedPropsByRelationship )
+    {
+        if ( propertyKeyHistory )
+        {
+            PropertyKeyHistory.record( version, modifiedPropsByNode );
+            PropertyKeyHistory.record( version, modifiedPropsByRelationship );
+            return;
+        }
+        for ( Node node : modifiedPropsByNode.keySet() )
+        {
+            PropertyKeyHistory.delete( node );
+        }
+        for ( Relationship relationship : modifiedPropsByRelationship.keySet() )
+        {
+            PropertyKeyHistory.delete( relationship );
+        }
+    }
+
+    /**
+     * Sets the values at {@code version} in the key histories of {@code entities} to the ones they have now, for heads
+     * that already started at {@code version} before these changes, or removes their key histories if they aren't kept
+     * anymore.
+     */
+    <T extends PropertyContainer> void rewriteKeyHistory( long version, Map<T, Map<String, Object>> entities )
+    {
+        for ( Map.Entry<T, Map<String, Object>> entry : entities.entrySet() )
+        {
+            if ( propertyKeyHistory )
+            {
+                PropertyKeyHistory.rewrite( entry.getKey(), version, entry.getValue().keySet() );
+            }
+            else
+            {
+                PropertyKeyHistory.delete( entry.getKey() );
+            }
+        }
+    }
+
+    /**
+     * Makes the history this commit wrote to a backend durable before the graph commits.
+     */
+    private static void forceHistoryBackend( Set<Node> nodes, Set<Relationship> relationships )
+    {
+        if ( !nodes.isEmpty() )
+        {
+            HistoryBackend.force( nodes.iterator().next().getGraphDatabase() );
+        }
+        else if ( !relationships.isEmpty() )
+        {
+            HistoryBackend.force( relationships.iterator().next().getGraphDatabase() );
+        }
     }
 
     private long getNextVersionNumber()
     {
-        versionDataNode.setProperty( LOCK_PROP_KEY, 0 );
-        long latestVersion = getLatestVersion();
-        long nextVersion = latestVersion + 1;
-        setLatestVersion( nextVersion );
-        return nextVersion;
+        VersioningMetrics versioningMetrics = metrics;
+        long startTime = versioningMetrics == null ? 0 : System.nanoTime();
+        long version = versionAllocator.allocate();
+        synchronized ( unpublished )
+        {
+            unpublished.add( version );
+            highestAllocated = Math.max( highestAllocated, version );
+        }
+        if ( versioningMetrics != null )
+        {
+            versioningMetrics.versionAllocated( System.nanoTime() - startTime );
+        }
+        VersionTimeline versionTimeline = timeline;
+        if ( versionTimeline != null )
+        {
+            try
+            {
+                versionTimeline.record( version, System.currentTimeMillis() );
+            }
+            catch ( RuntimeException e )
+            {
+                completeVersion( version );
+                throw e;
+            }
+        }
+        return version;
+    }
+
+    /**
+     * Hands out a version for work that bypasses this handler, which must be {@link #completeVersion(long) completed}
+     * when done.
+     */
+    long allocateVersion()
+    {
+        return getNextVersionNumber();
+    }
+
+    /**
+     * Publishes {@code version}, once what was committed at it is in the in-memory indexes, or it was rolled back.
+     */
+    void completeVersion( long version )
+    {
+        synchronized ( unpublished )
+        {
+            unpublished.remove( version );
+        }
+        versionAllocator.complete( version );
+    }
+
+    List<VersionedIndex> getIndexes()
+    {
+        return indexes;
     }
 
     private static void processCreatedNodes( long version, Iterable<Node> createdNodes )
@@ -96,7 +475,7 @@ public class VersioningTransactionEventHandler implements TransactionEventHandle
         }
     }
 
-    private static Map<Node, Map<String, Object>> findModifiedProperties( long version, TransactionData data )
+    private Map<Node, Map<String, Object>> findModifiedProperties( long version, TransactionData data )
     {
         Map<Node, Map<String, Object>> modifiedPropsByNode = new HashMap<Node, Map<String, Object>>();
         for ( PropertyEntry<Node> nodePropertyEntry : data.assignedNodeProperties() )
@@ -104,6 +483,10 @@ public class VersioningTransactionEventHandler implements TransactionEventHandle
             if ( nodePropertyEntry.key().equals( VersionContext.DELETED_PROP_KEY ) )
             {
                 setEndVersion( nodePropertyEntry.entity(), version - 1 );
+                for ( VersionedIndex index : indexes )
+                {
+                    index.nodeEnded( nodePropertyEntry.entity(), version - 1 );
+                }
                 continue;
             }
             if ( isInternalProperty( nodePropertyEntry ) )
@@ -125,8 +508,7 @@ public class VersioningTransactionEventHandler implements TransactionEventHandle
 
     private static boolean isInternalProperty( PropertyEntry<Node> nodePropertyEntry )
     {
-        return nodePropertyEntry.key().equals( VersionContext.VALID_FROM_PROPERTY )
-            || nodePropertyEntry.key().equals( VersionContext.VALID_TO_PROPERTY );
+        return VersionContext.isInternalProperty( nodePropertyEntry.key() );
     }
 
     private static void addEntryToMap( PropertyEntry<Node> nodePropertyEntry, Map<Node, Map<String, Object>> modifiedPropsByNode )
@@ -140,22 +522,201 @@ public class VersioningTransactionEventHandler implements TransactionEventHandle
         modifiedProps.put( nodePropertyEntry.key(), nodePropertyEntry.previouslyCommitedValue() );
     }
 
-    private static void rotateProperties( long version, Map<Node, Map<String, Object>> modifiedPropsByNode )
+    /**
+     * @return the number of historic nodes created.
+     */
+    int rotateProperties( long version, Map<Node, Map<String, Object>> modifiedPropsByNode )
+    {
+        return rotateProperties( version, modifiedPropsByNode, false );
+    }
+
+    /**
+     * @param headIndexed whether the {@link VersionedIndex}es already have the head documents for {@code version}, as
+     *            they do when an {@link AsyncHistoryWriter} writes a record, so only the historic nodes are indexed.
+     * @return the number of historic nodes created.
+     */
+    int rotateProperties( long version, Map<Node, Map<String, Object>> modifiedPropsByNode, boolean headIndexed )
     {
+        int created = 0;
         for ( Map.Entry<Node, Map<String, Object>> nodeEntry : modifiedPropsByNode.entrySet() )
         {
             Node mainNode = nodeEntry.getKey();
+            // What an async writer left pending is older than this change, so it goes first.
+            AsyncHistoryWriter.write( this, mainNode, nodeEntry.getValue() );
+            HistoryBackend backend = HistoryBackend.forGraph( mainNode.getGraphDatabase() );
+            if ( backend != null )
+            {
+                long previousFrom = getStartVersion( mainNode );
+                VersionChain.makeFirstKeyframe( mainNode, oldProperties( mainNode, nodeEntry.getValue() ) );
+                writeToBackend( backend, mainNode, mainNode, nodeEntry.getValue(), version );
+                if ( !headIndexed )
+                {
+                    for ( VersionedIndex index : indexes )
+                    {
+                        index.propertiesRotated( mainNode, null, previousFrom, version, nodeEntry.getValue() );
+                    }
+                }
+                continue;
+            }
+            long previousFrom = getStartVersion( mainNode );
+            Node extended = coalesce( mainNode, mainNode, nodeEntry.getValue(), version );
+            if ( extended != null )
+            {
+                for ( VersionedIndex index : indexes )
+                {
+                    if ( headIndexed )
+                    {
+                        index.historyExtended( extended, previousFrom, version );
+                    }
+                    else
+                    {
+                        index.propertiesCoalesced( mainNode, extended, previousFrom, version, nodeEntry.getValue() );
+                    }
+                }
+                continue;
+            }
             Node newHistoricNode = mainNode.getGraphDatabase().createNode();
-            copyProps( mainNode, newHistoricNode, nodeEntry.getValue() );
-            insertFirstInChain( mainNode, newHistoricNode, version );
+            created++;
+            VersionChain.insertFirst( mainNode, newHistoricNode );
+            if ( VersionChain.isKeyframe( newHistoricNode, keyframeInterval ) )
+            {
+                copyProps( mainNode, newHistoricNode, nodeEntry.getValue() );
+            }
+            else
+            {
+                VersionChain.writeDelta( newHistoricNode, nodeEntry.getValue() );
+            }
+            closeRange( mainNode, newHistoricNode, version );
+            for ( VersionedIndex index : indexes )
+            {
+                if ( headIndexed )
+                {
+                    index.historyAdded( mainNode, newHistoricNode, getStartVersion( newHistoricNode ), version,
+                        nodeEntry.getValue() );
+                }
+                else
+                {
+                    index.propertiesRotated( mainNode, newHistoricNode, getStartVersion( newHistoricNode ), version,
+                        nodeEntry.getValue() );
+                }
+            }
+        }
+        return created;
+    }
+
+    private static Map<Relationship, Map<String, Object>> findModifiedRelationshipProperties( long version,
+        TransactionData data )
+    {
+        Map<Relationship, Map<String, Object>> modifiedPropsByRelationship =
+            new HashMap<Relationship, Map<String, Object>>();
+        for ( PropertyEntry<Relationship> relationshipPropertyEntry : data.assignedRelationshipProperties() )
+        {
+            addEntryToMap( version, relationshipPropertyEntry, modifiedPropsByRelationship );
+        }
+        for ( PropertyEntry<Relationship> relationshipPropertyEntry : data.removedRelationshipProperties() )
+        {
+            addEntryToMap( version, relationshipPropertyEntry, modifiedPropsByRelationship );
+        }
+        return modifiedPropsByRelationship;
+    }
+
+    private static void addEntryToMap( long version, PropertyEntry<Relationship> relationshipPropertyEntry,
+        Map<Relationship, Map<String, Object>> modifiedPropsByRelationship )
+    {
+        String key = relationshipPropertyEntry.key();
+        Relationship relationship = relationshipPropertyEntry.entity();
+        if ( VersionContext.isInternalProperty( key ) || key.equals( VersionContext.DELETED_PROP_KEY )
+            || getStartVersion( relationship ) == version )
+        {
+            // Relationships created in this transaction have no history yet.
+            return;
+        }
+        Map<String, Object> modifiedProps = modifiedPropsByRelationship.get( relationship );
+        if ( modifiedProps == null )
+        {
+            modifiedProps = new HashMap<String, Object>();
+            modifiedPropsByRelationship.put( relationship, modifiedProps );
         }
+        modifiedProps.put( key, relationshipPropertyEntry.previouslyCommitedValue() );
     }
 
-    private static void copyProps( Node node, Node newNode, Map<String, Object> oldValues )
+    /**
+     * Relationships can't have a chain of their own, so their history hangs off a node created for the purpose the
+     * first time their properties change, with a chain just like the one of a node. Its range is that of the
+     * relationship's current properties. The history is always written as keyframes, since there are no properties on
+     * the history node for deltas to be based on.
+     *
+     * @return the number of history and historic nodes created.
+     */
+    int rotateRelationshipProperties( long version, Map<Relationship, Map<String, Object>> modifiedPropsByRelationship )
     {
-        for ( String propKey : node.getPropertyKeys() )
+        int created = 0;
+        for ( Map.Entry<Relationship, Map<String, Object>> relationshipEntry : modifiedPropsByRelationship.entrySet() )
         {
-            newNode.setProperty( propKey, node.getProperty( propKey, null ) );
+            Relationship relationship = relationshipEntry.getKey();
+            Node historyNode = VersionContext.getHistoryNode( relationship );
+            if ( historyNode == null )
+            {
+                historyNode = createHistoryNode( relationship );
+                created++;
+            }
+            else
+            {
+                AsyncHistoryWriter.write( this, historyNode, relationshipEntry.getValue() );
+            }
+            HistoryBackend backend = HistoryBackend.forGraph( relationship.getGraphDatabase() );
+            if ( backend != null )
+            {
+                VersionChain.makeFirstKeyframe( historyNode,
+                    oldProperties( relationship, relationshipEntry.getValue() ) );
+                writeToBackend( backend, historyNode, relationship, relationshipEntry.getValue(), version );
+                continue;
+            }
+            if ( coalesce( historyNode, relationship, relationshipEntry.getValue(), version ) != null )
+            {
+                continue;
+            }
+            Node newHistoricNode = relationship.getGraphDatabase().createNode();
+            created++;
+            VersionChain.insertFirst( historyNode, newHistoricNode );
+            copyProps( relationship, newHistoricNode, relationshipEntry.getValue() );
+            closeRange( historyNode, newHistoricNode, version );
+        }
+        return created;
+    }
+
+    /**
+     * @return a new history node for {@code relationship}, whose range is that of its properties so far.
+     */
+    static Node createHistoryNode( Relationship relationship )
+    {
+        Node historyNode = relationship.getGraphDatabase().createNode();
+        setVersion( historyNode, range( getStartVersion( relationship ) ) );
+        relationship.setProperty( VersionContext.HISTORY_NODE_PROPERTY, historyNode.getId() );
+        return historyNode;
+    }
+
+    private static void copyProps( PropertyContainer entity, Node newNode, Map<String, Object> oldValues )
+    {
+        for ( Map.Entry<String, Object> property : oldProperties( entity, oldValues ).entrySet() )
+        {
+            newNode.setProperty( property.getKey(), property.getValue() );
+        }
+    }
+
+    /**
+     * @return the properties {@code entity} had before the changes {@code oldValues} are the previous values of.
+     */
+    static Map<String, Object> oldProperties( PropertyContainer entity, Map<String, Object> oldValues )
+    {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        for ( String propKey : entity.getPropertyKeys() )
+        {
+            if ( VersionContext.isInternalProperty( propKey ) )
+            {
+                continue;
+            }
+            properties.put( propKey, entity.getProperty( propKey, null ) );
         }
         for ( Map.Entry<String, Object> propEntry : oldValues.entrySet() )
         {
@@ -163,24 +724,59 @@ public class VersioningTransactionEventHandler implements TransactionEventHandle
             Object value = propEntry.getValue();
             if ( value == null )
             {
-                newNode.removeProperty( key );
+                properties.remove( key );
             }
             else
             {
-                newNode.setProperty( key, value );
+                properties.put( key, value );
             }
         }
+        return properties;
+    }
+
+    /**
+     * Writes the properties {@code entity} had before this version to {@code backend}, under the id of
+     * {@code anchor}, whose range moves on to start at {@code version}.
+     */
+    private static void writeToBackend( HistoryBackend backend, Node anchor, PropertyContainer entity,
+        Map<String, Object> oldValues, long version )
+    {
+        long from = getStartVersion( anchor );
+        if ( from < version )
+        {
+            backend.write( anchor.getId(), range( from, version - 1 ), oldProperties( entity, oldValues ) );
+        }
+        setStartVersion( anchor, version );
     }
 
-    private static void insertFirstInChain( Node mainNode, Node newHistoricNode, long version )
+    /**
+     * Extends the range of the newest historic node below {@code anchor} up to {@code version} and moves the head on
+     * to start there, instead of writing the properties {@code entity} had before {@code version} to a new historic
+     * node, if the coalescing policy allows it.
+     *
+     * @return the historic node extended, or {@code null} if the change needs a historic node of its own.
+     */
+    private Node coalesce( Node anchor, PropertyContainer entity, Map<String, Object> oldValues, long version )
     {
-        Relationship prevVersionRel = mainNode.getSingleRelationship( VersionContext.PREV_VERSION_REL_TYPE, Direction.OUTGOING );
-        if ( prevVersionRel != null )
+        CoalescingPolicy policy = coalescingPolicy;
+        if ( policy == null )
+        {
+            return null;
+        }
+        Node newest = VersionChain.first( anchor );
+        if ( newest == null || !policy.coalesce( getStartVersion( newest ), version ) )
         {
-            newHistoricNode.createRelationshipTo( prevVersionRel.getOtherNode( mainNode ), VersionContext.PREV_VERSION_REL_TYPE );
-            prevVersionRel.delete();
+            return null;
         }
-        mainNode.createRelationshipTo( newHistoricNode, VersionContext.PREV_VERSION_REL_TYPE );
+        VersionChain.makeFirstKeyframe( anchor, oldProperties( entity, oldValues ) );
+        setEndVersion( newest, version - 1 );
+        setStartVersion( anchor, version );
+        PropertyKeyHistory.coalesced( entity, getStartVersion( newest ), version );
+        return newest;
+    }
+
+    private static void closeRange( Node mainNode, Node newHistoricNode, long version )
+    {
         setStartVersion( newHistoricNode, getStartVersion( mainNode ) );
         setEndVersion( newHistoricNode, version - 1 );
         setStartVersion( mainNode, version );
@@ -188,19 +784,108 @@ public class VersioningTransactionEventHandler implements TransactionEventHandle
 
     public void afterCommit( TransactionData data, Object state )
     {
+        if ( state != null )
+        {
+            CommitState commitState = (CommitState) state;
+            long version = commitState.version;
+            try
+            {
+                indexRelationshipRanges( version, data );
+                if ( commitState.journal != null )
+                {
+                    commitState.journal.committed( commitState.journalBatch );
+                }
+            }
+            finally
+            {
+                completeVersion( version );
+            }
+            if ( checkpointInterval > 0 )
+            {
+                checkpointIfDue();
+            }
+        }
+    }
+
+    private synchronized void checkpointIfDue()
+    {
+        long latestVersion = getLatestVersion();
+        if ( latestVersion - lastCheckpoint >= checkpointInterval )
+        {
+            lastCheckpoint = latestVersion;
+            checkpoints.createInBackground( latestVersion );
+        }
+    }
+
+    private static void indexRelationshipRanges( long version, TransactionData data )
+    {
+        for ( Relationship relationship : data.createdRelationships() )
+        {
+            RelationshipIntervalIndex.forGraph( relationship.getGraphDatabase() ).relationshipCreated( relationship, version );
+        }
+        for ( PropertyEntry<Relationship> relationshipPropertyEntry : data.assignedRelationshipProperties() )
+        {
+            if ( relationshipPropertyEntry.key().equals( VersionContext.DELETED_PROP_KEY ) )
+            {
+                Relationship rel = relationshipPropertyEntry.entity();
+                RelationshipIntervalIndex.forGraph( rel.getGraphDatabase() ).relationshipEnded( rel,
+                    getStartVersion( rel ), version - 1 );
+            }
+        }
     }
 
     public void afterRollback( TransactionData data, Object state )
     {
+        if ( state != null )
+        {
+            CommitState commitState = (CommitState) state;
+            commitState.rolledBack();
+            completeVersion( commitState.version );
+        }
     }
 
     public void setLatestVersion( long version )
     {
-        versionDataNode.setProperty( LATEST_VERSION_PROP_KEY, version );
+        versionAllocator.setLatestVersion( version );
     }
 
+    /**
+     * @return the highest version that is safe to read at: the allocator's latest version, but below every version
+     *         whose commit is still being indexed. An allocator like {@link LockingVersionAllocator} makes a version
+     *         visible as soon as the graph commits, before the {@link RelationshipIntervalIndex} knows about the
+     *         relationships it created and ended.
+     */
     public long getLatestVersion()
     {
-        return (Long) versionDataNode.getProperty( LATEST_VERSION_PROP_KEY, 0L );
+        long latestVersion = versionAllocator.getLatestVersion();
+        synchronized ( unpublished )
+        {
+            return unpublished.isEmpty() ? latestVersion : Math.min( latestVersion, unpublished.first() - 1 );
+        }
+    }
+
+    /**
+     * What a committing transaction hands on from {@link #beforeCommit(TransactionData)} to the after commit and
+     * rollback callbacks.
+     */
+    private static class CommitState
+    {
+        final long version;
+        // The journal the changes were prepared in, if any.
+        VersionJournal journal;
+        long journalBatch = VersionJournal.NO_BATCH;
+
+        CommitState( long version )
+        {
+            this.version = version;
+        }
+
+        void rolledBack()
+        {
+            if ( journal != null )
+            {
+                journal.rolledBack( journalBatch );
+            }
+        }
     }
 }
@@ -0,0 +1,123 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.ImpermanentGraphDatabase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.neo4j.support.versioning.date.VersionContext.vc;
+
+public class BlockVersionAllocatorTest
+{
+    private ImpermanentGraphDatabase graphDb;
+    private Node versionDataNode;
+
+    @Before
+    public void setUp()
+    {
+        graphDb = new ImpermanentGraphDatabase();
+        Transaction tx = graphDb.beginTx();
+        try
+        {
+            versionDataNode = graphDb.createNode();
+            tx.success();
+        }
+        finally
+        {
+            tx.finish();
+        }
+    }
+
+    @After
+    public void tearDown()
+    {
+        graphDb.shutdown();
+    }
+
+    @Test
+    public void shouldOnlyReportVersionsBelowTheOldestInFlight()
+    {
+        BlockVersionAllocator allocator = new BlockVersionAllocator( versionDataNode, 10 );
+        long first = allocator.allocate();
+        long second = allocator.allocate();
+        assertTrue( second > first );
+        assertEquals( first - 1, allocator.getLatestVersion() );
+
+        allocator.complete( second );
+        assertEquals( first - 1, allocator.getLatestVersion() );
+        allocator.complete( first );
+        assertEquals( second, allocator.getLatestVersion() );
+    }
+
+    @Test
+    public void shouldContinueAboveReservedBlockAfterRestart()
+    {
+        BlockVersionAllocator allocator = new BlockVersionAllocator( versionDataNode, 10 );
+        long last = 0;
+        for ( int i = 0; i < 25; i++ )
+        {
+            last = allocator.allocate();
+            allocator.complete( last );
+        }
+
+        BlockVersionAllocator restarted = new BlockVersionAllocator( versionDataNode, 10 );
+        assertTrue( restarted.getLatestVersion() >= last );
+        assertTrue( restarted.allocate() > last );
+    }
+
+    @Test
+    public void shouldVersionTransactions()
+    {
+        VersioningTransactionEventHandler eventHandler = new VersioningTransactionEventHandler(
+            new BlockVersionAllocator( versionDataNode, 3 ) );
+        graphDb.registerTransactionEventHandler( eventHandler );
+
+        long[] versions = new long[10];
+        Node node = null;
+        for ( int i = 0; i < versions.length; i++ )
+        {
+            Transaction tx = graphDb.beginTx();
+            try
+            {
+                if ( node == null )
+                {
+                    node = graphDb.createNode();
+                }
+                node.setProperty( "key", i );
+                tx.success();
+            }
+            finally
+            {
+                tx.finish();
+            }
+            versions[i] = eventHandler.getLatestVersion();
+        }
+        for ( int i = 0; i < versions.length; i++ )
+        {
+            assertEquals( i, vc( versions[i] ).node( node ).getProperty( "key" ) );
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.support.versioning.date;
+
+import org.junit.Test;
+import org.neo4j.support.versioning.Range;
+import org.neo4j.support.versioning.RangeSet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.neo4j.support.versioning.Range.compactRanges;
+import static org.neo4j.support.versioning.Range.range;
+
+public class RangeSetTest
+{
+    @Test
+    public void addShouldMergeOverlappingAndTouchingRangesRegardlessOfOrder()
+    {
+        assertEquals( asList( range( 1, 10 ), range( 15, 20 ) ), new RangeSet().add( 1, 6 ).add( 4, 10 ).add( 15, 17 )
+            .add( 19, 20 ).add( 17, 19 ).toRanges() );
+        assertEquals( asList( range( 1, 10 ) ), new RangeSet().add( 6, 10 ).add( 1, 4 ).add( 3, 7 ).toRanges() );
+        assertEquals( asList( range( 1, 2 ), range( 3, 4 ) ), new RangeSet().add( 3, 4 ).add( 1, 2 ).toRanges() );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void shouldThrowExceptionWhenStartAfterEnd()
+    {
+        new RangeSet().add( 2, 1 );
+    }
+
+    @Test
+    public void containsShouldIncludeBothEnds()
+    {
+        RangeSet ranges = new RangeSet().add( 5, 7 ).add( 1, 3 ).add( 10, Long.MAX_VALUE );
+        assertTrue( ranges.contains( 1 ) );
+        assertTrue( ranges.contains( 3 ) );
+        assertFalse( ranges.contains( 4 ) );
+        assertTrue( ranges.contains( 7 ) );
+        assertFalse( ranges.contains( 0 ) );
+        assertTrue( ranges.contains( Long.MAX_VALUE ) );
+        assertTrue( ranges.overlaps( 3, 4 ) );
+        assertFalse( ranges.overlaps( 8, 9 ) );
+    }
+
+    @Test
+    public void unionShouldMergeBothSets()
+    {
+        RangeSet ranges = new RangeSet().add( 1, 3 ).add( 10, 12 ).add( 20, 22 );
+        ranges.union( new RangeSet().add( 3, 5 ).add( 14, 15 ).add( 21, 30 ) );
+        assertEquals( asList( range( 1, 5 ), range( 10, 12 ), range( 14, 15 ), range( 20, 30 ) ), ranges.toRanges() );
+        assertEquals( ranges, new RangeSet().union( ranges ) );
+        assertEquals( ranges, ranges.union( ranges ) );
+    }
+
+    @Test
+    public void intersectShouldKeepOnlyCommonParts()
+    {
+        RangeSet ranges = new RangeSet().add( 1, 10 ).add( 20, 30 );
+        ranges.intersect( new RangeSet().add( 0, 2 ).add( 4, 5 ).add( 10, 20 ).add( 25, 40 ) );
+        assertEquals( asList( range( 1, 2 ), range( 4, 5 ), range( 10, 10 ), range( 20, 20 ), range( 25, 30 ) ),
+            ranges.toRanges() );
+        assertTrue( ranges.intersect( new RangeSet() ).isEmpty() );
+    }
+
+    @Test
+    public void shouldAgreeWithCompactRangesOnRandomInput()
+    {
+        Random random = new Random( 1234 );
+        for ( int round = 0; round < 50; round++ )
+        {
+            List<Range> input = new ArrayList<Range>();
+            for ( int i = 0; i < 200; i++ )
+            {
+                long from = random.nextInt( 5000 );
+                input.add( range( from, from + random.nextInt( 30 ) ) );
+            }
+            assertEquals( compactRanges( input ), RangeSet.of( input ).toRanges() );
+        }
+    }
+
+    @Test
+    public void shouldHandleManyRanges()
+    {
+        List<Long> starts = new ArrayList<Long>();
+        for ( long i = 0; i < 1000000; i++ )
+        {
+            starts.add( i * 3 );
+        }
+        Collections.shuffle( starts, new Random( 42 ) );
+        RangeSet ranges = new RangeSet();
+        for ( long start : starts )
+        {
+            ranges.add( start, start + 1 );
+        }
+        assertEquals( 1000000, ranges.size() );
+        assertEquals( 2999997, ranges.from( 999999 ) );
+        assertTrue( ranges.contains( 1500001 ) );
+        assertFalse( ranges.contains( 1500002 ) );
+        ranges.union( new RangeSet().add( 0, Long.MAX_VALUE ) );
+        assertEquals( asList( range( 0, Long.MAX_VALUE ) ), ranges.toRanges() );
+    }
+}
@@ -25,17 +25,39 @@ import org.junit.Test;
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.PropertyContainer;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.ReturnableEvaluator;
+import org.neo4j.graphdb.StopEvaluator;
 import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.TransactionFailureException;
+import org.neo4j.graphdb.Traverser;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
 import org.neo4j.helpers.collection.IteratorUtil;
 import org.neo4j.kernel.ImpermanentGraphDatabase;
+import org.neo4j.support.versioning.Range;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
@@ -120,6 +142,1879 @@ public class VersionedGraphTest
         assertEquals( asSet( "asdf" ), addToSet( vc( nokeyVersion ).node( node ).getPropertyValues() ) );
     }
 
+    @Test
+    public void testVersionedPropertiesAcrossLongHistory()
+    {
+        Node node = createNode();
+        long[] versions = new long[300];
+        for ( int i = 0; i < versions.length; i++ )
+        {
+            setProperty( node, "key", i );
+            versions[i] = versioningTransactionEventHandler.getLatestVersion();
+        }
+        for ( int i = 0; i < versions.length; i++ )
+        {
+            assertEquals( i, vc( versions[i] ).node( node ).getProperty( "key" ) );
+        }
+        assertEquals( asSet(), addToSet( vc( versions[0] - 1 ).node( node ).getPropertyKeys() ) );
+    }
+
+    @Test
+    public void testDeltaEncodedHistory()
+    {
+        versioningTransactionEventHandler.setKeyframeInterval( 4 );
+        Node node = createNode();
+        for ( int i = 0; i < 20; i++ )
+        {
+            setProperty( node, "static" + i, i );
+        }
+        long[] versions = new long[30];
+        for ( int i = 0; i < versions.length; i++ )
+        {
+            if ( i % 3 == 0 )
+            {
+                removeProperty( node, "counter" );
+            }
+            else
+            {
+                setProperty( node, "counter", i );
+            }
+            versions[i] = versioningTransactionEventHandler.getLatestVersion();
+        }
+        for ( int i = 0; i < versions.length; i++ )
+        {
+            VersionedNode versionedNode = vc( versions[i] ).node( node );
+            assertEquals( i % 3 == 0 ? null : i, versionedNode.getProperty( "counter", null ) );
+            assertEquals( 7, versionedNode.getProperty( "static7" ) );
+            assertEquals( i % 3 == 0 ? 20 : 21, addToSet( versionedNode.getPropertyKeys() ).size() );
+        }
+
+        int deltas = 0;
+        for ( Node historicNode = VersionChain.first( node ); historicNode != null; historicNode = VersionChain.previous( historicNode ) )
+        {
+            if ( VersionChain.isDelta( historicNode ) )
+            {
+                deltas++;
+                for ( String key : historicNode.getPropertyKeys() )
+                {
+                    assertTrue( key.equals( "counter" ) || VersionContext.isInternalProperty( key ) );
+                }
+            }
+        }
+        assertTrue( deltas > 30 );
+    }
+
+    @Test
+    public void testHistoricReadsAreCached()
+    {
+        PropertyHolderCache cache = PropertyHolderCache.forGraph( graphDb );
+        Node node = createNode();
+        setProperty( node, "key", "foo" );
+        long fooVersion = versioningTransactionEventHandler.getLatestVersion();
+        setProperty( node, "key", "bar" );
+        long barVersion = versioningTransactionEventHandler.getLatestVersion();
+        setProperty( node, "key", "zoo" );
+
+        assertEquals( "foo", vc( fooVersion ).node( node ).getProperty( "key" ) );
+        long misses = cache.getMisses();
+        long hits = cache.getHits();
+        assertEquals( "foo", vc( fooVersion ).node( node ).getProperty( "key" ) );
+        assertEquals( "bar", vc( barVersion ).node( node ).getProperty( "key" ) );
+        assertEquals( hits + 3, cache.getHits() );
+        assertEquals( misses + 1, cache.getMisses() );
+
+        cache.setMaxWeight( 0 );
+        assertEquals( 0, cache.getWeight() );
+        assertTrue( cache.getEvictions() >= 2 );
+        assertEquals( "bar", vc( barVersion ).node( node ).getProperty( "key" ) );
+    }
+
+    @Test
+    public void testStateOfGraphIsDroppedAtShutdown()
+    {
+        ImpermanentGraphDatabase otherGraphDb = new ImpermanentGraphDatabase();
+        PropertyHolderCache cache = PropertyHolderCache.forGraph( otherGraphDb );
+        assertTrue( cache == PropertyHolderCache.forGraph( otherGraphDb ) );
+        assertFalse( cache == PropertyHolderCache.forGraph( graphDb ) );
+        GraphRegistry<String> registry = new GraphRegistry<String>();
+        registry.put( otherGraphDb, "other" );
+        registry.put( graphDb, "this" );
+
+        otherGraphDb.shutdown();
+        assertEquals( null, registry.get( otherGraphDb ) );
+        assertEquals( "this", registry.get( graphDb ) );
+        assertEquals( "this", registry.put( graphDb, null ) );
+        assertEquals( null, registry.get( graphDb ) );
+    }
+
+    @Test
+    public void testRelationshipsOfHighDegreeNodeWithChurn()
+    {
+        Node hub = createNode();
+        Node other = createNode();
+        List<Relationship> live = new ArrayList<Relationship>();
+        List<Long> versions = new ArrayList<Long>();
+        for ( int i = 0; i < 400; i++ )
+        {
+            if ( i % 3 == 2 )
+            {
+                removeRelationship( live.remove( i % live.size() ) );
+            }
+            else
+            {
+                live.add( i % 2 == 0 ? createRelationship( hub, other, RelTypes.LINKED )
+                    : createRelationship( other, hub, RelTypes.LINKED ) );
+            }
+            versions.add( versioningTransactionEventHandler.getLatestVersion() );
+            if ( i == 200 )
+            {
+                RelationshipIntervalIndex.forGraph( graphDb ).clear();
+            }
+        }
+        createRelationship( hub, hub, RelTypes.LINKED );
+        versions.add( versioningTransactionEventHandler.getLatestVersion() );
+
+        RelationshipCursor cursor = new RelationshipCursor();
+        for ( long version : versions )
+        {
+            for ( Direction direction : Direction.values() )
+            {
+                Set<Relationship> expected = new HashSet<Relationship>();
+                for ( Relationship relationship : hub.getRelationships( RelTypes.LINKED, direction ) )
+                {
+                    if ( vc( version ).hasValidVersion( relationship ) )
+                    {
+                        expected.add( relationship );
+                    }
+                }
+                assertEquals( expected, addToSet( vc( version ).node( hub ).getRelationships( RelTypes.LINKED, direction ) ) );
+
+                vc( version ).expand( hub, direction, cursor, RelTypes.LINKED );
+                Set<Relationship> expanded = new HashSet<Relationship>();
+                while ( cursor.next() )
+                {
+                    Relationship relationship = graphDb.getRelationshipById( cursor.relationshipId() );
+                    assertEquals( RelTypes.LINKED.name(), cursor.type().name() );
+                    assertEquals( relationship.getOtherNode( hub ).getId(), cursor.otherNodeId() );
+                    expanded.add( relationship );
+                }
+                assertEquals( expected, expanded );
+            }
+        }
+    }
+
+    @Test
+    public void testLiveRelationshipDoesNotKeepEndedOnesFromBeingSkipped()
+    {
+        VersioningMetrics metrics = new VersioningMetrics( graphDb );
+        versioningTransactionEventHandler.setMetrics( metrics );
+        Node hub = createNode();
+        Node other = createNode();
+        Relationship kept = createRelationship( hub, other, RelTypes.LINKED );
+        for ( int i = 0; i < 300; i++ )
+        {
+            removeRelationship( createRelationship( hub, other, RelTypes.LINKED ) );
+        }
+        long latest = versioningTransactionEventHandler.getLatestVersion();
+        for ( int load = 0; load < 2; load++ )
+        {
+            metrics.reset();
+            assertEquals( asSet( kept ), addToSet( vc( latest ).node( hub ).getRelationships( RelTypes.LINKED ) ) );
+            assertEquals( 0, metrics.getRelationshipsFiltered() );
+            // Again from the graph, rather than as kept up to date by the commits.
+            RelationshipIntervalIndex.forGraph( graphDb ).clear();
+        }
+        versioningTransactionEventHandler.setMetrics( null );
+    }
+
+    @Test
+    public void testLongLivedRelationshipDoesNotMakeLookupsExamineShortLivedOnes()
+    {
+        VersioningMetrics metrics = new VersioningMetrics( graphDb );
+        versioningTransactionEventHandler.setMetrics( metrics );
+        Node hub = createNode();
+        Node other = createNode();
+        Relationship longLived = createRelationship( hub, other, RelTypes.LINKED );
+        long first = versioningTransactionEventHandler.getLatestVersion();
+        for ( int i = 0; i < 300; i++ )
+        {
+            removeRelationship( createRelationship( hub, other, RelTypes.LINKED ) );
+        }
+        removeRelationship( longLived );
+        long last = versioningTransactionEventHandler.getLatestVersion();
+        for ( int load = 0; load < 2; load++ )
+        {
+            metrics.reset();
+            for ( long version = first; version < last; version++ )
+            {
+                assertTrue( addToSet( vc( version ).node( hub ).getRelationships( RelTypes.LINKED ) )
+                    .contains( longLived ) );
+            }
+            assertEquals( 0, metrics.getRelationshipsFiltered() );
+            // Again from the graph, rather than as kept up to date by the commits.
+            RelationshipIntervalIndex.forGraph( graphDb ).clear();
+        }
+        versioningTransactionEventHandler.setMetrics( null );
+    }
+
+    @Test
+    public void testVersionIsNotReadableBeforeItsRelationshipsAreIndexed()
+    {
+        final Node hub = createNode();
+        Node other = createNode();
+        createRelationship( hub, other, RelTypes.LINKED );
+        // Loads the hub into the relationship index, which from now on is kept up to date by the commits.
+        addToSet( vc( versioningTransactionEventHandler.getLatestVersion() ).node( hub ).getRelationships() );
+        final List<String> failures = new ArrayList<String>();
+        TransactionEventHandler<Object> reader = new TransactionEventHandler<Object>()
+        {
+            public Object beforeCommit( TransactionData data ) throws Exception
+            {
+                return null;
+            }
+
+            public void afterCommit( TransactionData data, Object state )
+            {
+                long latest = versioningTransactionEventHandler.getLatestVersion();
+                Set<Relationship> expected = new HashSet<Relationship>();
+                for ( Relationship relationship : hub.getRelationships() )
+                {
+                    if ( vc( latest ).hasValidVersion( relationship ) )
+                    {
+                        expected.add( relationship );
+                    }
+                }
+                Set<Relationship> indexed = addToSet( vc( latest ).node( hub ).getRelationships() );
+                if ( !expected.equals( indexed ) )
+                {
+                    failures.add( "At [" + latest + "] expected " + expected + " but got " + indexed );
+                }
+            }
+
+            public void afterRollback( TransactionData data, Object state )
+            {
+            }
+        };
+        // Registered first, so it reads after the graph committed but before the versioning handler's after commit.
+        graphDb.unregisterTransactionEventHandler( versioningTransactionEventHandler );
+        graphDb.registerTransactionEventHandler( reader );
+        graphDb.registerTransactionEventHandler( versioningTransactionEventHandler );
+        try
+        {
+            for ( int i = 0; i < 10; i++ )
+            {
+                removeRelationship( createRelationship( hub, other, RelTypes.LINKED ) );
+            }
+        }
+        finally
+        {
+            graphDb.unregisterTransactionEventHandler( reader );
+        }
+        assertEquals( Collections.<String>emptyList(), failures );
+    }
+
+    @Test
+    public void testTraversalSeesGraphAtVersion()
+    {
+        Node root = createNode();
+        Node child = createNode();
+        Node grandChild = createNode();
+        Node leaf = createNode();
+        setProperty( leaf, "name", "old" );
+        createRelationship( root, child, RelTypes.LINKED );
+        Relationship childToGrandChild = createRelationship( child, grandChild, RelTypes.LINKED );
+        createRelationship( grandChild, leaf, RelTypes.LINKED );
+        long before = versioningTransactionEventHandler.getLatestVersion();
+        removeRelationship( childToGrandChild );
+        createRelationship( root, leaf, RelTypes.LINKED );
+        setProperty( leaf, "name", "new" );
+        long after = versioningTransactionEventHandler.getLatestVersion();
+
+        for ( Traverser.Order order : Traverser.Order.values() )
+        {
+            Traverser traverser = vc( before ).node( root ).traverse( order, StopEvaluator.END_OF_GRAPH,
+                ReturnableEvaluator.ALL_BUT_START_NODE, RelTypes.LINKED, Direction.OUTGOING );
+            List<Node> nodes = new ArrayList<Node>( traverser.getAllNodes() );
+            assertEquals( Arrays.<Node>asList( child, grandChild, leaf ), nodes );
+            assertEquals( "old", nodes.get( 2 ).getProperty( "name" ) );
+            assertEquals( 3, traverser.currentPosition().depth() );
+
+            traverser = vc( after ).node( root ).traverse( order, StopEvaluator.END_OF_GRAPH,
+                ReturnableEvaluator.ALL_BUT_START_NODE, RelTypes.LINKED, Direction.OUTGOING );
+            assertEquals( asSet( child, leaf ), addToSet( traverser ) );
+        }
+
+        Traverser depthOne = vc( before ).node( leaf ).traverse( Traverser.Order.BREADTH_FIRST,
+            StopEvaluator.DEPTH_ONE, ReturnableEvaluator.ALL, RelTypes.LINKED, Direction.BOTH );
+        assertEquals( asSet( leaf, grandChild ), addToSet( depthOne ) );
+
+        List<Node> expanded = new ArrayList<Node>();
+        for ( Relationship relationship : VersionedExpander.forTypes( vc( before ), RelTypes.LINKED,
+            Direction.INCOMING ).reversed().expand( vc( before ).node( child ) ) )
+        {
+            expanded.add( relationship.getEndNode() );
+        }
+        assertEquals( Arrays.<Node>asList( grandChild ), expanded );
+        assertTrue( expanded.get( 0 ) instanceof VersionedNode );
+    }
+
+    @Test
+    public void testTraversalVisitsEveryNodeOnce()
+    {
+        Node root = createNode();
+        List<Node> nodes = new ArrayList<Node>();
+        for ( int i = 0; i < 30; i++ )
+        {
+            Node node = createNode();
+            // A tree of three levels, with cross links and loops on top.
+            createRelationship( i < 3 ? root : nodes.get( i / 3 - 1 ), node, RelTypes.LINKED );
+            if ( i % 4 == 0 && !nodes.isEmpty() )
+            {
+                createRelationship( node, nodes.get( i / 2 ), RelTypes.LINKED );
+                createRelationship( node, node, RelTypes.LINKED );
+            }
+            nodes.add( node );
+        }
+        long version = versioningTransactionEventHandler.getLatestVersion();
+        for ( Traverser.Order order : Traverser.Order.values() )
+        {
+            Traverser traverser = vc( version ).node( root ).traverse( order, StopEvaluator.END_OF_GRAPH,
+                ReturnableEvaluator.ALL_BUT_START_NODE, RelTypes.LINKED, Direction.BOTH );
+            List<Node> visited = new ArrayList<Node>();
+            int depth = 0;
+            for ( Node node : traverser )
+            {
+                visited.add( node );
+                if ( order == Traverser.Order.BREADTH_FIRST )
+                {
+                    assertTrue( traverser.currentPosition().depth() >= depth );
+                    depth = traverser.currentPosition().depth();
+                }
+            }
+            assertEquals( nodes.size(), visited.size() );
+            assertEquals( new HashSet<Node>( nodes ), addToSet( visited ) );
+        }
+    }
+
+    @Test
+    public void testCompactionKeepsRetainedAndLeasedHistory()
+    {
+        versioningTransactionEventHandler.setKeyframeInterval( 3 );
+        Node node = createNode();
+        Node other = createNode();
+        Node deleted = createNode();
+        long[] versions = new long[20];
+        for ( int i = 0; i < versions.length; i++ )
+        {
+            setProperty( node, "key", i );
+            versions[i] = versioningTransactionEventHandler.getLatestVersion();
+        }
+        Relationship ended = createRelationship( node, other, RelTypes.LINKED );
+        Relationship live = createRelationship( other, node, RelTypes.LINKED );
+        removeRelationship( ended );
+        removeNode( deleted );
+        for ( int i = 0; i < versions.length; i++ )
+        {
+            vc( versions[i] ).node( node ).getProperty( "key" );
+        }
+
+        SnapshotLeases.Lease lease = SnapshotLeases.forGraph( graphDb ).acquire( versions[10] );
+        HistoryCompactor compactor = new HistoryCompactor( graphDb, versioningTransactionEventHandler,
+            RetentionPolicy.keepVersions( 2 ) );
+        compactor.setBatchSize( 3 );
+        assertEquals( 11, compactor.compact() );
+        for ( int i = 10; i < versions.length; i++ )
+        {
+            assertEquals( i, vc( versions[i] ).node( node ).getProperty( "key" ) );
+        }
+        try
+        {
+            vc( versions[9] ).node( node ).getProperty( "key" );
+            fail( "History before the lease should have been compacted." );
+        }
+        catch ( NotFoundException e )
+        {
+            // Good
+        }
+
+        lease.release();
+        setProperty( other, "key", 0 );
+        long latest = versioningTransactionEventHandler.getLatestVersion();
+        compactor.compact();
+        assertEquals( 19, vc( latest - 1 ).node( node ).getProperty( "key" ) );
+        assertEquals( asSet( live ), addToSet( vc( latest ).node( node ).getRelationships() ) );
+        assertEquals( asSet( live ), addToSet( node.getRelationships( RelTypes.LINKED ) ) );
+        try
+        {
+            graphDb.getNodeById( deleted.getId() );
+            fail( "Deleted node should have been removed." );
+        }
+        catch ( NotFoundException e )
+        {
+            // Good
+        }
+        try
+        {
+            SnapshotLeases.forGraph( graphDb ).acquire( versions[10] );
+            fail( "Should not be able to lease a compacted version." );
+        }
+        catch ( NotFoundException e )
+        {
+            // Good
+        }
+
+        setProperty( node, "key", 20 );
+        assertEquals( 19, vc( latest ).node( node ).getProperty( "key" ) );
+        assertEquals( 20, vc( versioningTransactionEventHandler.getLatestVersion() ).node( node ).getProperty( "key" ) );
+    }
+
+    @Test
+    public void testReadsStartingFromCheckpoints() throws InterruptedException
+    {
+        Node node = createNode();
+        Node later = createNode();
+        long[] versions = new long[30];
+        for ( int i = 0; i < versions.length; i++ )
+        {
+            setProperty( node, "key", i );
+            if ( i == 10 )
+            {
+                Checkpoints.forGraph( graphDb ).create( versions[i - 1] );
+            }
+            if ( i > 10 )
+            {
+                setProperty( later, "key", i );
+            }
+            versions[i] = versioningTransactionEventHandler.getLatestVersion();
+        }
+        assertEquals( 2, Checkpoints.forGraph( graphDb ).create( versions[20] ) );
+        versioningTransactionEventHandler.setCheckpointInterval( graphDb, 5 );
+        for ( int i = 0; i < 5; i++ )
+        {
+            setProperty( later, "key", i );
+        }
+
+        for ( int i = 0; i < versions.length; i++ )
+        {
+            PropertyHolderCache.forGraph( graphDb ).clear();
+            assertEquals( i, vc( versions[i] ).node( node ).getProperty( "key" ) );
+            assertEquals( i > 10 ? i : null, vc( versions[i] ).node( later ).getProperty( "key", null ) );
+        }
+        for ( int i = 0; i < 100 && Checkpoints.forGraph( graphDb ).getVersions().size() < 3; i++ )
+        {
+            Thread.sleep( 50 );
+        }
+        assertEquals( asSet( versions[9], versions[20], versioningTransactionEventHandler.getLatestVersion() ),
+            new HashSet<Long>( Checkpoints.forGraph( graphDb ).getVersions() ) );
+    }
+
+    @Test
+    public void testCheckpointsFromChangeLogSurviveRestart() throws IOException
+    {
+        File directory = File.createTempFile( "checkpoints", "" );
+        assertTrue( directory.delete() );
+        Checkpoints.forGraph( graphDb ).setDirectory( directory );
+        versioningTransactionEventHandler.setChangeLog( new ChangeLog( graphDb ) );
+        Node node = createNode();
+        Node other = createNode();
+        Node gone = createNode();
+        Relationship relationship = createRelationship( node, other, RelTypes.LINKED );
+        long[] versions = new long[20];
+        for ( int i = 0; i < versions.length; i++ )
+        {
+            setProperty( node, "key", i );
+            setProperty( relationship, "weight", i );
+            if ( i == 10 )
+            {
+                removeNode( gone );
+            }
+            versions[i] = versioningTransactionEventHandler.getLatestVersion();
+        }
+        Node later = createNode();
+        setProperty( later, "key", 20 );
+        long latest = versioningTransactionEventHandler.getLatestVersion();
+        // The first is a scan, the ones after are built from the one before and the change log.
+        Checkpoints.forGraph( graphDb ).create( versions[5] );
+        Checkpoints.forGraph( graphDb ).create( versions[15] );
+        assertEquals( Checkpoints.forGraph( graphDb ).create( versions[15] ),
+            Checkpoints.forGraph( graphDb ).create( latest ) - 1 );
+
+        for ( int pass = 0; pass < 2; pass++ )
+        {
+            for ( int i = 0; i < versions.length; i++ )
+            {
+                PropertyHolderCache.forGraph( graphDb ).clear();
+                VersionedNode versionedNode = vc( versions[i] ).node( node );
+                assertEquals( i, versionedNode.getProperty( "key" ) );
+                assertEquals( i, versionedNode.getSingleRelationship( RelTypes.LINKED, Direction.OUTGOING )
+                    .getProperty( "weight" ) );
+                assertEquals( i < 10, vc( versions[i] ).hasValidVersion( gone ) );
+            }
+            assertEquals( 20, vc( latest ).node( later ).getProperty( "key" ) );
+
+            // Like a restart: only what's in the directory is left.
+            Checkpoints.forGraph( graphDb ).setDirectory( null );
+            Checkpoints.forGraph( graphDb ).clear();
+            Checkpoints.forGraph( graphDb ).setDirectory( directory );
+            assertEquals( asSet( versions[5], versions[15], latest ),
+                new HashSet<Long>( Checkpoints.forGraph( graphDb ).getVersions() ) );
+        }
+
+        Checkpoints.forGraph( graphDb ).clear();
+        assertEquals( 0, directory.list().length );
+        deleteDirectory( directory );
+    }
+
+    @Test
+    public void testVersionedIndexAnswersAtEveryVersion()
+    {
+        VersionedIndex index = new VersionedIndex( graphDb, "people", "name" );
+        versioningTransactionEventHandler.addIndex( index );
+        Node node = createNode();
+        Node other = createNode();
+        setProperty( node, "name", "alice" );
+        long alice = versioningTransactionEventHandler.getLatestVersion();
+        setProperty( other, "name", "alice" );
+        long twoAlices = versioningTransactionEventHandler.getLatestVersion();
+        setProperty( node, "name", "bob" );
+        long bob = versioningTransactionEventHandler.getLatestVersion();
+        setProperty( node, "age", 42 );
+        long bobWithAge = versioningTransactionEventHandler.getLatestVersion();
+        removeProperty( other, "name" );
+        long unnamed = versioningTransactionEventHandler.getLatestVersion();
+        removeNode( node );
+        long deleted = versioningTransactionEventHandler.getLatestVersion();
+
+        assertEquals( asSet(), addToSet( index.get( "name", "alice", vc( alice - 1 ) ) ) );
+        assertEquals( asSet( node ), addToSet( index.get( "name", "alice", vc( alice ) ) ) );
+        assertEquals( asSet( node, other ), addToSet( index.get( "name", "alice", vc( twoAlices ) ) ) );
+        assertEquals( asSet( other ), addToSet( index.get( "name", "alice", vc( bob ) ) ) );
+        assertEquals( asSet(), addToSet( index.get( "name", "alice", vc( unnamed ) ) ) );
+        assertEquals( asSet(), addToSet( index.get( "name", "bob", vc( twoAlices ) ) ) );
+        assertEquals( asSet( node ), addToSet( index.get( "name", "bob", vc( bob ) ) ) );
+        assertEquals( asSet( node ), addToSet( index.get( "name", "bob", vc( bobWithAge ) ) ) );
+        assertEquals( asSet(), addToSet( index.get( "name", "bob", vc( deleted ) ) ) );
+
+        Node found = index.get( "name", "alice", vc( alice ) ).get( 0 );
+        assertTrue( found instanceof VersionedNode );
+        assertEquals( "alice", found.getProperty( "name" ) );
+        assertFalse( addToSet( found.getPropertyKeys() ).contains( VersionContext.HEAD_NODE_PROPERTY ) );
+    }
+
+    @Test
+    public void testCompactionRemovesIndexDocuments()
+    {
+        VersionedIndex index = new VersionedIndex( graphDb, "people", "name" );
+        versioningTransactionEventHandler.addIndex( index );
+        Node node = createNode();
+        Node deleted = createNode();
+        setProperty( node, "name", "alice" );
+        setProperty( deleted, "name", "carol" );
+        setProperty( node, "name", "bob" );
+        removeNode( deleted );
+        setProperty( node, "age", 42 );
+        assertEquals( 1, graphDb.index().forNodes( "people" ).get( "name", "alice" ).size() );
+
+        new HistoryCompactor( graphDb, versioningTransactionEventHandler, RetentionPolicy.keepVersions( 1 ) ).compact();
+        assertEquals( 0, graphDb.index().forNodes( "people" ).get( "name", "alice" ).size() );
+        assertEquals( 0, graphDb.index().forNodes( "people" ).get( "name", "carol" ).size() );
+        assertEquals( asSet( node ), addToSet( index.get( "name", "bob",
+            vc( versioningTransactionEventHandler.getLatestVersion() ) ) ) );
+    }
+
+    @Test
+    public void testCompactionRemovesHistoryOutsideTheGraph() throws IOException
+    {
+        ChangeLog changeLog = new ChangeLog( graphDb );
+        versioningTransactionEventHandler.setChangeLog( changeLog );
+        File directory = File.createTempFile( "journal", "" );
+        assertTrue( directory.delete() );
+        VersionJournal journal = new VersionJournal( directory, 256 );
+        versioningTransactionEventHandler.setJournal( graphDb, journal );
+        File file = File.createTempFile( "history", "" );
+        FileHistoryBackend backend = new FileHistoryBackend( file );
+        versioningTransactionEventHandler.setHistoryBackend( graphDb, backend );
+        long start = versioningTransactionEventHandler.getLatestVersion();
+        Node hub = createNode();
+        List<Relationship> ended = new ArrayList<Relationship>();
+        for ( int i = 0; i < 10; i++ )
+        {
+            ended.add( createRelationship( hub, createNode(), RelTypes.LINKED ) );
+        }
+        Relationship live = createRelationship( hub, createNode(), RelTypes.LINKED );
+        for ( Relationship relationship : ended )
+        {
+            removeRelationship( relationship );
+        }
+        for ( int i = 0; i < 20; i++ )
+        {
+            setProperty( hub, "counter", i );
+        }
+        long latest = versioningTransactionEventHandler.getLatestVersion();
+        int segments = directory.list().length;
+        long length = file.length();
+
+        HistoryCompactor compactor = new HistoryCompactor( graphDb, versioningTransactionEventHandler,
+            RetentionPolicy.keepVersions( 2 ) );
+        compactor.setBatchSize( 3 );
+        compactor.compact();
+        long horizon = latest - 1;
+        // The ended relationships were removed over several commits, with the hub unlocked in the end.
+        assertEquals( asSet( live ), addToSet( hub.getRelationships( RelTypes.LINKED ) ) );
+        assertFalse( hub.hasProperty( VersioningTransactionEventHandler.LOCK_PROP_KEY ) );
+
+        for ( ChangeLog.Change change : changeLog.diff( start, latest ) )
+        {
+            assertTrue( change.getVersion() >= horizon );
+        }
+        assertEquals( 2, changeStrings( changeLog.diff( horizon - 1, latest ) ).size() );
+
+        assertTrue( directory.list().length < segments );
+        for ( VersionJournal reading : Arrays.asList( journal, new VersionJournal( directory, 256 ) ) )
+        {
+            assertEquals( 19, reading.getProperty( VersionJournal.EntityType.NODE, hub.getId(), "counter",
+                latest ) );
+        }
+
+        assertTrue( file.length() < length );
+        for ( int pass = 0; pass < 2; pass++ )
+        {
+            PropertyHolderCache.forGraph( graphDb ).clear();
+            assertEquals( 18, vc( horizon ).node( hub ).getProperty( "counter" ) );
+            assertEquals( 19, vc( latest ).node( hub ).getProperty( "counter" ) );
+            backend.close();
+            backend = new FileHistoryBackend( file );
+            versioningTransactionEventHandler.setHistoryBackend( graphDb, backend );
+        }
+
+        versioningTransactionEventHandler.setHistoryBackend( graphDb, null );
+        backend.close();
+        assertTrue( file.delete() );
+        versioningTransactionEventHandler.setJournal( graphDb, null );
+        deleteDirectory( directory );
+    }
+
+    @Test
+    public void testVersionedIndexOnlyAnswersAtHeadWithHistoryBackend() throws IOException
+    {
+        VersionedIndex index = new VersionedIndex( graphDb, "people", "name" );
+        versioningTransactionEventHandler.addIndex( index );
+        Node node = createNode();
+        setProperty( node, "name", "alice" );
+        long alice = versioningTransactionEventHandler.getLatestVersion();
+        File file = File.createTempFile( "history", "" );
+        FileHistoryBackend backend = new FileHistoryBackend( file );
+        versioningTransactionEventHandler.setHistoryBackend( graphDb, backend );
+        setProperty( node, "name", "bob" );
+        long bob = versioningTransactionEventHandler.getLatestVersion();
+
+        assertEquals( asSet( node ), addToSet( index.get( "name", "bob", vc( bob ) ) ) );
+        try
+        {
+            index.get( "name", "alice", vc( alice ) );
+            fail( "History in the backend isn't indexed." );
+        }
+        catch ( UnsupportedOperationException e )
+        {
+            // Good
+        }
+
+        versioningTransactionEventHandler.setHistoryBackend( graphDb, null );
+        backend.close();
+        assertTrue( file.delete() );
+    }
+
+    @Test
+    public void testVersionedRelationshipProperties()
+    {
+        Node node = createNode();
+        Node other = createNode();
+        Relationship relationship = createRelationship( node, other, RelTypes.LINKED );
+        long created = versioningTransactionEventHandler.getLatestVersion();
+        long[] versions = new long[50];
+        for ( int i = 0; i < versions.length; i++ )
+        {
+            setProperty( relationship, "weight", i );
+            versions[i] = versioningTransactionEventHandler.getLatestVersion();
+        }
+        removeProperty( relationship, "weight" );
+        long removed = versioningTransactionEventHandler.getLatestVersion();
+        setProperty( relationship, "amount", 10 );
+
+        assertEquals( asSet(), addToSet( vc( created ).node( node ).getRelationships().iterator().next().getPropertyKeys() ) );
+        for ( int i = 0; i < versions.length; i++ )
+        {
+            Relationship versioned = vc( versions[i] ).node( node ).getRelationships().iterator().next();
+            assertEquals( i, versioned.getProperty( "weight" ) );
+            assertEquals( asSet( "weight" ), addToSet( versioned.getPropertyKeys() ) );
+        }
+        Relationship atRemoval = vc( removed ).node( other ).getSingleRelationship( RelTypes.LINKED, Direction.INCOMING );
+        assertFalse( atRemoval.hasProperty( "weight" ) );
+        assertFalse( atRemoval.hasProperty( "amount" ) );
+        Relationship head = vc( versioningTransactionEventHandler.getLatestVersion() ).node( other )
+            .getSingleRelationship( RelTypes.LINKED, Direction.INCOMING );
+        assertEquals( 10, head.getProperty( "amount" ) );
+        assertEquals( asSet( "amount" ), addToSet( head.getPropertyKeys() ) );
+        assertEquals( 1, IteratorUtil.count( node.getRelationships( RelTypes.LINKED ) ) );
+    }
+
+    @Test
+    public void testBulkLoadAtOneVersionAndThenAnother() throws Exception
+    {
+        VersionedIndex index = new VersionedIndex( graphDb, "people", "name" );
+        versioningTransactionEventHandler.addIndex( index );
+        Node existing = createNode();
+        setProperty( existing, "name", "existing" );
+        long before = versioningTransactionEventHandler.getLatestVersion();
+
+        BulkLoader loader = new BulkLoader( graphDb, versioningTransactionEventHandler, 7 );
+        long loaded = loader.getVersion();
+        ExecutorService otherThread = Executors.newSingleThreadExecutor();
+        Node concurrent = otherThread.submit( new Callable<Node>()
+        {
+            public Node call()
+            {
+                return createNode();
+            }
+        } ).get();
+        otherThread.shutdown();
+        long concurrentVersion = VersionContext.getStartVersion( concurrent );
+        assertTrue( concurrentVersion > loaded );
+        assertTrue( versioningTransactionEventHandler.getLatestVersion() < loaded );
+        List<Node> nodes = new ArrayList<Node>();
+        List<Relationship> relationships = new ArrayList<Relationship>();
+        for ( int i = 0; i < 20; i++ )
+        {
+            Node node = loader.createNode( Collections.<String, Object>singletonMap( "name", "n" + i ) );
+            if ( !nodes.isEmpty() )
+            {
+                relationships.add( loader.createRelationship( nodes.get( nodes.size() - 1 ), node, RelTypes.LINKED,
+                    Collections.<String, Object>singletonMap( "weight", i ) ) );
+            }
+            nodes.add( node );
+        }
+        loader.setProperty( nodes.get( 0 ), "name", "first" );
+        loader.setProperty( existing, "name", "renamed" );
+        loader.setProperty( existing, "name", "renamed again" );
+        assertTrue( versioningTransactionEventHandler.getLatestVersion() < loaded );
+        long next = loader.nextVersion();
+        assertTrue( next > concurrentVersion );
+        assertEquals( next - 1, versioningTransactionEventHandler.getLatestVersion() );
+        loader.setProperty( nodes.get( 1 ), "name", "second" );
+        loader.setProperty( relationships.get( 0 ), "weight", 100 );
+        loader.deleteRelationship( relationships.get( 1 ) );
+        loader.finish();
+        long latest = versioningTransactionEventHandler.getLatestVersion();
+        assertEquals( next, latest );
+
+        assertEquals( "existing", vc( before ).node( existing ).getProperty( "name" ) );
+        assertEquals( "renamed again", vc( loaded ).node( existing ).getProperty( "name" ) );
+        assertEquals( "first", vc( loaded ).node( nodes.get( 0 ) ).getProperty( "name" ) );
+        assertEquals( "n1", vc( loaded ).node( nodes.get( 1 ) ).getProperty( "name" ) );
+        assertEquals( "second", vc( latest ).node( nodes.get( 1 ) ).getProperty( "name" ) );
+        try
+        {
+            vc( before ).node( nodes.get( 1 ) );
+            fail( "Should have thrown exception." );
+        }
+        catch ( NotFoundException e )
+        {
+        }
+        assertEquals( asSet( relationships.get( 0 ), relationships.get( 1 ) ),
+            addToSet( vc( loaded ).node( nodes.get( 1 ) ).getRelationships() ) );
+        assertEquals( asSet( relationships.get( 0 ) ), addToSet( vc( latest ).node( nodes.get( 1 ) ).getRelationships() ) );
+        assertEquals( 1, vc( loaded ).node( nodes.get( 1 ) ).getRelationships( Direction.INCOMING ).iterator().next()
+            .getProperty( "weight" ) );
+        assertEquals( 100, vc( latest ).node( nodes.get( 1 ) ).getRelationships( Direction.INCOMING ).iterator().next()
+            .getProperty( "weight" ) );
+
+        assertEquals( asSet( existing ), addToSet( index.get( "name", "renamed again", vc( loaded ) ) ) );
+        assertEquals( asSet(), addToSet( index.get( "name", "renamed", vc( loaded ) ) ) );
+        assertEquals( asSet( nodes.get( 1 ) ), addToSet( index.get( "name", "n1", vc( loaded ) ) ) );
+        assertEquals( asSet( nodes.get( 1 ) ), addToSet( index.get( "name", "second", vc( latest ) ) ) );
+        assertEquals( asSet(), addToSet( index.get( "name", "n0", vc( loaded ) ) ) );
+
+        setProperty( existing, "name", "after" );
+        assertEquals( latest + 1, versioningTransactionEventHandler.getLatestVersion() );
+        assertEquals( "renamed again", vc( latest ).node( existing ).getProperty( "name" ) );
+    }
+
+    @Test
+    public void testDiffBetweenVersionsFromChangeLog()
+    {
+        ChangeLog changeLog = new ChangeLog( graphDb );
+        versioningTransactionEventHandler.setChangeLog( changeLog );
+        long start = versioningTransactionEventHandler.getLatestVersion();
+        Node first = createNode();
+        Node second = createNode();
+        Relationship relationship = createRelationship( first, second, RelTypes.LINKED );
+        long created = versioningTransactionEventHandler.getLatestVersion();
+        setProperty( first, "name", "first" );
+        setProperty( relationship, "weight", 1 );
+        removeProperty( first, "name" );
+        removeRelationship( relationship );
+        removeNode( second );
+        long end = versioningTransactionEventHandler.getLatestVersion();
+
+        assertEquals( Arrays.asList(
+            ( start + 1 ) + ": NODE_CREATED " + first.getId(),
+            ( start + 2 ) + ": NODE_CREATED " + second.getId(),
+            ( start + 3 ) + ": RELATIONSHIP_CREATED " + relationship.getId(),
+            ( start + 4 ) + ": NODE_PROPERTY_CHANGED " + first.getId() + ".name",
+            ( start + 5 ) + ": RELATIONSHIP_PROPERTY_CHANGED " + relationship.getId() + ".weight",
+            ( start + 6 ) + ": NODE_PROPERTY_CHANGED " + first.getId() + ".name",
+            ( start + 7 ) + ": RELATIONSHIP_DELETED " + relationship.getId(),
+            ( start + 8 ) + ": NODE_DELETED " + second.getId() ), changeStrings( changeLog.diff( start, end ) ) );
+        assertEquals( Arrays.asList(
+            ( start + 4 ) + ": NODE_PROPERTY_CHANGED " + first.getId() + ".name",
+            ( start + 5 ) + ": RELATIONSHIP_PROPERTY_CHANGED " + relationship.getId() + ".weight" ),
+            changeStrings( changeLog.diff( created, start + 5 ) ) );
+        assertEquals( Collections.<String>emptyList(), changeStrings( changeLog.diff( end, end ) ) );
+
+        for ( int i = 0; i < ChangeLog.SEGMENT_SIZE + 10; i++ )
+        {
+            setProperty( first, "counter", i );
+        }
+        BulkLoader loader = new BulkLoader( graphDb, versioningTransactionEventHandler, 3 );
+        Node loaded = loader.createNode( Collections.<String, Object>singletonMap( "name", "loaded" ) );
+        loader.setProperty( loaded, "name", "renamed" );
+        loader.setProperty( first, "name", "loaded" );
+        loader.finish();
+        long latest = versioningTransactionEventHandler.getLatestVersion();
+
+        List<String> changes = changeStrings( changeLog.diff( end, latest ) );
+        assertEquals( ChangeLog.SEGMENT_SIZE + 12, changes.size() );
+        for ( int i = 0; i < ChangeLog.SEGMENT_SIZE + 10; i++ )
+        {
+            assertEquals( ( end + 1 + i ) + ": NODE_PROPERTY_CHANGED " + first.getId() + ".counter", changes.get( i ) );
+        }
+        assertEquals( Arrays.asList( latest + ": NODE_CREATED " + loaded.getId(),
+            latest + ": NODE_PROPERTY_CHANGED " + first.getId() + ".name" ),
+            changes.subList( ChangeLog.SEGMENT_SIZE + 10, changes.size() ) );
+    }
+
+    @Test
+    public void testFailedBulkLoadBatchPublishesItsVersion()
+    {
+        Node existing = createNode();
+        BulkLoader loader = new BulkLoader( graphDb, versioningTransactionEventHandler, 100 );
+        long loaded = loader.getVersion();
+        Node node = loader.createNode( Collections.<String, Object>singletonMap( "name", "loaded" ) );
+        loader.createRelationship( node, existing, RelTypes.LINKED, Collections.<String, Object>emptyMap() );
+        // Joins the loader's transaction, which can't commit with the node still having a relationship.
+        node.delete();
+        try
+        {
+            loader.finish();
+            fail( "The batch shouldn't have committed." );
+        }
+        catch ( TransactionFailureException e )
+        {
+            // Good
+        }
+        assertTrue( versioningTransactionEventHandler.getLatestVersion() >= loaded );
+        try
+        {
+            loader.createNode( Collections.<String, Object>emptyMap() );
+            fail( "The loader shouldn't go on after a failed batch." );
+        }
+        catch ( IllegalStateException e )
+        {
+            // Good
+        }
+        loader.finish();
+
+        // Versioned as usual on the same thread.
+        Node after = createNode();
+        assertTrue( VersionContext.getStartVersion( after ) > loaded );
+        assertFalse( existing.hasRelationship() );
+    }
+
+    private static List<String> changeStrings( Iterable<ChangeLog.Change> changes )
+    {
+        List<String> strings = new ArrayList<String>();
+        for ( ChangeLog.Change change : changes )
+        {
+            strings.add( change.toString() );
+        }
+        return strings;
+    }
+
+    @Test
+    public void testJournalAnswersHistoryQueries() throws IOException
+    {
+        File directory = File.createTempFile( "journal", "" );
+        assertTrue( directory.delete() );
+        VersionJournal journal = new VersionJournal( directory, 256 );
+        versioningTransactionEventHandler.setJournal( graphDb, journal );
+        Node node = createNode();
+        long created = versioningTransactionEventHandler.getLatestVersion();
+        setProperty( node, "name", "first" );
+        setProperty( node, "tags", new String[] { "a", "b" } );
+        setProperty( node, "name", "second" );
+        long renamed = versioningTransactionEventHandler.getLatestVersion();
+        Node other = createNode();
+        Relationship relationship = createRelationship( node, other, RelTypes.LINKED );
+        setProperty( relationship, "weight", 2.5 );
+        removeProperty( node, "name" );
+        removeNode( other );
+        long deleted = versioningTransactionEventHandler.getLatestVersion();
+        for ( int i = 0; i < 20; i++ )
+        {
+            setProperty( node, "counter", i );
+        }
+        long latest = versioningTransactionEventHandler.getLatestVersion();
+
+        for ( VersionJournal reading : Arrays.asList( journal, new VersionJournal( directory, 256 ) ) )
+        {
+            assertEquals( null, reading.getProperty( VersionJournal.EntityType.NODE, node.getId(), "name", created ) );
+            assertEquals( "first", reading.getProperty( VersionJournal.EntityType.NODE, node.getId(), "name",
+                renamed - 1 ) );
+            assertEquals( "second", reading.getProperty( VersionJournal.EntityType.NODE, node.getId(), "name",
+                renamed ) );
+            assertEquals( null, reading.getProperty( VersionJournal.EntityType.NODE, node.getId(), "name", latest ) );
+            assertArrayEquals( new String[] { "a", "b" }, (String[]) reading.getProperty(
+                VersionJournal.EntityType.NODE, node.getId(), "tags", latest ) );
+            assertEquals( 2.5, reading.getProperty( VersionJournal.EntityType.RELATIONSHIP, relationship.getId(),
+                "weight", latest ) );
+            for ( int i = 0; i < 20; i++ )
+            {
+                assertEquals( i, reading.getProperty( VersionJournal.EntityType.NODE, node.getId(), "counter",
+                    deleted + 1 + i ) );
+            }
+            assertEquals( Range.range( created ), reading.getLifetime( VersionJournal.EntityType.NODE, node.getId() ) );
+            assertEquals( Range.range( renamed + 1, deleted - 1 ), reading.getLifetime( VersionJournal.EntityType.NODE,
+                other.getId() ) );
+            List<String> records = new ArrayList<String>();
+            for ( VersionJournal.Record record : reading.diff( created, renamed ) )
+            {
+                records.add( record.toString() );
+            }
+            assertEquals( Arrays.asList(
+                ( created + 1 ) + ": PROPERTY_CHANGED NODE " + node.getId() + ".name null -> first",
+                ( created + 2 ) + ": PROPERTY_CHANGED NODE " + node.getId() + ".tags null -> [a, b]",
+                renamed + ": PROPERTY_CHANGED NODE " + node.getId() + ".name first -> second" ), records );
+        }
+
+        versioningTransactionEventHandler.setJournal( graphDb, null );
+        deleteDirectory( directory );
+    }
+
+    @Test
+    public void testJournalOnlyShowsTransactionsThatCommitted() throws IOException
+    {
+        File directory = File.createTempFile( "journal", "" );
+        assertTrue( directory.delete() );
+        VersionJournal journal = new VersionJournal( directory, 256 );
+        versioningTransactionEventHandler.setJournal( graphDb, journal );
+        Node node = createNode();
+        setProperty( node, "name", "first" );
+        long first = versioningTransactionEventHandler.getLatestVersion();
+        TransactionEventHandler<Object> failing = new TransactionEventHandler<Object>()
+        {
+            public Object beforeCommit( TransactionData data ) throws Exception
+            {
+                throw new Exception( "Failing the commit after the journal prepared it." );
+            }
+
+            public void afterCommit( TransactionData data, Object state )
+            {
+            }
+
+            public void afterRollback( TransactionData data, Object state )
+            {
+            }
+        };
+        graphDb.registerTransactionEventHandler( failing );
+        try
+        {
+            setProperty( node, "name", "rolled back" );
+            fail( "The commit should have failed." );
+        }
+        catch ( TransactionFailureException e )
+        {
+            // Expected.
+        }
+        finally
+        {
+            graphDb.unregisterTransactionEventHandler( failing );
+        }
+        setProperty( node, "name", "second" );
+        long second = versioningTransactionEventHandler.getLatestVersion();
+        // One transaction that committed and one that didn't, both prepared but never marked, like after a crash.
+        versioningTransactionEventHandler.setJournal( graphDb, null );
+        setProperty( node, "name", "third" );
+        long third = versioningTransactionEventHandler.getLatestVersion();
+        journal.prepare( Arrays.asList( VersionJournal.Record.propertyChanged( third, node, "name", "second",
+            "third" ) ) );
+        journal.prepare( Arrays.asList( VersionJournal.Record.propertyChanged( third + 1, node, "name", "third",
+            "fourth" ) ) );
+        journal.force();
+
+        VersionJournal reopened = new VersionJournal( directory, 256 );
+        assertEquals( "second", reopened.getProperty( VersionJournal.EntityType.NODE, node.getId(), "name",
+            third + 1 ) );
+        reopened.recover( graphDb );
+        for ( VersionJournal reading : Arrays.asList( reopened, new VersionJournal( directory, 256 ) ) )
+        {
+            List<String> records = new ArrayList<String>();
+            for ( VersionJournal.Record record : reading.diff( first, third + 1 ) )
+            {
+                records.add( record.toString() );
+            }
+            assertEquals( Arrays.asList(
+                second + ": PROPERTY_CHANGED NODE " + node.getId() + ".name first -> second",
+                third + ": PROPERTY_CHANGED NODE " + node.getId() + ".name second -> third" ), records );
+            assertEquals( "third", reading.getProperty( VersionJournal.EntityType.NODE, node.getId(), "name",
+                third + 1 ) );
+        }
+        deleteDirectory( directory );
+    }
+
+    private static void deleteDirectory( File directory )
+    {
+        for ( File file : directory.listFiles() )
+        {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testReadsAtWallClockTime() throws Exception
+    {
+        VersionTimeline timeline = new VersionTimeline();
+        versioningTransactionEventHandler.setTimeline( timeline );
+        Node node = createNode();
+        setProperty( node, "name", "before" );
+        long before = versioningTransactionEventHandler.getLatestVersion();
+        Thread.sleep( 5 );
+        long between = System.currentTimeMillis();
+        Thread.sleep( 5 );
+        setProperty( node, "name", "after" );
+
+        assertEquals( before, VersionContext.vcAt( timeline, between ).version() );
+        assertEquals( "before", VersionContext.vcAt( timeline, new Date( between ) ).node( node ).getProperty( "name" ) );
+        assertEquals( "after", VersionContext.vcAt( timeline, System.currentTimeMillis() ).node( node )
+            .getProperty( "name" ) );
+        try
+        {
+            VersionContext.vcAt( timeline, timeline.getTimestamp( before - 1 ) - 1 );
+            fail( "Should have thrown exception." );
+        }
+        catch ( NotFoundException e )
+        {
+        }
+        versioningTransactionEventHandler.setTimeline( null );
+    }
+
+    @Test
+    public void testTimelineAcrossChunksAndReopening() throws IOException
+    {
+        File file = File.createTempFile( "timeline", "" );
+        assertTrue( file.delete() );
+        VersionTimeline timeline = new VersionTimeline( file );
+        int versions = VersionTimeline.CHUNK_SIZE * 2 + 100;
+        for ( int version = 1; version <= versions; version++ )
+        {
+            timeline.record( version * 2, version / 2 * 10 );
+        }
+        timeline.record( 6, 1000000 );
+        timeline.record( versions * 2 + 2, 0 );
+        timeline.close();
+
+        for ( VersionTimeline reading : Arrays.asList( timeline, new VersionTimeline( file ) ) )
+        {
+            assertEquals( versions + 1, reading.size() );
+            assertEquals( 2, reading.getVersionAt( 0 ) );
+            assertEquals( 6, reading.getVersionAt( 15 ) );
+            assertEquals( 10, reading.getVersionAt( 20 ) );
+            assertEquals( ( versions - 1 ) * 2, reading.getVersionAt( versions / 2 * 10 - 1 ) );
+            assertEquals( versions * 2 + 2, reading.getVersionAt( versions / 2 * 10 ) );
+            assertEquals( versions * 2 + 2, reading.getVersionAt( Long.MAX_VALUE ) );
+            assertEquals( 10, reading.getTimestamp( 5 ) );
+            assertEquals( versions / 2 * 10, reading.getTimestamp( versions * 2 + 2 ) );
+            try
+            {
+                reading.getVersionAt( -1 );
+                fail( "Should have thrown exception." );
+            }
+            catch ( NotFoundException e )
+            {
+            }
+            reading.close();
+        }
+        file.delete();
+    }
+
+    @Test
+    public void testEvaluationAtManyVersionsInParallel() throws InterruptedException
+    {
+        final Node node = createNode();
+        Node other = createNode();
+        long[] versions = new long[60];
+        for ( int i = 0; i < versions.length; i++ )
+        {
+            setProperty( node, "value", i );
+            if ( i % 10 == 0 )
+            {
+                createRelationship( node, other, RelTypes.LINKED );
+            }
+            versions[i] = versioningTransactionEventHandler.getLatestVersion();
+        }
+        ExecutorService executor = Executors.newFixedThreadPool( 4 );
+        try
+        {
+            SortedMap<Long, String> results = new MultiVersionEvaluator( executor, 4 ).evaluate(
+                new MultiVersionEvaluator.Function<String>()
+                {
+                    public String apply( VersionContext versionContext )
+                    {
+                        VersionedNode versionedNode = versionContext.node( node );
+                        return versionedNode.getProperty( "value" ) + "/" +
+                            addToSet( versionedNode.getRelationships() ).size();
+                    }
+                }, versions );
+            assertEquals( versions.length, results.size() );
+            for ( int i = 0; i < versions.length; i++ )
+            {
+                assertEquals( i + "/" + ( i / 10 + 1 ), results.get( versions[i] ) );
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testStreamingPropertyHistory()
+    {
+        versioningTransactionEventHandler.setKeyframeInterval( 3 );
+        Node node = createNode();
+        long created = versioningTransactionEventHandler.getLatestVersion();
+        for ( int i = 0; i < 40; i++ )
+        {
+            if ( i % 5 == 4 )
+            {
+                removeProperty( node, "counter" );
+            }
+            else if ( i % 2 == 0 )
+            {
+                setProperty( node, "counter", i / 2 );
+            }
+            else
+            {
+                setProperty( node, "other", i );
+            }
+        }
+        long latest = versioningTransactionEventHandler.getLatestVersion();
+
+        for ( long at : new long[] { latest, ( created + latest ) / 2 } )
+        {
+            long covered = at;
+            Object previousValue = null;
+            for ( VersionedValue<Object> value : vc( at ).node( node ).getPropertyHistory( "counter" ) )
+            {
+                assertTrue( value.getRange().to() <= covered );
+                assertFalse( value.getValue().equals( previousValue ) && value.getRange().to() == covered );
+                for ( long version = covered; version > value.getRange().to(); version-- )
+                {
+                    assertEquals( null, vc( version ).node( node ).getProperty( "counter", null ) );
+                }
+                for ( long version = value.getRange().to(); version >= value.getRange().from(); version-- )
+                {
+                    assertEquals( value.getValue(), vc( version ).node( node ).getProperty( "counter" ) );
+                }
+                covered = value.getRange().from() - 1;
+                previousValue = value.getValue();
+            }
+            for ( long version = covered; version >= created; version-- )
+            {
+                assertEquals( null, vc( version ).node( node ).getProperty( "counter", null ) );
+            }
+
+            long expectedTo = at;
+            for ( VersionedValue<Map<String, Object>> properties : vc( at ).node( node ).getPropertyHistory() )
+            {
+                assertEquals( expectedTo, properties.getRange().to() );
+                for ( long version = properties.getRange().to(); version >= properties.getRange().from(); version-- )
+                {
+                    VersionedNode versionedNode = vc( version ).node( node );
+                    Map<String, Object> expected = new HashMap<String, Object>();
+                    for ( String key : versionedNode.getPropertyKeys() )
+                    {
+                        expected.put( key, versionedNode.getProperty( key ) );
+                    }
+                    assertEquals( expected, properties.getValue() );
+                }
+                expectedTo = properties.getRange().from() - 1;
+            }
+            assertEquals( created - 1, expectedTo );
+        }
+
+        Node other = createNode();
+        Relationship relationship = createRelationship( node, other, RelTypes.LINKED );
+        long relationshipCreated = versioningTransactionEventHandler.getLatestVersion();
+        setProperty( relationship, "weight", 1 );
+        setProperty( node, "unrelated", 1 );
+        setProperty( relationship, "weight", 2 );
+        long reweighted = versioningTransactionEventHandler.getLatestVersion();
+        setProperty( relationship, "weight", 2 );
+        long end = versioningTransactionEventHandler.getLatestVersion();
+        List<String> history = new ArrayList<String>();
+        VersionedRelationship versionedRelationship = (VersionedRelationship) vc( end ).node( node )
+            .getSingleRelationship( RelTypes.LINKED, Direction.OUTGOING );
+        for ( VersionedValue<Object> value : versionedRelationship.getPropertyHistory( "weight" ) )
+        {
+            history.add( value.toString() );
+        }
+        assertEquals( Arrays.asList( "Range[" + reweighted + "," + end + "]=2",
+            "Range[" + ( relationshipCreated + 1 ) + "," + ( reweighted - 1 ) + "]=1" ), history );
+    }
+
+    @Test
+    public void testHistoryInFileBackend() throws IOException
+    {
+        versioningTransactionEventHandler.setKeyframeInterval( 2 );
+        Node node = createNode();
+        Node other = createNode();
+        Relationship relationship = createRelationship( node, other, RelTypes.LINKED );
+        long created = versioningTransactionEventHandler.getLatestVersion();
+        TreeMap<Long, Object> counters = new TreeMap<Long, Object>();
+        TreeMap<Long, Object> weights = new TreeMap<Long, Object>();
+        counters.put( created, null );
+        weights.put( created, null );
+        for ( int i = 0; i < 5; i++ )
+        {
+            setProperty( node, "counter", i );
+            counters.put( versioningTransactionEventHandler.getLatestVersion(), i );
+        }
+        setProperty( relationship, "weight", 1 );
+        weights.put( versioningTransactionEventHandler.getLatestVersion(), 1 );
+        int chainLength = chainLength( node );
+
+        File file = File.createTempFile( "history", "" );
+        FileHistoryBackend backend = new FileHistoryBackend( file );
+        versioningTransactionEventHandler.setHistoryBackend( graphDb, backend );
+        for ( int i = 5; i < 12; i++ )
+        {
+            if ( i == 8 )
+            {
+                removeProperty( node, "counter" );
+                counters.put( versioningTransactionEventHandler.getLatestVersion(), null );
+            }
+            else
+            {
+                setProperty( node, "counter", i );
+                counters.put( versioningTransactionEventHandler.getLatestVersion(), i );
+            }
+            if ( i % 3 == 0 )
+            {
+                setProperty( relationship, "weight", i );
+                weights.put( versioningTransactionEventHandler.getLatestVersion(), i );
+            }
+        }
+        assertEquals( chainLength, chainLength( node ) );
+
+        // History written for a transaction that then fails to commit stays in the file, but isn't read.
+        TransactionEventHandler<Object> failing = new TransactionEventHandler<Object>()
+        {
+            public Object beforeCommit( TransactionData data ) throws Exception
+            {
+                throw new IllegalStateException( "rejected" );
+            }
+
+            public void afterCommit( TransactionData data, Object state )
+            {
+            }
+
+            public void afterRollback( TransactionData data, Object state )
+            {
+            }
+        };
+        graphDb.registerTransactionEventHandler( failing );
+        try
+        {
+            setProperty( node, "counter", 99 );
+            fail( "Transaction should have been rolled back" );
+        }
+        catch ( RuntimeException e )
+        {
+            // Expected
+        }
+        finally
+        {
+            graphDb.unregisterTransactionEventHandler( failing );
+        }
+        assertHistory( node, counters, weights );
+        backend.close();
+        backend = new FileHistoryBackend( file );
+        versioningTransactionEventHandler.setHistoryBackend( graphDb, backend );
+        PropertyHolderCache.forGraph( graphDb ).clear();
+        assertHistory( node, counters, weights );
+        // The next write of the node replaces it.
+        setProperty( node, "counter", 12 );
+        counters.put( versioningTransactionEventHandler.getLatestVersion(), 12 );
+
+        for ( int pass = 0; pass < 2; pass++ )
+        {
+            assertHistory( node, counters, weights );
+
+            backend.close();
+            backend = new FileHistoryBackend( file );
+            versioningTransactionEventHandler.setHistoryBackend( graphDb, backend );
+            PropertyHolderCache.forGraph( graphDb ).clear();
+        }
+
+        versioningTransactionEventHandler.setHistoryBackend( graphDb, null );
+        backend.close();
+        assertTrue( file.delete() );
+    }
+
+    @Test
+    public void testHistoryWrittenAsynchronously()
+    {
+        versioningTransactionEventHandler.setKeyframeInterval( 2 );
+        AsyncHistoryWriter writer = new AsyncHistoryWriter( graphDb, versioningTransactionEventHandler );
+        versioningTransactionEventHandler.setAsyncHistoryWriter( writer );
+        Node node = createNode();
+        Node other = createNode();
+        Relationship relationship = createRelationship( node, other, RelTypes.LINKED );
+        long created = versioningTransactionEventHandler.getLatestVersion();
+        TreeMap<Long, Object> counters = new TreeMap<Long, Object>();
+        TreeMap<Long, Object> weights = new TreeMap<Long, Object>();
+        counters.put( created, null );
+        weights.put( created, null );
+        for ( int i = 0; i < 20; i++ )
+        {
+            if ( i % 7 == 6 )
+            {
+                removeProperty( node, "counter" );
+                counters.put( versioningTransactionEventHandler.getLatestVersion(), null );
+            }
+            else
+            {
+                setProperty( node, "counter", i );
+                counters.put( versioningTransactionEventHandler.getLatestVersion(), i );
+            }
+            if ( i % 4 == 1 )
+            {
+                setProperty( relationship, "weight", i );
+                weights.put( versioningTransactionEventHandler.getLatestVersion(), i );
+            }
+            if ( i == 12 )
+            {
+                assertEquals( 0, chainLength( node ) );
+                assertHistory( node, counters, weights );
+                assertEquals( 16, writer.flush() );
+                assertEquals( 0, writer.getPendingCount() );
+                assertHistory( node, counters, weights );
+            }
+        }
+        assertEquals( 9, writer.getPendingCount() );
+        assertHistory( node, counters, weights );
+
+        versioningTransactionEventHandler.setAsyncHistoryWriter( null );
+        assertEquals( 0, writer.getPendingCount() );
+        assertEquals( 20, chainLength( node ) );
+        assertHistory( node, counters, weights );
+    }
+
+    @Test
+    public void testPendingHistorySurvivesRestart()
+    {
+        versioningTransactionEventHandler.setKeyframeInterval( 2 );
+        versioningTransactionEventHandler.setAsyncHistoryWriter( new AsyncHistoryWriter( graphDb,
+            versioningTransactionEventHandler ) );
+        Node node = createNode();
+        Node other = createNode();
+        Relationship relationship = createRelationship( node, other, RelTypes.LINKED );
+        TreeMap<Long, Object> counters = new TreeMap<Long, Object>();
+        TreeMap<Long, Object> weights = new TreeMap<Long, Object>();
+        counters.put( versioningTransactionEventHandler.getLatestVersion(), null );
+        weights.put( versioningTransactionEventHandler.getLatestVersion(), null );
+        for ( int i = 0; i < 10; i++ )
+        {
+            setProperty( node, "counter", i );
+            counters.put( versioningTransactionEventHandler.getLatestVersion(), i );
+            if ( i % 3 == 0 )
+            {
+                setProperty( relationship, "weight", i );
+                weights.put( versioningTransactionEventHandler.getLatestVersion(), i );
+            }
+        }
+
+        // Gone without flushing, as if the database had crashed.
+        graphDb.unregisterTransactionEventHandler( versioningTransactionEventHandler );
+        versioningTransactionEventHandler = new VersioningTransactionEventHandler( graphDb.getReferenceNode() );
+        versioningTransactionEventHandler.setKeyframeInterval( 2 );
+        graphDb.registerTransactionEventHandler( versioningTransactionEventHandler );
+        AsyncHistoryWriter writer = new AsyncHistoryWriter( graphDb, versioningTransactionEventHandler );
+        assertEquals( 0, chainLength( node ) );
+        assertEquals( 14, writer.getPendingCount() );
+        assertHistory( node, counters, weights );
+
+        setProperty( node, "counter", 10 );
+        counters.put( versioningTransactionEventHandler.getLatestVersion(), 10 );
+        assertEquals( 11, chainLength( node ) );
+        assertEquals( 4, writer.getPendingCount() );
+        assertHistory( node, counters, weights );
+
+        assertEquals( 4, writer.flush() );
+        assertEquals( 0, writer.getPendingCount() );
+        assertHistory( node, counters, weights );
+    }
+
+    @Test
+    public void testPendingRecordCostsTheSameToCommit()
+    {
+        versioningTransactionEventHandler.setAsyncHistoryWriter( new AsyncHistoryWriter( graphDb,
+            versioningTransactionEventHandler ) );
+        Node node = createNode();
+        setProperty( node, "counter", 0 );
+        int recordSize = -1;
+        for ( int i = 1; i < AsyncHistoryWriter.DEFAULT_MAX_PENDING; i++ )
+        {
+            setProperty( node, "counter", i );
+            Node anchor = graphDb.getNodeById( node.getId() );
+            assertEquals( i + 1, anchor.getProperty( VersionContext.PENDING_HISTORY_PROPERTY ) );
+            byte[] newest = (byte[]) anchor.getProperty( VersionContext.PENDING_HISTORY_PROPERTY + "." + i );
+            if ( recordSize == -1 )
+            {
+                recordSize = newest.length;
+            }
+            // Each commit writes its own record, the same size however many are pending before it.
+            assertEquals( recordSize, newest.length );
+        }
+    }
+
+    @Test
+    public void testTooManyPendingWrittenAtCommit()
+    {
+        versioningTransactionEventHandler.setKeyframeInterval( 2 );
+        AsyncHistoryWriter writer = new AsyncHistoryWriter( graphDb, versioningTransactionEventHandler );
+        writer.setMaxPending( 8 );
+        versioningTransactionEventHandler.setAsyncHistoryWriter( writer );
+        Node node = createNode();
+        Node other = createNode();
+        Relationship relationship = createRelationship( node, other, RelTypes.LINKED );
+        TreeMap<Long, Object> counters = new TreeMap<Long, Object>();
+        TreeMap<Long, Object> weights = new TreeMap<Long, Object>();
+        counters.put( versioningTransactionEventHandler.getLatestVersion(), null );
+        weights.put( versioningTransactionEventHandler.getLatestVersion(), null );
+        for ( int i = 0; i < 20; i++ )
+        {
+            setProperty( node, "counter", i );
+            counters.put( versioningTransactionEventHandler.getLatestVersion(), i );
+            // The ninth change writes the eight before it, and its own history.
+            assertEquals( ( i + 1 ) % 9, writer.getPendingCount() );
+            assertEquals( ( i + 1 ) / 9 * 9, chainLength( node ) );
+            assertHistory( node, counters, weights );
+        }
+        setProperty( relationship, "weight", 1 );
+        weights.put( versioningTransactionEventHandler.getLatestVersion(), 1 );
+        assertHistory( node, counters, weights );
+
+        versioningTransactionEventHandler.setAsyncHistoryWriter( null );
+        assertEquals( 0, writer.getPendingCount() );
+        assertEquals( 20, chainLength( node ) );
+        assertHistory( node, counters, weights );
+    }
+
+    @Test
+    public void testVersionedIndexWithAsyncHistoryWriter()
+    {
+        VersionedIndex index = new VersionedIndex( graphDb, "people", "name" );
+        versioningTransactionEventHandler.addIndex( index );
+        AsyncHistoryWriter writer = new AsyncHistoryWriter( graphDb, versioningTransactionEventHandler );
+        versioningTransactionEventHandler.setAsyncHistoryWriter( writer );
+        Node node = createNode();
+        setProperty( node, "name", "alice" );
+        long alice = versioningTransactionEventHandler.getLatestVersion();
+        setProperty( node, "name", "bob" );
+        long bob = versioningTransactionEventHandler.getLatestVersion();
+
+        // The head is indexed at commit, while the history is still pending.
+        assertEquals( asSet( node ), addToSet( index.get( "name", "bob", vc( bob ) ) ) );
+        assertEquals( asSet(), addToSet( index.get( "name", "alice", vc( bob ) ) ) );
+        assertEquals( 1, writer.getPendingCount() );
+
+        // Older versions are answered once the writer is flushed.
+        assertEquals( asSet( node ), addToSet( index.get( "name", "alice", vc( alice ) ) ) );
+        assertEquals( asSet(), addToSet( index.get( "name", "bob", vc( alice ) ) ) );
+        assertEquals( 0, writer.getPendingCount() );
+        assertEquals( asSet( node ), addToSet( index.get( "name", "bob", vc( bob ) ) ) );
+
+        setProperty( node, "name", "carol" );
+        long carol = versioningTransactionEventHandler.getLatestVersion();
+        assertEquals( asSet( node ), addToSet( index.get( "name", "carol", vc( carol ) ) ) );
+        versioningTransactionEventHandler.setAsyncHistoryWriter( null );
+        assertEquals( asSet( node ), addToSet( index.get( "name", "bob", vc( bob ) ) ) );
+        assertEquals( asSet(), addToSet( index.get( "name", "bob", vc( carol ) ) ) );
+    }
+
+    @Test
+    public void testLatestVersionDoesNotMoveBackwards()
+    {
+        BlockVersionAllocator allocator = new BlockVersionAllocator( createNode(), 10 );
+        long first = allocator.allocate();
+        allocator.complete( first );
+        allocator.setLatestVersion( first + 5 );
+        try
+        {
+            allocator.setLatestVersion( first + 4 );
+            fail( "Versions up to " + ( first + 5 ) + " may have been handed out already." );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            // Good
+        }
+        assertEquals( first + 6, allocator.allocate() );
+    }
+
+    @Test
+    public void testReadsFromPropertyKeyHistory()
+    {
+        versioningTransactionEventHandler.setKeyframeInterval( 4 );
+        versioningTransactionEventHandler.setPropertyKeyHistory( true );
+        Node node = createNode();
+        long nodeCreated = versioningTransactionEventHandler.getLatestVersion();
+        Node other = createNode();
+        Relationship relationship = createRelationship( node, other, RelTypes.LINKED );
+        long created = versioningTransactionEventHandler.getLatestVersion();
+        TreeMap<Long, Object> counters = new TreeMap<Long, Object>();
+        TreeMap<Long, Object> weights = new TreeMap<Long, Object>();
+        TreeMap<Long, Object> names = new TreeMap<Long, Object>();
+        counters.put( created, null );
+        weights.put( created, null );
+        names.put( created, null );
+        setProperty( node, "name", "bob" );
+        names.put( versioningTransactionEventHandler.getLatestVersion(), "bob" );
+        for ( int i = 0; i < 30; i++ )
+        {
+            if ( i == 10 )
+            {
+                removeProperty( node, "counter" );
+                counters.put( versioningTransactionEventHandler.getLatestVersion(), null );
+            }
+            else
+            {
+                setProperty( node, "counter", i );
+                counters.put( versioningTransactionEventHandler.getLatestVersion(), i );
+            }
+            if ( i % 8 == 3 )
+            {
+                setProperty( relationship, "weight", i );
+                weights.put( versioningTransactionEventHandler.getLatestVersion(), i );
+            }
+            if ( i == 20 )
+            {
+                setProperty( node, "name", "robert" );
+                names.put( versioningTransactionEventHandler.getLatestVersion(), "robert" );
+            }
+            if ( i == 15 )
+            {
+                assertHistory( node, counters, weights );
+            }
+        }
+        assertHistory( node, counters, weights );
+
+        long latest = versioningTransactionEventHandler.getLatestVersion();
+        List<Map<String, Object>> fromKeyHistory = new ArrayList<Map<String, Object>>();
+        for ( long version = created; version <= latest; version++ )
+        {
+            VersionedNode versionedNode = vc( version ).node( node );
+            assertEquals( names.floorEntry( version ).getValue(), versionedNode.getProperty( "name", null ) );
+            fromKeyHistory.add( propertiesOf( versionedNode ) );
+        }
+        try
+        {
+            vc( nodeCreated - 1 ).node( node );
+            fail( "Node didn't exist yet." );
+        }
+        catch ( NotFoundException e )
+        {
+            // Good
+        }
+        assertTrue( PropertyKeyHistory.covers( node, nodeCreated ) );
+        assertTrue( PropertyKeyHistory.covers( relationship, created ) );
+
+        // Still there after a restart.
+        graphDb.unregisterTransactionEventHandler( versioningTransactionEventHandler );
+        versioningTransactionEventHandler = new VersioningTransactionEventHandler( graphDb.getReferenceNode() );
+        versioningTransactionEventHandler.setKeyframeInterval( 4 );
+        graphDb.registerTransactionEventHandler( versioningTransactionEventHandler );
+        assertTrue( PropertyKeyHistory.covers( node, nodeCreated ) );
+        for ( long version = created; version <= latest; version++ )
+        {
+            assertEquals( fromKeyHistory.get( (int) ( version - created ) ), propertiesOf( vc( version ).node( node ) ) );
+        }
+
+        // Without key histories kept, a change removes them, and reads walk the chain again.
+        setProperty( node, "other", 1 );
+        assertFalse( PropertyKeyHistory.covers( node, latest ) );
+        for ( long version = created; version <= latest; version++ )
+        {
+            assertEquals( fromKeyHistory.get( (int) ( version - created ) ), propertiesOf( vc( version ).node( node ) ) );
+        }
+        assertHistory( node, counters, weights );
+    }
+
+    @Test
+    public void testLiveContextSeesCurrentGraph()
+    {
+        Node node = createNode();
+        Node first = createNode();
+        Node second = createNode();
+        setProperty( node, "name", "bob" );
+        setProperty( node, "name", "robert" );
+        Relationship kept = createRelationship( node, first, RelTypes.LINKED );
+        Relationship removed = createRelationship( node, second, RelTypes.LINKED );
+        setProperty( kept, "weight", 1 );
+        setProperty( kept, "weight", 2 );
+        removeRelationship( removed );
+
+        VersionContext live = VersionContext.live();
+        VersionedNode liveNode = live.node( node );
+        assertEquals( "robert", liveNode.getProperty( "name" ) );
+        assertEquals( asSet( "name" ), addToSet( liveNode.getPropertyKeys() ) );
+        assertEquals( asSet( kept ), addToSet( liveNode.getRelationships() ) );
+        assertEquals( asSet( kept ), addToSet( liveNode.getRelationships( RelTypes.LINKED, Direction.OUTGOING ) ) );
+        assertEquals( 2, liveNode.getSingleRelationship( RelTypes.LINKED, Direction.OUTGOING ).getProperty( "weight" ) );
+        assertTrue( live.hasValidVersion( kept ) );
+        assertFalse( live.hasValidVersion( removed ) );
+
+        setProperty( node, "name", "rob" );
+        assertEquals( "rob", liveNode.getProperty( "name" ) );
+        assertEquals( "robert", vc( versioningTransactionEventHandler.getLatestVersion() - 1 ).node( node )
+            .getProperty( "name" ) );
+    }
+
+    @Test
+    public void testMetrics() throws Exception
+    {
+        VersioningMetrics metrics = new VersioningMetrics( graphDb );
+        versioningTransactionEventHandler.setMetrics( metrics );
+        Node node = createNode();
+        Node other = createNode();
+        for ( int counter = 1; counter <= 4; counter++ )
+        {
+            setProperty( node, "counter", counter );
+        }
+        long firstCounterVersion = versioningTransactionEventHandler.getLatestVersion() - 3;
+        Relationship kept = createRelationship( node, other, RelTypes.LINKED );
+        Relationship removed = createRelationship( node, other, RelTypes.LINKED );
+        setProperty( kept, "weight", 1 );
+        removeRelationship( removed );
+
+        assertEquals( 10, metrics.getCommits() );
+        assertEquals( 6, metrics.getHistoryNodesCreated() );
+        assertArrayEquals( new long[] { 5, 4, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 },
+            metrics.getHistoryNodesPerCommitHistogram() );
+        assertTrue( metrics.getBeforeCommitNanos() > 0 );
+        assertTrue( metrics.getVersionLockWaitNanos() > 0 );
+
+        metrics.reset();
+        assertEquals( 0, metrics.getCommits() );
+        assertEquals( 1, vc( firstCounterVersion ).node( node ).getProperty( "counter" ) );
+        assertTrue( metrics.getChainLookups() > 0 );
+        assertTrue( metrics.getChainHops() > 0 );
+        long lookups = 0;
+        for ( long count : metrics.getChainHopHistogram() )
+        {
+            lookups += count;
+        }
+        assertEquals( metrics.getChainLookups(), lookups );
+
+        assertEquals( asSet( kept ),
+            addToSet( vc( versioningTransactionEventHandler.getLatestVersion() ).node( node ).getRelationships() ) );
+        assertEquals( 1, metrics.getRelationshipsReturned() );
+        // The removed relationship had ended before, so the block holding it isn't even looked at.
+        assertEquals( 0, metrics.getRelationshipsFiltered() );
+
+        ObjectName name = metrics.registerMBean( "testMetrics" );
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try
+        {
+            assertEquals( 1L, server.getAttribute( name, "RelationshipsReturned" ) );
+        }
+        finally
+        {
+            metrics.unregisterMBean();
+        }
+        assertFalse( server.isRegistered( name ) );
+
+        versioningTransactionEventHandler.setMetrics( null );
+        createNode();
+        assertEquals( 0, metrics.getCommits() );
+    }
+
+    @Test
+    public void testCoalescingOfRapidChanges()
+    {
+        versioningTransactionEventHandler.setKeyframeInterval( 4 );
+        versioningTransactionEventHandler.setCoalescingPolicy( CoalescingPolicy.withinVersions( 10 ) );
+        VersionedIndex counters = new VersionedIndex( graphDb, "counters", "counter" );
+        versioningTransactionEventHandler.addIndex( counters );
+        versioningTransactionEventHandler.setPropertyKeyHistory( true );
+        Node node = createNode();
+        long created = versioningTransactionEventHandler.getLatestVersion();
+        for ( int counter = 1; counter <= 15; counter++ )
+        {
+            setProperty( node, "counter", counter );
+        }
+        assertEquals( 10, vc( created + 12 ).node( node ).getProperty( "counter" ) );
+        for ( int counter = 16; counter <= 30; counter++ )
+        {
+            setProperty( node, "counter", counter );
+        }
+
+        // Every historic node stands for ten versions, holding the state at the first of them.
+        assertEquals( 3, chainLength( node ) );
+        for ( boolean keyHistory : new boolean[] { true, false } )
+        {
+            if ( !keyHistory )
+            {
+                VersioningTransactionEventHandler.suspendVersioning();
+                Transaction tx = graphDb.beginTx();
+                try
+                {
+                    PropertyKeyHistory.delete( node );
+                    tx.success();
+                }
+                finally
+                {
+                    tx.finish();
+                    VersioningTransactionEventHandler.resumeVersioning();
+                }
+            }
+            assertEquals( keyHistory, PropertyKeyHistory.covers( node, created ) );
+            for ( long version = created; version <= created + 30; version++ )
+            {
+                Object expected = null;
+                if ( version == created + 30 )
+                {
+                    expected = 30;
+                }
+                else if ( version >= created + 10 )
+                {
+                    expected = (int) ( version - created ) / 10 * 10;
+                }
+                assertEquals( expected, vc( version ).node( node ).getProperty( "counter", null ) );
+            }
+        }
+        assertEquals( asSet( node ), addToSet( counters.get( "counter", 10, vc( created + 19 ) ) ) );
+        assertEquals( asSet(), addToSet( counters.get( "counter", 11, vc( created + 11 ) ) ) );
+        assertEquals( asSet( node ), addToSet( counters.get( "counter", 30, vc( created + 30 ) ) ) );
+
+        Relationship relationship = createRelationship( node, createNode(), RelTypes.LINKED );
+        long relationshipCreated = versioningTransactionEventHandler.getLatestVersion();
+        for ( int weight = 1; weight <= 12; weight++ )
+        {
+            setProperty( relationship, "weight", weight );
+        }
+        assertEquals( 2, chainLength( VersionContext.getHistoryNode( relationship ) ) );
+        VersionedNode versionedNode = vc( relationshipCreated + 5 ).node( node );
+        assertEquals( null, versionedNode.getSingleRelationship( RelTypes.LINKED, Direction.OUTGOING )
+            .getProperty( "weight", null ) );
+        versionedNode = vc( relationshipCreated + 11 ).node( node );
+        assertEquals( 10, versionedNode.getSingleRelationship( RelTypes.LINKED, Direction.OUTGOING )
+            .getProperty( "weight" ) );
+        versionedNode = vc( relationshipCreated + 12 ).node( node );
+        assertEquals( 12, versionedNode.getSingleRelationship( RelTypes.LINKED, Direction.OUTGOING )
+            .getProperty( "weight" ) );
+    }
+
+    private static Map<String, Object> propertiesOf( PropertyContainer entity )
+    {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        for ( String key : entity.getPropertyKeys() )
+        {
+            properties.put( key, entity.getProperty( key ) );
+        }
+        return properties;
+    }
+
+    /**
+     * Checks reads of the "counter" property of {@code node} and the "weight" property of its relationship at every
+     * version against the values expected from the version they were set at on.
+     */
+    private void assertHistory( Node node, TreeMap<Long, Object> counters, TreeMap<Long, Object> weights )
+    {
+        long created = counters.firstKey();
+        long latest = versioningTransactionEventHandler.getLatestVersion();
+        for ( long version = created; version <= latest; version++ )
+        {
+            VersionedNode versionedNode = vc( version ).node( node );
+            assertEquals( counters.floorEntry( version ).getValue(), versionedNode.getProperty( "counter", null ) );
+            Relationship versionedRelationship = versionedNode.getSingleRelationship( RelTypes.LINKED,
+                Direction.OUTGOING );
+            assertEquals( weights.floorEntry( version ).getValue(), versionedRelationship.getProperty( "weight", null ) );
+        }
+        long covered = latest;
+        for ( VersionedValue<Object> value : vc( latest ).node( node ).getPropertyHistory( "counter" ) )
+        {
+            assertTrue( value.getRange().to() <= covered );
+            for ( long version = covered; version > value.getRange().to(); version-- )
+            {
+                assertEquals( null, counters.floorEntry( version ).getValue() );
+            }
+            for ( long version = value.getRange().to(); version >= value.getRange().from(); version-- )
+            {
+                assertEquals( counters.floorEntry( version ).getValue(), value.getValue() );
+            }
+            covered = value.getRange().from() - 1;
+        }
+        assertEquals( counters.higherKey( created ) - 1, covered );
+    }
+
+    private int chainLength( Node node )
+    {
+        int length = 0;
+        for ( Node holder = VersionChain.first( node ); holder != null; holder = VersionChain.previous( holder ) )
+        {
+            length++;
+        }
+        return length;
+    }
+
+    @Test
+    public void testIndexingOfChainsWithoutJumpPointers()
+    {
+        Node node = createNode();
+        long[] versions = new long[50];
+        for ( int i = 0; i < versions.length; i++ )
+        {
+            setProperty( node, "key", i );
+            versions[i] = versioningTransactionEventHandler.getLatestVersion();
+        }
+        Transaction tx = graphDb.beginTx();
+        try
+        {
+            for ( Node historicNode : graphDb.getAllNodes() )
+            {
+                historicNode.removeProperty( VersionContext.CHAIN_DEPTH_PROPERTY );
+                for ( Relationship skipRel : historicNode.getRelationships( VersionContext.SKIP_VERSION_REL_TYPE, Direction.OUTGOING ) )
+                {
+                    skipRel.delete();
+                }
+            }
+            tx.success();
+        }
+        finally
+        {
+            tx.finish();
+        }
+        assertEquals( 7, vc( versions[7] ).node( node ).getProperty( "key" ) );
+
+        assertEquals( 1, VersionChain.indexAll( graphDb, 10 ) );
+        for ( int i = 0; i < versions.length; i++ )
+        {
+            assertEquals( i, vc( versions[i] ).node( node ).getProperty( "key" ) );
+        }
+    }
+
     private <T> Set<T> asSet( T... t )
     {
         return new HashSet<T>( Arrays.asList( t ) );
@@ -252,12 +2147,12 @@ public class VersionedGraphTest
         }
     }
 
-    private void setProperty( Node node, String key, Object value )
+    private void setProperty( PropertyContainer entity, String key, Object value )
     {
         Transaction tx = graphDb.beginTx();
         try
         {
-            node.setProperty( key, value );
+            entity.setProperty( key, value );
             tx.success();
         }
         finally
@@ -266,12 +2161,12 @@ public class VersionedGraphTest
         }
     }
 
-    private void removeProperty( Node node, String key )
+    private void removeProperty( PropertyContainer entity, String key )
     {
         Transaction tx = graphDb.beginTx();
         try
         {
-            node.removeProperty( key );
+            entity.removeProperty( key );
             tx.success();
         }
         finally